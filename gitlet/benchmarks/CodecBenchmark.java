@@ -0,0 +1,79 @@
+package gitlet;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static gitlet.Utils.*;
+
+/** Compares Java serialization with {@link ObjectCodec} on synthetic commits and blobs:
+ *  bytes on disk per object, and time to decode one object.
+ *  <p>
+ *  Usage: {@code java gitlet.CodecBenchmark [ITERATIONS]}.
+ *  Nothing is written to disk; objects are built in memory with the decoding constructors.
+ */
+public class CodecBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        Random random = new Random(61);
+        System.out.printf("%-22s %12s %12s %14s %14s%n",
+                "object", "java bytes", "codec bytes", "java ns/read", "codec ns/read");
+        for (int files : new int[]{0, 10, 100, 1000}) {
+            Commit commit = syntheticCommit(random, files);
+            report("commit, " + files + " files", commit, Commit.class, Math.max(200, iterations / Math.max(1, files / 10)));
+        }
+        for (int size : new int[]{16, 1024, 64 * 1024}) {
+            byte[] contents = new byte[size];
+            random.nextBytes(contents);
+            report("blob, " + size + " bytes", new Blob(contents), Blob.class, Math.max(200, iterations * 16 / Math.max(16, size / 64)));
+        }
+    }
+
+    private static Commit syntheticCommit(Random random, int files) {
+        Map<String, String> fileBlobs = new LinkedHashMap<>();
+        for (int i = 0; i < files; i++) {
+            fileBlobs.put("src/module" + (i % 17) + "/File" + i + ".java", randomUid(random));
+        }
+        Instant now = Instant.now();
+        return new Commit("Synthetic commit with " + files + " files", new String[]{randomUid(random)},
+                now, now, files == 0, fileBlobs);
+    }
+
+    private static String randomUid(Random random) {
+        byte[] raw = new byte[UID_LENGTH / 2];
+        random.nextBytes(raw);
+        return toHex(raw);
+    }
+
+    private static <T extends Dumpable> void report(String label, T obj, Class<T> type, int iterations) {
+        byte[] java = serialize(obj);
+        byte[] codec = ObjectCodec.encode(obj);
+        // * both forms must decode to the same object before their speed means anything
+        if (!ObjectCodec.decode(java, type).getUid().equals(obj.getUid())
+                || !ObjectCodec.decode(codec, type).getUid().equals(obj.getUid())) {
+            throw new IllegalStateException("Round trip changed " + label);
+        }
+        double javaNs = timeDecode(java, type, iterations);
+        double codecNs = timeDecode(codec, type, iterations);
+        System.out.printf("%-22s %12d %12d %14.0f %14.0f%n", label, java.length, codec.length, javaNs, codecNs);
+    }
+
+    /** Average nanoseconds to decode STORED, after an equal number of warm-up rounds. */
+    private static <T extends Dumpable> double timeDecode(byte[] stored, Class<T> type, int iterations) {
+        int sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            sink += ObjectCodec.decode(stored, type).hashCode() & 1;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += ObjectCodec.decode(stored, type).getDumpType().length();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42) {
+            System.out.print(""); // * keep the JIT from discarding the loop
+        }
+        return (double) elapsed / iterations;
+    }
+}
@@ -0,0 +1,114 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/** Measures the latency of gitlet commands run one process each, and through a {@link Daemon}.
+ *  <p>
+ *  Usage: {@code java gitlet.DaemonBenchmark [ROUNDS]}.
+ *  Each round of a scripted workflow writes a file and runs {@code add}, {@code commit},
+ *  {@code status} and {@code log --oneline}, in a fresh repository for each way of running them:
+ *  <ul>
+ *  <li>a {@code java gitlet.Main} process per command, as gitlet has always been run;</li>
+ *  <li>a {@code java gitlet.DaemonClient} process per command, sending it to the daemon;</li>
+ *  <li>{@link DaemonClient#send} from this process, which is what a script driving the daemon
+ *      from a long-lived process (or through a native client) pays per command.</li>
+ *  </ul>
+ */
+public class DaemonBenchmark {
+    private static final String[][] ROUND = {
+        {"add", "file.txt"}, {"commit", "round"}, {"status"}, {"log", "--oneline"},
+    };
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        System.out.printf("%d rounds of %s%n", rounds, String.join(", ",
+                Arrays.stream(ROUND).map(command -> String.join(" ", command)).toList()));
+        System.out.printf("%-26s %10s %10s %10s%n", "how", "median ms", "p90 ms", "total s");
+        report("process per command", run(rounds, "process"));
+        report("client process per command", run(rounds, "client"));
+        report("in-process client", run(rounds, "socket"));
+    }
+
+    /** Runs ROUNDS rounds in a fresh repository the way HOW says; returns the latency of each command in ns. */
+    private static List<Long> run(int rounds, String how) throws Exception {
+        Path repo = Files.createTempDirectory("gitlet-daemon-bench");
+        Process daemon = null;
+        try {
+            gitlet(repo, "gitlet.Main", "init");
+            if (!how.equals("process")) {
+                daemon = new ProcessBuilder(java("gitlet.Main", "daemon")).directory(repo.toFile())
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+                // * ready once it answers; the socket file appears a moment before it listens
+                while (DaemonClient.send(repo, new String[]{"status"}, OutputStream.nullOutputStream(),
+                        OutputStream.nullOutputStream()) < 0) {
+                    Thread.sleep(10);
+                }
+            }
+            List<Long> latencies = new ArrayList<>();
+            for (int round = 0; round < rounds; round++) {
+                Files.writeString(repo.resolve("file.txt"), "round " + round + "\n");
+                for (String[] command : ROUND) {
+                    long start = System.nanoTime();
+                    switch (how) {
+                        case "process" -> gitlet(repo, "gitlet.Main", command);
+                        case "client" -> gitlet(repo, "gitlet.DaemonClient", command);
+                        default -> {
+                            OutputStream sink = new ByteArrayOutputStream();
+                            if (DaemonClient.send(repo, command, sink, sink) != 0) {
+                                throw new IllegalStateException("Failed: " + String.join(" ", command));
+                            }
+                        }
+                    }
+                    latencies.add(System.nanoTime() - start);
+                }
+            }
+            return latencies;
+        } finally {
+            if (daemon != null) {
+                if (DaemonClient.send(repo, new String[]{"daemon", "stop"}, OutputStream.nullOutputStream(),
+                        OutputStream.nullOutputStream()) < 0) {
+                    daemon.destroy();
+                }
+                daemon.waitFor();
+            }
+            deleteTree(repo);
+        }
+    }
+
+    private static void gitlet(Path repo, String main, String... args) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(java(main, args)).directory(repo.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("Failed: " + main + " " + String.join(" ", args));
+        }
+    }
+
+    private static List<String> java(String main, String... args) {
+        List<String> command = new ArrayList<>(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", Path.of(System.getProperty("java.class.path")).toAbsolutePath().toString(), main));
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+
+    private static void report(String how, List<Long> latencies) {
+        List<Long> sorted = latencies.stream().sorted().toList();
+        System.out.printf("%-26s %10.1f %10.1f %10.2f%n", how, sorted.get(sorted.size() / 2) / 1e6,
+                sorted.get(sorted.size() * 9 / 10) / 1e6, sorted.stream().mapToLong(Long::longValue).sum() / 1e9);
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted((a, b) -> b.compareTo(a)).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
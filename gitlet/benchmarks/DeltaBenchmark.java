@@ -0,0 +1,117 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** Measures what delta compression saves on disk over a synthetic edit history of a text file,
+ *  and what it costs to read the versions back.
+ *  <p>
+ *  Usage: {@code java gitlet.DeltaBenchmark [VERSIONS] [LINES]}.
+ *  Each version changes, inserts or deletes a few random lines of the previous one, as a
+ *  long-lived source file sees. The versions are stored as loose blobs in a temporary object
+ *  store and packed with {@link PackFile#packObjects(Path, Map, int)}, once without deltas
+ *  and then with chains of increasing depth.
+ */
+public class DeltaBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int versions = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+        List<byte[]> history = syntheticHistory(new Random(61), versions, lines);
+        long edited = 0;
+        for (int v = 1; v < history.size(); v++) {
+            edited += Math.abs(history.get(v).length - history.get(v - 1).length) + 80L; // * about a line per change
+        }
+        System.out.printf("%d versions of a %d-line file, %.1f KiB each; about %.1f KiB of edits in all%n",
+                versions, lines, history.get(0).length / 1024.0, edited / 1024.0);
+        System.out.printf("%-16s %12s %12s %14s%n", "store", "KiB on disk", "vs. loose", "us per read");
+        long loose = -1;
+        for (int depth : new int[]{-1, 0, 1, 10, 50}) {
+            Path objDir = Files.createTempDirectory("gitlet-delta-bench");
+            try {
+                List<String> uids = new ArrayList<>();
+                Map<String, String> names = new HashMap<>();
+                for (byte[] contents : history) {
+                    Blob blob = new Blob(contents);
+                    Path file = objDir.resolve(blob.getUid().substring(0, 2)).resolve(blob.getUid().substring(2));
+                    Files.createDirectories(file.getParent());
+                    Files.write(file, Compression.compress(ObjectCodec.encode(blob)));
+                    uids.add(blob.getUid());
+                    names.put(blob.getUid(), "src/LongLived.java");
+                }
+                if (depth < 0) {
+                    loose = sizeOf(objDir);
+                    System.out.printf("%-16s %12.1f %12s %14s%n", "loose", loose / 1024.0, "1.00x", "-");
+                    continue;
+                }
+                PackFile.packObjects(objDir, names, depth);
+                PackFile pack = PackFile.open(PackFile.listIndices(objDir).get(0));
+                double micros = timeReads(pack, uids, history);
+                long size = sizeOf(objDir);
+                System.out.printf("%-16s %12.1f %11.2fx %14.1f%n", depth == 0 ? "pack, no deltas" : "pack, depth " + depth,
+                        size / 1024.0, (double) loose / size, micros);
+            } finally {
+                deleteTree(objDir);
+            }
+        }
+    }
+
+    /** Returns VERSIONS versions of a file of about LINES lines, each a few line edits from the last. */
+    private static List<byte[]> syntheticHistory(Random random, int versions, int lines) {
+        List<String> file = new ArrayList<>();
+        for (int i = 0; i < lines; i++) {
+            file.add(randomLine(random, i));
+        }
+        List<byte[]> history = new ArrayList<>();
+        for (int v = 0; v < versions; v++) {
+            for (int edit = 1 + random.nextInt(3); edit > 0; edit--) {
+                int at = random.nextInt(file.size());
+                switch (random.nextInt(3)) {
+                    case 0 -> file.set(at, randomLine(random, at));
+                    case 1 -> file.add(at, randomLine(random, at));
+                    default -> file.remove(at);
+                }
+            }
+            history.add((String.join("\n", file) + "\n").getBytes());
+        }
+        return history;
+    }
+
+    private static String randomLine(Random random, int i) {
+        return "    int value" + i + " = compute(" + Long.toHexString(random.nextLong()) + "L, "
+                + random.nextInt(1000) + "); // " + Integer.toString(random.nextInt(), 36);
+    }
+
+    /** Average microseconds to read and decode one version, checking each against HISTORY. */
+    private static double timeReads(PackFile pack, List<String> uids, List<byte[]> history) {
+        long start = System.nanoTime();
+        for (int v = 0; v < uids.size(); v++) {
+            Blob blob = ObjectCodec.decode(pack.read(uids.get(v)), Blob.class);
+            if (blob.getContents().length != history.get(v).length) {
+                throw new IllegalStateException("Version " + v + " read back wrong");
+            }
+        }
+        return (System.nanoTime() - start) / 1000.0 / uids.size();
+    }
+
+    private static long sizeOf(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted((a, b) -> b.compareTo(a)).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
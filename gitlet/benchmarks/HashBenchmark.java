@@ -0,0 +1,145 @@
+package gitlet;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** Compares hashing a commit or a tree through one String, and a blob through its serialized
+ *  prefix, as gitlet used to, with feeding their fields to the {@link Sha1} of the thread in an
+ *  {@link ObjectCache}: time and bytes allocated per UID.
+ *  <p>
+ *  Usage: {@code java gitlet.HashBenchmark [ITERATIONS]}.
+ *  Commits are flat (their files in the commit, not in a tree) with 1000 to 10000 files; trees
+ *  have as many entries, and also the handful a typical directory has. Blobs are of the sizes of
+ *  typical source files. Objects are built in memory, and a new one is hashed each time, since
+ *  UIDs are memoized. Allocation is that of the benchmark thread, which does all the hashing.
+ */
+public class HashBenchmark {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /** What is timed: hashing one object. */
+    private interface Hash {
+        String run();
+    }
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        Random random = new Random(61);
+        Instant now = Instant.now();
+        String[] parents = {randomUid(random)};
+        ObjectCache cache = new ObjectCache();
+        System.out.printf("%-22s %14s %14s %16s %16s%n",
+                "object", "before ns/op", "after ns/op", "before KB/op", "after KB/op");
+        for (int size : new int[]{100, 4096, 65536}) {
+            byte[] contents = new byte[size];
+            random.nextBytes(contents);
+            report("blob, " + size + " bytes", iterations,
+                    () -> serializedBlobUid(contents), () -> new Blob(contents).getUid(cache));
+        }
+        for (int files : new int[]{8, 1000, 5000, 10000}) {
+            Map<String, String> fileBlobs = new LinkedHashMap<>();
+            for (int i = 0; i < files; i++) {
+                fileBlobs.put("src/module" + (i % 17) + "/File" + i + ".java", randomUid(random));
+            }
+            Map<String, String> entries = new TreeMap<>(fileBlobs);
+            if (files >= 1000) {
+                String message = "Synthetic commit with " + files + " files";
+                report("commit, " + files + " files", iterations,
+                        () -> stringCommitUid(message, parents, now, fileBlobs),
+                        () -> new Commit(message, parents, now, now, false, fileBlobs).getUid(cache));
+            }
+            report("tree, " + files + " entries", iterations,
+                    () -> stringTreeUid(entries), () -> new Tree(entries).getUid(cache));
+        }
+    }
+
+    /** The UID of a blob, computed as {@link Blob} did before it kept its serialized prefix:
+     *  serializing an empty blob and the boxed length, and with a new digest, for each UID. */
+    private static String serializedBlobUid(byte[] contents) {
+        byte[] empty = serialize(new Blob(new byte[0]));
+        int prefix = empty.length - Integer.BYTES;
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("System does not support SHA-1", e);
+        }
+        md.update("blob".getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        md.update(serialize(prefix + Integer.BYTES + contents.length));
+        md.update((byte) 0);
+        md.update(empty, 0, prefix);
+        md.update(ByteBuffer.allocate(Integer.BYTES).putInt(contents.length).array());
+        md.update(contents);
+        return toHex(md.digest());
+    }
+
+    /** The UID of a flat commit, computed as {@link Commit} did before it used a {@link Sha1}. */
+    private static String stringCommitUid(String message, String[] parents, Instant now, Map<String, String> fileBlobs) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("commit").append("\0");
+        sb.append(message).append("\0");
+        sb.append(now.toString()).append("\0");
+        sb.append(now.toString()).append("\0");
+        for (String parent : parents) {
+            sb.append(parent).append("\0");
+        }
+        fileBlobs.keySet().stream().sorted().forEach(key -> sb.append(key).append(":").append(fileBlobs.get(key)).append("\0"));
+        return sha1(sb.toString());
+    }
+
+    /** The UID of a tree, computed as {@link Tree} did before it used a {@link Sha1}. */
+    private static String stringTreeUid(Map<String, String> entries) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("tree").append("\0");
+        entries.forEach((name, child) -> sb.append(name).append(":").append(child).append("\0"));
+        return sha1(sb.toString());
+    }
+
+    private static void report(String label, int iterations, Hash string, Hash stream) {
+        // * both ways must give the same UID before their costs mean anything
+        if (!string.run().equals(stream.run())) {
+            throw new IllegalStateException("UIDs differ for " + label);
+        }
+        long[] stringCost = measure(string, iterations);
+        long[] streamCost = measure(stream, iterations);
+        System.out.printf("%-22s %14d %14d %16.1f %16.1f%n", label,
+                stringCost[0] / iterations, streamCost[0] / iterations,
+                stringCost[1] / 1024.0 / iterations, streamCost[1] / 1024.0 / iterations);
+    }
+
+    /** Nanoseconds and bytes allocated for ITERATIONS runs of HASH, after as many warm-up runs. */
+    private static long[] measure(Hash hash, int iterations) {
+        int sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            sink += hash.run().hashCode();
+        }
+        long allocated = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += hash.run().hashCode();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+        if (sink == 42) {
+            System.out.println(); // * keeps the results alive
+        }
+        return new long[]{elapsed, bytes};
+    }
+
+    private static String randomUid(Random random) {
+        byte[] raw = new byte[UID_LENGTH / 2];
+        random.nextBytes(raw);
+        return toHex(raw);
+    }
+}
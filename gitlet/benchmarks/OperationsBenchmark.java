@@ -0,0 +1,264 @@
+package gitlet;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** Measures gitlet's core operations on a synthetic repository, as a baseline to compare changes against.
+ *  <p>
+ *  Usage: {@code java gitlet.OperationsBenchmark [--files N] [--size BYTES] [--depth COMMITS]
+ *  [--branches B] [--iterations I]}.
+ *  <p>
+ *  The repository has N files of about BYTES bytes each, spread over a hundred directories two
+ *  levels deep, with a {@code .gitletignore} and an ignored build directory beside them, a history
+ *  COMMITS deep on the default branch, each commit rewriting a fiftieth of the files, and B side
+ *  branches forked along it with a commit of their own. It is generated in a temporary directory,
+ *  where a second JVM runs the benchmark: the repository is wherever gitlet is started. Commands run
+ *  in that JVM through {@link Main#main}, so each one loads the repository afresh, as a gitlet process
+ *  would, but none pays for starting a JVM; {@link DaemonBenchmark} measures that part.
+ *  <p>
+ *  Each operation runs I times after I/4 warm-up runs, with whatever it needs prepared beforehand and
+ *  not timed: {@code add} of one rewritten file, {@code commit} of one staged file, {@code status},
+ *  {@code log} of the whole history, {@code switch} between the default branch and a side branch,
+ *  {@code merge} of a branch with one commit on each side, and {@link Commit#findLCA} of the default
+ *  branch and each side branch, walking commits and through the {@link CommitGraph}. Reported are
+ *  throughput, latency and the bytes allocated by the thread running the operation (threads of the
+ *  checkout and hashing pools are not counted).
+ */
+public class OperationsBenchmark {
+    private static final String HERE = "--here";
+
+    private int files = 1000;
+    private int size = 1024;
+    private int depth = 200;
+    private int branches = 4;
+    private int iterations = 20;
+
+    private final Random random = new Random(61);
+    private final PrintStream console = System.out;
+    private final PrintStream errors = System.err;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private String mainBranch;
+    private int generated;
+
+    /** A timed step, or the untimed preparation for one. */
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(HERE)) {
+            new OperationsBenchmark(Arrays.copyOfRange(args, 1, args.length)).run();
+            return;
+        }
+        Path dir = Files.createTempDirectory("gitlet-ops-bench");
+        try {
+            List<String> command = new ArrayList<>(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", Path.of(System.getProperty("java.class.path")).toAbsolutePath().toString(),
+                    OperationsBenchmark.class.getName(), HERE));
+            command.addAll(Arrays.asList(args));
+            int status = new ProcessBuilder(command).directory(dir.toFile()).inheritIO().start().waitFor();
+            if (status != 0) {
+                throw new IllegalStateException("Benchmark failed with status " + status);
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    private OperationsBenchmark(String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            int value = Integer.parseInt(args[i + 1]);
+            switch (args[i]) {
+                case "--files" -> files = value;
+                case "--size" -> size = value;
+                case "--depth" -> depth = value;
+                case "--branches" -> branches = value;
+                case "--iterations" -> iterations = value;
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        if (Files.exists(Repository.GITLET_DIR)) {
+            throw new IllegalStateException("Run this in an empty directory; " + Repository.GITLET_DIR + " exists.");
+        }
+        console.printf("%d files of %d bytes, %d commits deep, %d side branches; %d iterations%n",
+                files, size, depth, branches, iterations);
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        System.setOut(discard); // * what gitlet prints is not what is measured
+        System.setErr(discard);
+        try {
+            benchmark();
+        } finally {
+            System.setOut(console);
+            System.setErr(errors);
+        }
+    }
+
+    private void benchmark() throws Exception {
+        long start = System.nanoTime();
+        generate();
+        console.printf("generated in %.1f s%n", (System.nanoTime() - start) / 1e9);
+        console.printf("%-16s %10s %10s %10s %12s %12s%n", "operation", "ops/s", "median ms", "p90 ms", "KB alloc/op", "MB alloc/s");
+
+        measure("status", () -> { }, () -> gitlet("status"));
+        measure("log", () -> { }, () -> gitlet("log"));
+        Path target = file(0);
+        measure("add", () -> rewrite(target), () -> gitlet("add", target.toString()));
+        measure("commit", () -> {
+            rewrite(target);
+            gitlet("add", target.toString());
+        }, () -> gitlet("commit", "benchmark commit"));
+        if (branches > 0) {
+            String[] next = {"side0"};
+            measure("switch", () -> { }, () -> {
+                gitlet("switch", next[0]);
+                next[0] = next[0].equals(mainBranch) ? "side0" : mainBranch;
+            });
+            if (next[0].equals(mainBranch)) {
+                gitlet("switch", mainBranch);
+            }
+            measure("findLCA (walk)", () -> { }, () -> {
+                ObjectCache cache = new ObjectCache(); // * as cold as a new process's
+                for (int b = 0; b < branches; b++) {
+                    Commit.findLCA(head(mainBranch, cache), head("side" + b, cache));
+                }
+            });
+            measure("findLCA (graph)", () -> { }, () -> {
+                ObjectCache cache = new ObjectCache();
+                CommitGraph graph = CommitGraph.open(Repository.OBJ_DIR);
+                for (int b = 0; b < branches; b++) {
+                    Commit.findLCA(head(mainBranch, cache), head("side" + b, cache), graph);
+                }
+            });
+        }
+        int[] merges = {0};
+        measure("merge", () -> {
+            String branch = "merge" + ++merges[0];
+            gitlet("branch", branch);
+            commitRewrite(1);
+            gitlet("switch", branch);
+            commitRewrite(1);
+            gitlet("switch", mainBranch);
+        }, () -> gitlet("merge", "merge" + merges[0]));
+    }
+
+    /** Builds the repository described in the class comment in the working directory. */
+    private void generate() throws Exception {
+        gitlet("init");
+        mainBranch = Repository.reinstantiate().currentBranch();
+        Files.writeString(Path.of(WorkTree.IGNORE_FILE), "build/\n");
+        for (int i = 0; i < files / 10; i++) {
+            rewrite(Path.of("build", "gen" + i % 10, "out" + i + ".class")); // * walked past, never read
+        }
+        List<String> add = new ArrayList<>(List.of("add", WorkTree.IGNORE_FILE));
+        for (int i = 0; i < files; i++) {
+            rewrite(file(i));
+            add.add(file(i).toString());
+        }
+        gitlet(add.toArray(new String[0]));
+        gitlet("commit", "synthetic tree of " + files + " files");
+        int forkEvery = Math.max(1, depth / (branches + 1));
+        int forked = 0;
+        for (int d = 1; d < depth; d++) {
+            if (forked < branches && d % forkEvery == 0) {
+                gitlet("branch", "side" + forked++);
+            }
+            commitRewrite(Math.max(1, files / 50));
+        }
+        for (int b = 0; b < forked; b++) {
+            gitlet("switch", "side" + b);
+            commitRewrite(Math.max(1, files / 50));
+            gitlet("switch", mainBranch);
+        }
+        branches = forked;
+        Repository repo = Repository.reinstantiate();
+        List<Commit> history = new ArrayList<>();
+        new CommitWalk(List.of(repo.getHeadCommit()), repo.objectCache).forEachRemaining(history::add);
+        if (history.size() != depth + 1) { // * and the initial commit
+            throw new IllegalStateException("Generated " + (history.size() - 1) + " commits, not " + depth);
+        }
+    }
+
+    /** Rewrites COUNT random files, stages them and commits them. */
+    private void commitRewrite(int count) throws Exception {
+        List<String> args = new ArrayList<>(List.of("add"));
+        for (int i = 0; i < count; i++) {
+            Path file = file(random.nextInt(Math.max(1, files)));
+            rewrite(file);
+            args.add(file.toString());
+        }
+        gitlet(args.toArray(new String[0]));
+        gitlet("commit", "synthetic commit " + ++generated);
+    }
+
+    private static Path file(int i) {
+        return Path.of("dir" + i % 10, "sub" + i / 10 % 10, "file" + i + ".txt");
+    }
+
+    /** Fills FILE with about {@code size} bytes of random lines of text. */
+    private void rewrite(Path file) throws Exception {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        StringBuilder text = new StringBuilder(size + 64);
+        while (text.length() < size) {
+            for (int c = 0; c < 59; c++) {
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+            text.append('\n');
+        }
+        Files.writeString(file, text);
+    }
+
+    private static Commit head(String branch, ObjectCache cache) {
+        return Commit.getByUid(Repository.resolveHead(Repository.BRC_DIR.resolve(branch)).trim(), cache);
+    }
+
+    private static void gitlet(String... args) throws Exception {
+        Main.main(args);
+    }
+
+    /** Runs STEP {@code iterations} times after a quarter as many warm-up runs, each after PREPARE. */
+    private void measure(String name, Step prepare, Step step) throws Exception {
+        int warmup = Math.max(1, iterations / 4);
+        long[] nanos = new long[iterations];
+        long bytes = 0;
+        for (int i = -warmup; i < iterations; i++) {
+            prepare.run();
+            long allocated = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            step.run();
+            long elapsed = System.nanoTime() - start;
+            if (i >= 0) {
+                nanos[i] = elapsed;
+                bytes += threads.getCurrentThreadAllocatedBytes() - allocated;
+            }
+        }
+        long total = Arrays.stream(nanos).sum();
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        console.printf("%-16s %10.1f %10.2f %10.2f %12.1f %12.1f%n", name, iterations / (total / 1e9),
+                sorted[iterations / 2] / 1e6, sorted[iterations * 9 / 10] / 1e6,
+                bytes / 1024.0 / iterations, bytes / 1048576.0 / (total / 1e9));
+    }
+
+    private static void deleteTree(Path dir) throws Exception {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted((a, b) -> b.compareTo(a)).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
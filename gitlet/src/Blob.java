@@ -1,17 +1,38 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Files;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static gitlet.Utils.*;
 
 public class Blob implements Serializable, Dumpable {
+    /** Pinned, so that blobs serialized by earlier versions stay readable;
+     *  the UID of a blob also hashes its serialized form, so this keeps UIDs stable. */
+    private static final long serialVersionUID = 4539005115315077837L;
+
+    /** What {@link Dumpable#getUid} hashes of a serialized blob ahead of the content length: the
+     *  serialization of an empty blob, up to its length. It is the same for every blob, so it is
+     *  computed once, as a String of one char per byte (see {@link Sha1#updateRaw}). */
+    private static final String SERIALIZED_PREFIX = serializedPrefix(new Blob(new byte[0]), Integer.BYTES);
+    /** The serialization of a boxed int or long, up to the value itself. */
+    private static final String INT_PREFIX = serializedPrefix(0, Integer.BYTES);
+    private static final String LONG_PREFIX = serializedPrefix(0L, Long.BYTES);
+
     /** Contents of this Blob, which is a byte array. */
     protected final byte[] contents;
 
+    /** Memoized {@link #getUid(ObjectCache)}; the contents are never modified. */
+    private transient String uid;
+
     public Blob(byte[] contents) {
         this.contents = contents;
     }
@@ -53,6 +74,211 @@ public class Blob implements Serializable, Dumpable {
     public static Blob blobify(File file) {
         return blobify(file.toPath());
     }
+
+    /* STREAMING */
+
+    /** Files of at least this many bytes are split into content-defined chunks by {@link #store}. */
+    static final long CHUNK_THRESHOLD = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Returns the UID the blob of the file at FILEPATH would have, without storing it.
+     *  The file is read through a fixed-size buffer, so this works for files of any size. */
+    public static String hashFile(Path filePath) {
+        return hashFile(filePath, null);
+    }
+
+    /** Like {@link #hashFile(Path)}, hashing with the hasher the calling thread has in CACHE; CACHE may be null. */
+    public static String hashFile(Path filePath, ObjectCache cache) {
+        try (InputStream in = Files.newInputStream(filePath)) {
+            long size = Files.size(filePath);
+            Sha1 uid = uidHash(size, Sha1.of(cache));
+            byte[] buf = new byte[BUFFER_SIZE];
+            long total = 0;
+            for (int n; (n = in.read(buf)) >= 0; total += n) {
+                uid.update(buf, 0, n);
+            }
+            checkSize(filePath, size, total);
+            return uid.hex();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read file: " + filePath, e);
+        }
+    }
+
+    /** Stores the file at FILEPATH as a blob and returns its UID, which is the same as
+     *  {@code blobify(filePath).getUid()}; unlike {@link #blobify}, the file is never held
+     *  on the heap as a whole.
+     *  <p>
+     *  Small files are hashed while being written to a temporary file, which is then moved
+     *  into the object store. Files of at least {@link #CHUNK_THRESHOLD} bytes are cut by
+     *  a {@link Chunker}; each chunk is stored as a blob of its own, and the file's UID names
+     *  a manifest listing them, so that a small edit to a large file only stores the chunks
+     *  it touched.
+     */
+    public static String store(Path filePath) {
+        return store(filePath, null);
+    }
+
+    /** Like {@link #store(Path)}, looking for what is already stored in the packs CACHE keeps open; CACHE may be null. */
+    public static String store(Path filePath, ObjectCache cache) {
+        long size;
+        try {
+            size = Files.size(filePath);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read file: " + filePath, e);
+        }
+        return size < CHUNK_THRESHOLD ? storeWhole(filePath, size, cache) : storeChunked(filePath, size, cache);
+    }
+
+    private static String storeWhole(Path filePath, long size, ObjectCache cache) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(Repository.OBJ_DIR, "tmp-obj-", "");
+            Sha1 uid = uidHash(size, Sha1.of(cache));
+            long total = 0;
+            try (InputStream in = Files.newInputStream(filePath)) {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int n = in.readNBytes(buf, 0, buf.length);
+                // * deflating a zip or a jpeg again is all cost and no gain
+                int level = Compression.looksCompressed(buf, 0, n) ? 0 : Compression.level();
+                try (OutputStream out = Compression.deflating(Files.newOutputStream(tmp), level)) {
+                    out.write(ObjectCodec.blobHeader(size));
+                    for (; n > 0; total += n, n = in.read(buf)) {
+                        uid.update(buf, 0, n);
+                        out.write(buf, 0, n);
+                    }
+                }
+            }
+            checkSize(filePath, size, total);
+            String result = uid.hex();
+            Dumpable.persistStored(result, tmp, cache);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(tmp);
+            throw e instanceof RuntimeException re ? re : new RuntimeException("Failed to store file: " + filePath, e);
+        }
+    }
+
+    private static String storeChunked(Path filePath, long size, ObjectCache cache) {
+        // * not the thread's hasher in CACHE, which hashes each chunk while this one is in use
+        Sha1 uid = uidHash(size, new Sha1());
+        Chunker chunker = new Chunker();
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(Chunker.MAX_CHUNK);
+        List<String> chunkUids = new ArrayList<>();
+        List<Long> chunkLengths = new ArrayList<>();
+        long total = 0;
+        try (InputStream in = Files.newInputStream(filePath)) {
+            byte[] buf = new byte[BUFFER_SIZE];
+            for (int n; (n = in.read(buf)) >= 0; total += n) {
+                uid.update(buf, 0, n);
+                for (int off = 0; off < n; ) {
+                    int cut = chunker.nextCut(buf, off, n - off);
+                    if (cut < 0) {
+                        chunk.write(buf, off, n - off);
+                        break;
+                    }
+                    chunk.write(buf, off, cut);
+                    off += cut;
+                    storeChunk(chunk, chunkUids, chunkLengths, cache);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read file: " + filePath, e);
+        }
+        if (chunk.size() > 0) {
+            storeChunk(chunk, chunkUids, chunkLengths, cache);
+        }
+        checkSize(filePath, size, total);
+        String result = uid.hex();
+        if (Dumpable.isStored(result, cache)) {
+            return result;
+        }
+        // * as in storeWhole: a manifest only ever appears whole, so a torn one is never taken as stored
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(Repository.OBJ_DIR, "tmp-obj-", "");
+            Files.write(tmp, Compression.compress(ObjectCodec.encodeChunked(size, chunkUids, chunkLengths)));
+            Dumpable.persistStored(result, tmp, cache);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(tmp);
+            throw e instanceof RuntimeException re ? re : new RuntimeException("Failed to store file: " + filePath, e);
+        }
+    }
+
+    private static void storeChunk(ByteArrayOutputStream chunk, List<String> chunkUids, List<Long> chunkLengths,
+                                   ObjectCache cache) {
+        Blob blob = new Blob(chunk.toByteArray());
+        blob.persist(cache);
+        chunkUids.add(blob.getUid(cache));
+        chunkLengths.add((long) chunk.size());
+        chunk.reset();
+    }
+
+    /** Writes the contents of the blob UID to the file TARGET, streaming them from the
+     *  object store rather than loading the blob; chunked blobs are copied chunk by chunk. */
+    public static void writeTo(String uid, Path target) {
+        writeTo(uid, target, null);
+    }
+
+    /** Like {@link #writeTo(String, Path)}, reading through the packs CACHE keeps open; CACHE may be null. */
+    public static void writeTo(String uid, Path target, ObjectCache cache) {
+        try {
+            if (target.getParent() != null) {
+                Files.createDirectories(target.getParent()); // * files added from a subdirectory
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write file: " + target, e);
+        }
+        InputStream stored = Dumpable.openStored(Dumpable.resolveUid(uid), cache);
+        try (OutputStream out = Files.newOutputStream(target)) {
+            ObjectCodec.copyBlobContents(stored, out, cache);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write file: " + target, e);
+        }
+    }
+
+    /** Primes SHA so that feeding it the SIZE content bytes of a file yields the UID of the blob
+     *  of that file, and returns it.
+     *  <p>
+     *  {@link Dumpable#getUid} hashes the type, the serialized length as a serialized boxed int,
+     *  and the serialized blob, which is {@link #SERIALIZED_PREFIX}, the content length as a
+     *  big-endian int, and then the contents. Java cannot serialize arrays past 2 GiB; for those
+     *  the lengths are hashed as longs instead. */
+    private static Sha1 uidHash(long size, Sha1 sha) {
+        int prefix = SERIALIZED_PREFIX.length();
+        sha.update("blob").update('\0');
+        if (prefix + Integer.BYTES + size <= Integer.MAX_VALUE) {
+            sha.updateRaw(INT_PREFIX).updateInt((int) (prefix + Integer.BYTES + size)).update('\0');
+            sha.updateRaw(SERIALIZED_PREFIX).updateInt((int) size);
+        } else {
+            sha.updateRaw(LONG_PREFIX).updateLong(prefix + Long.BYTES + size).update('\0');
+            sha.updateRaw(SERIALIZED_PREFIX).updateLong(size);
+        }
+        return sha;
+    }
+
+    /** The serialization of OBJ without its last TAIL bytes, one char per byte. */
+    private static String serializedPrefix(Serializable obj, int tail) {
+        byte[] serialized = serialize(obj);
+        return new String(serialized, 0, serialized.length - tail, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void checkSize(Path filePath, long expected, long actual) {
+        if (expected != actual) {
+            throw new RuntimeException("Failed to read file: " + filePath + " changed while being read");
+        }
+    }
+
+    private static void deleteQuietly(Path tmp) {
+        if (tmp == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(tmp);
+        } catch (IOException ignored) {
+            // * best effort; a stray temporary file is never mistaken for an object
+        }
+    }
     public byte[] getContents() {
         return contents;
     }
@@ -60,6 +286,15 @@ public class Blob implements Serializable, Dumpable {
         return new String(contents);
     }
 
+    /** The UID {@link Dumpable#getUid} gives, hashed from the contents without serializing them. */
+    @Override
+    public String getUid(ObjectCache cache) {
+        if (uid == null) {
+            uid = uidHash(contents.length, Sha1.of(cache)).update(contents).hex();
+        }
+        return uid;
+    }
+
     /** Only compared by UID. Does <i>not</i> require the other object to be a Blob. */
     @Override
     public boolean equals(Object o) {
@@ -100,4 +335,7 @@ public class Blob implements Serializable, Dumpable {
     public static Blob getByUid(String uid) {
         return Dumpable.getByUid(uid, Blob.class);
     }
+    public static Blob getByUid(String uid, ObjectCache cache) {
+        return Dumpable.getByUid(uid, Blob.class, cache);
+    }
 }
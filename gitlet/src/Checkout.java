@@ -0,0 +1,272 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import static gitlet.Utils.*;
+
+/** Moves the working tree from the files of one commit to those of another.
+ *  <p>
+ *  Used by {@code switch}, {@code reset} and fast-forward merges. A checkout works out what has
+ *  to change, and only touches that:
+ *  <ul>
+ *  <li>the files that differ between the two commits, found with {@link Tree#diff}, which skips
+ *      directories the commits share without reading them;</li>
+ *  <li>files the commits agree on but that were modified, or deleted, in the working tree:
+ *      a file whose size and mtime match the stat cache is taken as it was hashed, and the
+ *      rest are hashed, all at once, by a {@link HashPipeline}.</li>
+ *  </ul>
+ *  Deletions happen first, and directories they leave empty go too. Writes are sorted by path,
+ *  so that the files of a directory come together, and cut into batches of up to
+ *  {@value #BATCH_FILES} files, which a bounded pool of threads writes concurrently; a batch
+ *  creates each of its directories once, and writes a file with one open and one write.
+ *  The packs are opened once for the whole checkout, rather than once per file.
+ *  <p>
+ *  Callers still check for untracked files in the way, and update the index and the refs.
+ */
+final class Checkout {
+    /** Most files one task writes; enough to amortize a task, small enough to spread the work. */
+    static final int BATCH_FILES = 32;
+    /** Below this many batches, the calling thread writes them itself. */
+    private static final int MIN_PARALLEL_BATCHES = 2;
+
+    /** What a checkout did, and how long it took. */
+    record Stats(int written, int deleted, int unchanged, long nanos) {
+        /** Files written or deleted per second. */
+        double filesPerSecond() {
+            return nanos == 0 ? 0 : (written + deleted) * 1e9 / nanos;
+        }
+    }
+
+    private final Path root;
+    private final StagingArea stagingArea;
+    private final ObjectCache cache;
+    private final int parallelism;
+    private final List<PackFile> packs = new ArrayList<>();
+
+    Checkout(Path root, StagingArea stagingArea, ObjectCache cache) {
+        this(root, stagingArea, cache, Parallel.upToCores(Parallel.MAX_IO_THREADS));
+    }
+
+    Checkout(Path root, StagingArea stagingArea, ObjectCache cache, int parallelism) {
+        Parallel.check(parallelism);
+        this.root = root.toAbsolutePath().normalize();
+        this.stagingArea = stagingArea;
+        this.cache = cache;
+        this.parallelism = parallelism;
+    }
+
+    /** Returns the files that differ between the commits FROM (null for none) and TO:
+     *  each path with its blob UID in TO, or null if TO does not have it. */
+    static Map<String, String> diff(Commit from, Commit to, ObjectCache cache) {
+        if (from != null && from.getTree() != null && to.getTree() != null) {
+            return Tree.diff(from.getTree(), to.getTree(), cache);
+        }
+        // * commits from before trees list all their files; compare the lists
+        Map<String, String> before = from == null ? Map.of() : from.getFileBlobs();
+        Map<String, String> after = to.getFileBlobs();
+        Map<String, String> changes = new TreeMap<>();
+        before.forEach((path, blob) -> {
+            if (!after.containsKey(path)) {
+                changes.put(path, null);
+            }
+        });
+        after.forEach((path, blob) -> {
+            if (!blob.equals(before.get(path))) {
+                changes.put(path, blob);
+            }
+        });
+        return changes;
+    }
+
+    /** Makes the working tree, which holds the files of FROM (null for none) give or take local
+     *  changes, hold exactly the files of TO. Files neither commit tracks are left alone. */
+    Stats run(Commit from, Commit to) {
+        long start = System.nanoTime();
+        Map<String, String> changes = diff(from, to, cache);
+        TreeMap<String, String> writes = new TreeMap<>();
+        List<String> deletes = new ArrayList<>();
+        changes.forEach((path, blob) -> {
+            if (blob == null) {
+                deletes.add(path);
+            } else {
+                writes.put(path, blob);
+            }
+        });
+        writes.putAll(modifiedInWorkingTree(to, changes));
+        int unchanged = to.getFileBlobs().size() - writes.size();
+        int deleted = delete(deletes);
+        write(writes);
+        Stats stats = new Stats(writes.size(), deleted, unchanged, System.nanoTime() - start);
+        Logging.info.printf("Checked out %s: %d file(s) written, %d deleted, %d unchanged in %.1f ms (%.0f files/s).%n",
+                to.getUid().substring(0, 7), stats.written(), stats.deleted(), stats.unchanged(),
+                stats.nanos() / 1e6, stats.filesPerSecond());
+        return stats;
+    }
+
+    /** Returns the files of TO outside of CHANGES whose working copy is missing or differs from TO. */
+    private Map<String, String> modifiedInWorkingTree(Commit to, Map<String, String> changes) {
+        Map<String, String> modified = new TreeMap<>();
+        List<String> misses = new ArrayList<>();
+        for (Map.Entry<String, String> file : to.getFileBlobs().entrySet()) {
+            if (changes.containsKey(file.getKey())) {
+                continue;
+            }
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(root.resolve(file.getKey()), BasicFileAttributes.class);
+            } catch (IOException e) {
+                modified.put(file.getKey(), file.getValue()); // * deleted in the working tree
+                continue;
+            }
+            String cached = stagingArea == null ? null
+                    : stagingArea.cachedUid(file.getKey(), attrs.lastModifiedTime().toMillis(), attrs.size());
+            if (cached == null) {
+                misses.add(file.getKey());
+            } else if (!cached.equals(file.getValue())) {
+                modified.put(file.getKey(), file.getValue());
+            }
+        }
+        List<String> hashed = new HashPipeline(cache).hash(misses.stream().map(root::resolve).toList());
+        for (int i = 0; i < misses.size(); i++) {
+            String blob = to.getFileBlobs().get(misses.get(i));
+            if (!hashed.get(i).equals(blob)) {
+                modified.put(misses.get(i), blob);
+            }
+        }
+        return modified;
+    }
+
+    /* DELETING */
+
+    /** Deletes the working files PATHS, and the directories that leaves empty; returns how many were there. */
+    int delete(List<String> paths) {
+        int deleted = 0;
+        Set<Path> parents = new HashSet<>();
+        for (String path : paths) {
+            Path file = inside(path);
+            try {
+                if (Files.deleteIfExists(file)) {
+                    deleted++;
+                    parents.add(file.getParent());
+                }
+            } catch (IOException e) {
+                Logging.warn.println("Failed to delete " + path + ": " + e.getMessage());
+            }
+        }
+        for (Path dir : parents) {
+            for (; dir != null && !dir.equals(root) && dir.startsWith(root); dir = dir.getParent()) {
+                try (DirectoryStream<Path> rest = Files.newDirectoryStream(dir)) {
+                    if (rest.iterator().hasNext()) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    break; // * already gone, with a sibling of the same parent
+                }
+                try {
+                    Files.delete(dir);
+                } catch (IOException e) {
+                    break;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /** Returns the working file PATH, refusing paths that lead out of the working tree. */
+    private Path inside(String path) {
+        Path file = root.resolve(path).normalize();
+        if (!file.startsWith(root) || file.equals(root)) {
+            throw error("Refusing to check out a path outside of the working tree: " + path);
+        }
+        return file;
+    }
+
+    /* WRITING */
+
+    /** Writes the blobs of FILES (paths to blob UIDs, in path order) in batches, concurrently if there are enough. */
+    private void write(TreeMap<String, String> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+        if (cache != null) {
+            packs.addAll(cache.packs().current());
+        } else {
+            for (Path idx : PackFile.listIndices(Repository.OBJ_DIR)) {
+                packs.add(PackFile.open(idx));
+            }
+        }
+        List<List<Map.Entry<String, String>>> batches = new ArrayList<>();
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            if (batches.isEmpty() || batches.get(batches.size() - 1).size() == BATCH_FILES) {
+                batches.add(new ArrayList<>(BATCH_FILES));
+            }
+            batches.get(batches.size() - 1).add(file);
+        }
+        List<Callable<Void>> tasks = new ArrayList<>(batches.size());
+        for (List<Map.Entry<String, String>> batch : batches) {
+            tasks.add(() -> {
+                writeBatch(batch);
+                return null;
+            });
+        }
+        try (Parallel parallel = new Parallel(parallelism, MIN_PARALLEL_BATCHES, "check out files")) {
+            parallel.run(tasks);
+        }
+    }
+
+    private void writeBatch(List<Map.Entry<String, String>> batch) {
+        Set<Path> made = new HashSet<>();
+        Trace trace = Trace.of(cache);
+        for (Map.Entry<String, String> entry : batch) {
+            Path file = inside(entry.getKey());
+            long start = trace == null ? 0 : System.nanoTime();
+            try {
+                if (made.add(file.getParent())) {
+                    Files.createDirectories(file.getParent());
+                }
+                byte[] encoded = Compression.inflate(readStored(entry.getValue()));
+                int offset = ObjectCodec.blobContentOffset(encoded);
+                try (OutputStream out = Files.newOutputStream(file)) {
+                    if (offset >= 0) {
+                        out.write(encoded, offset, encoded.length - offset); // * a whole blob: one write
+                    } else {
+                        ObjectCodec.copyBlobContents(new ByteArrayInputStream(encoded), out, cache); // * chunked, or legacy
+                    }
+                }
+                if (trace != null) {
+                    trace.fileWrite(start, Path.of(entry.getKey()), Files.size(file));
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write file: " + file, e);
+            }
+        }
+    }
+
+    /** Reads the stored bytes of the object UID from the packs opened for this checkout, or its loose file. */
+    private byte[] readStored(String uid) {
+        for (PackFile pack : packs) {
+            byte[] stored = pack.read(uid);
+            if (stored != null) {
+                return stored;
+            }
+        }
+        Path file = Repository.OBJ_DIR.resolve(uid.substring(0, 2)).resolve(uid.substring(2));
+        if (!Files.exists(file)) {
+            throw error("Object does not exist: " + uid);
+        }
+        return readContents(file);
+    }
+}
@@ -0,0 +1,55 @@
+package gitlet;
+
+/** Content-defined chunking of a byte stream, with a gear rolling hash.
+ *  <p>
+ *  Cut points depend only on the bytes just before them, not on their offset,
+ *  so inserting or deleting a few bytes in a large file only changes the chunks
+ *  around the edit; every other chunk keeps its content, hence its blob UID,
+ *  and is shared with the previous version in the object store.
+ *  <p>
+ *  A cut is made after a byte once the chunk holds at least {@link #MIN_CHUNK} bytes
+ *  and the low bits of the rolling hash are all zero (about every {@link #AVG_CHUNK} bytes),
+ *  or unconditionally at {@link #MAX_CHUNK} bytes. A chunker is stateful and is meant
+ *  to be fed one file from start to end.
+ */
+class Chunker {
+    static final int MIN_CHUNK = 16 * 1024;
+    static final int AVG_CHUNK = 64 * 1024;
+    static final int MAX_CHUNK = 256 * 1024;
+    /** Cut when these hash bits are zero; with 16 bits, about every 64 KiB past the minimum. */
+    private static final long MASK = AVG_CHUNK - 1L;
+
+    /** The gear table: one pseudo-random 64-bit value per byte value. */
+    private final long[] gear = new long[256];
+    private long hash;
+    private int length;
+
+    Chunker() {
+        // * a fixed seed, so that every gitlet cuts the same content at the same places
+        long seed = 0x61B1_5EED_C0FFEEL;
+        for (int i = 0; i < gear.length; i++) {
+            seed += 0x9E3779B97F4A7C15L; // splitmix64
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            gear[i] = z ^ (z >>> 31);
+        }
+    }
+
+    /** Scans LEN bytes of BUF from OFF for the end of the current chunk.
+     *  @return the number of bytes up to and including the cut point,
+     *          or -1 if all LEN bytes belong to the current chunk
+     */
+    int nextCut(byte[] buf, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            hash = (hash << 1) + gear[buf[i] & 0xff];
+            length++;
+            if (length >= MAX_CHUNK || (length >= MIN_CHUNK && (hash & MASK) == 0)) {
+                hash = 0;
+                length = 0;
+                return i + 1 - off;
+            }
+        }
+        return -1;
+    }
+}
@@ -34,6 +34,9 @@ import static gitlet.Utils.*;
  * @author Gravifer
  */
 public class Commit implements Serializable, Comparable<Commit>, Dumpable {
+    /** Pinned, so that commits serialized by earlier versions stay readable; see {@link ObjectCodec}. */
+    private static final long serialVersionUID = -6475926389627885659L;
+
     /* DONE: add instance variables here.
      *
      * List all instance variables of the Commit class here with a useful
@@ -79,6 +82,12 @@ public class Commit implements Serializable, Comparable<Commit>, Dumpable {
      */
     transient Map<String, Commit> parentsMap;
 
+    /** The cache this Commit was loaded through, if any; its ancestors are looked up there too. */
+    transient ObjectCache cache;
+
+    /** Memoized {@link #getUid(ObjectCache)}; a Commit never changes once constructed. */
+    private transient String uid;
+
     /**
      * Lazily initialize parentsMap if needed.
      * Called by all parent commit accessors to ensure the cache is available.
@@ -88,7 +97,7 @@ public class Commit implements Serializable, Comparable<Commit>, Dumpable {
         if (parentsMap == null) {
             parentsMap = new HashMap<>();
             for (String parent : parents) {
-                parentsMap.put(parent, Commit.getByUid(parent));  // getByUid guarantees to return the identical initial commit.
+                parentsMap.put(parent, Commit.getByUid(parent, cache));  // getByUid guarantees to return the identical initial commit.
             }
         }
     }
@@ -126,8 +135,16 @@ public class Commit implements Serializable, Comparable<Commit>, Dumpable {
      * <p>
      * This is a map from file names to their corresponding Blob objects.
      * It represents the state of the files in the repository at the time of this commit.
+     * <p>
+     * Commits made before there were {@link Tree trees} store this map; newer ones store
+     * {@link #tree} instead, and this is read from it on first use; see {@link #getFileBlobs()}.
      */
-    private final Map<String, String> fileBlobs;
+    private Map<String, String> fileBlobs;
+
+    /**
+     * The UID of the root {@link Tree} of this Commit, or null for a commit that lists its files itself.
+     */
+    private final String tree;
 
     /* DONE: fill in the rest of this class. */
 
@@ -151,27 +168,22 @@ public class Commit implements Serializable, Comparable<Commit>, Dumpable {
         this.timestamp = Instant.now(); // use current time
         this.authorTimestamp = timestamp;
         this.message = message;
-        // this.fileBlobs = parentCommit.fileBlobs == null ? new LinkedHashMap<>() : new LinkedHashMap<>(parentCommit.fileBlobs);
-        this.fileBlobs = new LinkedHashMap<>();
-        // Always use putAll for clarity, even if parentCommit.fileBlobs is empty
-        if (parentCommit != null && parentCommit.fileBlobs != null) {
-            this.fileBlobs.putAll(parentCommit.fileBlobs);
-        }
-        // * initialize fileBlobs with the contents of the files
+        // * the contents of the files are the changes to the parent's tree
         // * we skipped the process of staging the files first, so that selective commiting becomes possible
+        Map<String, String> changes = new LinkedHashMap<>();
         if (files != null) {
             files.sort(Comparator.comparing(File::getPath));
             for (File file : files) {
                 if (file.exists()) {
-                    Blob blob = Blob.blobify(file); // persist the blob to the object database
-                    fileBlobs.put(file.getPath(), blob.getUid());
+                    changes.put(file.getPath(), Blob.store(file.toPath(), cache)); // persist the blob to the object database
                 } else {
                     throw error("File does not exist: " + file.getAbsolutePath());
                 }
             }
         }
+        this.tree = Tree.edit(parentCommit == null ? null : parentCommit.rootTree(), changes, cache);
         // * persist the commit itself
-        this.persist();
+        this.persist(cache);
     }
     public Commit(String message, String parent, List<File> files){
         this(message, parent, files, false);
@@ -187,33 +199,39 @@ public class Commit implements Serializable, Comparable<Commit>, Dumpable {
      * @param allowEmpty        whether to allow an empty commit (no files); default to false if omitted
      */
     public Commit(String message, String[] parents, Map<String, String> fileBlobsToAdd, Map<String, String> fileBlobsToRemove, boolean allowEmpty) {
+        this(message, parents, fileBlobsToAdd, fileBlobsToRemove, allowEmpty, null);
+    }
+
+    /**
+     * Like {@link #Commit(String, String[], Map, Map, boolean)}, looking up the parents
+     * and their trees through CACHE, which the new Commit remembers; CACHE may be null.
+     */
+    public Commit(String message, String[] parents, Map<String, String> fileBlobsToAdd, Map<String, String> fileBlobsToRemove,
+                  boolean allowEmpty, ObjectCache cache) {
         this.isEmpty = fileBlobsToAdd == null || fileBlobsToAdd.isEmpty();
         if (!allowEmpty && isEmpty) {
             throw error("Nothing to commit.");
         }
         this.parents = parents; // new String[]{parent};
+        this.cache = cache;
         initParentsMap();
         Commit parentCommit = getParentCommit(); // Commit.getByUid() checks if the parent commit is initial, so no need to check here
         this.timestamp = Instant.now(); // use current time
         this.authorTimestamp = timestamp;
         this.message = message;
-        this.fileBlobs = new LinkedHashMap<>();
-        // Always use putAll for clarity, even if parentCommit.fileBlobs is empty
-        if (parentCommit != null && parentCommit.fileBlobs != null) {
-            this.fileBlobs.putAll(parentCommit.fileBlobs);
-        }
-        // * merge the fileBlobsToAdd with the parent commit's fileBlobs
-        if (fileBlobsToAdd != null) {
-            this.fileBlobs.putAll(fileBlobsToAdd);
-        }
-        // * remove the fileBlobsToRemove from the parent commit's fileBlobs
+        // * the staged files are changes to the parent's tree: removals first, so that re-adding wins
+        Map<String, String> changes = new LinkedHashMap<>();
         if (fileBlobsToRemove != null) {
             for (String filePath : fileBlobsToRemove.keySet()) {
-                this.fileBlobs.remove(filePath);
+                changes.put(filePath, null);
             }
         }
+        if (fileBlobsToAdd != null) {
+            changes.putAll(fileBlobsToAdd);
+        }
+        this.tree = Tree.edit(parentCommit == null ? null : parentCommit.rootTree(), changes, cache);
         // * persist the commit itself
-        this.persist();
+        this.persist(cache);
     }
     public Commit(String message, String parent, Map<String, String> fileBlobsToAdd, Map<String, String> fileBlobsToRemove, boolean allowEmpty) {
         this(message, new String[]{parent}, fileBlobsToAdd, fileBlobsToRemove, allowEmpty);
@@ -225,12 +243,44 @@ public class Commit implements Serializable, Comparable<Commit>, Dumpable {
         this(message, parent, fileBlobs, false);
     }
 
+    /**
+     * Reassembles a stored Commit from its fields, without persisting it again.
+     * Only used by {@link ObjectCodec} when decoding.
+     */
+    Commit(String message, String[] parents, Instant timestamp, Instant authorTimestamp,
+           boolean isEmpty, Map<String, String> fileBlobs) {
+        this.message = message;
+        this.parents = parents;
+        this.timestamp = timestamp;
+        this.authorTimestamp = authorTimestamp;
+        this.isEmpty = isEmpty;
+        this.fileBlobs = fileBlobs;
+        this.tree = null;
+    }
+
+    /**
+     * Reassembles a stored Commit over the root tree TREE, without persisting it again.
+     * Only used by {@link ObjectCodec} when decoding.
+     */
+    Commit(String message, String[] parents, Instant timestamp, Instant authorTimestamp,
+           boolean isEmpty, String tree) {
+        this.message = message;
+        this.parents = parents;
+        this.timestamp = timestamp;
+        this.authorTimestamp = authorTimestamp;
+        this.isEmpty = isEmpty;
+        this.tree = tree;
+    }
+
     // /**
     //  * The initial commit, which is a singleton.
     //  * <p>
     //  * This is a virtual commit that never gets serialized.
     //  */
     // public static final Commit initialCommit = new Commit(); // * disallowed by the auto-grader
+    /** UID of the initial commit; a String constant, so it is computed only once. */
+    static final String INITIAL_COMMIT_UID = new Commit().getUid();
+
     public static Commit initialCommit() {
         // return initialCommit;
         return new Commit();
@@ -252,6 +302,7 @@ public class Commit implements Serializable, Comparable<Commit>, Dumpable {
         this.authorTimestamp = timestamp; // same as timestamp for initial commit
         this.parents = new String[]{}; // initial commit has no parents (only it should do this)
         this.fileBlobs = new LinkedHashMap<>(); // initial commit has no files
+        this.tree = null; // * and no tree, so that its UID stays what it always was
         this.isEmpty = true; // initial commit is empty
     }
 
@@ -264,13 +315,48 @@ public class Commit implements Serializable, Comparable<Commit>, Dumpable {
      */
     public boolean isInitialCommit() {
         // * the initial commit is a singleton, so we can check if it is the same instance
-        return this.getUid().equals(initialCommit().getUid()) && this.parents.length == 0;
+        return this.getUid().equals(INITIAL_COMMIT_UID) && this.parents.length == 0;
     }
 
+    /**
+     * Returns the files of this Commit, by path. For a commit with a {@link Tree},
+     * the whole tree is read on the first call; to look up a few files, use {@link #getBlobUid}.
+     */
     public Map<String, String> getFileBlobs() {
+        if (fileBlobs == null) {
+            fileBlobs = Tree.flatten(tree, cache);
+        }
         return this.fileBlobs;
     }
 
+    /**
+     * Returns the blob UID of the file PATH in this Commit, or null if it does not track it,
+     * reading only the trees on the way to it.
+     */
+    public String getBlobUid(String path) {
+        if (fileBlobs != null) {
+            return fileBlobs.get(path);
+        }
+        return Tree.lookup(tree, path, cache);
+    }
+
+    /** Returns the UID of the root tree of this Commit, or null if it lists its files itself. */
+    String getTree() {
+        return tree;
+    }
+
+    /**
+     * Returns the UID of a stored root tree of the files of this Commit, to build a child's tree on.
+     * A commit from before trees gets one built from its file list (once per commit, as it is stored),
+     * and the initial commit returns null, for no files.
+     */
+    String rootTree() {
+        if (tree != null) {
+            return tree;
+        }
+        return getFileBlobs().isEmpty() ? null : Tree.build(getFileBlobs(), cache);
+    }
+
     /**
      * Compares this Commit with the specified object (required to be a Commit) for order.
      * Returns a negative integer, zero, or a positive integer
@@ -360,32 +446,67 @@ public class Commit implements Serializable, Comparable<Commit>, Dumpable {
     }
 
     public static Commit getByUid(String uid) {
+        return getByUid(uid, null);
+    }
+
+    /** Returns the commit UID, looking in CACHE first; CACHE may be null.
+     *  The commit remembers CACHE for the lookups of its own ancestors. */
+    public static Commit getByUid(String uid, ObjectCache cache) {
         // // * get the commit from the object database
         // File file = Dumpable.persistFile(uid);
         // if (!file.exists()) {
         //     throw error("Object does not exist: " + uid);
         // }
         // return readObject(file, Commit.class);
-        if (uid.equals(initialCommit().getUid())) {
+        if (uid.equals(INITIAL_COMMIT_UID)) {
             return initialCommit(); // return the singleton initial commit
         }
-        return Dumpable.getByUid(uid, Commit.class);
+        Commit commit = Dumpable.getByUid(uid, Commit.class, cache);
+        if (commit.cache == null) {
+            commit.cache = cache;
+        }
+        return commit;
     }
 
+    /** The UID, hashed through the cache this Commit was loaded through or, failing that, CACHE. */
     @Override
-    public String getUid() {
+    public String getUid(ObjectCache cache) {
+        if (uid == null) {
+            uid = computeUid(this.cache != null ? this.cache : cache);
+        }
+        return uid;
+    }
+
+    private String computeUid(ObjectCache cache) {
         // use only core fields to calculate UID, ensure consistency in persistence and deserialization
-        StringBuilder sb = new StringBuilder();
-        sb.append(getDumpType()).append("\0");
-        sb.append(message).append("\0");
-        sb.append(timestamp.toString()).append("\0");
-        sb.append(authorTimestamp.toString()).append("\0");
+        Trace trace = Trace.of(cache);
+        long start = trace == null ? 0 : System.nanoTime();
+        Sha1 sha = Sha1.of(cache);
+        sha.update(getDumpType()).update('\0');
+        sha.update(message).update('\0');
+        sha.update(timestamp.toString()).update('\0');
+        sha.update(authorTimestamp.toString()).update('\0');
         for (String parent : parents) {
-            sb.append(parent).append("\0");
+            sha.update(parent).update('\0');
         }
-        // * sort the fileBlobs by key to ensure consistent order
-        fileBlobs.keySet().stream().sorted().forEach(key -> sb.append(key).append(":").append(fileBlobs.get(key)).append("\0"));
-        return sha1(sb.toString());
+        if (tree != null) {
+            sha.update("tree:").update(tree).update('\0'); // * the tree's UID covers its files
+        } else if (fileBlobs instanceof SortedMap<String, String> sorted && sorted.comparator() == null) {
+            sorted.forEach((key, blob) -> sha.update(key).update(':').update(blob).update('\0'));
+        } else {
+            // * sort the fileBlobs by key to ensure consistent order
+            String[] keys = fileBlobs.keySet().toArray(new String[0]);
+            Arrays.sort(keys);
+            for (String key : keys) {
+                sha.update(key).update(':').update(fileBlobs.get(key)).update('\0');
+            }
+        }
+        long hashed = sha.length();
+        String result = sha.hex();
+        if (trace != null) {
+            trace.hash(start, "commit", hashed);
+        }
+        return result;
     }
 
     public void logCommit(DateTimeFormatter formatter) {
@@ -448,7 +569,7 @@ public class Commit implements Serializable, Comparable<Commit>, Dumpable {
             ancestors1.add(current.getUid());
             if (current.parents != null) {
                 for (String parentUid : current.parents) {
-                    stack1.push(Commit.getByUid(parentUid));
+                    stack1.push(Commit.getByUid(parentUid, current.cache));
                 }
             }
         }
@@ -465,13 +586,42 @@ public class Commit implements Serializable, Comparable<Commit>, Dumpable {
             visited2.add(current.getUid());
             if (current.parents != null) {
                 for (String parentUid : current.parents) {
-                    stack2.push(Commit.getByUid(parentUid));
+                    stack2.push(Commit.getByUid(parentUid, current.cache));
                 }
             }
         }
         return null;
     }
 
+    /** Like {@link #findLCA(Commit, Commit)}, but answered from GRAPH without loading
+     *  the commits in between when both are in it; GRAPH may be null. */
+    public static Commit findLCA(Commit c1, Commit c2, CommitGraph graph) {
+        Trace trace = Trace.of(c1.cache);
+        long start = trace == null ? 0 : System.nanoTime();
+        String base = graph == null ? null : graph.mergeBase(c1.getUid(), c2.getUid());
+        Commit lca = base == null ? findLCA(c1, c2) : base.isEmpty() ? null : Commit.getByUid(base, c1.cache);
+        if (trace != null) {
+            trace.walk(start, "merge-base", base != null, -1);
+        }
+        return lca;
+    }
+
+    /** Like {@link #isLinearAncestorOf(Commit)}, but answered from GRAPH when both commits
+     *  are in it; GRAPH may be null. */
+    public boolean isLinearAncestorOf(Commit other, CommitGraph graph) {
+        if (other == null || other.isInitialCommit() || this.getUid().equals(other.getUid())) {
+            return false;
+        }
+        Trace trace = Trace.of(cache);
+        long start = trace == null ? 0 : System.nanoTime();
+        Boolean answer = graph == null ? null : graph.isFirstParentAncestor(this.getUid(), other.getUid());
+        boolean result = answer != null ? answer : isLinearAncestorOf(other);
+        if (trace != null) {
+            trace.walk(start, "ancestry", answer != null, -1);
+        }
+        return result;
+    }
+
     public boolean isLinearAncestorOf(Commit other) {
         // if other is HEAD, return false
         if (other == null || other.isInitialCommit() || this.getUid().equals(other.getUid())) {
@@ -490,7 +640,7 @@ public class Commit implements Serializable, Comparable<Commit>, Dumpable {
                 // for (String parentUid : current.parents) {
                 //     stack.push(Commit.getByUid(parentUid));
                 // }
-                stack.push(Commit.getByUid(current.parents[0])); // Only check the first parent for linear history; per spec, repeatedly merging in some non-primary ancestor should be allowed.
+                stack.push(Commit.getByUid(current.parents[0], current.cache)); // Only check the first parent for linear history; per spec, repeatedly merging in some non-primary ancestor should be allowed.
             }
         }
         return false; // Not found in the ancestry
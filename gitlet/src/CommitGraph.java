@@ -0,0 +1,340 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+/** The commit graph: the shape of history, without the commits themselves.
+ *  <p>
+ *  Ancestry questions (is A an ancestor of B? where did they split?) only need parents,
+ *  yet answering them from commit objects means decoding every commit on the way.
+ *  This file records, for each commit, the positions of its parents and its
+ *  <i>generation number</i>: 1 for a commit without parents, otherwise one more than
+ *  the largest generation of its parents. A commit can only reach commits of a lower
+ *  generation, so walks stop as soon as they get below the commit they look for.
+ *  <pre>
+ *  .gitlet/objects/info/commit-graph:  "CGPH" | version (4 bytes) | entry*
+ *      entry:  uid (20 raw bytes) | generation (4) | first parent (4) | second parent (4)
+ *  </pre>
+ *  Parents are positions of earlier entries, or -1 for none. Entries are only ever
+ *  appended, parents before children, so updating the graph on commit is one small write;
+ *  a trailing partial entry left by an interrupted write is ignored. Commits with more
+ *  than two parents are never written by gitlet and are left out; queries involving
+ *  commits that are not in the graph return null, and callers walk the commits instead.
+ */
+class CommitGraph {
+    static final String MAGIC = "CGPH";
+    static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int ENTRY = PackFile.RAW_UID_LENGTH + 12;
+    private static final int NONE = -1;
+
+    private final Path file;
+    private final List<String> uids = new ArrayList<>();
+    private final Map<String, Integer> positions = new HashMap<>();
+    private int[] generations = new int[64];
+    private int[] firstParents = new int[64];
+    private int[] secondParents = new int[64];
+
+    private CommitGraph(Path file) {
+        this.file = file;
+    }
+
+    /** The commit-graph file of the object store OBJDIR. */
+    static Path graphFile(Path objDir) {
+        return objDir.resolve("info").resolve("commit-graph");
+    }
+
+    /** Reads the commit graph of the object store OBJDIR; an absent file is an empty graph. */
+    static CommitGraph open(Path objDir) {
+        CommitGraph graph = new CommitGraph(graphFile(objDir));
+        if (!Files.exists(graph.file)) {
+            return graph;
+        }
+        try {
+            byte[] data = Files.readAllBytes(graph.file);
+            ByteBuffer in = ByteBuffer.wrap(data);
+            if (data.length < HEADER || !MAGIC.equals(new String(data, 0, 4, StandardCharsets.US_ASCII))
+                    || in.getInt(4) != VERSION) {
+                Logging.warn.println("Discarding unreadable commit graph " + graph.file);
+                Files.delete(graph.file); // * it is only a cache of what the commits say
+                return graph;
+            }
+            byte[] raw = new byte[PackFile.RAW_UID_LENGTH];
+            for (int pos = HEADER; pos + ENTRY <= data.length; pos += ENTRY) {
+                in.get(pos, raw);
+                int first = in.getInt(pos + raw.length + 4), second = in.getInt(pos + raw.length + 8);
+                if (first >= graph.size() || second >= graph.size()) {
+                    break; // * parents always come first; anything after this is garbage and gets overwritten
+                }
+                graph.append(toHex(raw), in.getInt(pos + raw.length), first, second);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read commit graph: " + e.getMessage(), e);
+        }
+        return graph;
+    }
+
+    private int append(String uid, int generation, int firstParent, int secondParent) {
+        int pos = uids.size();
+        if (pos == generations.length) {
+            generations = Arrays.copyOf(generations, pos * 2);
+            firstParents = Arrays.copyOf(firstParents, pos * 2);
+            secondParents = Arrays.copyOf(secondParents, pos * 2);
+        }
+        uids.add(uid);
+        positions.put(uid, pos);
+        generations[pos] = generation;
+        firstParents[pos] = firstParent;
+        secondParents[pos] = secondParent;
+        return pos;
+    }
+
+    /** Number of commits in the graph. */
+    int size() {
+        return uids.size();
+    }
+
+    boolean contains(String uid) {
+        return positions.containsKey(uid);
+    }
+
+    /** Returns the generation number of commit UID, or 0 if it is not in the graph. */
+    int generation(String uid) {
+        Integer pos = positions.get(uid);
+        return pos == null ? 0 : generations[pos];
+    }
+
+    /* UPDATING */
+
+    /** Adds COMMIT, and any of its ancestors missing from the graph, looking them up through CACHE.
+     *  The first commit made by a gitlet that keeps a graph thus back-fills the whole history once.
+     *  @return whether COMMIT is in the graph afterwards
+     */
+    boolean add(Commit commit, ObjectCache cache) {
+        if (contains(commit.getUid())) {
+            return true;
+        }
+        // * an explicit stack, parents before children; histories are far deeper than the call stack
+        List<String> added = new ArrayList<>();
+        Deque<Commit> stack = new ArrayDeque<>();
+        stack.push(commit);
+        while (!stack.isEmpty()) {
+            Commit current = stack.peek();
+            if (contains(current.getUid())) {
+                stack.pop();
+                continue;
+            }
+            if (current.parents.length > 2) {
+                write(added);
+                return false; // * not representable; see the class comment
+            }
+            boolean ready = true;
+            for (String parent : current.parents) {
+                if (!contains(parent)) {
+                    try {
+                        stack.push(Commit.getByUid(parent, cache));
+                    } catch (GitletException e) {
+                        Logging.warn.println("Commit graph stops short of missing commit " + parent);
+                        write(added);
+                        return false;
+                    }
+                    ready = false;
+                }
+            }
+            if (!ready) {
+                continue;
+            }
+            stack.pop();
+            int first = current.parents.length > 0 ? positions.get(current.parents[0]) : NONE;
+            int second = current.parents.length > 1 ? positions.get(current.parents[1]) : NONE;
+            int generation = 1 + Math.max(first == NONE ? 0 : generations[first], second == NONE ? 0 : generations[second]);
+            append(current.getUid(), generation, first, second);
+            added.add(current.getUid());
+        }
+        write(added);
+        return true;
+    }
+
+    /** Appends the entries of ADDED, which are the last ones in memory, to the file. */
+    private void write(List<String> added) {
+        if (added.isEmpty()) {
+            return;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (out.size() < HEADER) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER);
+                    header.put(MAGIC.getBytes(StandardCharsets.US_ASCII)).putInt(VERSION).flip();
+                    out.write(header, 0);
+                }
+                // * entries go right after the last complete one, overwriting any torn tail
+                long end = HEADER + (long) (uids.size() - added.size()) * ENTRY;
+                ByteBuffer entries = ByteBuffer.allocate(added.size() * ENTRY);
+                for (String uid : added) {
+                    int pos = positions.get(uid);
+                    entries.put(fromHex(uid)).putInt(generations[pos]).putInt(firstParents[pos]).putInt(secondParents[pos]);
+                }
+                entries.flip();
+                while (entries.hasRemaining()) {
+                    end += out.write(entries, end);
+                }
+                out.truncate(end);
+            }
+        } catch (IOException e) {
+            Logging.warn.println("Failed to update commit graph: " + e.getMessage());
+        }
+    }
+
+    /** Drops the commits whose UIDs GONE accepts, which {@code gc} pruned, and rewrites the file
+     *  with the positions of the rest; returns how many were dropped. Since a commit that stays
+     *  keeps its parents, every parent is still there. The new file replaces the old one atomically. */
+    int remove(Predicate<String> gone) {
+        int[] moved = new int[size()];
+        List<String> stay = new ArrayList<>();
+        for (int pos = 0; pos < size(); pos++) {
+            moved[pos] = gone.test(uids.get(pos)) ? NONE : stay.size();
+            if (moved[pos] != NONE) {
+                stay.add(uids.get(pos));
+            }
+        }
+        int removed = size() - stay.size();
+        if (removed == 0) {
+            return 0;
+        }
+        int[] oldGenerations = generations.clone(), oldFirst = firstParents.clone(), oldSecond = secondParents.clone();
+        List<String> oldUids = new ArrayList<>(uids);
+        uids.clear();
+        positions.clear();
+        for (int pos = 0; pos < oldUids.size(); pos++) {
+            if (moved[pos] != NONE) {
+                append(oldUids.get(pos), oldGenerations[pos], oldFirst[pos] == NONE ? NONE : moved[oldFirst[pos]],
+                        oldSecond[pos] == NONE ? NONE : moved[oldSecond[pos]]);
+            }
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), "commit-graph-", ".tmp");
+            ByteBuffer out = ByteBuffer.allocate(HEADER + size() * ENTRY);
+            out.put(MAGIC.getBytes(StandardCharsets.US_ASCII)).putInt(VERSION);
+            for (int pos = 0; pos < size(); pos++) {
+                out.put(fromHex(uids.get(pos))).putInt(generations[pos]).putInt(firstParents[pos]).putInt(secondParents[pos]);
+            }
+            Files.write(tmp, out.array());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to prune commit graph: " + e.getMessage(), e);
+        }
+        return removed;
+    }
+
+    /* QUERIES */
+
+    /** Whether ANCESTOR is on the first-parent chain of DESCENDANT (and is not DESCENDANT itself),
+     *  or null if either is not in the graph. */
+    Boolean isFirstParentAncestor(String ancestor, String descendant) {
+        Integer target = positions.get(ancestor);
+        Integer start = positions.get(descendant);
+        if (target == null || start == null) {
+            return null;
+        }
+        int floor = generations[target];
+        for (int pos = firstParents[start]; pos != NONE && generations[pos] >= floor; pos = firstParents[pos]) {
+            if (pos == target) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Whether ANCESTOR can be reached from DESCENDANT through any parents (or is it),
+     *  or null if either is not in the graph. */
+    Boolean isAncestor(String ancestor, String descendant) {
+        Integer target = positions.get(ancestor);
+        Integer start = positions.get(descendant);
+        if (target == null || start == null) {
+            return null;
+        }
+        int floor = generations[target];
+        BitSet seen = new BitSet(size());
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            int pos = stack.pop();
+            if (pos == target) {
+                return true;
+            }
+            if (seen.get(pos) || generations[pos] <= floor) {
+                continue; // * nothing at or below the target's generation can lead to it
+            }
+            seen.set(pos);
+            for (int parent : new int[]{firstParents[pos], secondParents[pos]}) {
+                if (parent != NONE) {
+                    stack.push(parent);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns the UID of a best common ancestor of A and B: one that is not an ancestor of
+     *  another common ancestor. Returns null if either commit is not in the graph, and the
+     *  empty string if they have no common ancestor.
+     *  <p>
+     *  Like Git's paint-down-to-common, this walks both histories at once, highest generation
+     *  first, marking what each side reaches; the first commit reached by both is a common
+     *  ancestor that no other common ancestor can be below, since those come later.
+     */
+    String mergeBase(String a, String b) {
+        Integer posA = positions.get(a);
+        Integer posB = positions.get(b);
+        if (posA == null || posB == null) {
+            return null;
+        }
+        if (posA.equals(posB)) {
+            return a;
+        }
+        final int fromA = 1, fromB = 2;
+        byte[] marks = new byte[size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((x, y) -> generations[y] != generations[x]
+                ? Integer.compare(generations[y], generations[x]) : Integer.compare(y, x));
+        marks[posA] |= fromA;
+        marks[posB] |= fromB;
+        queue.add(posA);
+        queue.add(posB);
+        while (!queue.isEmpty()) {
+            int pos = queue.poll();
+            if (marks[pos] == (fromA | fromB)) {
+                return uids.get(pos);
+            }
+            // * a parent has a lower generation than its child, so its marks are complete before it is polled
+            for (int parent : new int[]{firstParents[pos], secondParents[pos]}) {
+                if (parent != NONE) {
+                    if (marks[parent] == 0) {
+                        queue.add(parent);
+                    }
+                    marks[parent] |= marks[pos];
+                }
+            }
+        }
+        return "";
+    }
+}
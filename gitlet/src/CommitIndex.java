@@ -0,0 +1,516 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import static gitlet.Utils.*;
+
+/** An append-only index of every commit made in the repository, for {@code global-log} and {@code find}.
+ *  <p>
+ *  Both commands are about all commits, not the history of one branch, and only need a
+ *  commit's UID, date and message; decoding every commit object for them costs a read and
+ *  an inflate per commit, plus the file map that neither command looks at. Each commit
+ *  instead gets a fixed-width entry on commit, and its message goes to a separate file:
+ *  <pre>
+ *  .gitlet/commits/entries:   "CIDX" | version (4 bytes) | entry*
+ *      entry:  uid (20 raw bytes) | seconds (8) | nanoseconds (4)
+ *              | first parent (20 raw bytes, zeros for none) | message offset (8) | message length (4)
+ *  .gitlet/commits/messages:  the UTF-8 messages, back to back
+ *  </pre>
+ *  An entry is written after its message, so an interrupted commit leaves at most an unused
+ *  message tail and a partial entry, which is ignored and later overwritten.
+ *  <p>
+ *  {@code find} looks messages up through an inverted index from words (lower-cased runs
+ *  of letters and digits, by their 64-bit FNV-1a hash) to entry positions. Postings of new
+ *  commits are appended to {@code words.pending}; once that holds {@value #COMPACT_AT} of them
+ *  they are merged into {@code words}, a table sorted by hash that is binary searched:
+ *  <pre>
+ *  .gitlet/commits/words:          "CWRD" | version (4 bytes) | (hash (8) | position (4))*
+ *  .gitlet/commits/words.pending:  (hash (8) | position (4))*
+ *  </pre>
+ *  Postings are written before the entry they point to; a posting without an entry, or
+ *  one that collides on its hash, only makes a candidate that the exact comparison with
+ *  the stored message turns away.
+ */
+class CommitIndex {
+    static final String MAGIC = "CIDX";
+    static final String WORDS_MAGIC = "CWRD";
+    static final int VERSION = 1;
+    /** Number of pending postings that triggers merging them into the sorted table. */
+    static final int COMPACT_AT = 4096;
+    private static final int HEADER = 8;
+    private static final int RAW = PackFile.RAW_UID_LENGTH;
+    private static final int ENTRY = RAW + 8 + 4 + RAW + 8 + 4;
+    private static final int POSTING = 12;
+
+    private final Path entriesFile;
+    private final Path messagesFile;
+    private final Path wordsFile;
+    private final Path pendingFile;
+    private int size;
+
+    /** A commit as the index knows it. FIRSTPARENT is null for a commit without parents. */
+    record Entry(int position, String uid, Instant timestamp, String firstParent, String message) {
+    }
+
+    private CommitIndex(Path dir) {
+        entriesFile = dir.resolve("entries");
+        messagesFile = dir.resolve("messages");
+        wordsFile = dir.resolve("words");
+        pendingFile = dir.resolve("words.pending");
+    }
+
+    /** The directory of the commit index of the repository in GITLETDIR. */
+    static Path indexDir(Path gitletDir) {
+        return gitletDir.resolve("commits");
+    }
+
+    /** Opens the commit index of the repository in GITLETDIR; an absent index is empty. */
+    static CommitIndex open(Path gitletDir) {
+        CommitIndex index = new CommitIndex(indexDir(gitletDir));
+        if (!Files.exists(index.entriesFile)) {
+            return index;
+        }
+        try (FileChannel in = FileChannel.open(index.entriesFile, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && in.read(header) >= 0) {
+                // * fill the header
+            }
+            if (header.hasRemaining() || !MAGIC.equals(new String(header.array(), 0, 4, StandardCharsets.US_ASCII))
+                    || header.getInt(4) != VERSION) {
+                throw error("Unreadable commit index: " + index.entriesFile);
+            }
+            index.size = (int) ((in.size() - HEADER) / ENTRY);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read commit index: " + e.getMessage(), e);
+        }
+        return index;
+    }
+
+    /** Number of commits in the index. */
+    int size() {
+        return size;
+    }
+
+    /* UPDATING */
+
+    /** Appends COMMITS, oldest first, to the index. */
+    void add(List<Commit> commits) {
+        if (commits.isEmpty()) {
+            return;
+        }
+        try {
+            Files.createDirectories(entriesFile.getParent());
+            List<byte[]> messages = new ArrayList<>(commits.size());
+            long offset;
+            try (FileChannel out = FileChannel.open(messagesFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                offset = out.size();
+                long end = offset;
+                for (Commit commit : commits) {
+                    byte[] message = commit.message.getBytes(StandardCharsets.UTF_8);
+                    messages.add(message);
+                    end = writeFully(out, ByteBuffer.wrap(message), end);
+                }
+            }
+            int pending = appendPostings(commits);
+            try (FileChannel out = FileChannel.open(entriesFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (out.size() < HEADER) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER);
+                    header.put(MAGIC.getBytes(StandardCharsets.US_ASCII)).putInt(VERSION).flip();
+                    writeFully(out, header, 0);
+                }
+                ByteBuffer entries = ByteBuffer.allocate(commits.size() * ENTRY);
+                for (int i = 0; i < commits.size(); i++) {
+                    Commit commit = commits.get(i);
+                    entries.put(fromHex(commit.getUid()))
+                            .putLong(commit.timestamp.getEpochSecond()).putInt(commit.timestamp.getNano())
+                            .put(commit.parents.length == 0 ? new byte[RAW] : fromHex(commit.parents[0]))
+                            .putLong(offset).putInt(messages.get(i).length);
+                    offset += messages.get(i).length;
+                }
+                entries.flip();
+                // * right after the last complete entry, over any torn tail
+                writeFully(out, entries, HEADER + (long) size * ENTRY);
+            }
+            size += commits.size();
+            if (pending >= COMPACT_AT) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to update commit index: " + e.getMessage(), e);
+        }
+    }
+
+    /** Appends TIP and those of its ancestors the index does not have yet, parents before children,
+     *  looking them up through CACHE. The walk stops at commits the index has, so it also picks up
+     *  commits that reached the object store without being indexed, as an interrupted fetch leaves.
+     *  @return the number of commits appended
+     */
+    int addMissing(Commit tip, ObjectCache cache) {
+        Set<String> indexed = uids();
+        List<Commit> missing = new ArrayList<>();
+        Deque<Commit> stack = new ArrayDeque<>();
+        stack.push(tip);
+        while (!stack.isEmpty()) {
+            Commit current = stack.peek();
+            if (indexed.contains(current.getUid())) {
+                stack.pop();
+                continue;
+            }
+            boolean ready = true;
+            for (String parent : current.parents) {
+                if (!indexed.contains(parent)) {
+                    stack.push(Commit.getByUid(parent, cache));
+                    ready = false;
+                }
+            }
+            if (ready) {
+                stack.pop();
+                indexed.add(current.getUid());
+                missing.add(current);
+            }
+        }
+        add(missing);
+        return missing.size();
+    }
+
+    /** Returns the UIDs of all commits in the index. */
+    Set<String> uids() {
+        Set<String> uids = new HashSet<>();
+        if (size == 0) {
+            return uids;
+        }
+        try (FileChannel entries = FileChannel.open(entriesFile, StandardOpenOption.READ)) {
+            ByteBuffer table = entries.map(FileChannel.MapMode.READ_ONLY, HEADER, (long) size * ENTRY);
+            byte[] raw = new byte[RAW];
+            for (int pos = 0; pos < size; pos++) {
+                table.get(pos * ENTRY, raw);
+                uids.add(toHex(raw));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read commit index: " + e.getMessage(), e);
+        }
+        return uids;
+    }
+
+    /** Appends the postings of COMMITS, which are about to take the next positions,
+     *  and returns the number of pending postings afterwards. */
+    private int appendPostings(List<Commit> commits) throws IOException {
+        List<long[]> postings = new ArrayList<>();
+        for (int i = 0; i < commits.size(); i++) {
+            for (long hash : wordHashes(commits.get(i).message)) {
+                postings.add(new long[]{hash, size + i});
+            }
+        }
+        try (FileChannel out = FileChannel.open(pendingFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long end = out.size() - out.size() % POSTING;
+            ByteBuffer buf = ByteBuffer.allocate(postings.size() * POSTING);
+            for (long[] posting : postings) {
+                buf.putLong(posting[0]).putInt((int) posting[1]);
+            }
+            buf.flip();
+            end = writeFully(out, buf, end);
+            return (int) (end / POSTING);
+        }
+    }
+
+    /** Merges the pending postings into the sorted table, which is replaced atomically. */
+    void compact() {
+        try {
+            List<long[]> postings = new ArrayList<>();
+            if (Files.exists(wordsFile)) {
+                readPostings(ByteBuffer.wrap(Files.readAllBytes(wordsFile)).position(HEADER), postings);
+            }
+            if (Files.exists(pendingFile)) {
+                readPostings(ByteBuffer.wrap(Files.readAllBytes(pendingFile)), postings);
+            }
+            writeWords(postings);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compact commit index: " + e.getMessage(), e);
+        }
+    }
+
+    /** Replaces the sorted table with POSTINGS, and drops the pending ones, which it must include. */
+    private void writeWords(List<long[]> postings) throws IOException {
+        postings.sort(Comparator.<long[]>comparingLong(p -> p[0]).thenComparingLong(p -> p[1]));
+        ByteBuffer table = ByteBuffer.allocate(HEADER + postings.size() * POSTING);
+        table.put(WORDS_MAGIC.getBytes(StandardCharsets.US_ASCII)).putInt(VERSION);
+        for (long[] posting : postings) {
+            table.putLong(posting[0]).putInt((int) posting[1]);
+        }
+        Path tmp = Files.createTempFile(wordsFile.getParent(), "words-", ".tmp");
+        Files.write(tmp, table.array());
+        Files.move(tmp, wordsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(pendingFile);
+    }
+
+    /** Drops the commits whose UIDs GONE accepts, which {@code gc} pruned; returns how many there were.
+     *  The messages of the commits that stay are copied to the end of the messages file, so that the
+     *  entries in place still point to theirs until the new entries replace them, atomically;
+     *  the word index is then rebuilt for the new positions. */
+    int remove(Predicate<String> gone) {
+        if (size == 0) {
+            return 0;
+        }
+        try {
+            List<Entry> stay = new ArrayList<>(size);
+            try (FileChannel entries = FileChannel.open(entriesFile, StandardOpenOption.READ);
+                 FileChannel messages = FileChannel.open(messagesFile, StandardOpenOption.READ)) {
+                ByteBuffer table = entries.map(FileChannel.MapMode.READ_ONLY, HEADER, (long) size * ENTRY);
+                ByteBuffer text = messages.map(FileChannel.MapMode.READ_ONLY, 0, messages.size());
+                for (int pos = 0; pos < size; pos++) {
+                    Entry entry = entry(table, text, pos);
+                    if (!gone.test(entry.uid())) {
+                        stay.add(entry);
+                    }
+                }
+            }
+            int removed = size - stay.size();
+            if (removed == 0) {
+                return 0;
+            }
+            long offset;
+            List<byte[]> texts = new ArrayList<>(stay.size());
+            try (FileChannel out = FileChannel.open(messagesFile, StandardOpenOption.WRITE)) {
+                offset = out.size();
+                long end = offset;
+                for (Entry entry : stay) {
+                    byte[] message = entry.message().getBytes(StandardCharsets.UTF_8);
+                    texts.add(message);
+                    end = writeFully(out, ByteBuffer.wrap(message), end);
+                }
+            }
+            ByteBuffer table = ByteBuffer.allocate(HEADER + stay.size() * ENTRY);
+            table.put(MAGIC.getBytes(StandardCharsets.US_ASCII)).putInt(VERSION);
+            List<long[]> postings = new ArrayList<>();
+            for (int pos = 0; pos < stay.size(); pos++) {
+                Entry entry = stay.get(pos);
+                table.put(fromHex(entry.uid()))
+                        .putLong(entry.timestamp().getEpochSecond()).putInt(entry.timestamp().getNano())
+                        .put(entry.firstParent() == null ? new byte[RAW] : fromHex(entry.firstParent()))
+                        .putLong(offset).putInt(texts.get(pos).length);
+                offset += texts.get(pos).length;
+                for (long hash : wordHashes(entry.message())) {
+                    postings.add(new long[]{hash, pos});
+                }
+            }
+            Path tmp = Files.createTempFile(entriesFile.getParent(), "entries-", ".tmp");
+            Files.write(tmp, table.array());
+            Files.move(tmp, entriesFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            size = stay.size();
+            writeWords(postings);
+            return removed;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to prune commit index: " + e.getMessage(), e);
+        }
+    }
+
+    /** Adds the postings in IN that point to existing entries to POSTINGS. */
+    private void readPostings(ByteBuffer in, List<long[]> postings) {
+        while (in.remaining() >= POSTING) {
+            long hash = in.getLong();
+            int position = in.getInt();
+            if (position < size) { // * drop those of commits that never made it
+                postings.add(new long[]{hash, position});
+            }
+        }
+    }
+
+    private static long writeFully(FileChannel out, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += out.write(buf, position);
+        }
+        return position;
+    }
+
+    /* QUERIES */
+
+    /** Calls ACTION with every commit in the index, newest first; ties go to the later commit. */
+    void forEachNewestFirst(Consumer<Entry> action) {
+        if (size == 0) {
+            return;
+        }
+        try (FileChannel entries = FileChannel.open(entriesFile, StandardOpenOption.READ);
+             FileChannel messages = FileChannel.open(messagesFile, StandardOpenOption.READ)) {
+            ByteBuffer table = entries.map(FileChannel.MapMode.READ_ONLY, HEADER, (long) size * ENTRY);
+            ByteBuffer text = messages.map(FileChannel.MapMode.READ_ONLY, 0, messages.size());
+            // * only the dates are read up front, packed with the position so that one sort orders them
+            long[][] order = new long[size][];
+            for (int pos = 0; pos < size; pos++) {
+                order[pos] = new long[]{table.getLong(pos * ENTRY + RAW), table.getInt(pos * ENTRY + RAW + 8), pos};
+            }
+            Arrays.sort(order, Comparator.<long[]>comparingLong(o -> o[0]).thenComparingLong(o -> o[1])
+                    .thenComparingLong(o -> o[2]).reversed());
+            for (long[] o : order) {
+                action.accept(entry(table, text, (int) o[2]));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read commit index: " + e.getMessage(), e);
+        }
+    }
+
+    /** Returns the commits whose message is exactly MESSAGE, oldest first. */
+    List<Entry> find(String message) {
+        List<Entry> found = new ArrayList<>();
+        if (size == 0) {
+            return found;
+        }
+        try (FileChannel entries = FileChannel.open(entriesFile, StandardOpenOption.READ);
+             FileChannel messages = FileChannel.open(messagesFile, StandardOpenOption.READ)) {
+            ByteBuffer table = entries.map(FileChannel.MapMode.READ_ONLY, HEADER, (long) size * ENTRY);
+            ByteBuffer text = messages.map(FileChannel.MapMode.READ_ONLY, 0, messages.size());
+            int[] candidates = candidates(message);
+            if (candidates == null) { // * no words to look up; compare every message
+                candidates = new int[size];
+                Arrays.setAll(candidates, i -> i);
+            }
+            for (int pos : candidates) {
+                Entry entry = entry(table, text, pos);
+                if (entry.message().equals(message)) {
+                    found.add(entry);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read commit index: " + e.getMessage(), e);
+        }
+        return found;
+    }
+
+    /** Returns the sorted positions of the commits whose messages contain every word of MESSAGE,
+     *  give or take hash collisions, or null if MESSAGE has no words. */
+    private int[] candidates(String message) throws IOException {
+        Set<Long> hashes = wordHashes(message);
+        if (hashes.isEmpty()) {
+            return null;
+        }
+        int[] result = null;
+        for (long hash : hashes) {
+            int[] postings = postings(hash);
+            result = result == null ? postings : intersect(result, postings);
+            if (result.length == 0) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the sorted, distinct positions of existing commits posted under HASH. */
+    private int[] postings(long hash) throws IOException {
+        int[] positions = new int[8];
+        int n = 0;
+        if (Files.exists(wordsFile)) {
+            try (FileChannel in = FileChannel.open(wordsFile, StandardOpenOption.READ)) {
+                long rows = (in.size() - HEADER) / POSTING;
+                ByteBuffer row = ByteBuffer.allocate(POSTING);
+                long lo = 0, hi = rows; // * the first row whose hash is not below HASH
+                while (lo < hi) {
+                    long mid = (lo + hi) >>> 1;
+                    if (Long.compare(readRow(in, mid, row).getLong(0), hash) < 0) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                for (long r = lo; r < rows && readRow(in, r, row).getLong(0) == hash; r++) {
+                    positions = append(positions, n++, row.getInt(8));
+                }
+            }
+        }
+        if (Files.exists(pendingFile)) {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(pendingFile));
+            while (in.remaining() >= POSTING) {
+                long h = in.getLong();
+                int position = in.getInt();
+                if (h == hash) {
+                    positions = append(positions, n++, position);
+                }
+            }
+        }
+        return Arrays.stream(positions, 0, n).filter(p -> p < size).sorted().distinct().toArray();
+    }
+
+    private static ByteBuffer readRow(FileChannel in, long row, ByteBuffer buf) throws IOException {
+        buf.clear();
+        long at = HEADER + row * POSTING;
+        while (buf.hasRemaining()) {
+            int n = in.read(buf, at + buf.position());
+            if (n < 0) {
+                throw new IOException("Truncated word index");
+            }
+        }
+        return buf;
+    }
+
+    private static int[] append(int[] array, int index, int value) {
+        if (index == array.length) {
+            array = Arrays.copyOf(array, index * 2);
+        }
+        array[index] = value;
+        return array;
+    }
+
+    /** Returns the values in both sorted arrays A and B. */
+    private static int[] intersect(int[] a, int[] b) {
+        int[] both = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                both[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(both, n);
+    }
+
+    private static Entry entry(ByteBuffer table, ByteBuffer text, int pos) {
+        int at = pos * ENTRY;
+        byte[] raw = new byte[RAW];
+        table.get(at, raw);
+        String uid = toHex(raw);
+        Instant timestamp = Instant.ofEpochSecond(table.getLong(at + RAW), table.getInt(at + RAW + 8));
+        table.get(at + RAW + 12, raw);
+        String firstParent = Arrays.equals(raw, new byte[RAW]) ? null : toHex(raw);
+        byte[] message = new byte[table.getInt(at + 2 * RAW + 20)];
+        text.get((int) table.getLong(at + 2 * RAW + 12), message);
+        return new Entry(pos, uid, timestamp, firstParent, new String(message, StandardCharsets.UTF_8));
+    }
+
+    /** Returns the hashes of the distinct words of MESSAGE: lower-cased runs of letters and digits. */
+    static Set<Long> wordHashes(String message) {
+        Set<Long> hashes = new LinkedHashSet<>();
+        for (String word : message.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                long hash = 0xcbf29ce484222325L; // * FNV-1a, 64 bits
+                for (byte b : word.getBytes(StandardCharsets.UTF_8)) {
+                    hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+                }
+                hashes.add(hash);
+            }
+        }
+        return hashes;
+    }
+}
@@ -0,0 +1,105 @@
+package gitlet;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/** The first-parent histories of some heads, merged into one, newest commit first, read lazily.
+ *  <p>
+ *  {@code log} prints through a walk. A walk keeps a priority queue of the commits it has reached
+ *  but not yet returned, ordered by timestamp: it returns the newest of them, and queues its first
+ *  parent in its place. With one head the queue holds a single commit; with several it holds one
+ *  per line of history still being followed, and merges them as a k-way merge would. Commits are
+ *  read from the store only as they are reached, and dropped once returned, so that stopping early
+ *  ({@code log -n}, {@code log --since}) stops reading too.
+ *  <p>
+ *  A commit older than its parent, which clocks out of step can make, comes out after it, where
+ *  sorting the whole history would put it before; as in Git, the walk does not look ahead for those.
+ */
+final class CommitWalk implements Iterator<Commit> {
+    /** Newest first; ties, as between commits made within the same millisecond, by UID. */
+    private final PriorityQueue<Commit> queue = new PriorityQueue<>(
+            Comparator.<Commit>comparingLong(Commit::getTime).reversed().thenComparing(Comparator.comparing(Commit::getUid)));
+    /** UIDs of the commits queued so far, so that lines of history that meet are followed once. */
+    private final Set<String> seen = new HashSet<>();
+    private final ObjectCache cache;
+    private final long sinceMillis;
+    private int remaining;
+    private int returned;
+
+    /** A walk of the histories of HEADS, reading commits through CACHE. */
+    CommitWalk(Collection<Commit> heads, ObjectCache cache) {
+        this(heads, cache, Integer.MAX_VALUE, null);
+    }
+
+    /** A walk of the histories of HEADS that ends after LIMIT commits, or at the first commit
+     *  made before SINCE, if not null. */
+    CommitWalk(Collection<Commit> heads, ObjectCache cache, int limit, Instant since) {
+        this.cache = cache;
+        this.remaining = limit;
+        this.sinceMillis = since == null ? Long.MIN_VALUE : since.toEpochMilli();
+        for (Commit head : heads) {
+            enqueue(head);
+        }
+    }
+
+    private void enqueue(Commit commit) {
+        if (commit != null && seen.add(commit.getUid())) {
+            queue.add(commit);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return remaining > 0 && !queue.isEmpty() && Commit.getTime(queue.peek()) >= sinceMillis;
+    }
+
+    @Override
+    public Commit next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Commit commit = queue.poll();
+        remaining--;
+        returned++;
+        if (!commit.isInitialCommit() && commit.parents != null && commit.parents.length > 0) {
+            // * not getParentCommit(), which would keep every parent reachable from the first commit
+            String parent = commit.parents[0];
+            if (!seen.contains(parent)) {
+                enqueue(parent.equals(Commit.INITIAL_COMMIT_UID) ? Commit.initialCommit() : Commit.getByUid(parent, cache));
+            }
+        }
+        return commit;
+    }
+
+    /** How many commits the walk has returned so far. */
+    int returned() {
+        return returned;
+    }
+
+    /** Parses the argument of {@code log --since}: a date ({@code 2025-07-14}, midnight local time),
+     *  an instant ({@code 2025-07-14T12:00:00Z}), or an age ({@code 3d}; see
+     *  {@link GarbageCollector#parseGrace}) counted back from NOW. Returns null if it is none of these. */
+    static Instant parseSince(String value, Instant now) {
+        if (value.matches("\\d{1,9}[smhdw]")) {
+            return now.minusMillis(GarbageCollector.parseGrace(value));
+        }
+        try {
+            return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant();
+        } catch (DateTimeParseException notADate) {
+            try {
+                return Instant.parse(value);
+            } catch (DateTimeParseException notAnInstant) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/** Transparent deflate compression of stored objects.
+ *  <p>
+ *  A compressed object is a zlib stream (RFC 1950) of its {@link ObjectCodec} encoding,
+ *  as Git does for its loose objects. An encoded object starts with {@code "GLO"} and a
+ *  legacy one with {@code 0xACED}, neither of which is a valid zlib header, so readers tell
+ *  compressed objects apart by their first two bytes, and a repository may hold both kinds.
+ *  Compression happens below the UID: an object has the same name however it is stored.
+ *  <p>
+ *  The level comes from the {@code GITLET_COMPRESSION_LEVEL} environment variable:
+ *  0 stores objects uncompressed, 1 is fastest and 9 smallest; by default zlib's own (6).
+ *  Blobs whose contents start with the signature of an already-compressed format
+ *  (gzip, zip, png, jpeg, ...) are stored as they are, as is anything deflate does not shrink.
+ */
+final class Compression {
+    /** Environment variable holding the compression level, 0-9. */
+    static final String LEVEL_ENV = "GITLET_COMPRESSION_LEVEL";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private Compression() {
+    }
+
+    /** Returns the configured compression level, 0 (none) through 9. */
+    static int level() {
+        String value = System.getenv(LEVEL_ENV);
+        if (value == null || value.isBlank()) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+        try {
+            int level = Integer.parseInt(value.trim());
+            if (level >= 0 && level <= 9) {
+                return level;
+            }
+        } catch (NumberFormatException ignored) {
+            // * reported below
+        }
+        Logging.warn.println("Ignoring " + LEVEL_ENV + "=" + value + "; expected 0-9.");
+        return Deflater.DEFAULT_COMPRESSION;
+    }
+
+    /** Whether STORED is a zlib stream rather than a plain encoded object. */
+    static boolean isDeflated(byte[] stored) {
+        return stored.length >= 2 && isZlibHeader(stored[0] & 0xff, stored[1] & 0xff);
+    }
+
+    private static boolean isZlibHeader(int cmf, int flg) {
+        return (cmf & 0x0f) == Deflater.DEFLATED && ((cmf << 8) | flg) % 31 == 0;
+    }
+
+    /** Whether the LEN content bytes of BUF from OFF start like a file that is already compressed,
+     *  so that deflating it again would only cost time. */
+    static boolean looksCompressed(byte[] buf, int off, int len) {
+        return hasSignature(buf, off, len, 0x1f, 0x8b)                          // gzip
+                || hasSignature(buf, off, len, 'P', 'K', 0x03, 0x04)            // zip, jar, docx, ...
+                || hasSignature(buf, off, len, 0x89, 'P', 'N', 'G')             // png
+                || hasSignature(buf, off, len, 0xff, 0xd8, 0xff)                // jpeg
+                || hasSignature(buf, off, len, 'G', 'I', 'F', '8')              // gif
+                || hasSignature(buf, off, len, 'B', 'Z', 'h')                   // bzip2
+                || hasSignature(buf, off, len, 0xfd, '7', 'z', 'X', 'Z', 0x00)  // xz
+                || hasSignature(buf, off, len, 0x28, 0xb5, 0x2f, 0xfd)          // zstd
+                || hasSignature(buf, off, len, '7', 'z', 0xbc, 0xaf, 0x27, 0x1c) // 7z
+                || (len >= 12 && hasSignature(buf, off + 8, 4, 'W', 'E', 'B', 'P')) // webp
+                || (len >= 8 && hasSignature(buf, off + 4, 4, 'f', 't', 'y', 'p'))  // mp4, mov, heic
+                || hasSignature(buf, off, len, 0x78, 0x01)                     // zlib, at the levels
+                || hasSignature(buf, off, len, 0x78, 0x5e)                     // zlib writers use
+                || hasSignature(buf, off, len, 0x78, 0x9c)
+                || hasSignature(buf, off, len, 0x78, 0xda);
+    }
+
+    private static boolean hasSignature(byte[] buf, int off, int len, int... signature) {
+        if (len < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((buf[off + i] & 0xff) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the stored form of the encoded object ENCODED at the configured level. */
+    static byte[] compress(byte[] encoded) {
+        return compress(encoded, level());
+    }
+
+    /** Returns the stored form of the encoded object ENCODED at LEVEL: deflated,
+     *  unless LEVEL is 0, the object is a blob of compressed contents, or deflating does not help. */
+    static byte[] compress(byte[] encoded, int level) {
+        if (level == 0) {
+            return encoded;
+        }
+        int contents = ObjectCodec.blobContentOffset(encoded);
+        if (contents >= 0 && looksCompressed(encoded, contents, encoded.length - contents)) {
+            return encoded;
+        }
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(encoded);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, encoded.length / 2));
+            byte[] buf = new byte[Math.min(BUFFER_SIZE, Math.max(64, encoded.length))];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+                if (out.size() >= encoded.length) {
+                    return encoded; // * incompressible; not worth inflating on every read
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Returns the encoded object held in STORED, inflating it if it is compressed. */
+    static byte[] inflate(byte[] stored) {
+        if (!isDeflated(stored)) {
+            return stored;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length * 3);
+            byte[] buf = new byte[(int) Math.min(BUFFER_SIZE, 64 + stored.length * 4L)]; // * most objects are small
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed object");
+                }
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed object: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Wraps STORED, a stream over a stored object, so that it yields the encoded object. */
+    static InputStream inflating(InputStream stored) {
+        InputStream in = stored.markSupported() ? stored : new BufferedInputStream(stored, BUFFER_SIZE);
+        try {
+            in.mark(2);
+            int cmf = in.read(), flg = in.read();
+            in.reset();
+            if (cmf >= 0 && flg >= 0 && isZlibHeader(cmf, flg)) {
+                return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inf.end();
+                        }
+                    }
+                };
+            }
+            return in;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read object: " + e.getMessage(), e);
+        }
+    }
+
+    /** Wraps OUT so that what is written to it is deflated at LEVEL, or passed through if LEVEL is 0. */
+    static OutputStream deflating(OutputStream out, int level) {
+        if (level == 0) {
+            return out;
+        }
+        return new DeflaterOutputStream(out, new Deflater(level), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    def.end();
+                }
+            }
+        };
+    }
+
+    /** Returns the number of bytes of the encoded object that STORED holds, without keeping them. */
+    static long encodedLength(InputStream stored) throws IOException {
+        try (InputStream in = inflating(stored)) {
+            long total = 0;
+            byte[] buf = new byte[BUFFER_SIZE];
+            for (int n; (n = in.read(buf)) >= 0; ) {
+                total += n;
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static gitlet.Utils.*;
+
+/** A long-lived gitlet serving the commands of {@link DaemonClient}s over a Unix domain socket.
+ *  <p>
+ *  Every {@code java gitlet.Main} starts a JVM, loads and warms up the classes of gitlet, and
+ *  decodes the same commits again; for scripts running hundreds of commands, that is most of
+ *  the time they take. {@code gitlet daemon} pays for it once: it listens on {@link #SOCKET}
+ *  in the repository, and runs each command it is sent with {@link Main#runCommand}, in this
+ *  JVM and through one {@link ObjectCache} that outlives the commands. HEAD, the refs and the
+ *  index are still read afresh for every command, so that the daemon and plain {@code gitlet}
+ *  commands can be used side by side; objects never change, so the cache is always good.
+ *  <p>
+ *  Commands run one at a time, in the order they are accepted. While one runs, {@code System.out}
+ *  and {@code System.err} are sent to its client, which prints them as its own.
+ *  <p>
+ *  The protocol: a client sends its working directory and its arguments, as
+ *  {@link DataOutputStream#writeUTF} strings after their count. The daemon answers with frames
+ *  of a channel byte ({@link #OUT}, {@link #ERR}) and a length-prefixed chunk of output, and
+ *  ends with {@link #EXIT} and the exit status.
+ */
+final class Daemon {
+    /** Relative to the repository, since socket paths are limited to about a hundred bytes. */
+    static final Path SOCKET = Path.of(".gitlet", "daemon.sock");
+    static final int EXIT = 0;
+    static final int OUT = 1;
+    static final int ERR = 2;
+    /** Most output sent in one frame. */
+    private static final int FRAME_SIZE = 1 << 13;
+
+    private final Path socket;
+    private final ObjectCache cache;
+    private boolean stopped;
+
+    /** A daemon for the repository in the working directory, listening on SOCKET and sharing CACHE across commands. */
+    Daemon(Path socket, ObjectCache cache) {
+        this.socket = socket;
+        this.cache = cache;
+    }
+
+    /** Serves commands until a client sends {@code daemon stop}. */
+    void serve() throws IOException {
+        if (Files.exists(socket)) {
+            boolean live;
+            try (SocketChannel probe = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+                live = probe.isConnected();
+            } catch (IOException e) {
+                live = false;
+            }
+            if (live) {
+                throw error("A daemon is already serving this repository.");
+            }
+            Files.delete(socket); // * left behind by a daemon that was killed
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Logging.info.println("Serving " + Repository.CWD + " on " + socket + ".");
+            while (!stopped) {
+                try (SocketChannel client = server.accept()) {
+                    handle(client);
+                } catch (IOException e) {
+                    Logging.warn.println("Lost a client: " + e.getMessage());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+        }
+        Logging.info.println("Stopped serving " + Repository.CWD + ".");
+    }
+
+    private void handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+        String cwd = in.readUTF();
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        DataOutputStream reply = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client), FRAME_SIZE + 5));
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FrameStream(reply, OUT), FRAME_SIZE), false, StandardCharsets.UTF_8);
+        PrintStream err = new PrintStream(new BufferedOutputStream(new FrameStream(reply, ERR), FRAME_SIZE), false, StandardCharsets.UTF_8);
+        int status = 0;
+        if (!Path.of(cwd).toAbsolutePath().normalize().equals(Repository.CWD.toAbsolutePath().normalize())) {
+            err.println("This daemon serves " + Repository.CWD + ", not " + cwd + ".");
+            status = 2;
+        } else if (args.length > 0 && args[0].equals("daemon")) {
+            if (args.length == 2 && args[1].equals("stop")) {
+                stopped = true;
+            } else {
+                out.println("A daemon is already serving this repository.");
+            }
+        } else {
+            status = run(args, out, err);
+        }
+        out.flush();
+        err.flush();
+        reply.writeByte(EXIT);
+        reply.writeInt(status);
+        reply.flush();
+    }
+
+    /** Runs the command ARGS with its output sent to OUT and ERR; returns its exit status. */
+    private int run(String[] args, PrintStream out, PrintStream err) {
+        PrintStream stdout = System.out, stderr = System.err;
+        System.setOut(out);
+        System.setErr(err);
+        try {
+            Main.runCommand(args, cache);
+            return 0;
+        } catch (Exception e) {
+            err.print("Exception in thread \"main\" "); // * as an uncaught exception reads
+            e.printStackTrace(err);
+            return 1;
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+    }
+
+    /** Writes what it is given as frames of one channel. */
+    private static final class FrameStream extends OutputStream {
+        private final DataOutputStream reply;
+        private final int channel;
+
+        FrameStream(DataOutputStream reply, int channel) {
+            this.reply = reply;
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                reply.writeByte(channel);
+                reply.writeInt(len);
+                reply.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            reply.flush();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/** The thin client of a {@link Daemon}: sends it a command, and prints what it answers.
+ *  <p>
+ *  Usage: {@code java gitlet.DaemonClient ARGS}, with the same ARGS as {@code java gitlet.Main}.
+ *  Talking to a daemon, the client loads only itself and {@link Daemon}, for the name of its socket,
+ *  so its JVM starts about as fast as a JVM can. If no daemon serves the working directory, it
+ *  runs the command itself through {@link Main#main}, loading the rest of gitlet as that would.
+ *  It exits with the command's status.
+ */
+public final class DaemonClient {
+
+    private DaemonClient() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int status = send(Path.of(""), args, System.out, System.err);
+        if (status < 0) {
+            Main.main(args); // * no daemon: run it here
+            return;
+        }
+        System.out.flush();
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /** Sends the command ARGS to the daemon of the repository in the directory REPOSITORY,
+     *  copying its output to OUT and ERR.
+     *  Returns the exit status of the command, or -1 if no daemon is listening. */
+    static int send(Path repository, String[] args, OutputStream out, OutputStream err) throws IOException {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(repository.resolve(Daemon.SOCKET)));
+        } catch (IOException e) {
+            return -1;
+        }
+        try (channel) {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            request.writeUTF(repository.toAbsolutePath().toString());
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+            DataInputStream reply = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 14));
+            byte[] buffer = new byte[1 << 13];
+            while (true) {
+                int kind;
+                try {
+                    kind = reply.readUnsignedByte();
+                } catch (EOFException e) {
+                    throw new IOException("The daemon hung up before the command finished", e);
+                }
+                if (kind == Daemon.EXIT) {
+                    return reply.readInt();
+                }
+                int length = reply.readInt();
+                if (length > buffer.length) {
+                    buffer = new byte[length];
+                }
+                reply.readFully(buffer, 0, length);
+                (kind == Daemon.ERR ? err : out).write(buffer, 0, length);
+            }
+        } finally {
+            out.flush();
+            err.flush();
+        }
+    }
+}
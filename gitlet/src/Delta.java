@@ -0,0 +1,181 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/** Binary deltas: one object described as copies out of another, plus the bytes it adds.
+ *  <p>
+ *  A delta is an instruction stream, much like Git's:
+ *  <pre>
+ *  delta:   base length (varint) | result length (varint) | instruction*
+ *      copy:    0x01 | offset in the base (varint) | length (varint)
+ *      insert:  0x00 | length (varint) | the bytes to insert
+ *  </pre>
+ *  To find copies, the base is cut into {@value #BLOCK}-byte blocks, which are indexed by a
+ *  polynomial hash; the target is scanned with the same hash, rolled one byte at a time, and
+ *  every block it finds is verified and then grown in both directions as far as the bytes agree.
+ *  Editing a line of a text file thus gives a delta of a few instructions and the new line.
+ *  <p>
+ *  {@link #apply} reads the instructions from a stream, so that applying a delta only holds
+ *  the base and the result, however long the delta itself is.
+ */
+final class Delta {
+    static final byte OP_INSERT = 0;
+    static final byte OP_COPY = 1;
+    /** Length of the blocks of the base that copies are found by; shorter matches are inserted. */
+    static final int BLOCK = 16;
+    private static final int MULTIPLIER = 0x01000193;
+    /** MULTIPLIER to the power BLOCK - 1, to roll the oldest byte out of the hash. */
+    private static final int TOP;
+    static {
+        int top = 1;
+        for (int i = 1; i < BLOCK; i++) {
+            top *= MULTIPLIER;
+        }
+        TOP = top;
+    }
+
+    private Delta() {
+    }
+
+    /** The blocks of a base, indexed for {@link #compute}; build once and diff many targets against it. */
+    static final class Index {
+        private final byte[] base;
+        /** Open-addressed by hash: one more than the offset of a block, or 0 for an empty slot. */
+        private final int[] slots;
+        private final int shift;
+
+        Index(byte[] base) {
+            this.base = base;
+            int blocks = base.length / BLOCK;
+            int bits = Math.max(4, 33 - Integer.numberOfLeadingZeros(Math.max(1, blocks * 2 - 1)));
+            this.slots = new int[1 << bits];
+            this.shift = 32 - bits;
+            // * later blocks first, so that an earlier copy of a repeated block wins its slot
+            for (int b = blocks - 1; b >= 0; b--) {
+                slots[slot(hash(base, b * BLOCK))] = b * BLOCK + 1;
+            }
+        }
+
+        private int slot(int hash) {
+            return (hash * 0x9E3779B9) >>> shift;
+        }
+
+        /** Returns the offset of a block of the base that may have the hash HASH, or -1. */
+        private int candidate(int hash) {
+            return slots[slot(hash)] - 1;
+        }
+    }
+
+    private static int hash(byte[] buf, int off) {
+        int h = 0;
+        for (int i = off; i < off + BLOCK; i++) {
+            h = h * MULTIPLIER + (buf[i] & 0xff);
+        }
+        return h;
+    }
+
+    /** Returns the delta turning the base of INDEX into TARGET, or null if it would not be
+     *  shorter than LIMIT bytes. */
+    static byte[] compute(Index index, byte[] target, int limit) {
+        byte[] base = index.base;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(limit, 64 + target.length / 8));
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+        int pending = 0; // * start of the bytes not yet copied or inserted
+        int pos = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (pos + BLOCK <= target.length) {
+            int match = index.candidate(h);
+            if (match >= 0 && Arrays.equals(base, match, match + BLOCK, target, pos, pos + BLOCK)) {
+                int back = 0;
+                while (pos - back > pending && match - back > 0 && base[match - back - 1] == target[pos - back - 1]) {
+                    back++;
+                }
+                int length = BLOCK;
+                while (pos + length < target.length && match + length < base.length
+                        && base[match + length] == target[pos + length]) {
+                    length++;
+                }
+                insert(out, target, pending, pos - back);
+                out.write(OP_COPY);
+                writeVarint(out, match - back);
+                writeVarint(out, length + back);
+                pos += length;
+                pending = pos;
+                if (pos + BLOCK <= target.length) {
+                    h = hash(target, pos);
+                }
+            } else {
+                if (pos + BLOCK < target.length) {
+                    h = (h - (target[pos] & 0xff) * TOP) * MULTIPLIER + (target[pos + BLOCK] & 0xff);
+                }
+                pos++;
+            }
+            if (out.size() >= limit) {
+                return null;
+            }
+        }
+        insert(out, target, pending, target.length);
+        return out.size() < limit ? out.toByteArray() : null;
+    }
+
+    private static void insert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (from < to) {
+            out.write(OP_INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Applies the delta read from IN to BASE and returns the result.
+     *  @throws IOException if the delta is truncated, or was not made against BASE
+     */
+    static byte[] apply(byte[] base, InputStream in) throws IOException {
+        long baseLength = ObjectCodec.readVarint(in);
+        long resultLength = ObjectCodec.readVarint(in);
+        if (baseLength != base.length) {
+            throw new IOException("Delta expects a base of " + baseLength + " bytes, not " + base.length);
+        }
+        if (resultLength > Integer.MAX_VALUE - 8) {
+            throw new IOException("Delta result too large: " + resultLength);
+        }
+        byte[] result = new byte[(int) resultLength];
+        int pos = 0;
+        for (int op; (op = in.read()) >= 0; ) {
+            long length;
+            switch (op) {
+                case OP_COPY -> {
+                    long offset = ObjectCodec.readVarint(in);
+                    length = ObjectCodec.readVarint(in);
+                    if (offset + length > base.length || pos + length > result.length) {
+                        throw new IOException("Delta copy out of bounds");
+                    }
+                    System.arraycopy(base, (int) offset, result, pos, (int) length);
+                }
+                case OP_INSERT -> {
+                    length = ObjectCodec.readVarint(in);
+                    if (pos + length > result.length || in.readNBytes(result, pos, (int) length) != length) {
+                        throw new IOException("Truncated delta insert");
+                    }
+                }
+                default -> throw new IOException("Unknown delta instruction " + op);
+            }
+            pos += (int) length;
+        }
+        if (pos != result.length) {
+            throw new IOException("Delta produced " + pos + " bytes, expected " + result.length);
+        }
+        return result;
+    }
+}
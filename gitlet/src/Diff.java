@@ -0,0 +1,230 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Line-based differences between two sequences, with Myers' O(ND) algorithm.
+ *  <p>
+ *  Lines are first numbered by an {@link Interner}, so that comparing two lines is comparing
+ *  two ints. {@link #diff} then strips the common prefix and suffix and finds the "middle
+ *  snake" of what is left: the furthest-reaching paths of D/2 edits from either end, run
+ *  towards each other until they overlap (Myers 1986, section 4b). The problem splits there
+ *  into two halves, which are diffed in turn; only the two diagonal vectors of the current
+ *  half are live, so the space used is linear in the inputs whatever D is. The halves are
+ *  kept on an explicit stack, as differences between long files can be deep.
+ */
+final class Diff {
+
+    /** A region that differs: lines [beginA, endA) of A were replaced by lines [beginB, endB) of B.
+     *  One of the two may be empty, for a pure insertion or deletion. */
+    record Edit(int beginA, int endA, int beginB, int endB) {
+        boolean isInsert() {
+            return beginA == endA;
+        }
+
+        boolean isDelete() {
+            return beginB == endB;
+        }
+    }
+
+    private Diff() {
+    }
+
+    /* LINES */
+
+    /** Numbers distinct lines, so that the lines of several texts can be compared as ints. */
+    static final class Interner {
+        private final Map<String, Integer> ids = new HashMap<>();
+
+        /** Returns the id of the line LINE, which is the same for every equal line. */
+        int intern(String line) {
+            return ids.computeIfAbsent(line, k -> ids.size());
+        }
+    }
+
+    /** The lines of a text: where each starts, and its id in an {@link Interner}.
+     *  A line includes its terminating {@code '\n'}; the last one may have none. */
+    static final class Lines {
+        final byte[] text;
+        /** Start of each line, and the end of the text at the end. */
+        final int[] starts;
+        final int[] ids;
+
+        Lines(byte[] text, Interner interner) {
+            this.text = text;
+            this.starts = lineStarts(text);
+            this.ids = new int[starts.length - 1];
+            for (int line = 0; line < ids.length; line++) {
+                ids[line] = interner.intern(line(text, starts, line));
+            }
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        /** Appends lines [FROM, TO) to OUT. */
+        void copy(int from, int to, ByteArrayOutputStream out) {
+            out.write(text, starts[from], starts[to] - starts[from]);
+        }
+
+        /** Whether the text ends in the middle of its last line. */
+        boolean lacksFinalNewline() {
+            return text.length > 0 && text[text.length - 1] != '\n';
+        }
+    }
+
+    /** Returns where each line of TEXT starts, and the end of TEXT at the end. */
+    static int[] lineStarts(byte[] text) {
+        int count = 0;
+        for (int i = 0; i < text.length; i++) {
+            if (text[i] == '\n' || i == text.length - 1) {
+                count++;
+            }
+        }
+        int[] starts = new int[count + 1];
+        int line = 1;
+        for (int i = 0; i < text.length - 1; i++) {
+            if (text[i] == '\n') {
+                starts[line++] = i + 1;
+            }
+        }
+        starts[count] = text.length;
+        return starts;
+    }
+
+    /** Returns line LINE of TEXT, whose lines start at STARTS, as a key for an {@link Interner}. */
+    static String line(byte[] text, int[] starts, int line) {
+        // * Latin-1 keeps every byte as one char, so lines of any encoding compare exactly
+        return new String(text, starts[line], starts[line + 1] - starts[line], StandardCharsets.ISO_8859_1);
+    }
+
+    /** Whether TEXT looks binary, i.e. has a NUL byte within its first 8000, as Git decides. */
+    static boolean isBinary(byte[] text) {
+        for (int i = 0; i < Math.min(text.length, 8000); i++) {
+            if (text[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* DIFFING */
+
+    /** Returns the edits turning A into B, in order, none of them adjacent to another. */
+    static List<Edit> diff(int[] a, int[] b) {
+        List<Edit> edits = new ArrayList<>();
+        Deque<int[]> stack = new ArrayDeque<>(); // * ranges {beginA, endA, beginB, endB}, leftmost on top
+        stack.push(new int[]{0, a.length, 0, b.length});
+        while (!stack.isEmpty()) {
+            int[] range = stack.pop();
+            int a0 = range[0], a1 = range[1], b0 = range[2], b1 = range[3];
+            while (a0 < a1 && b0 < b1 && a[a0] == b[b0]) {
+                a0++;
+                b0++;
+            }
+            while (a0 < a1 && b0 < b1 && a[a1 - 1] == b[b1 - 1]) {
+                a1--;
+                b1--;
+            }
+            if (a0 == a1 || b0 == b1) {
+                if (a0 != a1 || b0 != b1) {
+                    add(edits, new Edit(a0, a1, b0, b1));
+                }
+                continue;
+            }
+            int[] split = middleSnake(a, a0, a1, b, b0, b1);
+            if (split == null) {
+                add(edits, new Edit(a0, a1, b0, b1));
+                continue;
+            }
+            stack.push(new int[]{split[0], a1, split[1], b1});
+            stack.push(new int[]{a0, split[0], b0, split[1]});
+        }
+        return edits;
+    }
+
+    /** Appends EDIT to EDITS, merging it into the last edit if they touch. */
+    private static void add(List<Edit> edits, Edit edit) {
+        if (!edits.isEmpty()) {
+            Edit last = edits.get(edits.size() - 1);
+            if (last.endA() == edit.beginA() && last.endB() == edit.beginB()) {
+                edits.set(edits.size() - 1, new Edit(last.beginA(), edit.endA(), last.beginB(), edit.endB()));
+                return;
+            }
+        }
+        edits.add(edit);
+    }
+
+    /** Returns a point {x, y} on an optimal path from (A0, B0) to (A1, B1), strictly inside the range
+     *  on at least one side, where the two halves of the problem can be split; or null if the
+     *  ranges have nothing in common. The ranges have neither a common first nor last element. */
+    private static int[] middleSnake(int[] a, int a0, int a1, int[] b, int b0, int b1) {
+        int n = a1 - a0, m = b1 - b0;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD + 1;
+        int[] forward = new int[2 * offset + 1];
+        int[] backward = new int[2 * offset + 1];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0; // * with an odd delta, the paths meet on a forward step
+        int kStart1 = 0, kEnd1 = 0, kStart2 = 0, kEnd2 = 0;
+        for (int d = 0; d < maxD; d++) {
+            for (int k = -d + kStart1; k <= d - kEnd1; k += 2) {
+                int i = offset + k;
+                int x = k == -d || (k != d && forward[i - 1] < forward[i + 1]) ? forward[i + 1] : forward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[a0 + x] == b[b0 + y]) {
+                    x++;
+                    y++;
+                }
+                forward[i] = x;
+                if (x > n) {
+                    kEnd1 += 2; // * ran off the right edge
+                } else if (y > m) {
+                    kStart1 += 2; // * ran off the bottom
+                } else if (odd) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < backward.length && backward[j] != -1 && x >= n - backward[j]) {
+                        return new int[]{a0 + x, b0 + y};
+                    }
+                }
+            }
+            for (int k = -d + kStart2; k <= d - kEnd2; k += 2) {
+                int i = offset + k;
+                int x = k == -d || (k != d && backward[i - 1] < backward[i + 1]) ? backward[i + 1] : backward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[a1 - x - 1] == b[b1 - y - 1]) {
+                    x++;
+                    y++;
+                }
+                backward[i] = x;
+                if (x > n) {
+                    kEnd2 += 2;
+                } else if (y > m) {
+                    kStart2 += 2;
+                } else if (!odd) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < forward.length && forward[j] != -1) {
+                        int fx = forward[j];
+                        int fy = fx - (j - offset);
+                        if (fx >= n - x) {
+                            return new int[]{a0 + fx, b0 + fy};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -1,10 +1,13 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.List;
 import java.util.ArrayList;
 import java.io.IOException;
@@ -19,13 +22,20 @@ interface Dumpable extends Serializable {
     void dump();
     /** Return a unique identifier for this object, which is a SHA-1 hash
      *  of its serialized form.
-     *  The default implementation uses the sha1 method from Utils.
+     *  The default implementation serializes this object once and hashes the type,
+     *  the serialized length and the serialized bytes with a {@link Sha1}.
      *  @return a unique identifier for this object
      */
     default String getUid() {
+        return getUid(null);
+    }
+
+    /** Like {@link #getUid()}, hashing with the hasher the calling thread has in CACHE; CACHE may be null. */
+    default String getUid(ObjectCache cache) {
         byte[] serialized = serialize(this);
         int length = serialized.length;
-        return sha1(getDumpType(), "\0", serialize(length), "\0", serialize(this));
+        return Sha1.of(cache).update(getDumpType()).update('\0').update(serialize(length)).update('\0')
+                .update(serialized).hex();
     }
     String getDumpType();
 
@@ -67,7 +77,18 @@ interface Dumpable extends Serializable {
     }
 
     default void persist() {
-        String uid = getUid();
+        persist(null);
+    }
+
+    /** Like {@link #persist()}, looking in the packs CACHE keeps open, and recording the write in
+     *  its trace; CACHE may be null. */
+    default void persist(ObjectCache cache) {
+        Trace trace = Trace.of(cache);
+        long start = trace == null ? 0 : System.nanoTime();
+        String uid = getUid(cache);
+        if (isPacked(uid, cache)) {
+            return; // * content-addressed: a packed copy is as good as a loose one
+        }
         File file = persistFile(uid);
 
         // * moved from persistFile to here
@@ -82,49 +103,159 @@ interface Dumpable extends Serializable {
         }
         // Open the file and write the object
         try {
-            writeObject(file, this);
+            byte[] stored = Compression.compress(ObjectCodec.encode(this));
+            writeContents(file, stored);
+            if (trace != null) {
+                trace.objectWrite(start, uid, getDumpType(), stored.length);
+            }
         } catch (Exception e) {
             throw new RuntimeException("Failed to persist object: " + e.getMessage(), e);
         }
     }
 
+    /** Whether the object UID is in the object store, packed or loose. */
+    static boolean isStored(String uid) {
+        return isStored(uid, null);
+    }
+
+    /** Like {@link #isStored(String)}, looking in the packs CACHE keeps open; CACHE may be null. */
+    static boolean isStored(String uid, ObjectCache cache) {
+        return isPacked(uid, cache) || Files.exists(persistPath(uid));
+    }
+
+    private static boolean isPacked(String uid, ObjectCache cache) {
+        return cache == null ? PackFile.isPacked(Repository.OBJ_DIR, uid) : cache.packs().contains(uid);
+    }
+
+    private static byte[] readPacked(String uid, ObjectCache cache) {
+        return cache == null ? PackFile.readPacked(Repository.OBJ_DIR, uid) : cache.packs().read(uid);
+    }
+
+    /** Moves TMP, a file holding the stored form of the object UID, into the object store.
+     *  If the object is already stored, TMP is simply deleted. */
+    static void persistStored(String uid, Path tmp) {
+        persistStored(uid, tmp, null);
+    }
+
+    /** Like {@link #persistStored(String, Path)}, looking in the packs CACHE keeps open; CACHE may be null. */
+    static void persistStored(String uid, Path tmp, ObjectCache cache) {
+        try {
+            if (isStored(uid, cache)) {
+                Files.deleteIfExists(tmp);
+                return;
+            }
+            Files.move(tmp, persistPath(uid), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to persist object: " + e.getMessage(), e);
+        }
+    }
+
+    /** Opens the encoded form of the object with full UID UID for streaming reads,
+     *  inflating it on the fly if it is stored compressed.
+     *  Packed objects are copied out of their pack first. */
+    static InputStream openStored(String uid) {
+        return openStored(uid, null);
+    }
+
+    /** Like {@link #openStored(String)}, looking in the packs CACHE keeps open; CACHE may be null. */
+    static InputStream openStored(String uid, ObjectCache cache) {
+        byte[] packed = readPacked(uid, cache);
+        if (packed != null) {
+            return Compression.inflating(new ByteArrayInputStream(packed));
+        }
+        Path file = persistPath(uid);
+        if (!Files.exists(file)) {
+            throw error("Object does not exist: " + uid);
+        }
+        try {
+            return Compression.inflating(Files.newInputStream(file));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read object: " + uid, e);
+        }
+    }
+
     static <T extends Serializable> T getByUid(String uid, Class<T> type) {
+        return getByUid(uid, type, null);
+    }
+
+    /** Like {@link #getByUid(String, Class)}, but consults CACHE first and
+     *  remembers what it decoded there; CACHE may be null. */
+    static <T extends Serializable> T getByUid(String uid, Class<T> type, ObjectCache cache) {
         // * get the object from the object database; should be able to use any prefix no less than 7 characters
         if (type == null) {
             throw new IllegalArgumentException("Type cannot be null");
         }
         uid = resolveUid(uid);
-        Path file = Dumpable.persistPath(uid);
-        if (!Files.exists(file)) {
-            throw error("Object does not exist: " + uid);
+        Trace trace = Trace.of(cache);
+        if (cache != null) {
+            T cached = cache.get(uid, type);
+            if (cached != null) {
+                if (trace != null) {
+                    trace.objectCached();
+                }
+                return cached;
+            }
         }
-        return readObject(file, type);
+        long start = trace == null ? 0 : System.nanoTime();
+        // * packs first: after `gc` most objects live there, and the index lookup is a binary search
+        byte[] stored = readPacked(uid, cache);
+        boolean packed = stored != null;
+        if (!packed) {
+            Path file = Dumpable.persistPath(uid);
+            if (!Files.exists(file)) {
+                throw error("Object does not exist: " + uid);
+            }
+            stored = readContents(file);
+        }
+        T object = ObjectCodec.decode(stored, type);
+        if (trace != null) {
+            trace.objectRead(start, uid, type.getSimpleName(), packed ? "pack" : "loose", stored.length);
+        }
+        if (cache != null) {
+            cache.put(uid, object);
+        }
+        return object;
     }
 
+    /** Returns the full UID of the one stored object whose UID starts with the prefix UID,
+     *  of at least {@value UidIndex#MIN_ABBREV} digits, looked up in the {@link UidIndex}. */
     static String resolveUid(String uid) {
         // * resolve the UID to a full UID if it is a prefix
         if (uid != null && uid.length() == 40 && uid.matches("[0-9a-fA-F]+")) {
             return uid; // already a full UID
         }
-        if (uid == null || uid.length() < 7) {
+        if (uid == null || uid.length() < UidIndex.MIN_ABBREV) {
             throw new IllegalArgumentException("Invalid UID prefix: " + uid);
         }
-        Path shardDir = Repository.OBJ_DIR.resolve(uid.substring(0, 2));
-        // find the file matching the UID prefix, or else throw an error
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(shardDir, path -> path.getFileName().toString().startsWith(uid.substring(2)))) {
-            List<Path> matches = new ArrayList<>();
-            for (Path path : stream) {
-                matches.add(path);
-            }
-            if (matches.isEmpty()) {
-                throw error("Failed to resolve UID: Object does not exist: " + uid);
-            }
-            if (matches.size() > 1) {
-                throw error("Failed to resolve UID: Ambiguous UID prefix: " + uid);
+        try (UidIndex index = UidIndex.open(Repository.OBJ_DIR)) {
+            return index.resolve(uid);
+        }
+    }
+
+    /** Returns the files of all loose objects in the object store OBJDIR,
+     *  i.e. everything under a two-hex-digit shard directory. */
+    static List<Path> listLooseObjects(Path objDir) {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(objDir)) {
+            return files;
+        }
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(objDir,
+                path -> Files.isDirectory(path) && path.getFileName().toString().matches("[0-9a-fA-F]{2}"))) {
+            for (Path shard : shards) {
+                try (DirectoryStream<Path> objects = Files.newDirectoryStream(shard, Files::isRegularFile)) {
+                    for (Path object : objects) {
+                        files.add(object);
+                    }
+                }
             }
-            return uid.substring(0, 2) + matches.get(0).getFileName().toString();
         } catch (IOException e) {
-            throw error("Failed to resolve UID: " + e.getMessage());
+            throw new RuntimeException("Failed to list loose objects: " + e.getMessage(), e);
         }
+        return files;
+    }
+
+    /** Returns the UID of the loose object stored in FILE. */
+    static String looseUid(Path file) {
+        return file.getParent().getFileName().toString() + file.getFileName().toString();
     }
 }
@@ -0,0 +1,417 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+import static gitlet.Utils.*;
+
+/** Removes the objects nothing refers to from the object store, as {@code git gc} prunes them.
+ *  <p>
+ *  {@code add} stores a blob for every version of a file it is given, and {@code reset} leaves
+ *  the commits it moves away from behind; a collection removes those that nothing refers to.
+ *  It runs in three phases:
+ *  <ul>
+ *  <li><b>Listing</b>: the UIDs of every stored object, loose or packed, are merged into one
+ *      sorted table of raw UIDs; an object is then a position in that table, and a mark is a
+ *      bit. Nothing else is kept per object, so a million objects take some 20 MB.</li>
+ *  <li><b>Marking</b>: from the roots (HEAD, every ref, the staged blobs), a pool of up to
+ *      {@value #MAX_MARKERS} threads follows the references of each object the moment it is
+ *      reached: parents and trees of commits, entries of trees, chunks of chunked blobs.
+ *      Whoever sets an object's bit first reads it, once, and only as far as its references
+ *      (see {@link ObjectCodec#references}); the contents of blobs are never read.</li>
+ *  <li><b>Sweeping</b>: the reachable objects are packed together (see {@link PackFile#packObjects});
+ *      the old packs go, and so do the loose files of everything unreachable.</li>
+ *  </ul>
+ *  As in Git, an unreachable object written within the grace period (two weeks unless told
+ *  otherwise) is kept, and so is whatever it refers to: it may belong to a command running
+ *  alongside, such as an {@code add} whose blob is not staged yet. Such objects stay or become
+ *  loose, with the time they were written, so that they expire in a later collection.
+ *  A collection that fails to read an object stops before it deletes anything.
+ */
+final class GarbageCollector {
+    /** How long unreachable objects are kept, in milliseconds: two weeks, as {@code gc.pruneExpire} defaults to in Git. */
+    static final long DEFAULT_GRACE_MILLIS = 14L * 24 * 60 * 60 * 1000;
+    /** A grace period that never ends. */
+    static final long FOREVER = Long.MAX_VALUE;
+    /** At most this many threads mark; past that, reading the objects is the limit. */
+    static final int MAX_MARKERS = 8;
+    private static final int RAW = PackFile.RAW_UID_LENGTH;
+    /** Where an object that is only loose is found, in place of a pack number. */
+    private static final int LOOSE = -1;
+
+    /** What a collection did, and how long it took. */
+    record Stats(int reachable, int kept, int pruned, long nanos) {
+    }
+
+    private final Path objDir;
+    private final int parallelism;
+    private final List<PackFile> packs = new ArrayList<>();
+    /** The raw UIDs of every object in the store when the collection started, sorted. */
+    private byte[] table = new byte[0];
+    private int count;
+    /** Per object: the first pack holding it, or {@link #LOOSE}. */
+    private int[] packOf = new int[0];
+    private final BitSet loose = new BitSet();
+    private AtomicLongArray reachable;
+    private AtomicLongArray kept;
+    private final Set<String> missing = ConcurrentHashMap.newKeySet();
+
+    GarbageCollector(Path objDir) {
+        this(objDir, Parallel.upToCores(MAX_MARKERS));
+    }
+
+    GarbageCollector(Path objDir, int parallelism) {
+        this.objDir = objDir;
+        this.parallelism = Parallel.check(parallelism);
+    }
+
+    /** Returns the grace period WHEN stands for, in milliseconds: {@code now}, {@code never} ({@link #FOREVER}),
+     *  or a number followed by {@code s}, {@code m}, {@code h}, {@code d} or {@code w};
+     *  or -1 if WHEN is none of those. */
+    static long parseGrace(String when) {
+        if (when.equals("now")) {
+            return 0;
+        }
+        if (when.equals("never")) {
+            return FOREVER;
+        }
+        if (!when.matches("\\d{1,9}[smhdw]")) {
+            return -1;
+        }
+        long n = Long.parseLong(when.substring(0, when.length() - 1));
+        return switch (when.charAt(when.length() - 1)) {
+            case 's' -> Duration.ofSeconds(n).toMillis();
+            case 'm' -> Duration.ofMinutes(n).toMillis();
+            case 'h' -> Duration.ofHours(n).toMillis();
+            case 'd' -> Duration.ofDays(n).toMillis();
+            default -> Duration.ofDays(7 * n).toMillis();
+        };
+    }
+
+    /** Keeps the objects reachable from ROOTS, and those written within the last GRACEMILLIS with what
+     *  they refer to, and removes the rest; NAMES are path hints for the pack, as for {@link PackFile#packObjects}. */
+    Stats run(Collection<String> roots, long graceMillis, Map<String, String> names) {
+        long start = System.nanoTime();
+        list();
+        reachable = new AtomicLongArray((count + 63) / 64);
+        kept = new AtomicLongArray((count + 63) / 64);
+        new Marking(reachable, null).run(roots);
+        new Marking(kept, reachable).run(recentUnreachable(graceMillis));
+        int live = cardinality(reachable), recent = cardinality(kept);
+        Logging.dbg.printf("Marked %d reachable object(s) of %d with %d thread(s) in %.1f ms.%n",
+                live, count, parallelism, (System.nanoTime() - start) / 1e6);
+        sweep(names);
+        Stats stats = new Stats(live, recent, count - live - recent, System.nanoTime() - start);
+        Logging.info.printf("Kept %d reachable and %d recent unreachable object(s), pruned %d in %.1f ms.%n",
+                stats.reachable(), stats.kept(), stats.pruned(), stats.nanos() / 1e6);
+        return stats;
+    }
+
+    /** Whether the collection removed the object UID from the store. */
+    boolean pruned(String uid) {
+        int i = indexOf(uid);
+        return i >= 0 && !isSet(reachable, i) && !isSet(kept, i);
+    }
+
+    /* LISTING */
+
+    /** Merges the sorted UIDs of the packs and of the loose objects into {@link #table}. */
+    private void list() {
+        List<String> looseUids = new ArrayList<>();
+        for (Path file : Dumpable.listLooseObjects(objDir)) {
+            looseUids.add(Dumpable.looseUid(file).toLowerCase());
+        }
+        looseUids.sort(null);
+        int total = looseUids.size();
+        for (Path idx : PackFile.listIndices(objDir)) {
+            PackFile pack = PackFile.open(idx);
+            packs.add(pack);
+            total += pack.size();
+        }
+        table = new byte[total * RAW];
+        packOf = new int[total];
+        // * each source is already sorted; a heap of their heads merges them, and equal heads come out together
+        PriorityQueue<Cursor> heads = new PriorityQueue<>((a, b) -> Arrays.compareUnsigned(a.raw, b.raw));
+        for (int p = 0; p < packs.size(); p++) {
+            PackFile pack = packs.get(p);
+            int source = p;
+            heads.add(new Cursor(source, pack.size(), pack::uidAt));
+        }
+        heads.add(new Cursor(LOOSE, looseUids.size(), looseUids::get));
+        byte[] last = null;
+        while (!heads.isEmpty()) {
+            Cursor head = heads.poll();
+            if (head.raw == null) {
+                continue;
+            }
+            if (last == null || !Arrays.equals(last, head.raw)) {
+                System.arraycopy(head.raw, 0, table, count * RAW, RAW);
+                packOf[count++] = LOOSE;
+                last = head.raw;
+            }
+            if (head.source == LOOSE) {
+                loose.set(count - 1);
+            } else if (packOf[count - 1] == LOOSE) {
+                packOf[count - 1] = head.source;
+            }
+            if (head.advance()) {
+                heads.add(head);
+            }
+        }
+    }
+
+    /** The next UID of one sorted source of UIDs. */
+    private static final class Cursor {
+        final int source;
+        final int size;
+        final IntFunction<String> uidAt;
+        int pos = -1;
+        byte[] raw;
+
+        Cursor(int source, int size, IntFunction<String> uidAt) {
+            this.source = source;
+            this.size = size;
+            this.uidAt = uidAt;
+            advance();
+        }
+
+        boolean advance() {
+            raw = ++pos < size ? fromHex(uidAt.apply(pos)) : null;
+            return raw != null;
+        }
+    }
+
+    /** Returns the position of UID in {@link #table}, or -1 if it was not stored. */
+    private int indexOf(String uid) {
+        byte[] key = fromHex(uid);
+        int lo = 0, hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = Arrays.compareUnsigned(table, mid * RAW, mid * RAW + RAW, key, 0, RAW);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private String uidAt(int i) {
+        return toHex(Arrays.copyOfRange(table, i * RAW, i * RAW + RAW));
+    }
+
+    private Path loosePath(String uid) {
+        return objDir.resolve(uid.substring(0, 2)).resolve(uid.substring(2));
+    }
+
+    /* MARKING */
+
+    private static boolean isSet(AtomicLongArray bits, int i) {
+        return (bits.get(i >>> 6) & (1L << i)) != 0;
+    }
+
+    /** Sets bit I of BITS; returns whether this call set it. */
+    private static boolean set(AtomicLongArray bits, int i) {
+        long mask = 1L << i;
+        return (bits.getAndUpdate(i >>> 6, word -> word | mask) & mask) == 0;
+    }
+
+    private static int cardinality(AtomicLongArray bits) {
+        int n = 0;
+        for (int w = 0; w < bits.length(); w++) {
+            n += Long.bitCount(bits.get(w));
+        }
+        return n;
+    }
+
+    /** One traversal from a set of roots, by a pool of threads sharing the work as it turns up. */
+    private final class Marking {
+        private final AtomicLongArray marks;
+        private final AtomicLongArray stop;
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        private ExecutorService pool;
+
+        /** A traversal setting MARKS, that does not go past objects set in STOP (if not null). */
+        Marking(AtomicLongArray marks, AtomicLongArray stop) {
+            this.marks = marks;
+            this.stop = stop;
+        }
+
+        /** Marks everything reachable from ROOTS, and returns once all of it is marked. */
+        void run(Collection<String> roots) {
+            if (roots.isEmpty()) {
+                return;
+            }
+            try (Parallel parallel = new Parallel(parallelism, 1, "mark objects")) {
+                pool = parallel.pool(parallelism);
+                roots.forEach(this::visit);
+                finished(); // * the roots are all in; the count can only reach zero once the work is done
+                parallel.await(done);
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+
+        private void visit(String uid) {
+            int i = indexOf(uid);
+            if (i < 0) {
+                if (!uid.equals(Commit.INITIAL_COMMIT_UID) && missing.add(uid)) { // * the initial commit need not be stored
+                    Logging.warn.println("Missing object " + uid + " is referred to, and cannot be followed.");
+                }
+                return;
+            }
+            if ((stop != null && isSet(stop, i)) || !set(marks, i)) {
+                return;
+            }
+            pending.incrementAndGet();
+            pool.execute(() -> {
+                try {
+                    if (failure.get() == null) {
+                        for (String child : references(i, uid)) {
+                            visit(child);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    finished();
+                }
+            });
+        }
+
+        private void finished() {
+            if (pending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+    }
+
+    /** Returns the UIDs the object at position I, UID, refers to; loose copies are preferred, as they stream. */
+    private List<String> references(int i, String uid) {
+        try {
+            InputStream stored;
+            if (loose.get(i)) {
+                stored = Files.newInputStream(loosePath(uid));
+            } else {
+                PackFile pack = packs.get(packOf[i]);
+                stored = new ByteArrayInputStream(pack.read(pack.find(uid)));
+            }
+            return ObjectCodec.references(Compression.inflating(stored));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new RuntimeException("Failed to read object " + uid + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** Returns the unreachable objects written within the last GRACEMILLIS: loose ones by the mtime
+     *  of their file, packed ones by that of their pack. */
+    private List<String> recentUnreachable(long graceMillis) {
+        List<String> recent = new ArrayList<>();
+        if (graceMillis <= 0) {
+            return recent;
+        }
+        long cutoff = graceMillis == FOREVER ? Long.MIN_VALUE : System.currentTimeMillis() - graceMillis;
+        long[] packTimes = new long[packs.size()];
+        for (int p = 0; p < packs.size(); p++) {
+            packTimes[p] = modified(packs.get(p).packPath);
+        }
+        for (int i = 0; i < count; i++) {
+            if (isSet(reachable, i)) {
+                continue;
+            }
+            String uid = uidAt(i);
+            long written = loose.get(i) ? modified(loosePath(uid)) : packTimes[packOf[i]];
+            if (written >= cutoff) {
+                recent.add(uid);
+            }
+        }
+        return recent;
+    }
+
+    private static long modified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return Long.MAX_VALUE; // * changed under us: someone is writing it, so it is recent
+        }
+    }
+
+    /* SWEEPING */
+
+    private void sweep(Map<String, String> names) {
+        // * kept objects that are only packed are written out loose first, as old as their pack
+        for (int i = 0; i < count; i++) {
+            if (isSet(kept, i) && !loose.get(i)) {
+                unpack(i);
+            }
+        }
+        PackFile.packObjects(objDir, names, PackFile.MAX_DEPTH, uid -> {
+            int i = indexOf(uid);
+            return i >= 0 && isSet(reachable, i);
+        });
+        for (int i = 0; i < count; i++) {
+            if (loose.get(i) && !isSet(reachable, i) && !isSet(kept, i)) {
+                delete(loosePath(uidAt(i)));
+            }
+        }
+    }
+
+    private void unpack(int i) {
+        String uid = uidAt(i);
+        PackFile pack = packs.get(packOf[i]);
+        byte[] stored = pack.read(pack.find(uid));
+        Path file = loosePath(uid);
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(objDir, "tmp-obj-", ""); // * as Blob does, out of the shards
+            Files.write(tmp, Compression.isDeflated(stored) ? stored : Compression.compress(stored));
+            Files.setLastModifiedTime(tmp, FileTime.fromMillis(modified(pack.packPath)));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to unpack object " + uid + ": " + e.getMessage(), e);
+        }
+        loose.set(i);
+    }
+
+    /** Deletes the loose object FILE, and its shard if that leaves it empty. */
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+            try (DirectoryStream<Path> rest = Files.newDirectoryStream(file.getParent())) {
+                if (rest.iterator().hasNext()) {
+                    return;
+                }
+            }
+            Files.delete(file.getParent());
+        } catch (IOException e) {
+            Logging.warn.println("Failed to prune loose object " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -24,12 +24,19 @@ import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.security.Permission;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import static gitlet.Utils.*;
 import static gitlet.Utils.readContentsAsString;
@@ -157,6 +164,7 @@ public class GitletAdditionalTests {
                 SimpleDateFormat.class,
                 // Utils
                 FilenameFilter.class,
+                gitlet.Utils.Logging.Logger.class,
                 // For testing stdout; not actually for use by students.
                 ByteArrayOutputStream.class,
                 PrintStream.class
@@ -512,6 +520,1110 @@ public class GitletAdditionalTests {
                 """);
     }
 
+    @Test
+    public void myTest04_gc_packsLooseObjects() {
+        gitletCommand(new String[]{"init"}, "");
+        writeFile(WUG, "wug.txt");
+        gitletCommand(new String[]{"add", "wug.txt"}, "");
+        gitletCommand(new String[]{"commit", "added wug"}, "");
+        String head = Repository.resolveHead();
+        gitletCommand(new String[]{"gc"}, "");
+        // only the pack and its index (and the commit graph and UID table) should remain under .gitlet/objects
+        try (var files = Files.walk(Path.of(".gitlet/objects"))) {
+            assertWithMessage("loose objects should have been moved into a pack")
+                .that(files.filter(Files::isRegularFile).map(p -> p.getFileName().toString())
+                        .filter(name -> !name.startsWith("pack-") && !name.equals("commit-graph") && !name.equals("loose-uids")).toList())
+                .isEmpty();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to walk .gitlet/objects", e);
+        }
+        // packed commits and blobs still resolve, by full or abbreviated UID
+        deleteFile("wug.txt");
+        gitletCommand(new String[]{"restore", head.substring(0, 8), "--", "wug.txt"}, "");
+        assertFileEquals(WUG, "wug.txt");
+        gitletCommand(new String[]{"status"}, """
+                === Branches ===
+                *main
+
+                === Staged Files ===
+
+                === Removed Files ===
+
+                === Modifications Not Staged For Commit ===
+
+                === Untracked Files ===
+
+                """);
+
+        // a cache keeps its packs open, and opens packs again only for what changed in the pack directory
+        ObjectCache cache = new ObjectCache();
+        List<PackFile> packs = cache.packs().current();
+        assertThat(packs).hasSize(1);
+        assertThat(Commit.getByUid(head, cache).getUid()).isEqualTo(head);
+        assertThat(cache.packs().current().get(0)).isSameInstanceAs(packs.get(0));
+        writeFile(NOTWUG, "notwug.txt");
+        gitletCommand(new String[]{"add", "notwug.txt"}, "");
+        gitletCommand(new String[]{"commit", "added notwug"}, "");
+        gitletCommand(new String[]{"gc"}, "");
+        assertThat(cache.packs().current().stream().map(pack -> pack.idxPath).toList())
+                .isEqualTo(PackFile.listIndices(Repository.OBJ_DIR));
+        assertThat(Commit.getByUid(Repository.resolveHead(), cache).message).isEqualTo("added notwug");
+        cache.packs().close();
+    }
+
+    @Test
+    public void myTest05_store_chunksLargeFiles() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        byte[] contents = new byte[3 * 1024 * 1024];
+        new java.util.Random(61).nextBytes(contents);
+        Files.write(Path.of("big.bin"), contents);
+        // the streamed UID is the one an in-memory blob of the same contents has
+        assertThat(Blob.hashFile(Path.of("big.bin"))).isEqualTo(new Blob(contents).getUid());
+        gitletCommand(new String[]{"add", "big.bin"}, "");
+        gitletCommand(new String[]{"commit", "added big"}, "");
+        String head = Repository.resolveHead();
+        // a one-byte edit only stores the chunk around it, a new manifest and the commit
+        long before = countLooseObjects();
+        contents[contents.length / 2] ^= 1;
+        Files.write(Path.of("big.bin"), contents);
+        gitletCommand(new String[]{"add", "big.bin"}, "");
+        gitletCommand(new String[]{"commit", "edited big"}, "");
+        assertWithMessage("an edit should not store the whole file again")
+            .that(countLooseObjects() - before).isAtMost(4);
+        contents[contents.length / 2] ^= 1;
+        gitletCommand(new String[]{"restore", head.substring(0, 8), "--", "big.bin"}, "");
+        assertThat(Files.readAllBytes(Path.of("big.bin"))).isEqualTo(contents);
+    }
+
+    @Test
+    public void myTest06_compression_deflatesObjects() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        Files.writeString(Path.of("text.txt"), "wug\n".repeat(4096));
+        gitletCommand(new String[]{"add", "text.txt"}, "");
+        gitletCommand(new String[]{"commit", "added text"}, "");
+        // text is stored as a zlib stream, and still reads back
+        String blobUid = Commit.getByUid(Repository.resolveHead()).getFileBlobs().get("text.txt");
+        byte[] stored = Files.readAllBytes(Dumpable.persistPath(blobUid));
+        assertWithMessage("text blobs should be deflated").that(Compression.isDeflated(stored)).isTrue();
+        assertThat(stored.length).isLessThan(4096);
+        assertThat(Blob.getByUid(blobUid).getContentsAsString()).isEqualTo("wug\n".repeat(4096));
+        // already-compressed contents are stored as they are
+        byte[] gzip = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 3, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        assertThat(Compression.isDeflated(Compression.compress(ObjectCodec.encode(new Blob(gzip)), 9))).isFalse();
+        gitletCommandP(new String[]{"count-objects"}, """
+                count: 3
+                size: [0-9.]+ KiB
+                in-pack: 0
+                packs: 0
+                size-pack: 0.0 KiB
+                size-raw: [0-9.]+ KiB
+                compression: [0-9.]+x
+                """);
+    }
+
+    @Test
+    public void myTest07_status_trustsStatCache() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        writeFile(WUG, "wug.txt");
+        // old enough not to be racily clean
+        java.nio.file.attribute.FileTime past = java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+        Files.setLastModifiedTime(Path.of("wug.txt"), past);
+        gitletCommand(new String[]{"add", "wug.txt"}, "");
+        gitletCommand(new String[]{"commit", "added wug"}, "");
+        // same size and mtime: status must not read the file, so this edit goes unseen
+        byte[] contents = Files.readAllBytes(Path.of("wug.txt"));
+        contents[0] ^= 1;
+        Files.write(Path.of("wug.txt"), contents);
+        Files.setLastModifiedTime(Path.of("wug.txt"), past);
+        String clean = """
+                === Branches ===
+                *main
+
+                === Staged Files ===
+
+                === Removed Files ===
+
+                === Modifications Not Staged For Commit ===
+
+                === Untracked Files ===
+
+                """;
+        gitletCommand(new String[]{"status"}, clean);
+        // a new mtime invalidates the entry
+        Files.setLastModifiedTime(Path.of("wug.txt"), java.nio.file.attribute.FileTime.fromMillis(past.toMillis() + 1000));
+        gitletCommand(new String[]{"status"}, clean.replace("Commit ===\n", "Commit ===\nwug.txt\n"));
+    }
+
+    @Test
+    public void myTest08_add_directoryInOneGo() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        Files.createDirectories(Path.of("dir", "sub"));
+        for (int i = 0; i < 10; i++) {
+            Files.writeString(Path.of("dir", "sub", "f" + i + ".txt"), "file " + i + "\n");
+        }
+        writeFile(WUG, "wug.txt");
+        gitletCommand(new String[]{"add", "dir", "wug.txt"}, "");
+        Matcher staged = gitletCommandP(new String[]{"status"}, """
+                === Branches ===
+                \\*main
+
+                === Staged Files ===
+                ((?:dir/sub/f[0-9].txt\n){10})wug.txt
+
+                === Removed Files ===
+                [\\s\\S]*""");
+        assertThat(staged.group(1)).startsWith("dir/sub/f0.txt");
+        // the parallel hashes agree with the sequential ones
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            files.add(Path.of("dir", "sub", "f" + i + ".txt"));
+        }
+        List<String> sequential = new ArrayList<>();
+        for (Path file : files) {
+            sequential.add(Blob.hashFile(file));
+        }
+        assertThat(new HashPipeline(4).hash(files)).containsExactlyElementsIn(sequential).inOrder();
+        gitletCommand(new String[]{"commit", "added dir"}, "");
+        Files.delete(Path.of("dir", "sub", "f3.txt"));
+        gitletCommand(new String[]{"restore", "--", "dir/sub/f3.txt"}, "");
+        assertThat(Files.readString(Path.of("dir", "sub", "f3.txt"))).isEqualTo("file 3\n");
+    }
+
+    @Test
+    public void myTest09_objectCache_evictsLeastRecentlyUsed() {
+        // each blob is estimated at 64 + 1000 bytes; four of them fit, five do not
+        ObjectCache cache = new ObjectCache(4 * 1064 + 100);
+        for (int i = 0; i < 4; i++) {
+            cache.put("uid" + i, new Blob(new byte[1000]));
+        }
+        assertThat(cache.get("uid0", Blob.class)).isNotNull(); // * now the most recently used
+        cache.put("uid4", new Blob(new byte[1000]));
+        assertThat(cache.get("uid1", Blob.class)).isNull();
+        assertThat(cache.get("uid0", Blob.class)).isNotNull();
+        assertThat(cache.get("uid4", Commit.class)).isNull(); // * wrong type is a miss
+        assertThat(cache.hits()).isEqualTo(2);
+        assertThat(cache.misses()).isEqualTo(2);
+        assertThat(cache.evictions()).isEqualTo(1);
+        assertThat(cache.size()).isEqualTo(4);
+        // anything over a quarter of the budget is not worth caching
+        cache.put("big", new Blob(new byte[2000]));
+        assertThat(cache.get("big", Blob.class)).isNull();
+    }
+
+    @Test
+    public void myTest10_commitGraph_answersAncestry() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        writeFile(WUG, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "base"}, "");
+        String base = Repository.resolveHead();
+        gitletCommand(new String[]{"branch", "other"}, "");
+        writeFile(NOTWUG, "g.txt");
+        gitletCommand(new String[]{"add", "g.txt"}, "");
+        gitletCommand(new String[]{"commit", "main side"}, "");
+        String mainSide = Repository.resolveHead();
+        gitletCommand(new String[]{"switch", "other"}, "");
+        writeFile(WUG2, "h.txt");
+        gitletCommand(new String[]{"add", "h.txt"}, "");
+        gitletCommand(new String[]{"commit", "other side"}, "");
+        String otherSide = Repository.resolveHead();
+
+        CommitGraph graph = CommitGraph.open(Repository.OBJ_DIR);
+        assertThat(graph.size()).isEqualTo(4); // * including the initial commit
+        assertThat(graph.generation(Commit.INITIAL_COMMIT_UID)).isEqualTo(1);
+        assertThat(graph.generation(base)).isEqualTo(2);
+        assertThat(graph.generation(otherSide)).isEqualTo(3);
+        assertThat(graph.mergeBase(mainSide, otherSide)).isEqualTo(base);
+        assertThat(graph.isAncestor(base, otherSide)).isTrue();
+        assertThat(graph.isAncestor(mainSide, otherSide)).isFalse();
+        assertThat(graph.isFirstParentAncestor(base, mainSide)).isTrue();
+        assertThat(graph.isFirstParentAncestor(mainSide, mainSide)).isFalse();
+        assertThat(graph.mergeBase(base, "0".repeat(40))).isNull();
+
+        // a repository without a graph gets its whole history back-filled by the next commit
+        Files.delete(CommitGraph.graphFile(Repository.OBJ_DIR));
+        writeFile(WUG3, "i.txt");
+        gitletCommand(new String[]{"add", "i.txt"}, "");
+        gitletCommand(new String[]{"commit", "after"}, "");
+        graph = CommitGraph.open(Repository.OBJ_DIR);
+        assertThat(graph.size()).isEqualTo(4); // * the history of the new commit: not "main side"
+        assertThat(graph.isAncestor(base, Repository.resolveHead())).isTrue();
+        assertThat(graph.mergeBase(Repository.resolveHead(), mainSide)).isNull();
+    }
+
+    @Test
+    public void myTest11_commitIndex_servesGlobalLogAndFind() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        writeFile(WUG, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "Fix the parser"}, "");
+        String first = Repository.resolveHead();
+        writeFile(NOTWUG, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "parser: fix"}, "");
+        String second = Repository.resolveHead();
+        writeFile(WUG2, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "Fix the parser"}, "");
+        String third = Repository.resolveHead();
+
+        CommitIndex index = CommitIndex.open(Repository.GITLET_DIR);
+        assertThat(index.size()).isEqualTo(4); // * including the initial commit
+        // the word index narrows the search, but only exact messages match
+        assertThat(index.find("Fix the parser").stream().map(CommitIndex.Entry::uid).toList())
+                .containsExactly(first, third).inOrder();
+        assertThat(index.find("parser: fix").stream().map(CommitIndex.Entry::uid).toList()).containsExactly(second);
+        assertThat(index.find("fix")).isEmpty();
+        gitletCommand(new String[]{"find", "initial commit"}, Commit.INITIAL_COMMIT_UID + "\n");
+
+        // merging the pending postings into the sorted table does not change the answers
+        index.compact();
+        assertThat(Files.exists(CommitIndex.indexDir(Repository.GITLET_DIR).resolve("words.pending"))).isFalse();
+        assertThat(index.find("Fix the parser").stream().map(CommitIndex.Entry::uid).toList())
+                .containsExactly(first, third).inOrder();
+        gitletCommand(new String[]{"find", "parser: fix"}, second + "\n");
+        gitletCommand(new String[]{"find", "the"}, "Found no commit with that message.\n");
+
+        List<String> newestFirst = new ArrayList<>();
+        index.forEachNewestFirst(entry -> newestFirst.add(entry.uid()));
+        assertThat(newestFirst).containsExactly(third, second, first, Commit.INITIAL_COMMIT_UID).inOrder();
+        gitletCommandP(new String[]{"global-log"}, "(===\ncommit [0-9a-f]{40}\nDate: .*\n.*\n\n){4}");
+    }
+
+    @Test
+    public void myTest12_uidIndex_resolvesAndAbbreviates() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        writeFile(WUG, "f.txt");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"commit", "wug"}, "");
+        String head = Repository.resolveHead();
+        try (UidIndex index = UidIndex.open(Repository.OBJ_DIR)) {
+            assertThat(index.resolve(head.substring(0, 7))).isEqualTo(head);
+            assertThat(index.shortestUniquePrefix(head, UidIndex.MIN_ABBREV)).isEqualTo(head.substring(0, 7));
+        }
+        assertThat(Files.exists(Repository.OBJ_DIR.resolve("info").resolve("loose-uids"))).isTrue();
+
+        // an object sharing the first ten digits makes seven ambiguous and the abbreviation longer;
+        // the table notices the new file in the shard without being told
+        String twin = head.substring(0, 10) + (head.charAt(10) == '0' ? "1" : "0") + "0".repeat(29);
+        Files.createFile(Dumpable.persistPath(twin));
+        try (UidIndex index = UidIndex.open(Repository.OBJ_DIR)) {
+            assertThat(index.matches(head.substring(0, 7))).containsExactly(head, twin);
+            assertThat(index.resolve(head.substring(0, 11))).isEqualTo(head);
+            assertThat(index.shortestUniquePrefix(head, UidIndex.MIN_ABBREV)).isEqualTo(head.substring(0, 11));
+            assertThrows(GitletException.class, () -> index.resolve(head.substring(0, 7)));
+        }
+        gitletCommandP(new String[]{"log", "--oneline"}, head.substring(0, 11) + " wug\n[0-9a-f]{7} initial commit\n");
+        Files.delete(Dumpable.persistPath(twin));
+        gitletCommandP(new String[]{"log", "--oneline"}, head.substring(0, 7) + " wug\n[0-9a-f]{7} initial commit\n");
+    }
+
+    @Test
+    public void myTest13_trees_shareUnchangedDirectories() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        Files.createDirectories(Path.of("a"));
+        Files.createDirectories(Path.of("b", "c"));
+        writeFile(WUG, "a/x.txt");
+        writeFile(NOTWUG, "b/y.txt");
+        writeFile(WUG2, "b/c/z.txt");
+        writeFile(WUG3, "top.txt");
+        gitletCommand(new String[]{"add", "a", "b", "top.txt"}, "");
+        gitletCommand(new String[]{"commit", "tree"}, "");
+        Commit first = Commit.getByUid(Repository.resolveHead());
+        assertThat(first.getTree()).isNotNull();
+        assertThat(first.getFileBlobs().keySet()).containsExactly("a/x.txt", "b/c/z.txt", "b/y.txt", "top.txt").inOrder();
+        assertThat(first.getBlobUid("b/c/z.txt")).isEqualTo(Blob.hashFile(Path.of("b/c/z.txt")));
+        assertThat(first.getBlobUid("b/c")).isNull();
+        assertThat(first.getBlobUid("b/nope.txt")).isNull();
+
+        writeFile(NOTWUG, "a/x.txt");
+        gitletCommand(new String[]{"add", "a/x.txt"}, "");
+        gitletCommand(new String[]{"rm", "top.txt"}, "");
+        gitletCommand(new String[]{"commit", "change a"}, "");
+        Commit second = Commit.getByUid(Repository.resolveHead());
+        Tree before = Tree.getByUid(first.getTree(), null);
+        Tree after = Tree.getByUid(second.getTree(), null);
+        // b/ was not touched, so both commits share its tree; a/ and the root are new
+        assertThat(after.entries().get("b/")).isEqualTo(before.entries().get("b/"));
+        assertThat(after.entries().get("a/")).isNotEqualTo(before.entries().get("a/"));
+        assertThat(after.entries()).doesNotContainKey("top.txt");
+        assertThat(second.getFileBlobs().keySet()).containsExactly("a/x.txt", "b/c/z.txt", "b/y.txt");
+        // the commit object itself does not list files
+        assertThat(ObjectCodec.decode(Files.readAllBytes(Dumpable.persistPath(second.getUid())), Commit.class).getTree())
+                .isEqualTo(second.getTree());
+
+        // a commit that lists its files, as older gitlets wrote them, still gets children with trees
+        Map<String, String> flat = new java.util.LinkedHashMap<>(second.getFileBlobs());
+        Commit legacy = new Commit("legacy", new String[]{second.getUid()}, java.time.Instant.now(), java.time.Instant.now(), false, flat);
+        legacy.persist();
+        writeContents(Repository.BRC_DIR.resolve("main"), legacy.getUid());
+        writeFile(WUG, "b/c/z.txt");
+        gitletCommand(new String[]{"add", "b/c/z.txt"}, "");
+        gitletCommand(new String[]{"commit", "on legacy"}, "");
+        Commit third = Commit.getByUid(Repository.resolveHead());
+        assertThat(third.getTree()).isNotNull();
+        assertThat(third.getFileBlobs().keySet()).containsExactly("a/x.txt", "b/c/z.txt", "b/y.txt");
+        assertThat(third.getBlobUid("b/c/z.txt")).isEqualTo(first.getBlobUid("a/x.txt"));
+        assertThat(Tree.getByUid(third.getTree(), null).entries().get("a/")).isEqualTo(after.entries().get("a/"));
+    }
+
+    @Test
+    public void myTest14_index_journalsChanges() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        Path index = Repository.INDX_FILE;
+        Path journal = StagingArea.journalPath(index);
+        byte[] snapshot = Files.readAllBytes(index);
+        writeFile(WUG, "wug.txt");
+        writeFile(NOTWUG, "notwug.txt");
+        gitletCommand(new String[]{"add", "wug.txt"}, "");
+        gitletCommand(new String[]{"add", "notwug.txt"}, "");
+        // staging appends records; the snapshot is left alone
+        assertThat(Files.readAllBytes(index)).isEqualTo(snapshot);
+        long oneRecord = Files.size(journal);
+        assertThat(StagingArea.load(index).stagedFiles.keySet()).containsExactly("wug.txt", "notwug.txt");
+
+        // a torn record at the end is dropped, and the next save writes over it
+        Files.write(journal, new byte[]{0, 0, 0, 42, 1, 2}, java.nio.file.StandardOpenOption.APPEND);
+        StagingArea area = StagingArea.load(index);
+        assertThat(area.stagedFiles.keySet()).containsExactly("wug.txt", "notwug.txt");
+        area.stagedFiles.remove("notwug.txt");
+        area.save(index);
+        assertThat(StagingArea.load(index).stagedFiles.keySet()).containsExactly("wug.txt");
+        assertThat(Files.size(journal)).isGreaterThan(oneRecord);
+
+        // once the journal outgrows the snapshot, the two are folded into a new snapshot
+        area = StagingArea.load(index);
+        for (int i = 0; i < 2000; i++) {
+            area.stagedFiles.put("f" + i, new StagingArea.fileInfo("f" + i, "0".repeat(40), 1, 1, 1));
+        }
+        area.save(index);
+        assertThat(Files.exists(journal)).isFalse();
+        assertThat(StagingArea.load(index).stagedFiles).hasSize(2001);
+
+        // a journal of an older generation, as an interrupted compaction would leave, is ignored;
+        // loading, which takes no lock, leaves it for the next save to write over
+        Files.write(journal, java.nio.ByteBuffer.allocate(12).put(StagingArea.JOURNAL_MAGIC.getBytes()).putLong(0).array());
+        area = StagingArea.load(index);
+        assertThat(area.stagedFiles).hasSize(2001);
+        assertThat(Files.exists(journal)).isTrue();
+        area.stagedFiles.remove("f0");
+        area.save(index);
+        assertThat(StagingArea.load(index).stagedFiles).hasSize(2000);
+    }
+
+    @Test
+    public void myTest15_gc_storesDeltas() throws IOException {
+        // deltas round-trip, and only carry what changed
+        java.util.Random random = new java.util.Random(61);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            text.append("line ").append(i).append(": ").append(Long.toHexString(random.nextLong())).append('\n');
+        }
+        byte[] base = text.toString().getBytes();
+        byte[] edited = text.toString().replace("line 1000:", "line one thousand:").getBytes();
+        byte[] delta = Delta.compute(new Delta.Index(base), edited, edited.length);
+        assertThat(delta).isNotNull();
+        assertThat(delta.length).isLessThan(64);
+        assertThat(Delta.apply(base, new java.io.ByteArrayInputStream(delta))).isEqualTo(edited);
+
+        gitletCommand(new String[]{"init"}, "");
+        List<String> commits = new ArrayList<>();
+        List<String> versions = new ArrayList<>();
+        String[] lines = text.toString().split("\n", -1);
+        for (int v = 0; v < 20; v++) {
+            lines[random.nextInt(lines.length - 1)] = "edited in version " + v;
+            String version = String.join("\n", lines);
+            Files.writeString(Path.of("long.txt"), version);
+            gitletCommand(new String[]{"add", "long.txt"}, "");
+            gitletCommand(new String[]{"commit", "version " + v}, "");
+            commits.add(Repository.resolveHead());
+            versions.add(version);
+        }
+        gitletCommand(new String[]{"gc"}, "");
+        List<Path> indices = PackFile.listIndices(Path.of(".gitlet/objects"));
+        assertThat(indices).hasSize(1);
+        PackFile pack = PackFile.open(indices.get(0));
+        // the twenty versions take about as much as one (deflated, hex text halves at best)
+        assertWithMessage("versions of a file should be stored as deltas")
+            .that(Files.size(pack.packPath)).isLessThan(base.length);
+        for (int v = 0; v < 20; v += 7) {
+            gitletCommand(new String[]{"restore", commits.get(v), "--", "long.txt"}, "");
+            assertThat(Files.readString(Path.of("long.txt"))).isEqualTo(versions.get(v));
+        }
+        // and packing again, from a pack of deltas, keeps them readable
+        Files.writeString(Path.of("long.txt"), "short now\n");
+        gitletCommand(new String[]{"add", "long.txt"}, "");
+        gitletCommand(new String[]{"commit", "shortened"}, "");
+        gitletCommand(new String[]{"gc"}, "");
+        gitletCommand(new String[]{"restore", commits.get(19), "--", "long.txt"}, "");
+        assertThat(Files.readString(Path.of("long.txt"))).isEqualTo(versions.get(19));
+    }
+
+    @Test
+    public void myTest16_checkout_writesOnlyWhatDiffers() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        for (int i = 0; i < 100; i++) {
+            Files.createDirectories(Path.of("a"));
+            Files.writeString(Path.of("a", i + ".txt"), "version 1 of " + i + "\n");
+        }
+        Files.writeString(Path.of("top.txt"), "top\n");
+        gitletCommand(new String[]{"add", "a"}, "");
+        gitletCommand(new String[]{"add", "top.txt"}, "");
+        gitletCommand(new String[]{"commit", "base"}, "");
+        String base = Repository.resolveHead();
+        gitletCommand(new String[]{"branch", "other"}, "");
+        for (int i = 0; i < 100; i++) {
+            Files.writeString(Path.of("a", i + ".txt"), "version 2 of " + i + "\n");
+        }
+        Files.createDirectories(Path.of("c", "d"));
+        Files.writeString(Path.of("c", "d", "new.txt"), "new\n");
+        gitletCommand(new String[]{"add", "a"}, "");
+        gitletCommand(new String[]{"add", "c"}, "");
+        gitletCommand(new String[]{"commit", "changed"}, "");
+        String changed = Repository.resolveHead();
+
+        // the commits differ in 101 files; top.txt is the same in both and is not rewritten
+        Map<String, String> diff = Checkout.diff(Commit.getByUid(changed), Commit.getByUid(base), null);
+        assertThat(diff).hasSize(101);
+        assertThat(diff).containsEntry("c/d/new.txt", null);
+        java.nio.file.attribute.FileTime past = java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+        Files.setLastModifiedTime(Path.of("top.txt"), past);
+        gitletCommand(new String[]{"checkout", "other"}, "");
+        for (int i = 0; i < 100; i += 33) {
+            assertThat(Files.readString(Path.of("a", i + ".txt"))).isEqualTo("version 1 of " + i + "\n");
+        }
+        assertWithMessage("directories left empty should be removed").that(Files.exists(Path.of("c"))).isFalse();
+        assertThat(Files.getLastModifiedTime(Path.of("top.txt"))).isEqualTo(past);
+
+        // a file the commits agree on is still restored if it was modified or deleted in the working tree
+        Files.writeString(Path.of("top.txt"), "scribbled\n");
+        Files.delete(Path.of("a", "7.txt"));
+        gitletCommand(new String[]{"reset", changed}, "");
+        assertThat(Files.readString(Path.of("top.txt"))).isEqualTo("top\n");
+        assertThat(Files.readString(Path.of("a", "7.txt"))).isEqualTo("version 2 of 7\n");
+        assertThat(Files.readString(Path.of("c", "d", "new.txt"))).isEqualTo("new\n");
+    }
+
+    @Test
+    public void myTest17_merge_mergesLinesOfBothSides() throws IOException {
+        // the diff underneath: applying the edits of random sequences turns one into the other, minimally
+        java.util.Random random = new java.util.Random(17);
+        for (int round = 0; round < 2000; round++) {
+            int[] a = random.ints(random.nextInt(25), 0, 4).toArray();
+            int[] b = random.ints(random.nextInt(25), 0, 4).toArray();
+            List<Integer> rebuilt = new ArrayList<>();
+            int at = 0, cost = 0;
+            for (Diff.Edit edit : Diff.diff(a, b)) {
+                for (; at < edit.beginA(); at++) {
+                    rebuilt.add(a[at]);
+                }
+                for (int j = edit.beginB(); j < edit.endB(); j++) {
+                    rebuilt.add(b[j]);
+                }
+                cost += edit.endA() - edit.beginA() + edit.endB() - edit.beginB();
+                at = edit.endA();
+            }
+            for (; at < a.length; at++) {
+                rebuilt.add(a[at]);
+            }
+            assertThat(rebuilt.stream().mapToInt(Integer::intValue).toArray()).isEqualTo(b);
+            int[][] common = new int[a.length + 1][b.length + 1];
+            for (int i = a.length - 1; i >= 0; i--) {
+                for (int j = b.length - 1; j >= 0; j--) {
+                    common[i][j] = a[i] == b[j] ? common[i + 1][j + 1] + 1 : Math.max(common[i + 1][j], common[i][j + 1]);
+                }
+            }
+            assertThat(cost).isEqualTo(a.length + b.length - 2 * common[0][0]);
+        }
+
+        gitletCommand(new String[]{"init"}, "");
+        Files.writeString(Path.of("f.txt"), "1\n2\n3\n4\n5\n6\n7\n");
+        Files.writeString(Path.of("g.txt"), "a\nb\nc\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"add", "g.txt"}, "");
+        gitletCommand(new String[]{"commit", "base"}, "");
+        gitletCommand(new String[]{"branch", "other"}, "");
+        Files.writeString(Path.of("f.txt"), "one\n2\n3\n4\n5\n6\n7\n");
+        Files.writeString(Path.of("g.txt"), "a\nmine\nc\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"add", "g.txt"}, "");
+        gitletCommand(new String[]{"commit", "main side"}, "");
+        gitletCommand(new String[]{"switch", "other"}, "");
+        Files.writeString(Path.of("f.txt"), "1\n2\n3\n4\n5\n6\nseven\n");
+        Files.writeString(Path.of("g.txt"), "a\nyours\nc\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"add", "g.txt"}, "");
+        gitletCommand(new String[]{"commit", "other side"}, "");
+        gitletCommand(new String[]{"switch", "main"}, "");
+        gitletCommand(new String[]{"merge", "other"}, "Encountered a merge conflict.\n");
+        // changes to different lines merge cleanly; the conflict only spans the line both changed
+        assertThat(Files.readString(Path.of("f.txt"))).isEqualTo("one\n2\n3\n4\n5\n6\nseven\n");
+        assertThat(Files.readString(Path.of("g.txt")))
+                .isEqualTo("a\n<<<<<<< HEAD\nmine\n=======\nyours\n>>>>>>>\nc\n");
+        // a whole file in conflict reads as it always did
+        ThreeWayMerge.Result whole = ThreeWayMerge.merge("x\n".getBytes(), "y\n".getBytes(), "z".getBytes());
+        assertThat(new String(whole.text())).isEqualTo("<<<<<<< HEAD\ny\n=======\nz>>>>>>>\n");
+        assertThat(whole.conflicts()).isEqualTo(1);
+        assertThat(ThreeWayMerge.merge("x\n".getBytes(), "y\n".getBytes(), "y\n".getBytes()).isClean()).isTrue();
+    }
+
+    @Test
+    public void myTest18_diff_showsChangedLinesOnly() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        StringBuilder lines = new StringBuilder();
+        for (int i = 1; i <= 20; i++) {
+            lines.append(i).append('\n');
+        }
+        Files.writeString(Path.of("f.txt"), lines);
+        Files.writeString(Path.of("same.txt"), "unchanged\n");
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        gitletCommand(new String[]{"add", "same.txt"}, "");
+        gitletCommand(new String[]{"commit", "one"}, "");
+        String one = Repository.resolveHead();
+        String changed = lines.toString().replace("\n5\n", "\nfive\n");
+        Files.writeString(Path.of("f.txt"), changed);
+        runGitletCommand(new String[]{"diff"});
+        String fromIndex = getOutput();
+        assertThat(fromIndex).contains("--- a/f.txt\n+++ b/f.txt\n@@ -2,7 +2,7 @@\n 2\n 3\n 4\n-5\n+five\n 6\n 7\n 8\n");
+        assertWithMessage("files with the same blob are skipped").that(fromIndex).doesNotContain("same.txt");
+        gitletCommand(new String[]{"diff", "--cached"}, "");
+
+        gitletCommand(new String[]{"add", "f.txt"}, "");
+        Files.delete(Path.of("same.txt"));
+        gitletCommand(new String[]{"rm", "same.txt"}, "");
+        gitletCommand(new String[]{"commit", "two"}, "");
+        runGitletCommand(new String[]{"diff", one.substring(0, 8), "main"});
+        String between = getOutput();
+        assertThat(between).contains("-5\n+five\n");
+        assertThat(between).contains("deleted file\n");
+        assertThat(between).contains("--- a/same.txt\n+++ /dev/null\n@@ -1 +0,0 @@\n-unchanged\n");
+        gitletCommand(new String[]{"diff", "main", "main"}, "");
+        gitletCommand(new String[]{"diff", "0000000"}, "No commit with that id exists.");
+
+        // far apart changes make separate hunks; a missing final newline is marked
+        Files.writeString(Path.of("f.txt"), changed.replace("\n18\n", "\neighteen\n").replace("20\n", "20"));
+        runGitletCommand(new String[]{"diff", "main"});
+        String hunks = getOutput();
+        assertThat(hunks).contains("@@ -15,6 +15,6 @@\n 15\n 16\n 17\n-18\n+eighteen\n 19\n-20\n+20\n\\ No newline at end of file\n");
+        assertThat(hunks.split("\n@@ ", -1)).hasLength(2);
+    }
+
+    @Test
+    public void myTest19_daemon_runsCommandsSentOverItsSocket() throws Exception {
+        gitletCommand(new String[]{"init"}, "");
+        Thread daemon = new Thread(() -> {
+            try {
+                new Daemon(Daemon.SOCKET, new ObjectCache()).serve();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        daemon.start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(), err = new ByteArrayOutputStream();
+        for (long deadline = System.currentTimeMillis() + 10_000;
+             DaemonClient.send(Path.of(""), new String[]{"status"}, out, err) < 0; ) {
+            assertWithMessage("the daemon should start listening").that(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(10);
+        }
+        assertThat(out.toString()).startsWith("=== Branches ===\n*main\n");
+        Files.writeString(Path.of("wug.txt"), "wug\n");
+        assertThat(DaemonClient.send(Path.of(""), new String[]{"add", "wug.txt"}, out, err)).isEqualTo(0);
+        assertThat(DaemonClient.send(Path.of(""), new String[]{"commit", "sent to the daemon"}, out, err)).isEqualTo(0);
+        out.reset();
+        assertThat(DaemonClient.send(Path.of(""), new String[]{"rm-branch", "nope"}, out, err)).isEqualTo(0);
+        assertThat(out.toString()).isEqualTo("A branch with that name does not exist.\n");
+        err.reset();
+        assertWithMessage("an exception fails the command, not the daemon")
+                .that(DaemonClient.send(Path.of(""), new String[]{"checkout", "a", "b"}, out, err)).isEqualTo(1);
+        assertThat(err.toString()).contains("GitletException");
+        out.reset();
+        assertThat(DaemonClient.send(Path.of(""), new String[]{"log", "--oneline"}, out, err)).isEqualTo(0);
+        assertThat(out.toString()).contains(" sent to the daemon\n");
+
+        // plain commands see what the daemon did, and the daemon sees what they do
+        gitletCommand(new String[]{"branch", "other"}, "");
+        out.reset();
+        DaemonClient.send(Path.of(""), new String[]{"status"}, out, err);
+        assertThat(out.toString()).contains("other\n");
+
+        assertThat(DaemonClient.send(Path.of(""), new String[]{"daemon", "stop"}, out, err)).isEqualTo(0);
+        daemon.join(10_000);
+        assertThat(daemon.isAlive()).isFalse();
+        assertThat(Files.exists(Daemon.SOCKET)).isFalse();
+        assertThat(DaemonClient.send(Path.of(""), new String[]{"status"}, out, err)).isEqualTo(-1);
+    }
+
+    @Test
+    public void myTest20_gc_prunesUnreachableObjects() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        Files.writeString(Path.of("a.txt"), "1\n");
+        gitletCommand(new String[]{"add", "a.txt"}, "");
+        gitletCommand(new String[]{"commit", "one"}, "");
+        String one = Repository.resolveHead();
+        Files.writeString(Path.of("a.txt"), "2\n");
+        gitletCommand(new String[]{"add", "a.txt"}, "");
+        Files.writeString(Path.of("a.txt"), "3\n");
+        gitletCommand(new String[]{"add", "a.txt"}, "");
+        gitletCommand(new String[]{"commit", "two"}, "");
+        String two = Repository.resolveHead();
+        Files.writeString(Path.of("a.txt"), "4\n");
+        gitletCommand(new String[]{"add", "a.txt"}, "");
+        gitletCommand(new String[]{"commit", "three"}, "");
+        String three = Repository.resolveHead();
+        gitletCommand(new String[]{"reset", one}, "");
+        Files.writeString(Path.of("b.txt"), "staged\n");
+        gitletCommand(new String[]{"add", "b.txt"}, "");
+        String abandoned = new Blob("2\n".getBytes()).getUid(), staged = new Blob("staged\n".getBytes()).getUid();
+
+        // * marking finds the same objects however many threads share it; nothing is recent enough to prune
+        Path objects = Path.of(".gitlet/objects");
+        int serial = new GarbageCollector(objects, 1).run(List.of(one), GarbageCollector.FOREVER, Map.of()).reachable();
+        assertThat(new GarbageCollector(objects, 4).run(List.of(one), GarbageCollector.FOREVER, Map.of()).reachable())
+                .isEqualTo(serial);
+
+        // * by default, what was just written is kept, reachable or not
+        gitletCommand(new String[]{"gc"}, "");
+        assertThat(Dumpable.isStored(three)).isTrue();
+        assertThat(Dumpable.isStored(abandoned)).isTrue();
+        gitletCommand(new String[]{"gc", "--prune=soon"}, "Incorrect operands.\n");
+
+        gitletCommand(new String[]{"gc", "--prune=now"}, "");
+        for (String gone : List.of(two, three, abandoned)) {
+            assertWithMessage("unreachable object " + gone + " should be pruned").that(Dumpable.isStored(gone)).isFalse();
+        }
+        assertWithMessage("the staged blob is kept").that(Dumpable.isStored(staged)).isTrue();
+        assertThat(countLooseObjects()).isEqualTo(0);
+        assertThat(CommitGraph.open(objects).contains(three)).isFalse();
+        assertThat(CommitGraph.open(objects).contains(one)).isTrue();
+        gitletCommand(new String[]{"find", "three"}, "Found no commit with that message.\n");
+        gitletCommand(new String[]{"find", "one"}, one + "\n");
+        gitletCommand(new String[]{"commit", "four"}, "");
+        gitletCommand(new String[]{"find", "four"}, Repository.resolveHead() + "\n");
+        assertThat(Files.readString(Path.of("a.txt"))).isEqualTo("1\n");
+    }
+
+    @Test
+    public void myTest21_locks_serializeWriters() throws Exception {
+        gitletCommand(new String[]{"init"}, "");
+        Files.writeString(Path.of("a.txt"), "1\n");
+        gitletCommand(new String[]{"add", "a.txt"}, "");
+        gitletCommand(new String[]{"commit", "one"}, "");
+        String one = Repository.resolveHead();
+
+        // * refs are compare-and-swapped: of eight processes moving a branch from what they read, one wins
+        Path branch = Repository.BRC_DIR.resolve("racy");
+        Repository.updateRef(branch, "", one);
+        assertThrows(GitletException.class, () -> Repository.updateRef(branch, "", one));
+        // * each writer returns why it lost, or null if it won; anything else it throws fails get()
+        List<String> losses = new ArrayList<>();
+        try (ExecutorService writers = Executors.newFixedThreadPool(8)) {
+            List<Future<String>> outcomes = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                String value = sha1("writer " + i);
+                outcomes.add(writers.submit(() -> {
+                    try {
+                        Repository.updateRef(branch, one, value);
+                        return null;
+                    } catch (GitletException lost) {
+                        return lost.getMessage();
+                    }
+                }));
+            }
+            for (Future<String> outcome : outcomes) {
+                String lost = outcome.get();
+                if (lost != null) {
+                    losses.add(lost);
+                }
+            }
+        }
+        assertThat(losses).hasSize(7);
+        for (String lost : losses) {
+            assertThat(lost).contains("changed by another gitlet process");
+        }
+        assertThat(Files.exists(LockFile.lockPath(branch))).isFalse();
+
+        // * a lock held elsewhere holds writers off, but neither readers nor listings of refs
+        try (LockFile held = LockFile.tryAcquire(Repository.INDX_FILE)) {
+            assertThat(held).isNotNull();
+            assertThat(LockFile.tryAcquire(Repository.INDX_FILE)).isNull();
+            GitletException busy = assertThrows(GitletException.class, () -> LockFile.acquire(Repository.INDX_FILE, 20));
+            assertThat(busy.getMessage()).contains("Unable to lock index");
+            LockFile ref = LockFile.acquire(Repository.BRC_DIR.resolve("racy"));
+            try {
+                runGitletCommand(new String[]{"status"});
+                assertThat(getOutput()).doesNotContain(LockFile.SUFFIX);
+                runGitletCommand(new String[]{"log"});
+                assertThat(getOutput()).contains("one");
+            } finally {
+                ref.close();
+            }
+        }
+
+        // * an index saved by another process since this one loaded it is not overwritten
+        StagingArea first = StagingArea.load(Repository.INDX_FILE), second = StagingArea.load(Repository.INDX_FILE);
+        first.stagedFiles.put("x.txt", new StagingArea.fileInfo("x.txt", sha1("x"), 0, 0, 1));
+        first.save(Repository.INDX_FILE);
+        second.stagedFiles.put("y.txt", new StagingArea.fileInfo("y.txt", sha1("y"), 0, 0, 1));
+        assertThat(second.trySave(Repository.INDX_FILE)).isFalse();
+        assertThrows(GitletException.class, () -> second.save(Repository.INDX_FILE));
+        StagingArea reloaded = StagingArea.load(Repository.INDX_FILE);
+        assertThat(reloaded.stagedFiles.keySet()).containsExactly("x.txt");
+        LockFile lock = reloaded.lock(Repository.INDX_FILE);
+        try {
+            reloaded.stagedFiles.remove("x.txt");
+            reloaded.save(Repository.INDX_FILE); // * under the lock it already holds
+        } finally {
+            lock.close();
+        }
+        assertThat(StagingArea.load(Repository.INDX_FILE).stagedFiles).isEmpty();
+        assertThat(Files.exists(LockFile.lockPath(Repository.INDX_FILE))).isFalse();
+    }
+
+    @Test
+    public void myTest22_log_streamsWithLimits() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        List<String> made = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            Files.writeString(Path.of("f.txt"), i + "\n");
+            gitletCommand(new String[]{"add", "f.txt"}, "");
+            gitletCommand(new String[]{"commit", "c" + i}, "");
+            made.add(0, Repository.resolveHead());
+        }
+        gitletCommand(new String[]{"branch", "side"}, "");
+        Files.writeString(Path.of("m.txt"), "main\n");
+        gitletCommand(new String[]{"add", "m.txt"}, "");
+        gitletCommand(new String[]{"commit", "main only"}, "");
+        gitletCommand(new String[]{"switch", "side"}, "");
+        Files.writeString(Path.of("s.txt"), "side\n");
+        gitletCommand(new String[]{"add", "s.txt"}, "");
+        gitletCommand(new String[]{"commit", "side only"}, "");
+
+        runGitletCommand(new String[]{"log", "-n", "2"});
+        assertThat(getOutput()).matches("(?s)===\ncommit [0-9a-f]{40}\n[^\n]*\nside only\n\n===\ncommit " + made.get(0) + "\n[^\n]*\nc4\n\n");
+        runGitletCommand(new String[]{"log", "--oneline", "-n1"});
+        assertThat(getOutput()).endsWith(" side only\n");
+        gitletCommand(new String[]{"log", "--since=2999-01-01"}, "");
+        runGitletCommand(new String[]{"log", "--oneline", "--since=1h"});
+        assertThat(getOutput().lines().count()).isEqualTo(5); // * not the initial commit, made in 1970
+        gitletCommand(new String[]{"log", "-n", "two"}, "Incorrect operands.\n");
+        gitletCommand(new String[]{"log", "--since=yesterday"}, "Incorrect operands.\n");
+        gitletCommand(new String[]{"log", "--graph"}, "Incorrect operands.\n");
+
+        // * several heads come out merged, newest first, each commit once, like the sorted history
+        Repository repo = Repository.reinstantiate();
+        Commit[] heads = {repo.getBranchCommit("side"), repo.getBranchCommit(repo.defaultBranch)};
+        List<Commit> walked = new ArrayList<>();
+        new CommitWalk(Arrays.asList(heads), repo.objectCache).forEachRemaining(walked::add);
+        assertThat(walked).hasSize(7);
+        assertThat(walked.stream().map(Commit::getUid).distinct().count()).isEqualTo(7);
+        assertThat(walked.stream().map(Commit::getTime).toList()).isInOrder(java.util.Comparator.reverseOrder());
+        assertThat(walked.get(6).isInitialCommit()).isTrue();
+        assertThat(walked.subList(2, 6).stream().map(Commit::getUid).toList()).isEqualTo(made);
+    }
+
+    @Test
+    public void myTest23_trace_recordsSpansAndCounters() throws Exception {
+        gitletCommand(new String[]{"init"}, "");
+        Files.writeString(Path.of("a.txt"), "a\n");
+        Files.writeString(Path.of("b.txt"), "b\n");
+        Path lines = Files.createTempFile("gitlet-trace", ".jsonl"), chrome = Files.createTempFile("gitlet-trace", ".json");
+        try {
+            ObjectCache cache = new ObjectCache();
+            try (Trace trace = Trace.to(lines, cache, "script")) {
+                Main.runCommand(new String[]{"add", "a.txt", "b.txt"}, cache);
+                Main.runCommand(new String[]{"commit", "traced"}, cache);
+                Main.runCommand(new String[]{"log"}, cache);
+                assertThat(cache.trace()).isSameInstanceAs(trace);
+            }
+            assertThat(cache.trace()).isNull();
+            getOutput();
+            List<String> events = Files.readAllLines(lines);
+            for (String event : events) {
+                assertThat(event).matches("\\{\"name\":\"[^\"]+\",\"cat\":\"\\w+\",\"ph\":\"[XC]\",\"ts\":\\d+,.*\\}");
+            }
+            List<String> names = events.stream().map(e -> e.substring(9, e.indexOf('"', 9))).toList();
+            assertThat(names).containsAtLeast("file.store", "object.write", "sha1", "walk.log", "gitlet script", "counters");
+            assertThat(names.stream().filter(n -> n.equals("file.store")).count()).isEqualTo(2);
+            String counters = events.get(events.size() - 1);
+            assertThat(counters).contains("\"files read\":2,");
+            assertThat(counters).contains("\"objects written\":2,"); // * the commit and its tree; blobs are files stored
+            assertThat(counters).contains("\"bytes hashed\":");
+
+            // * in Chrome's format, the file opens an array that each command's events are appended to
+            for (int i = 0; i < 2; i++) {
+                Trace trace = Trace.to(chrome, cache, "status");
+                try {
+                    Main.runCommand(new String[]{"status"}, cache);
+                } finally {
+                    trace.close();
+                }
+            }
+            getOutput();
+            List<String> array = Files.readAllLines(chrome);
+            assertThat(array.get(0)).isEqualTo("[");
+            assertThat(array.stream().filter(e -> e.startsWith("{\"name\":\"gitlet status\"")).count()).isEqualTo(2);
+            assertThat(array.subList(1, array.size()).stream().allMatch(e -> e.startsWith("{") && e.endsWith("},"))).isTrue();
+        } finally {
+            Files.deleteIfExists(lines);
+            Files.deleteIfExists(chrome);
+        }
+    }
+
+    @Test
+    public void myTest24_sha1_streamsWithoutChangingUids() throws Exception {
+        // * the old path: a String of the fields, encoded whole, hashed by a fresh digest
+        java.security.MessageDigest md = java.security.MessageDigest.getInstance("SHA-1");
+        for (String s : new String[]{"", "ascii", "caf\u00e9 \u4e2d\u6587", "emoji \ud83d\ude00", "lone \ud83d!", "\ude00 low"}) {
+            String expected = toHex(md.digest(s.getBytes(java.nio.charset.StandardCharsets.UTF_8)));
+            assertWithMessage(s).that(new Sha1().update(s).hex()).isEqualTo(expected);
+        }
+        StringBuilder longText = new StringBuilder(); // * past the hasher's buffer, with multi-byte characters at its edge
+        for (int i = 0; i < 5000; i++) {
+            longText.append("x\u00e9\u4e2d");
+        }
+        Sha1 reused = new Sha1();
+        assertThat(reused.update(longText.toString()).hex()).isEqualTo(toHex(md.digest(longText.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8))));
+        assertThat(reused.update("ab").update('\0').update(new byte[]{1, 2}).hex()).isEqualTo(sha1("ab", "\0", new byte[]{1, 2}));
+
+        Map<String, String> files = new java.util.LinkedHashMap<>();
+        for (int i = 3000; i > 0; i--) {
+            files.put("dir" + (i % 7) + "/f\u00e9" + i + ".txt", sha1("blob " + i));
+        }
+        java.time.Instant now = java.time.Instant.now();
+        String[] parents = {sha1("parent")};
+        Commit unsorted = new Commit("message \u2713", parents, now, now, false, files);
+        Commit sorted = new Commit("message \u2713", parents, now, now, false, new java.util.TreeMap<>(files));
+        StringBuilder sb = new StringBuilder("commit\0message \u2713\0" + now + "\0" + now + "\0" + parents[0] + "\0");
+        files.keySet().stream().sorted().forEach(key -> sb.append(key).append(":").append(files.get(key)).append("\0"));
+        assertThat(unsorted.getUid()).isEqualTo(sha1(sb.toString()));
+        assertThat(sorted.getUid()).isEqualTo(unsorted.getUid());
+
+        Tree tree = new Tree(Map.of("a.txt", sha1("a"), "d/", sha1("d")));
+        assertThat(tree.getUid()).isEqualTo(sha1("tree\0a.txt:" + sha1("a") + "\0d/:" + sha1("d") + "\0"));
+        Blob blob = new Blob("contents \u00e9");
+        byte[] serialized = serialize(blob);
+        assertThat(blob.getUid()).isEqualTo(sha1("blob", "\0", serialize(serialized.length), "\0", serialized));
+    }
+
+    @Test
+    public void myTest25_workTree_walksSubdirectoriesAndIgnores() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        for (String file : new String[]{"a.txt", "a.log", "keep.log", "d/x.txt", "d/e/y.txt", "d/e/y.log",
+                "build/out.class", "d/build/gen.txt", "docs/build/index.txt", "src/deep/er/z.tmp", "src/deep/er/z.txt"}) {
+            Files.createDirectories(Path.of(file).toAbsolutePath().getParent());
+            Files.writeString(Path.of(file), file + "\n");
+        }
+        Files.writeString(Path.of(WorkTree.IGNORE_FILE), "# build output\n*.log\n!keep.log\n/build/\nd/build/  \n**/er/*.tmp\n");
+        Files.writeString(Path.of("d", WorkTree.IGNORE_FILE), "e/\n");
+        List<String> expected = List.of(".gitletignore", "a.txt", "d/.gitletignore", "d/x.txt", "docs/build/index.txt",
+                "keep.log", "src/deep/er/z.txt");
+        assertThat(new WorkTree(Path.of("")).files()).isEqualTo(expected);
+        WorkTree tree = new WorkTree(Path.of(""), 4);
+        assertThat(tree.isIgnored("d/e/anything.txt", false)).isTrue(); // * below an ignored directory
+        assertThat(tree.isIgnored("build", true)).isTrue();
+        assertThat(tree.isIgnored("docs/build", true)).isFalse(); // * anchored to the top
+        assertThat(tree.isIgnored("keep.log", false)).isFalse();
+        assertThat(tree.files("d")).containsExactly("d/.gitletignore", "d/x.txt").inOrder();
+        assertThat(tree.files("build")).isEmpty();
+
+        // * enough directories per level for a pool, which must find exactly what one thread does
+        for (int i = 0; i < 40; i++) {
+            Path dir = Path.of("wide", "w" + i, "sub");
+            Files.createDirectories(dir);
+            Files.writeString(dir.resolve("f.txt"), "f" + i);
+            Files.writeString(dir.resolve("f.log"), "f" + i);
+        }
+        List<String> serial = new WorkTree(Path.of(""), 1).files();
+        assertThat(new WorkTree(Path.of(""), 8).files()).isEqualTo(serial);
+        assertThat(serial.stream().filter(f -> f.startsWith("wide/")).count()).isEqualTo(40);
+        try (var wide = Files.walk(Path.of("wide"))) {
+            for (Path path : wide.sorted(java.util.Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+
+        // * untracked files are listed at any depth, never directories, and never ignored files
+        runGitletCommand(new String[]{"status"});
+        String status = getOutput();
+        assertThat(status.substring(status.indexOf("=== Untracked Files ===")).trim().lines().skip(1).toList()).isEqualTo(expected);
+
+        // * switch and rm with tracked files in subdirectories
+        runGitletCommand(new String[]{"add", ".gitletignore", "a.txt", "keep.log", "d", "src"});
+        runGitletCommand(new String[]{"commit", "nested"});
+        runGitletCommand(new String[]{"branch", "side"});
+        runGitletCommand(new String[]{"add", "docs"});
+        runGitletCommand(new String[]{"commit", "docs"});
+        getOutput();
+        gitletCommand(new String[]{"switch", "side"}, "");
+        assertFalse(Files.exists(Path.of("docs")));
+        assertTrue(Files.exists(Path.of("build/out.class"))); // * ignored files stay
+        gitletCommand(new String[]{"switch", "main"}, "");
+        assertTrue(Files.exists(Path.of("docs/build/index.txt")));
+        gitletCommand(new String[]{"rm", "d/x.txt"}, "");
+        assertFalse(Files.exists(Path.of("d/x.txt")));
+        Files.delete(Path.of("src/deep/er/z.tmp"));
+        gitletCommand(new String[]{"rm", "src/deep/er/z.txt"}, "");
+        assertFalse(Files.exists(Path.of("src"))); // * directories left empty go too
+        gitletCommand(new String[]{"commit", "no x, no z"}, "");
+    }
+
+    @Test
+    public void myTest26_remotes_fetchPushAndPullOnlyWhatIsMissing() throws IOException {
+        // * the remote: two commits, then moved aside for a new repository with none
+        gitletCommand(new String[]{"init"}, "");
+        Files.writeString(Path.of("a.txt"), "a\n");
+        gitletCommand(new String[]{"add", "a.txt"}, "");
+        gitletCommand(new String[]{"commit", "one"}, "");
+        Files.createDirectories(Path.of("d"));
+        Files.writeString(Path.of("d", "b.txt"), "b\n");
+        gitletCommand(new String[]{"add", "d"}, "");
+        gitletCommand(new String[]{"commit", "two"}, "");
+        Files.createDirectories(Path.of("other"));
+        Files.move(Path.of(".gitlet"), Path.of("other", ".gitlet"));
+        Path remoteMain = Path.of("other", ".gitlet", "refs", "heads", "main");
+        String two = Files.readString(remoteMain).trim();
+        Files.delete(Path.of("a.txt"));
+        Files.delete(Path.of("d", "b.txt"));
+        gitletCommand(new String[]{"init"}, "");
+
+        gitletCommand(new String[]{"add-remote", "R1", "other/.gitlet"}, "");
+        gitletCommand(new String[]{"add-remote", "R1", "elsewhere/.gitlet"}, "A remote with that name already exists.");
+        gitletCommand(new String[]{"add-remote", "R2", "nowhere/.gitlet"}, "");
+        gitletCommand(new String[]{"fetch", "R2", "main"}, "Remote directory not found.");
+        gitletCommand(new String[]{"fetch", "R1", "side"}, "That remote does not have that branch.");
+        gitletCommand(new String[]{"fetch", "R1", "main"}, "");
+        assertThat(Files.readString(Path.of(".gitlet", "refs", "heads", "R1", "main")).trim()).isEqualTo(two);
+        assertTrue(Dumpable.isStored(two));
+        // * nothing is missing any more: no commit is walked past the shared tip, no object sent
+        Transfer.Stats again = new Transfer(Path.of("other", ".gitlet", "objects"), Repository.OBJ_DIR)
+                .run(List.of(two), Transfer.tips(Repository.GITLET_DIR));
+        assertThat(again.commits()).isEmpty();
+        assertThat(again.objects()).isEqualTo(0);
+
+        // * diverged: the remote's head is not in the local history
+        Files.writeString(Path.of("c.txt"), "c\n");
+        gitletCommand(new String[]{"add", "c.txt"}, "");
+        gitletCommand(new String[]{"commit", "three"}, "");
+        gitletCommand(new String[]{"push", "R1", "main"}, "Please pull down remote changes before pushing.");
+        assertThat(Files.readString(remoteMain).trim()).isEqualTo(two);
+        gitletCommand(new String[]{"pull", "R1", "main"}, "");
+        assertThat(Files.readString(Path.of("d", "b.txt"))).isEqualTo("b\n");
+        String merged = Files.readString(Path.of(".gitlet", "refs", "heads", "main")).trim();
+
+        // * what push sends is only what the remote lacks: the merge commit, three, and their files;
+        // * counted into a scratch copy of the remote's store, so that the push below still sends them
+        Path scratch = Path.of("scratch");
+        try (Stream<Path> files = Files.walk(Path.of("other", ".gitlet", "objects"))) {
+            for (Path file : files.toList()) {
+                Files.copy(file, scratch.resolve(Path.of("other", ".gitlet", "objects").relativize(file).toString()));
+            }
+        }
+        Transfer.Stats pushed = new Transfer(Repository.OBJ_DIR, scratch)
+                .run(List.of(merged), Transfer.tips(Path.of("other", ".gitlet")));
+        assertThat(pushed.commits()).hasSize(2);
+        assertThat(pushed.commits().get(0)).isEqualTo(merged);
+        gitletCommand(new String[]{"push", "R1", "main"}, "");
+        assertThat(Files.readString(remoteMain).trim()).isEqualTo(merged);
+        gitletCommand(new String[]{"push", "R1", "feature"}, "");
+        assertThat(Files.readString(remoteMain.resolveSibling("feature")).trim()).isEqualTo(merged);
+
+        // * a push interrupted after its pack landed: the next push sends nothing, yet indexes four
+        Files.writeString(Path.of("e.txt"), "e\n");
+        gitletCommand(new String[]{"add", "e.txt"}, "");
+        gitletCommand(new String[]{"commit", "four"}, "");
+        String four = Files.readString(Path.of(".gitlet", "refs", "heads", "main")).trim();
+        new Transfer(Repository.OBJ_DIR, Path.of("other", ".gitlet", "objects"))
+                .run(List.of(four), Transfer.tips(Path.of("other", ".gitlet")));
+        gitletCommand(new String[]{"push", "R1", "main"}, "");
+        assertThat(Files.readString(remoteMain).trim()).isEqualTo(four);
+
+        // * in the remote, the pushed commits are stored, and global-log and find list them
+        String three = Commit.getByUid(merged).getParentCommit(0).getUid();
+        Files.move(Path.of(".gitlet"), Path.of("local.gitlet"));
+        Files.move(Path.of("other", ".gitlet"), Path.of(".gitlet"));
+        try {
+            assertTrue(Dumpable.isStored(merged));
+            assertTrue(Dumpable.isStored(three));
+            assertTrue(Dumpable.isStored(four));
+            runGitletCommand(new String[]{"find", "three"});
+            assertThat(getOutput().trim()).isEqualTo(three);
+            runGitletCommand(new String[]{"find", "four"});
+            assertThat(getOutput().trim()).isEqualTo(four);
+            runGitletCommand(new String[]{"global-log"});
+            String log = getOutput();
+            assertThat(log).contains("commit " + merged);
+            assertThat(log).contains("commit " + three);
+            assertThat(log).contains("commit " + four);
+        } finally {
+            Files.move(Path.of(".gitlet"), Path.of("other", ".gitlet"));
+            Files.move(Path.of("local.gitlet"), Path.of(".gitlet"));
+        }
+
+        gitletCommand(new String[]{"rm-remote", "R1"}, "");
+        gitletCommand(new String[]{"rm-remote", "R1"}, "A remote with that name does not exist.");
+        gitletCommand(new String[]{"fetch", "R1", "main"}, "A remote with that name does not exist.");
+    }
+
+    @Test
+    public void myTest27_codec_readsObjectsSerializedByEarlierVersions() throws IOException {
+        gitletCommand(new String[]{"init"}, "");
+        // * as gitlet stored objects before the codec: Java serialization, not deflated
+        Blob blob = new Blob("legacy contents\n");
+        Commit commit = new Commit("legacy commit", new String[]{Commit.INITIAL_COMMIT_UID}, Instant.ofEpochSecond(1_700_000_000),
+                Instant.ofEpochSecond(1_700_000_000), false, Map.of("a.txt", blob.getUid()));
+        for (Dumpable obj : List.of(blob, commit)) {
+            byte[] serialized = serialize(obj);
+            assertThat(serialized[0] & 0xff).isEqualTo(0xac);
+            assertThat(serialized[1] & 0xff).isEqualTo(0xed);
+            Files.write(Dumpable.persistPath(obj.getUid()), serialized);
+        }
+
+        Blob readBlob = Blob.getByUid(blob.getUid(), new ObjectCache());
+        assertThat(readBlob.getUid()).isEqualTo(blob.getUid());
+        assertThat(readBlob.getContents()).isEqualTo(blob.getContents());
+        Commit readCommit = Commit.getByUid(commit.getUid(), new ObjectCache());
+        assertThat(readCommit.getUid()).isEqualTo(commit.getUid());
+        assertThat(readCommit.message).isEqualTo("legacy commit");
+        assertThat(readCommit.parents).asList().containsExactly(Commit.INITIAL_COMMIT_UID);
+        assertThat(readCommit.getFileBlobs()).containsExactly("a.txt", blob.getUid());
+    }
+
+    @Test
+    public void myTest28_codec_roundTripsEncodedObjects() {
+        // * a merge commit with a message outside ASCII, flat and with a root tree
+        Map<String, String> files = new TreeMap<>(Map.of("a.txt", sha1("a"), "dir/\u00e9t\u00e9.txt", sha1("b")));
+        String[] parents = {sha1("first parent"), sha1("merged parent")};
+        Instant when = Instant.ofEpochSecond(1_700_000_000, 123_456_789);
+        String message = "Merged caf\u00e9 into \u4e3b\u5e72 \ud83d\ude00";
+        Commit flat = new Commit(message, parents, when, when.plusSeconds(1), false, files);
+        Commit rooted = new Commit(message, parents, when, when.plusSeconds(1), false, sha1("tree"));
+        for (Commit commit : List.of(flat, rooted)) {
+            byte[] encoded = ObjectCodec.encode(commit);
+            assertThat(ObjectCodec.isJavaSerialization(encoded)).isFalse();
+            Commit decoded = ObjectCodec.decode(encoded, Commit.class);
+            assertThat(decoded.getUid()).isEqualTo(commit.getUid());
+            assertThat(decoded.message).isEqualTo(message);
+            assertThat(decoded.parents).asList().containsExactlyElementsIn(parents).inOrder();
+            assertThat(decoded.timestamp).isEqualTo(when);
+            assertThat(decoded.authorTimestamp).isEqualTo(when.plusSeconds(1));
+            assertThat(decoded.getTree()).isEqualTo(commit.getTree());
+        }
+        assertThat(ObjectCodec.decode(ObjectCodec.encode(flat), Commit.class).getFileBlobs()).isEqualTo(files);
+
+        Tree tree = new Tree(files);
+        assertThat(ObjectCodec.decode(ObjectCodec.encode(tree), Tree.class).entries()).isEqualTo(tree.entries());
+        Blob blob = new Blob(new byte[]{0, (byte) 0xac, (byte) 0xed, 'x'});
+        Blob decodedBlob = ObjectCodec.decode(ObjectCodec.encode(blob), Blob.class);
+        assertThat(decodedBlob.getContents()).isEqualTo(blob.getContents());
+        assertThat(decodedBlob.getUid()).isEqualTo(blob.getUid());
+        // * an object of one kind is not taken for another
+        assertThrows(IllegalArgumentException.class, () -> ObjectCodec.decode(ObjectCodec.encode(tree), Commit.class));
+    }
+
+    private static long countLooseObjects() {
+        return Dumpable.listLooseObjects(Path.of(".gitlet/objects")).size();
+    }
+
     private static class IntrospectRepository extends Repository {
         public IntrospectRepository() {
             super();
@@ -530,7 +1642,7 @@ public class GitletAdditionalTests {
             // * this method should read the HEAD file and restore the repository to that state
             IntrospectRepository repo;
             if (Files.exists(INDX_FILE)) {
-                repo = new IntrospectRepository(readObject(INDX_FILE, StagingArea.class));
+                repo = new IntrospectRepository(StagingArea.load(INDX_FILE));
             } else {
                 repo = new IntrospectRepository();
             }
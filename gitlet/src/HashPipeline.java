@@ -0,0 +1,72 @@
+package gitlet;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/** Computes the blob UIDs of many working files concurrently.
+ *  <p>
+ *  Commands such as {@code add} of a directory and {@code status} need the UIDs of
+ *  a whole set of files before they can do anything with them; reading and SHA-1
+ *  hashing each file is independent work, so it is spread over a pool of threads,
+ *  one per core by default. {@link Blob#hashFile} and {@link Blob#store} are safe to
+ *  run concurrently: objects are content-addressed and moved into place atomically.
+ *  Stored files look for what is already stored in the packs of the {@link ObjectCache} it is
+ *  given, if any, and each file is a span of its {@link Trace}, if it is traced.
+ */
+final class HashPipeline {
+    /** Below this many files a pool costs more than it saves. */
+    private static final int MIN_PARALLEL = 4;
+
+    private final int parallelism;
+    private final ObjectCache cache;
+
+    HashPipeline() {
+        this((ObjectCache) null);
+    }
+
+    /** A pipeline of one thread per core working through CACHE, which may be null. */
+    HashPipeline(ObjectCache cache) {
+        this(Runtime.getRuntime().availableProcessors(), cache);
+    }
+
+    HashPipeline(int parallelism) {
+        this(parallelism, null);
+    }
+
+    HashPipeline(int parallelism, ObjectCache cache) {
+        this.parallelism = Parallel.check(parallelism);
+        this.cache = cache;
+    }
+
+    /** Returns the blob UIDs of FILES, in the same order, without storing anything. */
+    List<String> hash(List<Path> files) {
+        return run(files, false);
+    }
+
+    /** Stores FILES as blobs and returns their UIDs, in the same order. */
+    List<String> store(List<Path> files) {
+        return run(files, true);
+    }
+
+    private List<String> run(List<Path> files, boolean store) {
+        List<Callable<String>> tasks = new ArrayList<>(files.size());
+        for (Path file : files) {
+            tasks.add(() -> one(file, store));
+        }
+        try (Parallel parallel = new Parallel(parallelism, MIN_PARALLEL, "hash files")) {
+            return parallel.run(tasks);
+        }
+    }
+
+    private String one(Path file, boolean store) {
+        Trace trace = Trace.of(cache);
+        long start = trace == null ? 0 : System.nanoTime();
+        String uid = store ? Blob.store(file, cache) : Blob.hashFile(file, cache);
+        if (trace != null) {
+            trace.fileRead(start, file, file.toFile().length(), store);
+        }
+        return uid;
+    }
+}
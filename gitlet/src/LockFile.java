@@ -0,0 +1,97 @@
+package gitlet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static gitlet.Utils.*;
+
+/** An exclusive claim on a file of the repository, held as {@code FILE.lock}, as Git locks its refs and index.
+ *  <p>
+ *  Two gitlet processes can run at once; each of them reads a ref or the index, decides, and
+ *  writes it back, and without a lock the second write silently undoes the first. A process
+ *  that means to write FILE first creates {@code FILE.lock}, which the file system lets only
+ *  one process do; it then checks that FILE still holds what it read (compare-and-swap: see
+ *  {@link Repository#updateRef} and {@link StagingArea#lock}), writes it with
+ *  {@link Utils#writeAtomically}, and deletes the lock. Readers never take locks: every write
+ *  replaces a file by renaming a complete one over it, so a reader sees the old or the new one.
+ *  <p>
+ *  A process waiting for a lock retries for up to {@value #TIMEOUT_MS} ms, then gives up.
+ *  A lock left by a process that was killed has to be deleted by hand, as in Git.
+ */
+final class LockFile implements Closeable {
+    /** How long {@link #acquire} waits for another process to release the lock. */
+    static final long TIMEOUT_MS = 2000;
+    static final String SUFFIX = ".lock";
+
+    private final Path lock;
+    private boolean released;
+
+    private LockFile(Path lock) {
+        this.lock = lock;
+    }
+
+    /** Locks FILE, waiting for up to {@link #TIMEOUT_MS} ms if another process holds it. */
+    static LockFile acquire(Path file) {
+        return acquire(file, TIMEOUT_MS);
+    }
+
+    /** Locks FILE, waiting for up to TIMEOUTMS ms if another process holds it. */
+    static LockFile acquire(Path file, long timeoutMs) {
+        LockFile held = tryAcquire(file);
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (long backoff = 1; held == null; backoff = Math.min(backoff * 2, 50)) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw error("Unable to lock %s: another gitlet process seems to be running in this repository. "
+                        + "If none is, remove %s and try again.", file.getFileName(), lockPath(file));
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for " + lockPath(file), e);
+            }
+            held = tryAcquire(file);
+        }
+        return held;
+    }
+
+    /** Locks FILE if no other process holds it; returns null if one does. */
+    static LockFile tryAcquire(Path file) {
+        Path lock = lockPath(file);
+        try {
+            Files.createFile(lock); // * atomic: exactly one creator succeeds
+            return new LockFile(lock);
+        } catch (FileAlreadyExistsException e) {
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create lock " + lock + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** The lock file of FILE. */
+    static Path lockPath(Path file) {
+        return file.resolveSibling(file.getFileName() + SUFFIX);
+    }
+
+    /** Whether this lock has not been released yet. */
+    boolean isHeld() {
+        return !released;
+    }
+
+    /** Releases the lock; releasing it again does nothing. */
+    @Override
+    public void close() {
+        if (released) {
+            return;
+        }
+        released = true;
+        try {
+            Files.deleteIfExists(lock);
+        } catch (IOException e) {
+            Logging.warn.println("Failed to release lock " + lock + ": " + e.getMessage());
+        }
+    }
+}
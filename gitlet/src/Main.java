@@ -4,7 +4,10 @@ package gitlet;
 // import org.apache.commons.lang3.NotImplementedException;  // * actually, don't use this in Java 11+ and above when there is no actual need to do so
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.Scanner;
 
@@ -27,7 +30,8 @@ public class Main {
     ///
     /// `COMMAND` is one of the following:\
     /// `init` `add` `commit` `rm` `log` `global-log` `find` `status`
-    /// `branch` `checkout` `reset` `merge`.
+    /// `branch` `checkout` `reset` `merge` `diff` `gc` `count-objects` `daemon`
+    /// `add-remote` `rm-remote` `fetch` `push` `pull`.
     ///
     /// Options (only one can be supplied at a time):
     /// - `-h` `--help`        - print help message.
@@ -62,11 +66,64 @@ public class Main {
             printHelp();
         } else {
             // handle commands
-            cmd(repo, firstArg, Arrays.copyOfRange(args, 1, args.length));
+            repo = cmd(repo, firstArg, Arrays.copyOfRange(args, 1, args.length));
+        }
+        if (repo != null && System.getenv(ObjectCache.STATS_ENV) != null) {
+            Logging.dbg.println(repo.objectCache.toString());
+        }
+    }
+
+    /** Runs the one command ARGS, as {@link #main} does, looking objects up through CACHE.
+     *  This is how the {@link Daemon} runs the commands its clients send; there is no interactive mode. */
+    static void runCommand(String[] args, ObjectCache cache) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Please enter a command.");
+            return;
+        }
+        if (args[0].equals("-h") || args[0].equals("--help")) {
+            printHelp();
+            return;
+        }
+        Repository repo = args[0].equals("init") ? new Repository() : Repository.reinstantiate(cache);
+        repo = cmd(repo, args[0], Arrays.copyOfRange(args, 1, args.length));
+        if (repo != null && System.getenv(ObjectCache.STATS_ENV) != null) {
+            Logging.dbg.println(repo.objectCache.toString());
         }
     }
 
+    /** Runs COMMAND on REPO. Commands that change the index hold its lock throughout, so that a
+     *  second process changing it at the same time fails before doing anything, rather than having
+     *  one of their changes lost; the others read without any lock. If {@value Trace#ENV} is set,
+     *  the command is traced (see {@link Trace}). */
     private static Repository cmd(Repository repo, String command, String[] args) throws IOException {
+        Trace trace = repo != null ? Trace.start(repo.objectCache, command, args) : null;
+        try {
+            LockFile lock = repo != null && writesIndex(command) ? repo.lockIndex() : null;
+            try {
+                return dispatch(repo, command, args);
+            } finally {
+                if (lock != null) {
+                    lock.close();
+                }
+            }
+        } finally {
+            if (trace != null) {
+                trace.close();
+            }
+        }
+    }
+
+    /** Whether COMMAND may write the index; {@code status} only refreshes its stat cache, if it can.
+     *  {@code gc} and {@code fetch} hold the lock too, since they rewrite or append to the commit
+     *  index and commit graph, which {@code commit} appends to under it. */
+    private static boolean writesIndex(String command) {
+        return switch (command) {
+            case "add", "rm", "commit", "restore", "reset", "switch", "checkout", "merge", "fetch", "pull", "gc" -> true;
+            default -> false;
+        };
+    }
+
+    private static Repository dispatch(Repository repo, String command, String[] args) throws IOException {
         UnsupportedOperationException todo = new UnsupportedOperationException(String.format("The '%s' command is not yet implemented.",command));
         switch(command) {
             case "init" -> {// * A Gitlet system is considered "initialized" in a particular location if it has a `.gitlet` directory there.
@@ -106,9 +163,8 @@ public class Main {
                         return repo;
                     }
                 }
-                for (String filename : args) {
-                    repo.stageFile(filename);
-                }
+                // * all at once: hashed in parallel, and the index is written a single time
+                repo.stageFiles(Arrays.stream(args).filter(filename -> !filename.isEmpty()).toList());
             }
             case "commit" -> {
                 String message = args[0]; // other arguments are ignored
@@ -169,12 +225,36 @@ public class Main {
             case "log" -> {
                 // Commit[] heads = (Commit[]) Arrays.stream(repo.getBranches()).map(branch -> Repository.resolveHead(Repository.BRC_DIR.resolve(branch))).toArray();
                 // Commit[] heads = Arrays.stream(repo.getBranches()).map(repo::getBranchCommit).toArray(Commit[]::new);
-                repo.log();
+                boolean oneline = false;
+                int limit = Integer.MAX_VALUE;
+                Instant since = null;
+                for (int i = 0; i < args.length; i++) {
+                    boolean valid = true;
+                    if (args[i].equals("--oneline")) {
+                        oneline = true;
+                    } else if ((args[i].equals("-n") && i + 1 < args.length) || args[i].matches("-n\\d+")) {
+                        String count = args[i].equals("-n") ? args[++i] : args[i].substring(2);
+                        valid = count.matches("\\d{1,9}");
+                        limit = valid ? Integer.parseInt(count) : limit;
+                    } else if (args[i].startsWith("--since=")) {
+                        since = CommitWalk.parseSince(args[i].substring("--since=".length()), Instant.now());
+                        valid = since != null;
+                    } else {
+                        valid = false;
+                    }
+                    if (!valid) {
+                        System.out.println("Incorrect operands.");
+                        return repo;
+                    }
+                }
+                if (oneline) {
+                    repo.logOneline(limit, since);
+                } else {
+                    repo.log(limit, since);
+                }
             }
             case "global-log" -> { // like log but shows ALL commits in the repository, not just the current branch, not even all REACHABLE commits.
-                // Commit[] heads = Arrays.stream(repo.getBranches()).map(repo::getBranchCommit).toArray(Commit[]::new);
-                Commit[] commits = Arrays.stream(repo.allCommitUids.toArray(new String[0])).map(Commit::getByUid).toArray(Commit[]::new);
-                repo.log(repo.getCommitHistory(commits));
+                repo.globalLog();
             }
             case "find" -> {
                 // Prints out the ids of all commits that have the given commit message, one per line.
@@ -183,30 +263,18 @@ public class Main {
                 // put the operand in quotation marks, as for the {@code commit} command.
                 // Hint: the hint for this command is the same as the one for {@code global-log}.
                 // Failure cases: If no such commit exists, print the error message {@code Found no commit with that message.}
-                Commit[] commits = Arrays.stream(repo.allCommitUids.toArray(new String[0])).map(Commit::getByUid).toArray(Commit[]::new);
                 if (args.length == 0) {
                     System.out.println("Please enter a commit message to find.");
                     return repo;
                 }
                 String message = String.join(" ", args);
                 Logging.dbg.println("message = " + message);
-                // filter the commits by message
-                if (message .equals("initial commit")){
-                    Commit commit = Commit.initialCommit();
-                    Logging.dbg.println(commit.message + " (" + commit.getUid() + ")");
-                    System.out.println(commit.getUid());
-                } else {
-                    Commit[] foundCommits = Arrays.stream(commits)
-                            .filter(commit -> commit.message.equals(message))
-                            .toArray(Commit[]::new);
-                    if (foundCommits.length == 0) {
-                        System.out.println("Found no commit with that message.");
-                    } else {
-                        for (Commit commit : foundCommits) {
-                            Logging.dbg.println(commit.message + " (" + commit.getUid() + ")");
-                            System.out.println(commit.getUid());
-                        }
-                    }
+                List<String> found = repo.find(message); // * through the word index of the commit index
+                if (found.isEmpty()) {
+                    System.out.println("Found no commit with that message.");
+                }
+                for (String uid : found) {
+                    System.out.println(uid);
                 }
             }
             case "status" -> {
@@ -265,7 +333,7 @@ public class Main {
                     return repo;
                 }
                 repo.switchBranch(args[0]);
-                repo = Repository.reinstantiate();
+                repo = Repository.reinstantiate(repo.objectCache); // * the objects are the same
             }
             case "rm-branch" -> {
                 if (args.length == 0 || args[0].isBlank()) {
@@ -311,6 +379,65 @@ public class Main {
                 }
                 repo.mergeBranch(args[0]);
             }
+            case "diff" -> {
+                boolean cached = args.length > 0 && (args[0].equals("--cached") || args[0].equals("--staged"));
+                String[] revisions = cached ? Arrays.copyOfRange(args, 1, args.length) : args;
+                if (revisions.length > 2 || (cached && revisions.length > 1)) {
+                    System.out.println("Incorrect operands.");
+                    return repo;
+                }
+                repo.diff(cached, revisions);
+            }
+            case "daemon" -> {
+                if (args.length == 1 && args[0].equals("stop")) {
+                    if (DaemonClient.send(Path.of(""), new String[]{"daemon", "stop"}, System.out, System.err) < 0) {
+                        System.out.println("No daemon is serving this repository.");
+                    }
+                } else if (args.length > 0) {
+                    System.out.println("Incorrect operands.");
+                } else if (repo == null) {
+                    System.out.println("Not in an initialized Gitlet directory.");
+                } else {
+                    new Daemon(Daemon.SOCKET, repo.objectCache).serve(); // * until stopped
+                }
+            }
+            case "gc" -> {
+                long grace = GarbageCollector.DEFAULT_GRACE_MILLIS;
+                if (args.length == 1 && args[0].startsWith("--prune=")) {
+                    grace = GarbageCollector.parseGrace(args[0].substring("--prune=".length()));
+                }
+                if (args.length > 1 || grace < 0 || (args.length == 1 && !args[0].startsWith("--prune="))) {
+                    System.out.println("Incorrect operands.");
+                    return repo;
+                }
+                repo.gc(grace);
+            }
+            case "count-objects" -> repo.countObjects();
+            case "add-remote" -> {
+                if (args.length != 2) {
+                    System.out.println("Incorrect operands.");
+                    return repo;
+                }
+                repo.addRemote(args[0], args[1]);
+            }
+            case "rm-remote" -> {
+                if (args.length != 1) {
+                    System.out.println("Incorrect operands.");
+                    return repo;
+                }
+                repo.removeRemote(args[0]);
+            }
+            case "fetch", "push", "pull" -> {
+                if (args.length != 2) {
+                    System.out.println("Incorrect operands.");
+                    return repo;
+                }
+                switch (command) {
+                    case "fetch" -> repo.fetch(args[0], args[1]);
+                    case "push" -> repo.push(args[0], args[1]);
+                    default -> repo.pull(args[0], args[1]);
+                }
+            }
             default ->
                     System.out.println("No command with that name exists."); // * Per spec, this is the only output on System.out
             // throw new IllegalStateException("Unexpected value: " + firstArg);
@@ -323,7 +450,7 @@ public class Main {
         while (true) {
             // use commands interactively
             Scanner myObj = new Scanner(System.in);  // Create a Scanner object
-            System.out.println("Supply a command or exit: [init, add, commit, rm, log, global-log, find, status, branch, checkout, reset, merge]");
+            System.out.println("Supply a command or exit: [init, add, commit, rm, log, global-log, find, status, branch, checkout, reset, merge, diff, gc, count-objects, add-remote, rm-remote, fetch, push, pull]");
             if (myObj.hasNextLine()) {
                 String input = myObj.nextLine();
                 String[] inputArgs = input.split(" ");
@@ -356,10 +483,11 @@ public class Main {
         System.out.println("Usage: java gitlet.Main <COMMAND> [<OPERAND1> <OPERAND2> ... | [OPTION]]");
         System.out.println("Commands:");
         System.out.println("  init       - Initialize a new Gitlet repository.");
-        System.out.println("  add        - Add files to the staging area.");
+        System.out.println("  add        - Add files, or all files under a directory, to the staging area.");
         System.out.println("  commit     - Commit staged files.");
         System.out.println("  rm         - Remove files from the staging area.");
-        System.out.println("  log        - Show the commit history.");
+        System.out.println("  log        - Show the commit history; --oneline for abbreviated UIDs and titles,");
+        System.out.println("               -n <count> for the newest commits only, --since=<date|3d> for the recent ones.");
         System.out.println("  global-log - Show the global commit history.");
         System.out.println("  find       - Find commits by message.");
         System.out.println("  status     - Show the status of the repository.");
@@ -367,5 +495,14 @@ public class Main {
         System.out.println("  checkout   - Switch branches or restore files.");
         System.out.println("  reset      - Reset the current branch to a specific commit.");
         System.out.println("  merge      - Merge another branch into the current branch.");
+        System.out.println("  diff       - Show changes between the index, the working tree and commits; --cached for the index.");
+        System.out.println("  gc         - Pack reachable objects and prune the rest; --prune=now|never|2w for their grace period.");
+        System.out.println("  count-objects - Show object counts, disk usage and the compression ratio.");
+        System.out.println("  daemon     - Serve commands sent by gitlet.DaemonClient over a socket; 'daemon stop' to stop.");
+        System.out.println("  add-remote - Name the .gitlet directory of another repository: add-remote <name> <path>.");
+        System.out.println("  rm-remote  - Forget a remote.");
+        System.out.println("  fetch      - Copy a branch of a remote, and what it lacks here, into <remote>/<branch>.");
+        System.out.println("  push       - Send the current branch, and what the remote lacks, to a branch of a remote.");
+        System.out.println("  pull       - Fetch a branch of a remote and merge it into the current branch.");
     }
 }
@@ -0,0 +1,176 @@
+package gitlet;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/** A bounded in-process cache of decoded objects, keyed by full UID.
+ *  <p>
+ *  Walking history ({@code log}, {@link Commit#findLCA}, {@link Commit#isLinearAncestorOf})
+ *  asks for the same commits over and over; since objects are immutable and named by
+ *  their content, a decoded object can be handed out again for as long as the process lives.
+ *  Entries are evicted least recently used first once their estimated size exceeds the
+ *  byte budget, which is {@value #DEFAULT_BUDGET_MB} MiB unless the {@code GITLET_CACHE_MB}
+ *  environment variable says otherwise (0 disables the cache).
+ *  <p>
+ *  There are no static caches in gitlet: a {@link Repository} owns one of these, and
+ *  commits loaded through it remember it, so that their ancestors come from it too.
+ *  Hit and miss counts are kept to help size the budget; set {@code GITLET_CACHE_STATS}
+ *  to have them logged after each command. The cache also carries the {@link Trace} of the
+ *  command using it, if it is traced, since it already goes wherever objects are read, and for the
+ *  same reason the {@link Sha1} hashers its threads reuse and the packs of the object store, kept
+ *  open from one lookup to the next (see {@link PackFile.Packs}).
+ */
+final class ObjectCache {
+    static final String BUDGET_ENV = "GITLET_CACHE_MB";
+    static final String STATS_ENV = "GITLET_CACHE_STATS";
+    static final int DEFAULT_BUDGET_MB = 32;
+
+    private final long budget;
+    /** In access order, so that the first entry is the least recently used. */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    /** The command being traced, if any; read by the threads of checkouts and hash pipelines too. */
+    private volatile Trace trace;
+    /** A SHA-1 hasher for each thread hashing through this cache; see {@link Sha1#of}. */
+    private final ThreadLocal<Sha1> hashers = ThreadLocal.withInitial(Sha1::new);
+    private final PackFile.Packs packs = new PackFile.Packs(Repository.OBJ_DIR);
+
+    private record Entry(Serializable object, long bytes) {
+    }
+
+    /** A cache with the budget configured by the environment. */
+    ObjectCache() {
+        this(configuredBudget());
+    }
+
+    /** A cache holding at most about BUDGET bytes of objects. */
+    ObjectCache(long budget) {
+        this.budget = Math.max(0, budget);
+    }
+
+    private static long configuredBudget() {
+        String value = System.getenv(BUDGET_ENV);
+        if (value != null && !value.isBlank()) {
+            try {
+                return Long.parseLong(value.trim()) << 20;
+            } catch (NumberFormatException e) {
+                Logging.warn.println("Ignoring " + BUDGET_ENV + "=" + value + "; expected a number of MiB.");
+            }
+        }
+        return (long) DEFAULT_BUDGET_MB << 20;
+    }
+
+    /** Returns the object cached under UID if it is a TYPE, or null. */
+    synchronized <T extends Serializable> T get(String uid, Class<T> type) {
+        Entry entry = entries.get(uid);
+        if (entry == null || !type.isInstance(entry.object())) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return type.cast(entry.object());
+    }
+
+    /** Caches OBJECT under UID, evicting the least recently used objects as needed.
+     *  Objects larger than a quarter of the budget are not cached, so that one large
+     *  blob cannot flush every commit. */
+    synchronized void put(String uid, Serializable object) {
+        long size = estimateBytes(object);
+        if (size > budget / 4) {
+            return;
+        }
+        Entry old = entries.put(uid, new Entry(object, size));
+        bytes += size - (old == null ? 0 : old.bytes());
+        Iterator<Entry> lru = entries.values().iterator();
+        while (bytes > budget && lru.hasNext()) {
+            bytes -= lru.next().bytes();
+            lru.remove();
+            evictions++;
+        }
+    }
+
+    /** Forgets every object; for when objects have been pruned from the store. */
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    /** The trace of the command using this cache, or null. */
+    Trace trace() {
+        return trace;
+    }
+
+    void trace(Trace trace) {
+        this.trace = trace;
+    }
+
+    /** The SHA-1 hasher of the calling thread. */
+    Sha1 hasher() {
+        return hashers.get();
+    }
+
+    /** The packs of the repository's object store. */
+    PackFile.Packs packs() {
+        return packs;
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    /** Number of objects currently cached. */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /** Estimated bytes of the objects currently cached. */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /** A rough estimate of the heap taken by OBJECT: a few object headers plus its payload. */
+    private static long estimateBytes(Serializable object) {
+        return switch (object) {
+            case Blob blob -> 64 + blob.getContents().length;
+            case Commit commit -> {
+                long size = 256 + 2L * commit.message.length() + 96L * commit.parents.length;
+                if (commit.getTree() == null) { // * a commit with a tree reads its files only when asked
+                    size += fileBytes(commit.getFileBlobs());
+                }
+                yield size;
+            }
+            case Tree tree -> 64 + fileBytes(tree.entries());
+            default -> 1024;
+        };
+    }
+
+    private static long fileBytes(Map<String, String> files) {
+        long size = 0;
+        for (String name : files.keySet()) {
+            size += 160 + 2L * name.length();
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return String.format("object cache: %d hit(s), %d miss(es) (%.1f%% hits), %d eviction(s); %d object(s), %d of %d byte(s)",
+                hits, misses, lookups == 0 ? 0.0 : 100.0 * hits / lookups, evictions, entries.size(), bytes, budget);
+    }
+}
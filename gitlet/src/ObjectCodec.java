@@ -0,0 +1,534 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/** The compact binary encoding of gitlet objects on disk.
+ *  <p>
+ *  {@link Utils#writeObject} spends most of a small object on class descriptors,
+ *  and reading it back goes through reflection. Commits and blobs are instead
+ *  written in a hand-rolled, versioned format:
+ *  <pre>
+ *  header:  "GLO" | version (1 byte) | tag (1 byte: 'b' blob, 'k' chunked blob, 'c' or 'r' commit, 't' tree)
+ *  blob:    header | length (varint) | raw bytes
+ *  chunked: header | length (varint) | chunk count (varint) | (chunk blob UID (20 raw bytes) | length (varint))*
+ *  commit:  header | message (varint length + UTF-8) | timestamp | author timestamp
+ *           | isEmpty (1 byte) | parent count (varint) | parent UID (20 raw bytes)*
+ *           | file count (varint) | (file name (varint length + UTF-8) | blob UID (20 raw bytes))*
+ *  rooted commit: as a commit, with the root tree UID (20 raw bytes) in place of the files
+ *  tree:    header | entry count (varint) | (name (varint length + UTF-8) | UID (20 raw bytes))*
+ *  timestamps are epoch seconds (zigzag varint) followed by nanoseconds (varint).
+ *  </pre>
+ *  A chunked blob is a large file split by {@link Chunker}; it decodes to the same {@link Blob}
+ *  as the whole file would, and {@link #copyBlobContents} streams it chunk by chunk.
+ *  Anything else is still written with Java serialization.
+ *  <p>
+ *  Objects written by earlier versions of gitlet are plain Java serializations,
+ *  recognized by their {@code 0xACED} stream magic, and {@link #decode} still reads them;
+ *  this is why {@link Commit} and {@link Blob} pin their {@code serialVersionUID}.
+ *  Note that the encoding is only the <i>stored</i> form; UIDs are computed as before,
+ *  so re-encoding an object never changes its name.
+ */
+final class ObjectCodec {
+    static final String MAGIC = "GLO";
+    static final int VERSION = 1;
+    static final byte TAG_BLOB = 'b';
+    static final byte TAG_COMMIT = 'c';
+    static final byte TAG_CHUNKED = 'k';
+    static final byte TAG_ROOTED_COMMIT = 'r';
+    static final byte TAG_TREE = 't';
+    /** First two bytes of every Java serialization stream. */
+    private static final int JAVA_STREAM_MAGIC = 0xACED;
+    private static final int HEADER_LENGTH = 5;
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    private ObjectCodec() {
+    }
+
+    /** Returns the stored form of OBJ. */
+    static byte[] encode(Serializable obj) {
+        return switch (obj) {
+            case Blob blob -> encodeBlob(blob);
+            case Commit commit -> encodeCommit(commit);
+            case Tree tree -> encodeTree(tree);
+            default -> serialize(obj);
+        };
+    }
+
+    /** Decodes the stored form STORED of an object, casting it to EXPECTEDCLASS.
+     *  Accepts both the binary encoding and legacy Java serialization, deflated or not. */
+    static <T extends Serializable> T decode(byte[] stored, Class<T> expectedClass) {
+        stored = Compression.inflate(stored); // * a no-op for objects stored uncompressed
+        if (isJavaSerialization(stored)) {
+            return deserialize(stored, expectedClass); // * compatibility with repos written before the codec
+        }
+        Reader in = new Reader(stored);
+        byte tag = in.header();
+        Object result = switch (tag) {
+            case TAG_BLOB -> decodeBlob(in);
+            case TAG_CHUNKED -> decodeChunked(in);
+            case TAG_COMMIT -> decodeCommit(in);
+            case TAG_ROOTED_COMMIT -> decodeRootedCommit(in);
+            case TAG_TREE -> decodeTree(in);
+            default -> throw new IllegalArgumentException("Unknown object tag: " + (char) tag);
+        };
+        try {
+            return expectedClass.cast(result);
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /** Whether STORED is a Java serialization stream rather than the binary encoding. */
+    static boolean isJavaSerialization(byte[] stored) {
+        return stored.length >= 2 && ((stored[0] & 0xff) << 8 | (stored[1] & 0xff)) == JAVA_STREAM_MAGIC;
+    }
+
+    /* BLOBS */
+
+    static byte[] encodeBlob(Blob blob) {
+        byte[] contents = blob.getContents();
+        Writer out = new Writer(HEADER_LENGTH + 5 + contents.length);
+        out.header(TAG_BLOB);
+        out.varint(contents.length);
+        out.bytes(contents);
+        return out.toByteArray();
+    }
+
+    private static Blob decodeBlob(Reader in) {
+        int length = (int) in.varint();
+        return new Blob(in.bytes(length));
+    }
+
+    /** Returns the offset of the contents in the encoded blob ENCODED,
+     *  or -1 if ENCODED is not a plain blob. */
+    static int blobContentOffset(byte[] encoded) {
+        if (encoded.length <= HEADER_LENGTH || isJavaSerialization(encoded) || encoded[HEADER_LENGTH - 1] != TAG_BLOB) {
+            return -1;
+        }
+        Reader in = new Reader(encoded);
+        in.header();
+        in.varint();
+        return in.pos;
+    }
+
+    /** Returns the header of a blob of LENGTH bytes, to be followed by exactly those bytes. */
+    static byte[] blobHeader(long length) {
+        Writer out = new Writer(HEADER_LENGTH + 10);
+        out.header(TAG_BLOB);
+        out.varint(length);
+        return out.toByteArray();
+    }
+
+    /** Encodes the manifest of a blob of LENGTH bytes, stored as the chunk blobs CHUNKUIDS
+     *  of CHUNKLENGTHS bytes each, in order. */
+    static byte[] encodeChunked(long length, List<String> chunkUids, List<Long> chunkLengths) {
+        Writer out = new Writer(HEADER_LENGTH + 20 + chunkUids.size() * 24);
+        out.header(TAG_CHUNKED);
+        out.varint(length);
+        out.varint(chunkUids.size());
+        for (int i = 0; i < chunkUids.size(); i++) {
+            out.uid(chunkUids.get(i));
+            out.varint(chunkLengths.get(i));
+        }
+        return out.toByteArray();
+    }
+
+    /** One chunk of a chunked blob: the UID of its blob and its length. */
+    record Chunk(String uid, long length) {
+    }
+
+    /** Returns the chunks of the chunked blob encoded as ENCODED, in order,
+     *  or null if ENCODED is not a chunked blob. */
+    static List<Chunk> chunks(byte[] encoded) {
+        if (encoded.length <= HEADER_LENGTH || isJavaSerialization(encoded) || encoded[HEADER_LENGTH - 1] != TAG_CHUNKED) {
+            return null;
+        }
+        Reader in = new Reader(encoded);
+        in.header();
+        in.varint();
+        int count = (int) in.varint();
+        List<Chunk> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            chunks.add(new Chunk(in.uid(), in.varint()));
+        }
+        return chunks;
+    }
+
+    /** Reassembles a chunked blob in memory; only for callers that asked for the whole contents. */
+    private static Blob decodeChunked(Reader in) {
+        long length = in.varint();
+        if (length > Integer.MAX_VALUE - 8) {
+            throw error("Blob of %d bytes is too large to load; restore it to a file instead.", length);
+        }
+        ByteArrayOutputStream contents = new ByteArrayOutputStream((int) length);
+        int count = (int) in.varint();
+        for (int i = 0; i < count; i++) {
+            String chunkUid = in.uid();
+            in.varint();
+            contents.writeBytes(Blob.getByUid(chunkUid).getContents());
+        }
+        return new Blob(contents.toByteArray());
+    }
+
+    /** Copies the contents of the blob whose stored form is STORED to OUT,
+     *  holding at most one chunk of it in memory at a time. Closes STORED.
+     *  Chunks are read through the packs CACHE keeps open; CACHE may be null. */
+    static void copyBlobContents(InputStream stored, OutputStream out, ObjectCache cache) throws IOException {
+        try (InputStream in = new BufferedInputStream(stored, COPY_BUFFER)) {
+            in.mark(2);
+            int b0 = in.read(), b1 = in.read();
+            in.reset();
+            if (b0 >= 0 && b1 >= 0 && ((b0 << 8) | b1) == JAVA_STREAM_MAGIC) {
+                out.write(deserialize(in.readAllBytes(), Blob.class).getContents());
+                return;
+            }
+            byte[] header = in.readNBytes(HEADER_LENGTH);
+            byte tag = new Reader(header).header();
+            long length = readVarint(in);
+            if (tag == TAG_BLOB) {
+                byte[] buf = new byte[COPY_BUFFER];
+                long remaining = length;
+                while (remaining > 0) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                    if (n < 0) {
+                        throw new IOException("Truncated blob");
+                    }
+                    out.write(buf, 0, n);
+                    remaining -= n;
+                }
+            } else if (tag == TAG_CHUNKED) {
+                long count = readVarint(in);
+                byte[] raw = new byte[UID_LENGTH / 2];
+                for (long i = 0; i < count; i++) {
+                    if (in.readNBytes(raw, 0, raw.length) != raw.length) {
+                        throw new IOException("Truncated chunk list");
+                    }
+                    readVarint(in);
+                    copyBlobContents(Dumpable.openStored(toHex(raw), cache), out, cache);
+                }
+            } else {
+                throw new IOException("Not a blob: " + (char) tag);
+            }
+        }
+    }
+
+    /** Reads one varint from IN. */
+    static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Truncated varint");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /* REFERENCES */
+
+    /** Returns the UIDs of the objects the object whose encoded form is ENCODED refers to:
+     *  the parents and the files or the root tree of a commit, the entries of a tree, and the
+     *  chunks of a chunked blob. Reads no further than the references, skipping messages and
+     *  names and never reading the contents of a blob. Closes ENCODED. */
+    static List<String> references(InputStream encoded) throws IOException {
+        try (InputStream in = new BufferedInputStream(encoded, 1 << 13)) {
+            in.mark(2);
+            int b0 = in.read(), b1 = in.read();
+            in.reset();
+            if (b0 >= 0 && b1 >= 0 && ((b0 << 8) | b1) == JAVA_STREAM_MAGIC) {
+                return legacyReferences(deserialize(in.readAllBytes(), Serializable.class));
+            }
+            byte tag = new Reader(in.readNBytes(HEADER_LENGTH)).header();
+            List<String> uids = new ArrayList<>();
+            switch (tag) {
+                case TAG_BLOB -> {
+                }
+                case TAG_CHUNKED -> {
+                    readVarint(in);
+                    for (long count = readVarint(in); count > 0; count--) {
+                        uids.add(readUid(in));
+                        readVarint(in);
+                    }
+                }
+                case TAG_COMMIT, TAG_ROOTED_COMMIT -> {
+                    in.skipNBytes(readVarint(in)); // * message
+                    for (int i = 0; i < 4; i++) {
+                        readVarint(in); // * seconds and nanoseconds of both timestamps
+                    }
+                    in.skipNBytes(1);
+                    for (long count = readVarint(in); count > 0; count--) {
+                        uids.add(readUid(in));
+                    }
+                    if (tag == TAG_ROOTED_COMMIT) {
+                        uids.add(readUid(in));
+                    } else {
+                        for (long count = readVarint(in); count > 0; count--) {
+                            in.skipNBytes(readVarint(in));
+                            uids.add(readUid(in));
+                        }
+                    }
+                }
+                case TAG_TREE -> {
+                    for (long count = readVarint(in); count > 0; count--) {
+                        in.skipNBytes(readVarint(in));
+                        uids.add(readUid(in));
+                    }
+                }
+                default -> throw new IllegalArgumentException("Unknown object tag: " + (char) tag);
+            }
+            return uids;
+        }
+    }
+
+    private static List<String> legacyReferences(Serializable object) {
+        List<String> uids = new ArrayList<>();
+        if (object instanceof Commit commit) {
+            uids.addAll(Arrays.asList(commit.parents));
+            if (commit.getTree() != null) {
+                uids.add(commit.getTree());
+            } else {
+                uids.addAll(commit.getFileBlobs().values());
+            }
+        }
+        return uids;
+    }
+
+    private static String readUid(InputStream in) throws IOException {
+        byte[] raw = in.readNBytes(UID_LENGTH / 2);
+        if (raw.length != UID_LENGTH / 2) {
+            throw new IOException("Truncated UID");
+        }
+        return toHex(raw);
+    }
+
+    /* COMMITS */
+
+    static byte[] encodeCommit(Commit commit) {
+        String tree = commit.getTree();
+        Writer out = new Writer(tree != null ? 128 + commit.message.length() : 256 + commit.getFileBlobs().size() * 48);
+        out.header(tree != null ? TAG_ROOTED_COMMIT : TAG_COMMIT);
+        out.string(commit.message);
+        out.instant(commit.timestamp);
+        out.instant(commit.authorTimestamp);
+        out.bool(commit.isEmpty);
+        out.varint(commit.parents.length);
+        for (String parent : commit.parents) {
+            out.uid(parent);
+        }
+        if (tree != null) {
+            out.uid(tree);
+            return out.toByteArray();
+        }
+        Map<String, String> fileBlobs = commit.getFileBlobs();
+        out.varint(fileBlobs.size());
+        for (Map.Entry<String, String> entry : fileBlobs.entrySet()) {
+            out.string(entry.getKey());
+            out.uid(entry.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    private static Commit decodeCommit(Reader in) {
+        String message = in.string();
+        Instant timestamp = in.instant();
+        Instant authorTimestamp = in.instant();
+        boolean isEmpty = in.bool();
+        String[] parents = new String[(int) in.varint()];
+        for (int i = 0; i < parents.length; i++) {
+            parents[i] = in.uid();
+        }
+        int fileCount = (int) in.varint();
+        Map<String, String> fileBlobs = new LinkedHashMap<>(Math.max(16, fileCount * 4 / 3 + 1));
+        for (int i = 0; i < fileCount; i++) {
+            String name = in.string();
+            fileBlobs.put(name, in.uid());
+        }
+        return new Commit(message, parents, timestamp, authorTimestamp, isEmpty, fileBlobs);
+    }
+
+    private static Commit decodeRootedCommit(Reader in) {
+        String message = in.string();
+        Instant timestamp = in.instant();
+        Instant authorTimestamp = in.instant();
+        boolean isEmpty = in.bool();
+        String[] parents = new String[(int) in.varint()];
+        for (int i = 0; i < parents.length; i++) {
+            parents[i] = in.uid();
+        }
+        return new Commit(message, parents, timestamp, authorTimestamp, isEmpty, in.uid());
+    }
+
+    /* TREES */
+
+    static byte[] encodeTree(Tree tree) {
+        Map<String, String> entries = tree.entries();
+        Writer out = new Writer(HEADER_LENGTH + 5 + entries.size() * 48);
+        out.header(TAG_TREE);
+        out.varint(entries.size());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            out.string(entry.getKey());
+            out.uid(entry.getValue());
+        }
+        return out.toByteArray();
+    }
+
+    private static Tree decodeTree(Reader in) {
+        int count = (int) in.varint();
+        Map<String, String> entries = new LinkedHashMap<>(Math.max(16, count * 4 / 3 + 1));
+        for (int i = 0; i < count; i++) {
+            String name = in.string();
+            entries.put(name, in.uid());
+        }
+        return new Tree(entries);
+    }
+
+    /* PRIMITIVES */
+
+    /** An append-only byte buffer with the primitive encoders. */
+    static class Writer {
+        private final ByteArrayOutputStream buf;
+
+        Writer(int sizeHint) {
+            buf = new ByteArrayOutputStream(sizeHint);
+        }
+
+        void header(byte tag) {
+            buf.writeBytes(MAGIC.getBytes(StandardCharsets.US_ASCII));
+            buf.write(VERSION);
+            buf.write(tag);
+        }
+
+        void varint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                buf.write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            buf.write((int) value);
+        }
+
+        void bool(boolean value) {
+            buf.write(value ? 1 : 0);
+        }
+
+        void bytes(byte[] value) {
+            buf.writeBytes(value);
+        }
+
+        void string(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length);
+            buf.writeBytes(utf8);
+        }
+
+        void uid(String uid) {
+            if (uid.length() != UID_LENGTH) {
+                throw new IllegalArgumentException("Invalid UID: " + uid);
+            }
+            buf.writeBytes(fromHex(uid));
+        }
+
+        void instant(Instant value) {
+            long seconds = value.getEpochSecond();
+            varint((seconds << 1) ^ (seconds >> 63)); // * zigzag, so pre-epoch times stay short too
+            varint(value.getNano());
+        }
+
+        byte[] toByteArray() {
+            return buf.toByteArray();
+        }
+    }
+
+    /** A cursor over a stored object, with the primitive decoders. */
+    static class Reader {
+        private final byte[] data;
+        private int pos;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        byte header() {
+            if (data.length < HEADER_LENGTH
+                    || !MAGIC.equals(new String(data, 0, MAGIC.length(), StandardCharsets.US_ASCII))) {
+                throw new IllegalArgumentException("Not a gitlet object");
+            }
+            int version = data[3] & 0xff;
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported object encoding version " + version);
+            }
+            pos = HEADER_LENGTH;
+            return data[4];
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = next();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint at offset " + pos);
+        }
+
+        boolean bool() {
+            return next() != 0;
+        }
+
+        byte[] bytes(int length) {
+            if (length < 0 || pos + length > data.length) {
+                throw new IllegalArgumentException("Truncated object at offset " + pos);
+            }
+            byte[] value = new byte[length];
+            System.arraycopy(data, pos, value, 0, length);
+            pos += length;
+            return value;
+        }
+
+        String string() {
+            int length = (int) varint();
+            if (length < 0 || pos + length > data.length) {
+                throw new IllegalArgumentException("Truncated object at offset " + pos);
+            }
+            String value = new String(data, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return value;
+        }
+
+        String uid() {
+            return toHex(bytes(UID_LENGTH / 2));
+        }
+
+        Instant instant() {
+            long zigzag = varint();
+            long seconds = (zigzag >>> 1) ^ -(zigzag & 1);
+            return Instant.ofEpochSecond(seconds, varint());
+        }
+
+        private byte next() {
+            if (pos >= data.length) {
+                throw new IllegalArgumentException("Truncated object at offset " + pos);
+            }
+            return data[pos++];
+        }
+    }
+}
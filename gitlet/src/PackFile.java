@@ -0,0 +1,796 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/** A pack of gitlet objects, together with its sorted, memory-mapped index.
+ *  <p>
+ *  Loose objects cost one file (and one inode) each under {@code .gitlet/objects/xx/};
+ *  {@code gitlet gc} moves them into an append-only pack under {@code .gitlet/objects/pack/}.
+ *  <pre>
+ *  pack-SHA.pack:  "PACK" | version | count | entry* | sha1 of everything before
+ *      entry:      kind (1 byte) | length (8 bytes) | stored bytes of the object
+ *      delta:      kind (1 byte) | length (8 bytes) | base UID (20 raw bytes) | deflated {@link Delta}
+ *  pack-SHA.idx:   "GIDX" | version | count | fanout[256] | uid[count] | offset[count] | sha1 of the pack
+ *  </pre>
+ *  {@code fanout[b]} is the number of objects whose UID starts with a byte {@code <= b},
+ *  UIDs are stored as 20 raw bytes in ascending order, and offsets are 8 bytes each.
+ *  <p>
+ *  The index is memory-mapped and binary-searched within the fanout bucket of the first byte,
+ *  so a lookup touches O(log n) index entries and then reads exactly one entry from the pack.
+ *  The stored bytes of an entry are exactly what a loose object file would have held,
+ *  so {@link Dumpable#getByUid} decodes both in the same way.
+ *  <p>
+ *  A delta entry instead holds the object as a {@link Delta} against another object of the
+ *  same pack, which may be a delta itself, up to {@link #MAX_DEPTH} deep by default. {@link #packObjects}
+ *  tries each object against the last {@link #WINDOW} it wrote, visiting versions of the same
+ *  file one after the other, so that a file edited a line at a time takes little more than
+ *  its first version plus the lines that changed. Reading one walks down to the full object
+ *  at the end of the chain and applies the deltas back up, holding only the object being
+ *  rebuilt and the one it is rebuilt from, and the (small) deltas themselves.
+ *  <p>
+ *  A pack becomes visible only once its {@code .idx} exists; both files are written
+ *  under temporary names and renamed into place, so readers never see a partial pack.
+ */
+class PackFile implements Closeable {
+    static final String PACK_MAGIC = "PACK";
+    static final String IDX_MAGIC = "GIDX";
+    static final int VERSION = 1;
+    /** Entry kind: the stored bytes of the object, verbatim. */
+    static final byte KIND_FULL = 1;
+    /** Entry kind: a delta against another object of the same pack. */
+    static final byte KIND_DELTA = 2;
+    /** Longest chain of deltas {@code gc} builds, and so the most deltas reading one of its objects applies. */
+    static final int MAX_DEPTH = 10;
+    /** Number of recently written objects {@link #packObjects} tries each object against. */
+    static final int WINDOW = 10;
+    /** Objects smaller than this are always stored whole; a delta could save next to nothing. */
+    private static final int MIN_DELTA_SIZE = 64;
+
+    /** Size of a raw SHA-1 UID in bytes. */
+    static final int RAW_UID_LENGTH = UID_LENGTH / 2;
+    private static final int IDX_HEADER = 12;
+    private static final int FANOUT_SIZE = 256 * 4;
+    private static final int PACK_HEADER = 12;
+    private static final int ENTRY_HEADER = 1 + 8;
+
+    /** The pack file holding the entries. */
+    final Path packPath;
+    /** The index file, mapped into {@link #index}. */
+    final Path idxPath;
+    private final MappedByteBuffer index;
+    private final int count;
+    /** The pack file, held open while a {@link Packs} keeps this pack; otherwise each read opens it. */
+    private volatile FileChannel held;
+
+    private PackFile(Path idxPath) throws IOException {
+        this.idxPath = idxPath;
+        String name = idxPath.getFileName().toString();
+        this.packPath = idxPath.resolveSibling(name.substring(0, name.length() - ".idx".length()) + ".pack");
+        try (FileChannel channel = FileChannel.open(idxPath, StandardOpenOption.READ)) {
+            this.index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        byte[] magic = new byte[4];
+        index.get(0, magic);
+        if (!IDX_MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))
+                || index.getInt(4) != VERSION) {
+            throw new IOException("Not a gitlet pack index: " + idxPath);
+        }
+        this.count = index.getInt(8);
+    }
+
+    /** Opens the pack whose index is IDXPATH. */
+    static PackFile open(Path idxPath) {
+        try {
+            return new PackFile(idxPath);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open pack index: " + idxPath, e);
+        }
+    }
+
+    /** The directory holding the packs of the object store OBJDIR. */
+    static Path packDir(Path objDir) {
+        return objDir.resolve("pack");
+    }
+
+    /** Returns the indices of all packs in the object store OBJDIR, oldest name first. */
+    static List<Path> listIndices(Path objDir) {
+        Path dir = packDir(objDir);
+        List<Path> indices = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return indices;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "pack-*.idx")) {
+            for (Path idx : stream) {
+                indices.add(idx);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list packs: " + e.getMessage(), e);
+        }
+        indices.sort(Comparator.naturalOrder());
+        return indices;
+    }
+
+    /** Number of objects in this pack. */
+    int size() {
+        return count;
+    }
+
+    /** Returns the UID at sorted position I of the index, as hex. */
+    String uidAt(int i) {
+        byte[] raw = new byte[RAW_UID_LENGTH];
+        index.get(IDX_HEADER + FANOUT_SIZE + i * RAW_UID_LENGTH, raw);
+        return toHex(raw);
+    }
+
+    private long offsetAt(int i) {
+        return index.getLong(IDX_HEADER + FANOUT_SIZE + count * RAW_UID_LENGTH + i * 8);
+    }
+
+    private int fanout(int b) {
+        return b < 0 ? 0 : index.getInt(IDX_HEADER + b * 4);
+    }
+
+    /** Compares the first LEN bytes of the UID at position I against KEY. */
+    private int compareAt(int i, byte[] key, int len) {
+        int base = IDX_HEADER + FANOUT_SIZE + i * RAW_UID_LENGTH;
+        for (int k = 0; k < len; k++) {
+            int c = Integer.compare(index.get(base + k) & 0xff, key[k] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Returns the lowest position whose first LEN bytes are not less than KEY. */
+    private int lowerBound(byte[] key, int len) {
+        int first = key[0] & 0xff;
+        int lo = fanout(first - 1), hi = fanout(first);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareAt(mid, key, len) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Returns the sorted position at which the full hex UID is, or would be inserted. */
+    int lowerBound(String uid) {
+        return lowerBound(fromHex(uid), RAW_UID_LENGTH);
+    }
+
+    /** Returns the sorted position of the full hex UID, or -1 if it is not in this pack. */
+    int find(String uid) {
+        byte[] key = fromHex(uid);
+        int pos = lowerBound(key, RAW_UID_LENGTH);
+        if (pos < fanout(key[0] & 0xff) && compareAt(pos, key, RAW_UID_LENGTH) == 0) {
+            return pos;
+        }
+        return -1;
+    }
+
+    boolean contains(String uid) {
+        return find(uid) >= 0;
+    }
+
+    /** Returns the full UIDs in this pack starting with the hex PREFIX, in order. */
+    List<String> findByPrefix(String prefix) {
+        List<String> matches = new ArrayList<>();
+        // compare on whole bytes first; an odd trailing nibble is checked on the hex form
+        int wholeBytes = prefix.length() / 2;
+        if (wholeBytes == 0) {
+            return matches;
+        }
+        byte[] key = fromHex(prefix.substring(0, wholeBytes * 2));
+        String lower = prefix.toLowerCase();
+        int end = fanout(key[0] & 0xff);
+        for (int i = lowerBound(key, wholeBytes); i < end && compareAt(i, key, wholeBytes) == 0; i++) {
+            String uid = uidAt(i);
+            if (uid.startsWith(lower)) {
+                matches.add(uid);
+            }
+        }
+        return matches;
+    }
+
+    /** Reads the stored bytes of the object at sorted position POS.
+     *  For a delta entry, these are the encoded object rebuilt from its chain, uncompressed. */
+    byte[] read(int pos) {
+        FileChannel channel = held;
+        if (channel != null) {
+            try {
+                return read(channel, pos);
+            } catch (ClosedChannelException e) {
+                held = null; // * released meanwhile, or closed by an interrupt: read it as an unkept pack would
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read pack " + packPath.getFileName() + ": " + e.getMessage(), e);
+            }
+        }
+        try (FileChannel pack = FileChannel.open(packPath, StandardOpenOption.READ)) {
+            return read(pack, pos);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read pack " + packPath.getFileName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private byte[] read(FileChannel pack, int pos) throws IOException {
+        Deque<byte[]> deltas = new ArrayDeque<>();
+        for (int entry = pos; ; ) {
+            long offset = offsetAt(entry);
+            ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER);
+            readFully(pack, header, offset);
+            header.flip();
+            byte kind = header.get();
+            long length = header.getLong();
+            if (kind != KIND_FULL && kind != KIND_DELTA) {
+                throw new IOException("Unknown pack entry kind " + kind + " at offset " + offset);
+            }
+            if (length > Integer.MAX_VALUE - 8) {
+                throw new IOException("Pack entry too large to read into memory: " + length);
+            }
+            ByteBuffer body = ByteBuffer.allocate((int) length);
+            readFully(pack, body, offset + ENTRY_HEADER);
+            if (kind == KIND_FULL) {
+                return deltas.isEmpty() ? body.array() : undelta(Compression.inflate(body.array()), deltas);
+            }
+            if (deltas.size() >= count) {
+                throw new IOException("Delta chain loops at offset " + offset); // * only a corrupt pack
+            }
+            String base = toHex(Arrays.copyOf(body.array(), RAW_UID_LENGTH));
+            deltas.push(Arrays.copyOfRange(body.array(), RAW_UID_LENGTH, body.capacity()));
+            entry = find(base);
+            if (entry < 0) {
+                throw new IOException("Missing delta base " + base);
+            }
+        }
+    }
+
+    /** Applies DELTAS, the innermost first, to the encoded object BASE. */
+    private static byte[] undelta(byte[] base, Deque<byte[]> deltas) throws IOException {
+        byte[] object = base;
+        while (!deltas.isEmpty()) {
+            try (InputStream in = inflaterStream(deltas.pop())) {
+                object = Delta.apply(object, in); // * the previous object can go as soon as this one is built
+            }
+        }
+        return object;
+    }
+
+    private static InputStream inflaterStream(byte[] deflated) {
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(new ByteArrayInputStream(deflated), inflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /** Returns the number of bytes the entry at sorted position POS takes in the pack, header included. */
+    long entryLength(int pos) {
+        try (FileChannel pack = FileChannel.open(packPath, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER);
+            readFully(pack, header, offsetAt(pos));
+            return ENTRY_HEADER + header.getLong(1);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read pack " + packPath.getFileName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** Reads the stored bytes of UID, or returns null if it is not in this pack. */
+    byte[] read(String uid) {
+        int pos = find(uid);
+        return pos < 0 ? null : read(pos);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of pack");
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public void close() {
+        // * the mapping is released when the buffer is collected; only a held pack file is closed
+        FileChannel channel = held;
+        held = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Logging.warn.println("Failed to close pack " + packPath.getFileName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /* LOOKUP ACROSS ALL PACKS */
+
+    /** The packs of an object store, opened once and kept open from one lookup to the next.
+     *  <p>
+     *  Opening a pack maps its index; listing the pack directory and mapping every index for each
+     *  object read, as {@link #readPacked} does, would cost far more than the binary search the
+     *  index is there for. An {@link ObjectCache} keeps one of these for its repository instead,
+     *  and its packs keep their pack file open too. A lookup checks only the modification time
+     *  of the pack directory, which writing or deleting a pack changes, in this process or
+     *  another: only then is the directory listed again, and only new packs are opened. A time
+     *  within the last {@value #RACY_MILLIS} ms is not trusted, since another change in the same
+     *  tick would leave it as it is.
+     */
+    static final class Packs {
+        static final long RACY_MILLIS = 2000;
+
+        private final Path objDir;
+        /** Modification time of the pack directory when it was last listed; null to list it again. */
+        private FileTime listed;
+        private List<PackFile> packs = List.of();
+
+        Packs(Path objDir) {
+            this.objDir = objDir;
+        }
+
+        /** The packs of the object store as it is now, oldest name first. */
+        synchronized List<PackFile> current() {
+            FileTime modified;
+            try {
+                modified = Files.getLastModifiedTime(packDir(objDir));
+            } catch (NoSuchFileException e) {
+                modified = FileTime.fromMillis(0); // * no pack yet
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to list packs: " + e.getMessage(), e);
+            }
+            if (modified.equals(listed)) {
+                return packs;
+            }
+            Map<Path, PackFile> kept = new HashMap<>();
+            for (PackFile pack : packs) {
+                kept.put(pack.idxPath, pack);
+            }
+            List<PackFile> now = new ArrayList<>();
+            for (Path idx : listIndices(objDir)) {
+                PackFile pack = kept.remove(idx);
+                now.add(pack != null ? pack : hold(open(idx)));
+            }
+            kept.values().forEach(PackFile::close); // * deleted meanwhile
+            packs = List.copyOf(now);
+            listed = System.currentTimeMillis() - modified.toMillis() < RACY_MILLIS ? null : modified;
+            return packs;
+        }
+
+        private static PackFile hold(PackFile pack) {
+            try {
+                pack.held = FileChannel.open(pack.packPath, StandardOpenOption.READ);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open pack " + pack.packPath.getFileName() + ": " + e.getMessage(), e);
+            }
+            return pack;
+        }
+
+        /** Reads the stored bytes of UID from any of the packs, or returns null if none has it. */
+        byte[] read(String uid) {
+            for (PackFile pack : current()) {
+                byte[] stored = pack.read(uid);
+                if (stored != null) {
+                    return stored;
+                }
+            }
+            return null;
+        }
+
+        boolean contains(String uid) {
+            for (PackFile pack : current()) {
+                if (pack.contains(uid)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Closes the pack files held open, as {@code gc} must before it deletes them; the next lookup opens them again. */
+        synchronized void close() {
+            packs.forEach(PackFile::close);
+            packs = List.of();
+            listed = null;
+        }
+    }
+
+    /** Reads the stored bytes of UID from any pack in OBJDIR, or returns null if no pack has it. */
+    static byte[] readPacked(Path objDir, String uid) {
+        for (Path idx : listIndices(objDir)) {
+            byte[] stored = open(idx).read(uid);
+            if (stored != null) {
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    /** Whether any pack in OBJDIR holds UID. */
+    static boolean isPacked(Path objDir, String uid) {
+        for (Path idx : listIndices(objDir)) {
+            if (open(idx).contains(uid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the distinct full UIDs in the packs of OBJDIR that start with PREFIX. */
+    static List<String> findPackedByPrefix(Path objDir, String prefix) {
+        List<String> matches = new ArrayList<>();
+        for (Path idx : listIndices(objDir)) {
+            for (String uid : open(idx).findByPrefix(prefix)) {
+                if (!matches.contains(uid)) {
+                    matches.add(uid);
+                }
+            }
+        }
+        return matches;
+    }
+
+    /* WRITING */
+
+    /** Streams entries into a new pack, and writes its index on {@link #finish}.
+     *  Entries may be added in any order; the index is sorted at the end.
+     *  Adding a UID twice keeps only the first copy. */
+    static class Writer implements Closeable {
+        private final Path dir;
+        private final Path tmpPack;
+        private final MessageDigest digest;
+        private final DigestOutputStream digestStream;
+        private final DataOutputStream out;
+        private final List<String> uids = new ArrayList<>();
+        private final Map<String, Long> offsets = new HashMap<>();
+        private long position;
+        private boolean finished;
+
+        Writer(Path objDir) {
+            this.dir = packDir(objDir);
+            try {
+                Files.createDirectories(dir);
+                this.tmpPack = Files.createTempFile(dir, "tmp-", ".pack");
+                this.digest = MessageDigest.getInstance("SHA-1");
+                OutputStream file = Files.newOutputStream(tmpPack);
+                this.digestStream = new DigestOutputStream(new BufferedOutputStream(file, 1 << 16), digest);
+                this.out = new DataOutputStream(digestStream);
+                out.writeBytes(PACK_MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(0); // * the count is only known at the end; readers go through the index anyway
+                position = PACK_HEADER;
+            } catch (IOException | NoSuchAlgorithmException e) {
+                throw new RuntimeException("Failed to start a pack: " + e.getMessage(), e);
+            }
+        }
+
+        /** Number of distinct objects added so far. */
+        int size() {
+            return uids.size();
+        }
+
+        boolean contains(String uid) {
+            return offsets.containsKey(uid);
+        }
+
+        /** Appends the STORED bytes of object UID, unless it is already in this pack. */
+        void add(String uid, byte[] stored) {
+            if (offsets.containsKey(uid)) {
+                return;
+            }
+            try {
+                out.writeByte(KIND_FULL);
+                out.writeLong(stored.length);
+                out.write(stored);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write pack entry " + uid + ": " + e.getMessage(), e);
+            }
+            uids.add(uid);
+            offsets.put(uid, position);
+            position += ENTRY_HEADER + stored.length;
+        }
+
+        /** Appends object UID as the DELTA (see {@link Delta}) against BASE, which must be added to
+         *  this pack as well; unless UID is already in this pack. */
+        void addDelta(String uid, String base, byte[] delta) {
+            if (offsets.containsKey(uid)) {
+                return;
+            }
+            byte[] deflated = deflate(delta);
+            try {
+                out.writeByte(KIND_DELTA);
+                out.writeLong(RAW_UID_LENGTH + deflated.length);
+                out.write(fromHex(base));
+                out.write(deflated);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write pack entry " + uid + ": " + e.getMessage(), e);
+            }
+            uids.add(uid);
+            offsets.put(uid, position);
+            position += ENTRY_HEADER + RAW_UID_LENGTH + deflated.length;
+        }
+
+        /** Deltas are always deflated, so that readers need not tell; at the level loose objects
+         *  are, except that a level of 0 (stored) means the fastest. */
+        private static byte[] deflate(byte[] delta) {
+            int level = Compression.level();
+            Deflater deflater = new Deflater(level == Deflater.DEFAULT_COMPRESSION ? level : Math.max(Deflater.BEST_SPEED, level));
+            try {
+                deflater.setInput(delta);
+                deflater.finish();
+                ByteArrayOutputStream deflated = new ByteArrayOutputStream(delta.length / 2 + 16);
+                byte[] buf = new byte[Math.max(64, Math.min(1 << 16, delta.length))];
+                while (!deflater.finished()) {
+                    deflated.write(buf, 0, deflater.deflate(buf));
+                }
+                return deflated.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /** Seals the pack, writes its index and moves both into place.
+         *  Returns the new pack, or null if nothing was added. */
+        PackFile finish() {
+            finished = true;
+            try {
+                out.flush();
+                byte[] checksum = digest.digest();
+                digestStream.on(false); // * the trailer is not part of what it checksums
+                out.write(checksum);
+                out.close();
+                if (uids.isEmpty()) {
+                    Files.deleteIfExists(tmpPack);
+                    return null;
+                }
+                String name = "pack-" + toHex(checksum);
+                Path pack = dir.resolve(name + ".pack");
+                Path idx = dir.resolve(name + ".idx");
+                Files.move(tmpPack, pack, StandardCopyOption.REPLACE_EXISTING);
+                writeIndex(idx, checksum);
+                return open(idx);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to finish pack: " + e.getMessage(), e);
+            }
+        }
+
+        private void writeIndex(Path idx, byte[] packChecksum) throws IOException {
+            String[] sorted = uids.toArray(new String[0]);
+            Arrays.sort(sorted);
+            int[] fanout = new int[256];
+            for (String uid : sorted) {
+                fanout[Integer.parseInt(uid.substring(0, 2), 16)]++;
+            }
+            for (int b = 1; b < 256; b++) {
+                fanout[b] += fanout[b - 1];
+            }
+            Path tmpIdx = Files.createTempFile(dir, "tmp-", ".idx");
+            try (DataOutputStream idxOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpIdx), 1 << 16))) {
+                idxOut.writeBytes(IDX_MAGIC);
+                idxOut.writeInt(VERSION);
+                idxOut.writeInt(sorted.length);
+                for (int f : fanout) {
+                    idxOut.writeInt(f);
+                }
+                for (String uid : sorted) {
+                    idxOut.write(fromHex(uid));
+                }
+                for (String uid : sorted) {
+                    idxOut.writeLong(offsets.get(uid));
+                }
+                idxOut.write(packChecksum);
+            }
+            Files.move(tmpIdx, idx, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /** Abandons the pack if {@link #finish} was never called. */
+        @Override
+        public void close() {
+            if (finished) {
+                return;
+            }
+            try {
+                out.close();
+                Files.deleteIfExists(tmpPack);
+            } catch (IOException e) {
+                Logging.warn.println("Failed to discard temporary pack " + tmpPack + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /* GARBAGE COLLECTION */
+
+    /** Moves every loose object of OBJDIR, together with the contents of the existing packs,
+     *  into a single new pack, then deletes the loose files and the superseded packs.
+     *  Objects are stored as deltas where that saves space; see {@link #packObjects(Path, Map, int)}.
+     *  @return the number of objects in the new pack
+     */
+    static int packObjects(Path objDir) {
+        return packObjects(objDir, Map.of(), MAX_DEPTH);
+    }
+
+    /** Like {@link #packObjects(Path)}, storing objects as deltas in chains of up to MAXDEPTH;
+     *  0 stores every object whole.
+     *  <p>
+     *  As in Git, candidates are sorted by name and then by size, largest first, so that the
+     *  versions of a file come together, and each object is tried against the last {@link #WINDOW}
+     *  objects written; the smallest delta is kept if it is less than half the object. NAMES maps
+     *  the UIDs of blobs and trees to a path they were committed at; objects without one (commits,
+     *  chunks) are only paired by size.
+     *  @return the number of objects in the new pack
+     */
+    static int packObjects(Path objDir, Map<String, String> names, int maxDepth) {
+        return packObjects(objDir, names, maxDepth, uid -> true);
+    }
+
+    /** Like {@link #packObjects(Path, Map, int)}, packing only the objects whose UIDs KEEP accepts.
+     *  The others are dropped with the old packs, and their loose files are left alone;
+     *  see {@link GarbageCollector}. */
+    static int packObjects(Path objDir, Map<String, String> names, int maxDepth, Predicate<String> keep) {
+        List<Path> oldIndices = listIndices(objDir);
+        List<Path> looseFiles = new ArrayList<>();
+        for (Path file : Dumpable.listLooseObjects(objDir)) {
+            if (keep.test(Dumpable.looseUid(file))) {
+                looseFiles.add(file);
+            }
+        }
+        if (looseFiles.isEmpty() && oldIndices.size() <= 1 && (oldIndices.isEmpty() || keepsAll(open(oldIndices.get(0)), keep))) {
+            return oldIndices.isEmpty() ? 0 : open(oldIndices.get(0)).size();
+        }
+        // * one candidate per object, wherever it is found first; only sizes are read up front
+        List<Candidate> candidates = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Path idx : oldIndices) {
+            PackFile old = open(idx);
+            for (int i = 0; i < old.size(); i++) {
+                String uid = old.uidAt(i);
+                if (keep.test(uid) && seen.add(uid)) {
+                    candidates.add(new Candidate(uid, names.getOrDefault(uid, ""), old.entryLength(i), old, i, null));
+                }
+            }
+        }
+        for (Path file : looseFiles) {
+            String uid = Dumpable.looseUid(file);
+            if (seen.add(uid)) {
+                try {
+                    candidates.add(new Candidate(uid, names.getOrDefault(uid, ""), Files.size(file), null, -1, file));
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to read loose object " + file + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        candidates.sort(Comparator.comparing(Candidate::name).thenComparing(Candidate::size, Comparator.reverseOrder()));
+        PackFile packed;
+        int deltas = 0;
+        try (Writer writer = new Writer(objDir)) {
+            Deque<WindowEntry> window = new ArrayDeque<>();
+            for (Candidate candidate : candidates) {
+                byte[] stored = candidate.read();
+                byte[] encoded = Compression.inflate(stored);
+                WindowEntry base = null;
+                byte[] best = null;
+                if (maxDepth > 0 && encoded.length >= MIN_DELTA_SIZE) {
+                    for (WindowEntry other : window) {
+                        if (other.depth() >= maxDepth) {
+                            continue;
+                        }
+                        byte[] delta = Delta.compute(other.index(), encoded,
+                                best != null ? best.length : encoded.length / 2);
+                        if (delta != null) {
+                            base = other;
+                            best = delta;
+                        }
+                    }
+                }
+                if (best != null) {
+                    writer.addDelta(candidate.uid(), base.uid(), best);
+                    deltas++;
+                } else {
+                    // * objects stored before compression was enabled get compressed on the way in
+                    writer.add(candidate.uid(), Compression.isDeflated(stored) ? stored : Compression.compress(encoded));
+                }
+                if (maxDepth > 0 && encoded.length >= MIN_DELTA_SIZE) {
+                    if (window.size() == WINDOW) {
+                        window.removeLast();
+                    }
+                    window.addFirst(new WindowEntry(candidate.uid(), new Delta.Index(encoded), best == null ? 0 : base.depth() + 1));
+                }
+            }
+            packed = writer.finish();
+        }
+        Logging.dbg.println("Packed " + candidates.size() + " object(s), " + deltas + " as deltas");
+        // * only now that the new pack is in place is it safe to drop the old copies
+        for (Path idx : oldIndices) {
+            if (packed != null && idx.equals(packed.idxPath)) {
+                continue; // * identical contents produced an identical pack name
+            }
+            PackFile old = open(idx);
+            try {
+                Files.deleteIfExists(old.idxPath);
+                Files.deleteIfExists(old.packPath);
+            } catch (IOException e) {
+                Logging.warn.println("Failed to delete superseded pack " + old.packPath.getFileName() + ": " + e.getMessage());
+            }
+        }
+        for (Path file : looseFiles) {
+            try {
+                Files.deleteIfExists(file);
+                Path shard = file.getParent();
+                try (DirectoryStream<Path> rest = Files.newDirectoryStream(shard)) {
+                    if (!rest.iterator().hasNext()) {
+                        Files.delete(shard);
+                    }
+                }
+            } catch (IOException e) {
+                Logging.warn.println("Failed to remove loose object " + file + ": " + e.getMessage());
+            }
+        }
+        return packed == null ? 0 : packed.size();
+    }
+
+    private static boolean keepsAll(PackFile pack, Predicate<String> keep) {
+        for (int i = 0; i < pack.size(); i++) {
+            if (!keep.test(pack.uidAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** An object to be packed, in an old pack at position POS, or loose in FILE. */
+    private record Candidate(String uid, String name, long size, PackFile pack, int pos, Path file) {
+        byte[] read() {
+            return pack != null ? pack.read(pos) : readContents(file);
+        }
+    }
+
+    /** A recently packed object, as a base for deltas: DEPTH deltas away from a whole object. */
+    private record WindowEntry(String uid, Delta.Index index, int depth) {
+    }
+}
@@ -0,0 +1,111 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Runs independent tasks on a bounded pool of threads, for the walks, hashes, writes and marks
+ *  that gitlet spreads over cores.
+ *  <p>
+ *  Tasks run on the calling thread while there are fewer of them than a pool pays for, and on a
+ *  pool of up to {@code parallelism} threads otherwise; the pool is started by the first batch
+ *  that needs it and kept for the batches after it, until {@link #close}. Whatever a task throws
+ *  is rethrown as if the task had run inline: a {@link RuntimeException} as it is, anything else
+ *  wrapped in one. An interrupt while waiting for tasks sets the interrupt flag again and fails.
+ */
+final class Parallel implements AutoCloseable {
+    /** At most this many threads, however many cores, for work the disk is the limit of. */
+    static final int MAX_IO_THREADS = 8;
+
+    private final int parallelism;
+    private final int minParallel;
+    private final String what;
+    private ExecutorService pool;
+
+    /** Runs tasks on up to PARALLELISM threads, on the calling thread for batches of fewer than
+     *  MINPARALLEL tasks while no pool is started; WHAT says what the tasks do, for errors. */
+    Parallel(int parallelism, int minParallel, String what) {
+        this.parallelism = check(parallelism);
+        this.minParallel = minParallel;
+        this.what = what;
+    }
+
+    /** Returns PARALLELISM, if it is positive. */
+    static int check(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        return parallelism;
+    }
+
+    /** One thread per core, but at most MAX. */
+    static int upToCores(int max) {
+        return Math.min(max, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Runs TASKS and returns their results, in the same order. */
+    <T> List<T> run(List<? extends Callable<T>> tasks) {
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            if (parallelism == 1 || tasks.size() < minParallel && pool == null) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+                return results;
+            }
+            for (Future<T> result : pool(Math.min(parallelism, tasks.size())).invokeAll(tasks)) {
+                results.add(result.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            throw failure(e.getCause());
+        } catch (InterruptedException e) {
+            throw interrupted(e);
+        } catch (Exception e) {
+            throw failure(e);
+        }
+    }
+
+    /** The pool, started with THREADS threads unless it is already; for work that hands out
+     *  tasks of its own as it goes, which then waits for them with {@link #await}. */
+    ExecutorService pool(int threads) {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(threads);
+        }
+        return pool;
+    }
+
+    /** Waits until DONE counts down. */
+    void await(CountDownLatch done) {
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            throw interrupted(e);
+        }
+    }
+
+    private RuntimeException failure(Throwable cause) {
+        if (cause instanceof RuntimeException e) {
+            return e;
+        }
+        return new RuntimeException("Failed to " + what + ": " + cause.getMessage(), cause);
+    }
+
+    private RuntimeException interrupted(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return new RuntimeException("Interrupted while trying to " + what, e);
+    }
+
+    /** Waits for the tasks still running, and stops the pool. */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+}
@@ -1,13 +1,16 @@
 package gitlet;
 
 // DONE: any imports you need here
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
+import java.util.stream.Stream;
 
 import static gitlet.Utils.*;
 
@@ -50,6 +53,9 @@ public class Repository {
     /** The hashes various tags point to. */
     public static final Path TAG_DIR = REF_DIR.resolve("tags");
 
+    /** The remotes, each a file named after it holding the path of its {@code .gitlet} directory. */
+    public static final Path RMT_DIR = GITLET_DIR.resolve("remotes");
+
     /** The HEAD file saves the HEAD pointer UID */
     public static final Path HEAD_FILE = GITLET_DIR.resolve("HEAD");
     protected String HEAD;
@@ -61,6 +67,43 @@ public class Repository {
      * This is transient and not persisted; it is rebuilt on demand.
      */
     protected transient Commit HeadCommit;
+    /** Decoded commits and blobs of this repository, shared by every lookup this process makes. */
+    protected final transient ObjectCache objectCache;
+    /** The commit graph, read on first use; see {@link #commitGraph()}. */
+    private transient CommitGraph commitGraph;
+
+    /** Returns the commit graph of this repository, reading it on first use. */
+    protected CommitGraph commitGraph() {
+        if (commitGraph == null) {
+            commitGraph = CommitGraph.open(OBJ_DIR);
+        }
+        return commitGraph;
+    }
+    /** The commit index, opened on first use; see {@link #commitIndex()}. */
+    private transient CommitIndex commitIndex;
+
+    /** Returns the index of all commits of this repository, opening it on first use.
+     *  Repositories made before there was one listed their commits in {@code global-log-commits.ser};
+     *  those commits and their first-parent histories are indexed the first time round. */
+    protected CommitIndex commitIndex() {
+        if (commitIndex == null) {
+            commitIndex = CommitIndex.open(GITLET_DIR);
+            if (commitIndex.size() == 0) {
+                List<Commit> heads = new ArrayList<>();
+                heads.add(Commit.initialCommit());
+                Path legacyList = GITLET_DIR.resolve("global-log-commits.ser");
+                if (Files.exists(legacyList)) {
+                    for (Object uid : readObject(legacyList, ArrayList.class)) {
+                        heads.add(Commit.getByUid((String) uid, objectCache));
+                    }
+                }
+                List<Commit> history = new ArrayList<>(Arrays.asList(getCommitHistory(heads.toArray(new Commit[0]))));
+                Collections.reverse(history); // * oldest first, as they were made
+                commitIndex.add(history);
+            }
+        }
+        return commitIndex;
+    }
     /**
      * Returns the current HEAD commit object, using the transient cache if available.
      * If HeadCommit is null, it will be loaded from HEAD and cached.
@@ -69,14 +112,14 @@ public class Repository {
     public Commit getHeadCommit() {
         if (HEAD == null || HEAD.isEmpty()) return null;
         if (HeadCommit == null || !HeadCommit.getUid().equals(HEAD)) {
-            HeadCommit = Commit.getByUid(HEAD);
+            HeadCommit = Commit.getByUid(HEAD, objectCache);
         }
         return HeadCommit;
     }
     public Commit getBranchCommit(String branch) {
         String commitUid = resolveHead(BRC_DIR.resolve(branch));
         // Logging.dbg.println("Resolving head commit for branch: " + branch + " -> " + commitUid);
-        return Commit.getByUid(commitUid);
+        return Commit.getByUid(commitUid, objectCache);
     }
     public static String resolveHead(Path file) {
         if (!Files.exists(file)) {
@@ -103,7 +146,7 @@ public class Repository {
         // * update the HEAD pointer to point to the new commit
         this.HEAD = newHead.getUid();
         if (Files.exists(HEAD_FILE)) {
-            writeContents(HEAD_FILE, HEAD);
+            updateRef(HEAD_FILE, null, HEAD);
         } else {
             throw error("HEAD file does not exist.");
         }
@@ -122,19 +165,42 @@ public class Repository {
      */
     protected void updateHeadRef(String newHeadRef){
         if (Files.exists(HEAD_FILE)) {
-            writeContents(HEAD_FILE, "ref: " + newHeadRef);
+            updateRef(HEAD_FILE, null, "ref: " + newHeadRef);
         } else {
             throw error("HEAD file does not exist.");
         }
     }
     protected void updateHeadRef(Path refFile){
         if (Files.exists(HEAD_FILE)) {
-            writeContents(HEAD_FILE, "ref: " + GITLET_DIR.relativize(refFile).toString().replace("\\", "/"));
+            updateRef(HEAD_FILE, null, "ref: " + GITLET_DIR.relativize(refFile).toString().replace("\\", "/"));
         } else {
             throw error("HEAD file does not exist.");
         }
     }
 
+    /** Points REFFILE, a branch file or HEAD, at VALUE, under its {@link LockFile}, provided it
+     *  still holds EXPECTED: what this process read from it before deciding on VALUE, or "" for
+     *  a ref that must not exist yet. A null EXPECTED overwrites whatever the ref holds.
+     *  <p>
+     *  This is the compare-and-swap that keeps two gitlet processes from losing each other's
+     *  commits: the later one fails here, having changed no ref, instead of silently moving the
+     *  branch back over the commit the earlier one made. */
+    static void updateRef(Path refFile, String expected, String value) {
+        LockFile lock = LockFile.acquire(refFile);
+        try {
+            if (expected != null) {
+                String current = Files.exists(refFile) ? readContentsAsString(refFile).trim() : "";
+                if (!current.equals(expected)) {
+                    throw error("%s was changed by another gitlet process while this one ran; run the command again.",
+                            GITLET_DIR.relativize(refFile).toString().replace("\\", "/"));
+                }
+            }
+            writeAtomically(refFile, value);
+        } finally {
+            lock.close();
+        }
+    }
+
     /** The index file, aka "current directory cache",
      * contains the serialization of blobs representing staged files. */
     public static final Path INDX_FILE = GITLET_DIR.resolve("index");
@@ -157,16 +223,19 @@ public class Repository {
         // * it should read the HEAD file and restore the repository to that state
         // * it should also load the staging area from the index file
         // * and load the description from the description file
-        this.HEAD = "";
-        this.defaultBranch = "main";
-        this.stagingArea = new StagingArea();
+        this(new StagingArea());
     }
     protected Repository(StagingArea stagingArea) {
         // * constructor initializes the repository with a given staging area
         // * this is used for testing purposes
+        this(stagingArea, new ObjectCache());
+    }
+    /** A repository looking objects up through OBJECTCACHE, which may outlive it; see {@link Daemon}. */
+    protected Repository(StagingArea stagingArea, ObjectCache objectCache) {
         this.HEAD = "";
         this.defaultBranch = "main";
         this.stagingArea = stagingArea;
+        this.objectCache = objectCache;
     }
 
 
@@ -208,7 +277,7 @@ public class Repository {
                 Files.createFile(Repository.INDX_FILE);
             }
             Repository repo = new Repository(); // create a new repository instance
-            writeObject(INDX_FILE, repo.stagingArea); // persist the staging area to the index file
+            repo.stagingArea.save(INDX_FILE); // persist the staging area to the index file
             if (!Files.exists(Repository.DESC_FILE)) { // create the description file
                 Files.createFile(Repository.DESC_FILE);
             }
@@ -263,12 +332,17 @@ public class Repository {
      *  @return a new Repository instance with the restored state
      */
     public static Repository reinstantiate() {
+        return reinstantiate(new ObjectCache());
+    }
+
+    /** Like {@link #reinstantiate()}, but looks objects up through OBJECTCACHE, which may already be warm. */
+    static Repository reinstantiate(ObjectCache objectCache) {
         // * reinstantiate the repository from the current HEAD
         Repository repo;
         if (Files.exists(INDX_FILE)) {
-            repo = new Repository(readObject(INDX_FILE, StagingArea.class));
+            repo = new Repository(StagingArea.load(INDX_FILE), objectCache);
         } else {
-            repo = new Repository();
+            repo = new Repository(new StagingArea(), objectCache);
         }
         if (!Files.exists(HEAD_FILE)) {
             Logging.err.println("The HEAD file does not exist.");
@@ -280,13 +354,6 @@ public class Repository {
         if (Files.exists(DESC_FILE)) {
             repo.description = readContentsAsString(DESC_FILE);
         }
-        Path globalLogFile = GITLET_DIR.resolve("global-log-commits.ser");
-        if (Files.exists(globalLogFile)) {
-            var commitList = readObject(globalLogFile, ArrayList.class);
-            repo.allCommitUids = new HashSet<String>(commitList);
-        } else {
-            repo.allCommitUids = new HashSet<String>();
-        }
         return repo;
     }
 
@@ -309,45 +376,86 @@ public class Repository {
      *  If the file does not exist, print the error message {@code File does not exist.} and exit without changing anything.
      */
     public void stageFile(String filePath) {
-        Path file = CWD.resolve(filePath);
-        if (!Files.exists(file)) {
-            throw error("File does not exist: " + filePath);
-        }
-        // if it is `add`ed, it should not be removed
-        stagingArea.removedFiles.remove(filePath);
-        Blob blob = Blob.blobify(file);
-        long mtime = 0;
-        try {
-            mtime = Files.getLastModifiedTime(file).toMillis();
-        } catch (IOException e) {
-            Logging.warn.println("Can't get last modified time of " + file.toAbsolutePath());
+        stageFiles(List.of(filePath));
+    }
+
+    /** Stages many files at once, as {@link #stageFile} does for one.
+     *  <p>
+     *  A directory among FILEPATHS stands for every file below it (except {@code .gitlet}).
+     *  Files whose size and mtime match the stat cache are not read at all; the rest are
+     *  hashed and stored concurrently by a {@link HashPipeline}, and the index is written
+     *  once at the end rather than once per file.
+     */
+    public void stageFiles(List<String> filePaths) {
+        List<String> names = expandPaths(filePaths);
+        // * stat before hashing, so that a write racing with the hash shows up as a changed mtime
+        long now = System.currentTimeMillis();
+        List<BasicFileAttributes> stats = new ArrayList<>(names.size());
+        String[] blobUids = new String[names.size()];
+        List<Integer> misses = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            Path file = CWD.resolve(names.get(i));
+            BasicFileAttributes attrs = null;
+            try {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (IOException e) {
+                Logging.warn.println("Can't get attributes of " + file.toAbsolutePath());
+            }
+            stats.add(attrs);
+            if (attrs != null) {
+                blobUids[i] = stagingArea.cachedUid(names.get(i), attrs.lastModifiedTime().toMillis(), attrs.size());
+            }
+            if (blobUids[i] == null || !Dumpable.isStored(blobUids[i], objectCache)) {
+                misses.add(i);
+            }
         }
-        long ctime = mtime;
-        try {
-            ctime = Files.readAttributes(file, BasicFileAttributes.class).creationTime().toMillis();
-        } catch (IOException e) {
-            Logging.warn.println("Can't get creation time of " + file.toAbsolutePath());
+        List<Path> toStore = new ArrayList<>(misses.size());
+        for (int i : misses) {
+            toStore.add(CWD.resolve(names.get(i)));
         }
-        long size = 0;
-        try {
-            size = Files.size(file);
-        } catch (IOException e) {
-            Logging.warn.println("Can't get size of " + file.toAbsolutePath());
+        // * streamed, so large files never sit on the heap whole
+        List<String> stored = new HashPipeline(objectCache).store(toStore);
+        for (int k = 0; k < misses.size(); k++) {
+            blobUids[misses.get(k)] = stored.get(k);
         }
         Commit headCommit = getHeadCommit();
-        if (headCommit != null && headCommit.getFileBlobs().containsKey(filePath)) {
-            String headBlobUid = headCommit.getFileBlobs().get(filePath);
-            if (blob.getUid().equals(headBlobUid)) {
+        for (int i = 0; i < names.size(); i++) {
+            String filePath = names.get(i);
+            BasicFileAttributes attrs = stats.get(i);
+            long mtime = attrs == null ? 0 : attrs.lastModifiedTime().toMillis();
+            long ctime = attrs == null ? 0 : attrs.creationTime().toMillis();
+            long size = attrs == null ? 0 : attrs.size();
+            stagingArea.cache(filePath, blobUids[i], ctime, mtime, size, now);
+            // if it is `add`ed, it should not be removed
+            stagingArea.removedFiles.remove(filePath);
+            if (headCommit != null && blobUids[i].equals(headCommit.getBlobUid(filePath))) {
                 stagingArea.stagedFiles.remove(filePath);
-                writeObject(INDX_FILE, stagingArea);
-                return;
+            } else {
+                stagingArea.stagedFiles.put(filePath, new StagingArea.fileInfo(filePath, blobUids[i], ctime, mtime, size));
             }
         }
-        stagingArea.stagedFiles.put(filePath, new StagingArea.fileInfo(filePath, blob.getUid(), ctime, mtime, size));
-        writeObject(INDX_FILE, stagingArea);
+        stagingArea.save(INDX_FILE);
+    }
+
+    /** Returns the file names FILEPATHS stand for, relative to the working directory:
+     *  files as they are, and directories replaced by the regular files below them that are not ignored. */
+    private static List<String> expandPaths(List<String> filePaths) {
+        List<String> names = new ArrayList<>();
+        for (String filePath : filePaths) {
+            Path path = CWD.resolve(filePath);
+            if (!Files.exists(path)) {
+                throw error("File does not exist: " + filePath);
+            }
+            if (!Files.isDirectory(path)) {
+                names.add(filePath);
+                continue;
+            }
+            // * all the files below it, but those .gitletignore files ignore
+            names.addAll(new WorkTree(CWD).files(CWD.relativize(path.toAbsolutePath().normalize()).toString()));
+        }
+        return names;
     }
 
-    HashSet<String> allCommitUids = new HashSet<>(); // used to track all commit UIDs for the current branch
     /** Commits the staged files to the repository.
      *  <p>
      *  This method creates a new commit with the staged files and the given commit message.
@@ -386,49 +494,50 @@ public class Repository {
         parents[0] = HEAD; // the first parent is the current HEAD
         Commit currentCommit = getHeadCommit();
         System.arraycopy(otherParents, 0, parents, 1, otherParents.length);// add the other parents
-        Commit newCommit = new Commit(message, parents, stagingArea.getStagedFileBlobs(), stagingArea.getRemovedFileBlobs(), true); // per spec, empty commits are the default
+        Commit newCommit = new Commit(message, parents, stagingArea.getStagedFileBlobs(), stagingArea.getRemovedFileBlobs(), true, objectCache); // per spec, empty commits are the default
+        commitGraph().add(newCommit, objectCache); // * keeps ancestry queries off the commit objects
 
         // // construct a map comparing newCommit with HEAD
-        Map<String, String> addedFiles = new HashMap<>(newCommit.getFileBlobs());
-        Map<String, String> removedFiles = new HashMap<>(currentCommit.getFileBlobs());
-        Map<String, String> changedFiles = new HashMap<>();
-        for (Map.Entry<String, String> entry : currentCommit.getFileBlobs().entrySet()) {
-            addedFiles.remove(entry.getKey(), entry.getValue()); // if both file name and blob UID are not changed, it is not removed or modified
-        }
-        for (Map.Entry<String, String> entry : newCommit.getFileBlobs().entrySet()) {
-            removedFiles.remove(entry.getKey(), entry.getValue()); // if both file name and blob UID are not changed, it is not added or modified
+        // * only the staged paths can differ, so look those up rather than comparing whole trees
+        Map<String, String> addedFiles = new TreeMap<>();
+        Map<String, String> removedFiles = new TreeMap<>();
+        Map<String, String> changedFiles = new TreeMap<>();
+        for (String fileName : stagingArea.getRemovedFileBlobs().keySet()) {
+            String oldBlob = currentCommit.getBlobUid(fileName);
+            if (oldBlob != null && !stagingArea.stagedFiles.containsKey(fileName)) {
+                removedFiles.put(fileName, oldBlob);
+            }
         }
-        // if a filename exists in both currentCommit and newCommit, but the blob UID is different, it is a changed file
-        for (Map.Entry<String, String> entry : currentCommit.getFileBlobs().entrySet()) {
-            if (newCommit.getFileBlobs().containsKey(entry.getKey()) && !newCommit.getFileBlobs().get(entry.getKey()).equals(entry.getValue())) {
-                changedFiles.put(entry.getKey(), newCommit.getFileBlobs().get(entry.getKey()));
+        for (Map.Entry<String, String> entry : stagingArea.getStagedFileBlobs().entrySet()) {
+            String oldBlob = currentCommit.getBlobUid(entry.getKey());
+            if (oldBlob == null) {
+                addedFiles.put(entry.getKey(), entry.getValue());
+            } else if (!oldBlob.equals(entry.getValue())) {
+                changedFiles.put(entry.getKey(), oldBlob); // if a filename exists in both, but the blob UID is different, it is a changed file
             }
         }
 
         // * update the HEAD pointer to point to the new commit
-        HEAD = newCommit.getUid();
-        allCommitUids.add(HEAD); // track all commit UIDs for the current branch
-        writeObject(GITLET_DIR.resolve("global-log-commits.ser"), new ArrayList<>(allCommitUids));
-        try {// if the HEAD file contains a ref, update it to point to the new commit
-            if (Files.exists(HEAD_FILE)) {
-                String headContent = readContentsAsString(HEAD_FILE);
-                if (headContent.startsWith("ref: ")) {
-                    // * if HEAD points to a ref, update the ref file
-                    String refPath = headContent.substring(5).trim();
-                    Path refFile = join(GITLET_DIR, refPath);
-                    if (!Files.exists(refFile)) {
-                        throw error("Ref file does not exist: " + refPath);
-                    }
-                    writeContents(refFile, HEAD); // update the ref file to point to the new commit
-                } else {
-                    Files.writeString(HEAD_FILE, HEAD);
+        String parentUid = HEAD;
+        commitIndex().add(List.of(newCommit)); // * for global-log and find
+        // if the HEAD file contains a ref, update it to point to the new commit
+        if (Files.exists(HEAD_FILE)) {
+            String headContent = readContentsAsString(HEAD_FILE);
+            if (headContent.startsWith("ref: ")) {
+                // * if HEAD points to a ref, update the ref file
+                String refPath = headContent.substring(5).trim();
+                Path refFile = join(GITLET_DIR, refPath);
+                if (!Files.exists(refFile)) {
+                    throw error("Ref file does not exist: " + refPath);
                 }
+                updateRef(refFile, parentUid, newCommit.getUid()); // update the ref file to point to the new commit
             } else {
-                throw error("HEAD file does not exist.");
+                updateRef(HEAD_FILE, parentUid, newCommit.getUid());
             }
-        } catch (IOException e) {
-            throw error("Unable to write to HEAD file: " + e.getMessage());
+        } else {
+            throw error("HEAD file does not exist.");
         }
+        HEAD = newCommit.getUid();
         // Per spec, no output on System.out, but we print the commit briefing to stderr
         Logging.info.println("[" + currentBranch() + " " + HEAD.substring(0, 7) + "] " + message);
 
@@ -457,7 +566,7 @@ public class Repository {
         // * clear the staging area
         stagingArea.stagedFiles.clear();
         stagingArea.removedFiles.clear();
-        writeObject(INDX_FILE, stagingArea); // persist the staging area to the index file
+        stagingArea.save(INDX_FILE); // persist the staging area to the index file
     }
     public void commit(String message) {
         // * no other parents than HEAD
@@ -466,14 +575,14 @@ public class Repository {
     public void mergeCommit(Commit commitToMerge, String message) {
         // 1. Find the split point (latest common ancestor)
         Commit headCommit = getHeadCommit();
-        Commit splitPoint = Commit.findLCA(headCommit, commitToMerge);
+        Commit splitPoint = Commit.findLCA(headCommit, commitToMerge, commitGraph());
         if (splitPoint == null) {
             System.out.println("No split point found. Aborting merge.");
             Logging.err.println("Merge attempted upon commits" + headCommit.getUid().substring(0, 7) + " and " + commitToMerge.getUid().substring(0, 7) + ", but the history seems unrelated.");
             return;
         }
         // check if commitToMerge is an ancestor of the current HEAD.
-        if (commitToMerge.isLinearAncestorOf(headCommit)) {
+        if (commitToMerge.isLinearAncestorOf(headCommit, commitGraph())) {
             Logging.warn.println("Incoming commit is an ancestor of the current HEAD. Nothing to do.");
             return;
         }
@@ -494,7 +603,7 @@ public class Repository {
         // check for untracked files before merge
         Set<String> trackedFiles = headCommit.getFileBlobs().keySet();
         Set<String> stagedFiles = stagingArea.stagedFiles.keySet();
-        for (String fileName : Utils.plainFilenamesIn(CWD)) {
+        for (String fileName : new WorkTree(CWD).files()) {
             if (!trackedFiles.contains(fileName) ) { // && !stagedFiles.contains(fileName)) {
                 boolean willBeOverwrittenOrDeleted =
                     commitToMerge.getFileBlobs().containsKey(fileName) ||
@@ -518,28 +627,42 @@ public class Repository {
             String mergeBlob = commitToMerge.getFileBlobs().get(filename);
             // Rule 1: Only modified in merge branch, not in current branch
             if (Objects.equals(splitBlob, headBlob) && !Objects.equals(splitBlob, mergeBlob) && mergeBlob != null) {
-                Blob blob = Blob.getByUid(mergeBlob);
-                writeContents(CWD.resolve(filename), blob.getContents());
+                Blob.writeTo(mergeBlob, CWD.resolve(filename), objectCache);
                 stageFile(filename);
             }
             // Rule 2: Only modified in current branch, not in merge branch
             else if (!Objects.equals(splitBlob, headBlob) && Objects.equals(splitBlob, mergeBlob)) {
                 // Keep current branch content, do nothing
             }
-            // Rule 3: Modified in both branches and contents differ, conflict
+            // Rule 3: Modified in both branches and contents differ: merge line by line, conflict where the changes overlap
             else if (!Objects.equals(splitBlob, headBlob) && !Objects.equals(splitBlob, mergeBlob) && !Objects.equals(headBlob, mergeBlob)) {
-                hasConflict = true;
-                String headContent = headBlob == null ? "" : Blob.getByUid(headBlob).getContentsAsString();
-                String mergeContent = mergeBlob == null ? "" : Blob.getByUid(mergeBlob).getContentsAsString();
-                String conflictContent = "<<<<<<< HEAD\n" + headContent + "=======\n" + mergeContent + ">>>>>>>\n";
-                writeContents(CWD.resolve(filename), conflictContent);
+                byte[] headContent = headBlob == null ? new byte[0] : Blob.getByUid(headBlob, objectCache).getContents();
+                byte[] mergeContent = mergeBlob == null ? new byte[0] : Blob.getByUid(mergeBlob, objectCache).getContents();
+                byte[] splitContent = splitBlob == null ? new byte[0] : Blob.getByUid(splitBlob, objectCache).getContents();
+                ThreeWayMerge.Result merged;
+                if (headBlob == null || mergeBlob == null || Diff.isBinary(headContent) || Diff.isBinary(mergeContent)) {
+                    // * a deletion against a change, or a binary file, conflicts as a whole
+                    merged = ThreeWayMerge.wholeFileConflict(headContent, mergeContent);
+                } else {
+                    merged = ThreeWayMerge.merge(splitContent, headContent, mergeContent);
+                }
+                Trace trace = Trace.of(objectCache);
+                long start = trace == null ? 0 : System.nanoTime();
+                writeContents(CWD.resolve(filename), merged.text());
+                if (trace != null) {
+                    trace.fileWrite(start, Path.of(filename), merged.text().length);
+                }
                 stageFile(filename);
-                Logging.warn.println("Encountered a merge conflict in file: " + filename);
+                if (merged.isClean()) {
+                    Logging.info.println("Merged changes of both branches to file: " + filename);
+                } else {
+                    hasConflict = true;
+                    Logging.warn.println("Encountered " + merged.conflicts() + " merge conflict(s) in file: " + filename);
+                }
             }
             // Rule 5: Not present at split point, present only in merge branch
             else if (splitBlob == null && mergeBlob != null && headBlob == null) {
-                Blob blob = Blob.getByUid(mergeBlob);
-                writeContents(CWD.resolve(filename), blob.getContents());
+                Blob.writeTo(mergeBlob, CWD.resolve(filename), objectCache);
                 stageFile(filename);
             }
             // Rule 6: Present at split point, unmodified in current branch, absent in merge branch
@@ -585,7 +708,7 @@ public class Repository {
             commitPrefix = HEAD;
         }
         try {
-            Commit intendedCommit = Commit.getByUid(commitPrefix);
+            Commit intendedCommit = Commit.getByUid(commitPrefix, objectCache);
             if (intendedCommit == null) {
                 System.out.println("No commit with that id exists.");
                 return;
@@ -595,14 +718,8 @@ public class Repository {
                 Logging.err.println("File " + filename + " does not exist in commit " + commitPrefix);
                 return;
             }
-            Blob blob = Blob.getByUid(intendedCommit.getFileBlobs().get(filename));
-            if (blob == null) {
-                System.out.println("File does not exist in that commit.");
-                Logging.err.println("Blob for file " + filename + " missing in commit " + commitPrefix);
-                return;
-            }
             Path file = CWD.resolve(filename);
-            writeContents(file, blob.getContents());
+            Blob.writeTo(intendedCommit.getFileBlobs().get(filename), file, objectCache);
             Logging.info.println("File " + filename + " has been restored to the working directory.");
         } catch (GitletException e) {
             if (e.getMessage().contains("Object does not exist")) {
@@ -638,13 +755,13 @@ public class Repository {
             commitPrefix = HEAD;
         }
         try {
-            Commit intendedCommit = Commit.getByUid(commitPrefix);
+            Commit intendedCommit = Commit.getByUid(commitPrefix, objectCache);
             if (intendedCommit == null) {
                 System.out.println("No commit with that id exists.");
                 return;
             }
             // * check for untracked files in the working directory // ! the spec requires a hard reset
-            for (String fileName : plainFilenamesIn(CWD)) {
+            for (String fileName : new WorkTree(CWD).files()) {
                 Path file = CWD.resolve(fileName);
                 if (Files.exists(file) && (!getHeadCommit().getFileBlobs().containsKey(fileName) && !stagingArea.stagedFiles.containsKey(fileName))) { // ! per spec, we should not check the staging area
                     // * if the file is tracked in the commit, it should not be untracked
@@ -653,29 +770,17 @@ public class Repository {
                     return;
                 }
             }
-            // * restore all files tracked by the given commit
-            for (String fileName : intendedCommit.getFileBlobs().keySet()) {
-                restoreFile(intendedCommit.getUid(), fileName);
-            }
+            // * restore all files tracked by the given commit, writing only those that differ
+            Checkout checkout = new Checkout(CWD, stagingArea, objectCache);
+            checkout.run(getHeadCommit(), intendedCommit);
             // * remove files that are not present in the commit
-            for (String fileName : plainFilenamesIn(CWD)) {
-                if (!intendedCommit.getFileBlobs().containsKey(fileName) && !stagingArea.stagedFiles.containsKey(fileName)) {
-                    Path file = CWD.resolve(fileName);
-                    if (Files.exists(file)) {
-                        if (restrictedDelete(file)) {
-                            Logging.info.println("Removed " + fileName + " from the working directory.");
-                        } else {
-                            Logging.warn.println("Failed to delete file: " + fileName + " ; removing from gitlet anyway.");
-                        }
-                    }
-                }
-            }
+            removeUntrackedBy(intendedCommit, checkout);
+            // updateHeadRef(intendedCommit); // update the HEAD pointer to point to the new commit
+            updateRef(BRC_DIR.resolve(currentBranch()), HEAD, intendedCommit.getUid()); // update the current branch file to point to the intended commit
             // * clear the staging area
             stagingArea.stagedFiles.clear();
             stagingArea.removedFiles.clear();
-            writeObject(INDX_FILE, stagingArea); // persist the staging area to the index file
-            // updateHeadRef(intendedCommit); // update the HEAD pointer to point to the new commit
-            writeContents(BRC_DIR.resolve(currentBranch()), intendedCommit.getUid()); // update the current branch file to point to the intended commit
+            stagingArea.save(INDX_FILE); // persist the staging area to the index file
         } catch (GitletException e) {
             if (e.getMessage().contains("Object does not exist")) {
                 System.err.println(e.getMessage());
@@ -686,6 +791,21 @@ public class Repository {
         }
     }
 
+    /** Deletes the working files COMMIT does not track, other than staged and ignored ones, through CHECKOUT,
+     *  which also removes the directories that leaves empty. */
+    private void removeUntrackedBy(Commit commit, Checkout checkout) {
+        List<String> doomed = new ArrayList<>();
+        for (String fileName : new WorkTree(CWD).files()) {
+            if (!commit.getFileBlobs().containsKey(fileName) && !stagingArea.stagedFiles.containsKey(fileName)) {
+                doomed.add(fileName);
+            }
+        }
+        int deleted = checkout.delete(doomed);
+        if (deleted > 0) {
+            Logging.info.println("Removed " + deleted + " file(s) from the working directory.");
+        }
+    }
+
     /** Checks out a branch and updates the working directory.
      *
      *  @param branch the name of the branch to check out
@@ -720,7 +840,7 @@ public class Repository {
             return;
         }
         String branchCommitUid = readContentsAsString(branchFile).trim();
-        Commit intendedCommit = Commit.getByUid(branchCommitUid);
+        Commit intendedCommit = Commit.getByUid(branchCommitUid, objectCache);
         if (intendedCommit == null) {
             System.out.println("No such branch exists.");
             return;
@@ -735,27 +855,15 @@ public class Repository {
         //         return;
         //     }
         // }
-        // * restore all files tracked by the given commit
-        for (String fileName : intendedCommit.getFileBlobs().keySet()) {
-            restoreFile(intendedCommit.getUid(), fileName);
-        }
+        // * restore all files tracked by the given commit, writing only those that differ
+        Checkout checkout = new Checkout(CWD, stagingArea, objectCache);
+        checkout.run(getHeadCommit(), intendedCommit);
         // * remove files that are not present in the commit
-        for (String fileName : plainFilenamesIn(CWD)) {
-            if (!intendedCommit.getFileBlobs().containsKey(fileName) && !stagingArea.stagedFiles.containsKey(fileName)) {
-                Path file = CWD.resolve(fileName);
-                if (Files.exists(file)) {
-                    if (restrictedDelete(file)) {
-                        Logging.info.println("Removed " + fileName + " from the working directory.");
-                    } else {
-                        Logging.warn.println("Failed to delete file: " + fileName + " ; removing from gitlet anyway.");
-                    }
-                }
-            }
-        }
+        removeUntrackedBy(intendedCommit, checkout);
         // * clear the staging area
         stagingArea.stagedFiles.clear();
         stagingArea.removedFiles.clear();
-        writeObject(INDX_FILE, stagingArea); // persist the staging area to the index file
+        stagingArea.save(INDX_FILE); // persist the staging area to the index file
         // * update the HEAD pointer to point to the new commit
         updateHeadRef(branchFile); // update the HEAD pointer to point to the new commit
     }
@@ -790,23 +898,25 @@ public class Repository {
         // * if the file is staged, unstage it
         if (stagingArea.stagedFiles.containsKey(filename)) {
             stagingArea.stagedFiles.remove(filename);
-            writeObject(INDX_FILE, stagingArea); // persist the staging area to the index file
+            stagingArea.save(INDX_FILE); // persist the staging area to the index file
             Logging.info.println("Unstaged " + filename + ".");
             return;
         }
         // * if the file is tracked in the current commit, stage it for removal
         Commit currentCommit = getHeadCommit(); // Use cached HEAD commit
-        if (currentCommit.getFileBlobs().containsKey(filename)) {
+        String trackedBlob = currentCommit.getBlobUid(filename);
+        if (trackedBlob != null) {
             long fileLength = 0;
             try {
                 fileLength = Files.size(file);
             } catch (IOException e) {
                 Logging.err.println("Failed to get file length: " + e.getMessage());
             }
-            stagingArea.removedFiles.put(filename, new StagingArea.fileInfo(filename, currentCommit.getFileBlobs().get(filename),
+            stagingArea.removedFiles.put(filename, new StagingArea.fileInfo(filename, trackedBlob,
                     Instant.now().toEpochMilli(), Instant.now().toEpochMilli(), fileLength));
-            writeObject(INDX_FILE, stagingArea); // persist the staging area to the index file
-            if (restrictedDelete(file)) { // remove the file from the working directory
+            stagingArea.save(INDX_FILE); // persist the staging area to the index file
+            // * remove the file from the working directory, and the directories that leaves empty
+            if (Files.exists(file) && new Checkout(CWD, stagingArea, objectCache).delete(List.of(filename)) == 1) {
                 // Logging.info.println("Removed " + filename + ".");
             } else {
                 Logging.err.println("Failed to remove " + filename + ". It may not be writable or does not exist.");
@@ -830,17 +940,74 @@ public class Repository {
      *  the information it should display is the commit id, the time the commit was made, and the commit message.
      */
     public void log(Commit[] commits) {
+        log(Arrays.asList(commits).iterator());
+    }
+    /** Prints each commit of COMMITS as it comes, so that a {@link CommitWalk} is printed while it is read. */
+    void log(Iterator<Commit> commits) {
         // * print the commit history
         DateTimeFormatter formatter = DateTimeFormatter // Format timestamp as local time with zone
                 .ofPattern("EEE MMM d HH:mm:ss yyyy XX", Locale.US).withZone(ZoneId.systemDefault()); // Local, according to Berkeley
-        for (Commit commit : commits) {
-            commit.logCommit(formatter); // Print commit info
+        while (commits.hasNext()) {
+            commits.next().logCommit(formatter); // Print commit info
         }
     }
     public void log() {
+        log(Integer.MAX_VALUE, null);
+    }
+    /** Logs at most LIMIT commits of the history of HEAD, none of them made before SINCE if it is not null;
+     *  the walk stops at the first commit it does not print. */
+    public void log(int limit, Instant since) {
         // * log the commit history starting from the current HEAD commit
-        Commit[] heads = {getHeadCommit()};
-        log(getCommitHistory(heads));
+        Trace trace = Trace.of(objectCache);
+        long start = trace == null ? 0 : System.nanoTime();
+        CommitWalk commits = new CommitWalk(List.of(getHeadCommit()), objectCache, limit, since);
+        log(commits);
+        if (trace != null) {
+            trace.walk(start, "log", false, commits.returned());
+        }
+    }
+
+    /** Prints the history of HEAD one commit per line: the shortest unique abbreviation
+     *  of its UID (see {@link UidIndex#shortestUniquePrefix}) and the first line of its message. */
+    public void logOneline() {
+        logOneline(Integer.MAX_VALUE, null);
+    }
+    /** Like {@link #logOneline()}, with the limits of {@link #log(int, Instant)}. */
+    public void logOneline(int limit, Instant since) {
+        try (UidIndex uids = UidIndex.open(OBJ_DIR)) {
+            Trace trace = Trace.of(objectCache);
+            long start = trace == null ? 0 : System.nanoTime();
+            CommitWalk commits = new CommitWalk(List.of(getHeadCommit()), objectCache, limit, since);
+            while (commits.hasNext()) {
+                Commit commit = commits.next();
+                String title = commit.message.lines().findFirst().orElse("");
+                System.out.println(uids.shortestUniquePrefix(commit.getUid(), UidIndex.MIN_ABBREV) + " " + title);
+            }
+            if (trace != null) {
+                trace.walk(start, "log", false, commits.returned());
+            }
+        }
+    }
+
+    /** Prints every commit ever made in the repository, newest first, in the format of {@link #log()}.
+     *  The commits come from the {@link CommitIndex}; none is read from the object store. */
+    public void globalLog() {
+        DateTimeFormatter formatter = DateTimeFormatter // Format timestamp as local time with zone
+                .ofPattern("EEE MMM d HH:mm:ss yyyy XX", Locale.US).withZone(ZoneId.systemDefault()); // Local, according to Berkeley
+        StringBuilder out = new StringBuilder();
+        commitIndex().forEachNewestFirst(entry -> {
+            out.setLength(0);
+            out.append("===\n")
+                    .append("commit ").append(entry.uid()).append('\n')
+                    .append("Date: ").append(formatter.format(entry.timestamp())).append('\n')
+                    .append(entry.message()).append('\n');
+            System.out.println(out);
+        });
+    }
+
+    /** Returns the UIDs of the commits whose message is MESSAGE, oldest first, looked up in the {@link CommitIndex}. */
+    public List<String> find(String message) {
+        return commitIndex().find(message).stream().map(CommitIndex.Entry::uid).toList();
     }
 
     /** Gets the commit history starting from the given heads.
@@ -857,23 +1024,9 @@ public class Repository {
         if (heads == null || heads.length == 0) {
             return new Commit[0]; // no heads, return empty array
         }
-        Set<Commit> historySet = new HashSet<>();
-        for (Commit head : heads) {
-            Commit currentCommit = head;
-            while (currentCommit != null && !historySet.contains(currentCommit)) {
-                historySet.add(currentCommit);
-                if (currentCommit.isInitialCommit() || currentCommit.parents == null || currentCommit.parents.length == 0) {
-                    // * if the commit has no parents, it is the initial commit
-                    break; // stop at the initial commit
-                }
-                if (currentCommit.parents[0].equals(Commit.initialCommit().getUid())) {
-                    currentCommit = Commit.initialCommit();
-                } else {
-                    currentCommit = Commit.getByUid(currentCommit.parents[0]);
-                }
-            }
-        }
-        return historySet.stream().sorted(Comparator.comparingLong(Commit::getTime).reversed()).toArray(Commit[]::new);
+        List<Commit> history = new ArrayList<>();
+        new CommitWalk(Arrays.asList(heads), objectCache).forEachRemaining(history::add);
+        return history.toArray(new Commit[0]);
     }
 
     public String currentBranch() {
@@ -906,6 +1059,16 @@ public class Repository {
         return false; // if the HEAD file does not exist, it is not detached
     }
 
+    /** Returns the attributes of the regular file FILE, or null if there is none. */
+    private static BasicFileAttributes statOrNull(Path file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            return attrs.isRegularFile() ? attrs : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     public void status() {
         Commit currentCommit = getHeadCommit();
         Set<String> trackedFiles = currentCommit.getFileBlobs().keySet();
@@ -950,37 +1113,168 @@ public class Repository {
         System.out.println();
         System.out.println("=== Modifications Not Staged For Commit ===");
         // dynamically check for unstaged files
-        trackedFiles.stream().sorted().forEach(fileName -> {
+        boolean statCacheChanged = false;
+        List<String> candidates = new ArrayList<>();
+        for (String fileName : trackedFiles.stream().sorted().toList()) {
             // skip staged and removed
-            if (stagingArea.stagedFiles.containsKey(fileName) || stagingArea.removedFiles.containsKey(fileName)) {
-                return;
+            if (!stagingArea.stagedFiles.containsKey(fileName) && !stagingArea.removedFiles.containsKey(fileName)) {
+                candidates.add(fileName);
             }
-            Path file = CWD.resolve(fileName);
-            if (Files.exists(file)) {
-                Blob blob = Blob.blobify(file);
-                String headBlobUid = currentCommit.getFileBlobs().get(fileName);
-                if (!blob.getUid().equals(headBlobUid)) {
-                    System.out.println(fileName);
-                }
+        }
+        long now = System.currentTimeMillis();
+        Map<String, BasicFileAttributes> stats = new HashMap<>();
+        Map<String, String> blobUids = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        for (String fileName : candidates) {
+            BasicFileAttributes attrs = statOrNull(CWD.resolve(fileName));
+            if (attrs == null) {
+                continue;
+            }
+            stats.put(fileName, attrs);
+            // * unchanged size and mtime: trust the stat cache instead of reading the file
+            String blobUid = stagingArea.cachedUid(fileName, attrs.lastModifiedTime().toMillis(), attrs.size());
+            if (blobUid == null) {
+                misses.add(fileName);
             } else {
-                System.out.println(fileName);
+                blobUids.put(fileName, blobUid);
             }
-        });
+        }
+        // * only hashed, all at once; status need not store anything
+        List<String> hashed = new HashPipeline(objectCache).hash(misses.stream().map(CWD::resolve).toList());
+        for (int i = 0; i < misses.size(); i++) {
+            String fileName = misses.get(i);
+            BasicFileAttributes attrs = stats.get(fileName);
+            blobUids.put(fileName, hashed.get(i));
+            statCacheChanged |= stagingArea.cache(fileName, hashed.get(i), attrs.creationTime().toMillis(),
+                    attrs.lastModifiedTime().toMillis(), attrs.size(), now);
+        }
+        for (String fileName : candidates) {
+            String blobUid = blobUids.get(fileName);
+            if (blobUid == null || !blobUid.equals(currentCommit.getFileBlobs().get(fileName))) {
+                System.out.println(fileName); // * modified, or deleted
+            }
+        }
+        Set<String> cacheable = new HashSet<>(trackedFiles);
+        cacheable.addAll(stagingArea.stagedFiles.keySet());
+        statCacheChanged |= stagingArea.pruneStatCache(cacheable);
+        if (statCacheChanged) {
+            stagingArea.trySave(INDX_FILE); // * keep what was hashed for the next status, unless a writer is busy
+        }
         System.out.println();
         System.out.println("=== Untracked Files ===");
         // Print untracked files: files in CWD that are not staged, not unstaged, not removed, and not tracked by the current commit
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(CWD, entry -> !entry.getFileName().toString().equals(".gitlet")
-                && !stagingArea.stagedFiles.containsKey(entry.getFileName().toString())
-                && !stagingArea.unstagedFiles.containsKey(entry.getFileName().toString())
-                && !stagingArea.removedFiles.containsKey(entry.getFileName().toString())
-                && !trackedFiles.contains(entry.getFileName().toString()))) {
-            for (Path file : stream) {
-                System.out.println(file.getFileName());
+        // * at any depth, but those .gitletignore files ignore
+        for (String fileName : new WorkTree(CWD).files()) {
+            if (!stagingArea.stagedFiles.containsKey(fileName) && !stagingArea.unstagedFiles.containsKey(fileName)
+                    && !stagingArea.removedFiles.containsKey(fileName) && !trackedFiles.contains(fileName)) {
+                System.out.println(fileName);
             }
+        }
+    }
+
+    /** Shows the changes between two versions of the tracked files, as a unified diff.
+     *  <p>
+     *  With no REVISIONS, from the index (the head commit with what is staged) to the working tree;
+     *  with one, from that commit to the working tree; with two, from the first commit to the second.
+     *  With CACHED, from the given commit, or the head commit, to the index instead.
+     *  A revision is a branch name or a commit UID, which may be abbreviated.
+     *  <p>
+     *  Files with the same blob UID on both sides are skipped without being read; a working file
+     *  whose size and mtime match the stat cache is taken to have the UID it was last hashed to.
+     */
+    public void diff(boolean cached, String... revisions) {
+        Map<String, String> from, to;
+        boolean toWorkingTree = false;
+        try {
+            if (revisions.length == 2) {
+                from = revision(revisions[0]).getFileBlobs();
+                to = revision(revisions[1]).getFileBlobs();
+            } else if (cached) {
+                from = revisions.length == 1 ? revision(revisions[0]).getFileBlobs() : getHeadCommit().getFileBlobs();
+                to = indexFileBlobs();
+            } else {
+                from = revisions.length == 1 ? revision(revisions[0]).getFileBlobs() : indexFileBlobs();
+                Set<String> tracked = new TreeSet<>(from.keySet());
+                tracked.addAll(indexFileBlobs().keySet());
+                to = workingFileBlobs(tracked);
+                toWorkingTree = true;
+            }
+        } catch (GitletException e) {
+            if (e.getMessage().contains("Object does not exist")) {
+                System.err.println(e.getMessage());
+                System.out.println("No commit with that id exists.");
+                return;
+            }
+            throw e;
+        }
+        Set<String> paths = new TreeSet<>(from.keySet());
+        paths.addAll(to.keySet());
+        OutputStream out = new BufferedOutputStream(System.out, 1 << 16); // * hunks go out as they are made
+        UnifiedDiff diff = new UnifiedDiff(out);
+        for (String path : paths) {
+            String before = from.get(path), after = to.get(path);
+            if (Objects.equals(before, after)) {
+                continue; // * same blob: nothing to read
+            }
+            // * read a block at a time, never decoded whole nor cached; see UnifiedDiff.Text
+            try (UnifiedDiff.Text a = before == null ? null : UnifiedDiff.Text.ofBlob(before, objectCache);
+                 UnifiedDiff.Text b = after == null ? null : toWorkingTree ? UnifiedDiff.Text.of(CWD.resolve(path))
+                         : UnifiedDiff.Text.ofBlob(after, objectCache)) {
+                diff.file(path, before, a, after, b);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read " + path + ": " + e.getMessage(), e);
+            }
+        }
+        try {
+            out.flush();
         } catch (IOException e) {
-            Logging.err.println("Failed to list untracked files: " + e.getMessage());
+            throw new RuntimeException("Failed to write diff", e);
+        }
+    }
+
+    /** Returns the commit a branch named REVISION points to, or else the commit REVISION abbreviates. */
+    private Commit revision(String revision) {
+        if (!revision.isBlank() && !revision.contains("/") && Files.isRegularFile(BRC_DIR.resolve(revision))) {
+            return getBranchCommit(revision);
+        }
+        try {
+            return Commit.getByUid(revision, objectCache);
+        } catch (IllegalArgumentException e) {
+            throw error("Object does not exist: " + revision); // * not even a UID
         }
     }
+
+    /** Returns the files the next commit would have: those of the head commit, as staged. */
+    private Map<String, String> indexFileBlobs() {
+        Map<String, String> files = new TreeMap<>(getHeadCommit().getFileBlobs());
+        files.keySet().removeAll(stagingArea.getRemovedFileBlobs().keySet());
+        files.putAll(stagingArea.getStagedFileBlobs());
+        return files;
+    }
+
+    /** Returns the blob UIDs of those of the working files PATHS that exist, hashing those the stat cache misses. */
+    private Map<String, String> workingFileBlobs(Collection<String> paths) {
+        Map<String, String> files = new TreeMap<>();
+        List<String> misses = new ArrayList<>();
+        for (String path : paths) {
+            BasicFileAttributes attrs = statOrNull(CWD.resolve(path));
+            if (attrs == null || !attrs.isRegularFile()) {
+                continue;
+            }
+            String uid = stagingArea.cachedUid(path, attrs.lastModifiedTime().toMillis(), attrs.size());
+            if (uid == null) {
+                misses.add(path);
+            } else {
+                files.put(path, uid);
+            }
+        }
+        List<String> hashed = new HashPipeline(objectCache).hash(misses.stream().map(CWD::resolve).toList());
+        for (int i = 0; i < misses.size(); i++) {
+            files.put(misses.get(i), hashed.get(i));
+        }
+        return files;
+    }
+
     /**
      * Create a new branch pointing to the current HEAD.
      * @param branchName the name of the branch to create
@@ -1010,12 +1304,7 @@ public class Repository {
             System.out.println("A branch with that name already exists.");
             return;
         }
-        try {
-            Files.createFile(branchFile);
-            writeContents(branchFile, targetUid);
-        } catch (IOException e) {
-            throw error("Failed to create branch: " + e.getMessage());
-        }
+        updateRef(branchFile, "", targetUid); // * "": unless another process has just created it
     }
     public void createBranch(String branchName) {
         // * create a new branch pointing to the current HEAD
@@ -1053,65 +1342,47 @@ public class Repository {
         }
         String branchCommitUid = readContentsAsString(branchFile).trim();
         // checkout the commit, restoring the working directory
-        Commit targetCommit = Commit.getByUid(branchCommitUid); // Use cached HEAD commit
+        Commit targetCommit = Commit.getByUid(branchCommitUid, objectCache); // Use cached HEAD commit
         if (targetCommit == null) {
             System.out.println("No commit found for branch: " + branch);
             return;
         }
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(CWD, entry -> !entry.getFileName().toString().equals(".gitlet")
-                && !stagingArea.stagedFiles.containsKey(entry.getFileName().toString())
-                && !stagingArea.unstagedFiles.containsKey(entry.getFileName().toString())
-                && !stagingArea.removedFiles.containsKey(entry.getFileName().toString())
-                && !getHeadCommit().getFileBlobs().containsKey(entry.getFileName().toString()))) {
-            List<String> untrackedFiles = new ArrayList<>();
-            for (Path file : stream) {
-                untrackedFiles.add(file.getFileName().toString());
-            }
-            if (!untrackedFiles.isEmpty()) {
-                System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                Logging.err.println("Untracked files that would be overwritten by the switch:");
-                for (String fileName : untrackedFiles) {
-                    Logging.err.println(fileName);
-                }
-                return;
+        List<String> untrackedFiles = new ArrayList<>();
+        for (String fileName : new WorkTree(CWD).files()) {
+            if (!stagingArea.stagedFiles.containsKey(fileName) && !stagingArea.unstagedFiles.containsKey(fileName)
+                    && !stagingArea.removedFiles.containsKey(fileName) && !getHeadCommit().getFileBlobs().containsKey(fileName)) {
+                untrackedFiles.add(fileName);
             }
-        } catch (IOException e) {
-            Logging.err.println("Failed to check untracked files: " + e.getMessage()); return;
         }
+        if (!untrackedFiles.isEmpty()) {
+            System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
+            Logging.err.println("Untracked files that would be overwritten by the switch:");
+            for (String fileName : untrackedFiles) {
+                Logging.err.println(fileName);
+            }
+            return;
+        }
+        // restore the working directory to the state of the target commit, writing only the files that differ
+        Checkout checkout = new Checkout(CWD, stagingArea, objectCache);
+        checkout.run(getHeadCommit(), targetCommit);
         // point HEAD to the branch commit
         updateHeadRef(branchFile);
         this.HEAD = branchCommitUid;
-        this.HeadCommit = Commit.getByUid(branchCommitUid);
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(CWD, entry -> !entry.getFileName().toString().equals(".gitlet"))) {
-            for (Path file : stream) {
-                if (!file.getFileName().toString().equals(".gitlet")) {
-                    if (restrictedDelete(file)) {
-                        Logging.info.println("Deleted file " + file.getFileName() + " from working directory.");
-                    } else {
-                        Logging.err.println("Failed to delete file " + file.getFileName());
-                    }
-                }
+        this.HeadCommit = targetCommit;
+        // * whatever else is left was staged, and goes with the staging area; ignored files stay
+        List<String> leftover = new ArrayList<>();
+        for (String fileName : new WorkTree(CWD).files()) {
+            if (!targetCommit.getFileBlobs().containsKey(fileName)) {
+                leftover.add(fileName);
             }
-        } catch (IOException e) {
-            Logging.err.println("Failed to clean working directory: " + e.getMessage());
+        }
+        if (!leftover.isEmpty()) {
+            Logging.info.println("Deleted " + checkout.delete(leftover) + " file(s) left from the working directory.");
         }
         // clear the staging area
         stagingArea.stagedFiles.clear();
         stagingArea.removedFiles.clear();
-        writeObject(INDX_FILE, stagingArea); // persist the staging area to the index file
-        // restore the working directory to the state of the target commit
-        for (Map.Entry<String, String> entry : targetCommit.getFileBlobs().entrySet()) {
-            String fileName = entry.getKey();
-            String blobUid = entry.getValue();
-            Blob blob = Blob.getByUid(blobUid);
-            if (blob != null) {
-                Path file = CWD.resolve(fileName);
-                writeContents(file, blob.getContents());
-                Logging.dbg.println("Restored file " + file.getFileName() + " to working directory.");
-            } else {
-                Logging.err.println("Blob for file " + fileName + " not found in commit " + branchCommitUid);
-            }
-        }
+        stagingArea.save(INDX_FILE); // persist the staging area to the index file
         Logging.info.println("Switched to branch '" + branch + "'.");
     }
 
@@ -1131,10 +1402,12 @@ public class Repository {
                 if (Files.isDirectory(f)) {
                     try (DirectoryStream<Path> subStream = Files.newDirectoryStream(f)) {
                         for (Path sub : subStream) {
-                            branchNames.add(BRC_DIR.relativize(sub).toString().replace("\\", "/"));
+                            if (!isTransient(sub)) {
+                                branchNames.add(BRC_DIR.relativize(sub).toString().replace("\\", "/"));
+                            }
                         }
                     }
-                } else {
+                } else if (!isTransient(f)) {
                     branchNames.add(BRC_DIR.relativize(f).toString().replace("\\", "/"));
                 }
             }
@@ -1175,11 +1448,14 @@ public class Repository {
             System.out.println("A branch with that name does not exist.");
             return;
         }
+        LockFile lock = LockFile.acquire(branchFile);
         try {
             Files.delete(branchFile);
             Logging.info.println("Removed branch '" + branch + "'.");
         } catch (IOException e) {
             Logging.err.println("Failed to remove branch: " + e.getMessage());
+        } finally {
+            lock.close();
         }
     }
 
@@ -1277,7 +1553,7 @@ public class Repository {
             return;
         }
         String branchCommitUid = readContentsAsString(branchFile).trim();
-        Commit commitToMerge = Commit.getByUid(branchCommitUid);
+        Commit commitToMerge = Commit.getByUid(branchCommitUid, objectCache);
         if (commitToMerge == null) {
             System.out.println("No commit found for branch: " + branch);
             return;
@@ -1297,51 +1573,26 @@ public class Repository {
             return;
         }
         // check if commitToMerge is an ancestor of the current HEAD.
-        if (commitToMerge.isLinearAncestorOf(getHeadCommit())) {
+        if (commitToMerge.isLinearAncestorOf(getHeadCommit(), commitGraph())) {
             System.out.println("Given branch is an ancestor of the current branch.");
             // Logging.info.println("Given branch is an ancestor of the current branch.");
             return;
         }
         // check if fast-forward is possible
-        if (getHeadCommit().isLinearAncestorOf(commitToMerge)) {
+        if (getHeadCommit().isLinearAncestorOf(commitToMerge, commitGraph())) {
             // fast-forward the current branch to the commitToMerge
             String oldCommitUid = HEAD; // save the old HEAD commit UID
-            Commit currentCommit = getHeadCommit();
-            Set<String> currentFiles = new HashSet<>(currentCommit.getFileBlobs().keySet());
-            Set<String> targetFiles = new HashSet<>(commitToMerge.getFileBlobs().keySet());
-            // 删除当前分支有但目标分支没有的文件
-            for (String fileName : currentFiles) {
-                if (!targetFiles.contains(fileName)) {
-                    Path file = CWD.resolve(fileName);
-                    if (Files.exists(file)) {
-                        if (restrictedDelete(file)) {
-                            Logging.info.println("Deleted file " + fileName + " from working directory.");
-                        }
-                    }
-                }
-            }
-            // 恢复目标分支的文件
-            for (Map.Entry<String, String> entry : commitToMerge.getFileBlobs().entrySet()) {
-                String fileName = entry.getKey();
-                String blobUid = entry.getValue();
-                Blob blob = Blob.getByUid(blobUid);
-                if (blob != null) {
-                    Path file = CWD.resolve(fileName);
-                    writeContents(file, blob.getContents());
-                    Logging.info.println("Restored file " + file.getFileName() + " to working directory.");
-                } else {
-                    Logging.err.println("Blob for file " + fileName + " not found in commit " + branchCommitUid);
-                }
-            }
+            // 删除当前分支有但目标分支没有的文件, 恢复目标分支的文件
+            new Checkout(CWD, stagingArea, objectCache).run(getHeadCommit(), commitToMerge);
             // 更新 HEAD 指针和分支指针
-            writeContents(BRC_DIR.resolve(currentBranch()), commitToMerge.getUid());
+            updateRef(BRC_DIR.resolve(currentBranch()), oldCommitUid, commitToMerge.getUid());
             updateHeadRef(BRC_DIR.resolve(currentBranch()));
             this.HEAD = commitToMerge.getUid();
             this.HeadCommit = commitToMerge;
             // 清空暂存区
             stagingArea.stagedFiles.clear();
             stagingArea.removedFiles.clear();
-            writeObject(INDX_FILE, stagingArea);
+            stagingArea.save(INDX_FILE);
             System.out.println("Current branch fast-forwarded.");
             Logging.dbg.println("Fast-forward " + currentBranch() + "  " + oldCommitUid.substring(0, 7) + " -> " + HEAD.substring(0, 7) + " (" + branch + ")");
             return;
@@ -1349,7 +1600,306 @@ public class Repository {
         Logging.info.printf("Merging %s into %s.\n", branch, currentBranch());
         mergeCommit(commitToMerge, String.format("Merged %s into %s.", branch, currentBranch()));
         // update branchFile
-        writeContents(branchFile, HEAD); // update the branch file to point to the new HEAD commit
+        updateRef(branchFile, branchCommitUid, HEAD); // update the branch file to point to the new HEAD commit
+    }
+
+    /** Saves the login information of a remote gitlet repository.
+     *
+     *  @param name the name of the remote
+     *  @param dir the path of its {@code .gitlet} directory, {@code '/'}-separated, relative to the working directory or absolute
+     *
+     *  @implSpec Saves the given login information under the given remote name.
+     *  Attempts to push or pull from the given remote name will then attempt to use this {@code .gitlet} directory.
+     *  If a remote with the given name already exists, print {@code A remote with that name already exists.}
+     *  You don't have to check if the user name and server information are legit.
+     */
+    public void addRemote(String name, String dir) {
+        Path remoteFile = RMT_DIR.resolve(name);
+        if (Files.exists(remoteFile)) {
+            System.out.println("A remote with that name already exists.");
+            return;
+        }
+        try {
+            Files.createDirectories(RMT_DIR);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create " + RMT_DIR, e);
+        }
+        updateRef(remoteFile, "", dir);
+    }
+
+    /** Removes the remote NAME.
+     *  @implSpec If a remote with the given name does not exist, print {@code A remote with that name does not exist.}
+     */
+    public void removeRemote(String name) {
+        Path remoteFile = RMT_DIR.resolve(name);
+        if (!Files.exists(remoteFile)) {
+            System.out.println("A remote with that name does not exist.");
+            return;
+        }
+        LockFile lock = LockFile.acquire(remoteFile);
+        try {
+            Files.delete(remoteFile);
+        } catch (IOException e) {
+            Logging.err.println("Failed to remove remote: " + e.getMessage());
+        } finally {
+            lock.close();
+        }
+    }
+
+    /** Returns the {@code .gitlet} directory of the remote NAME, or prints why there is none and returns null. */
+    private Path remoteDir(String name) {
+        Path remoteFile = RMT_DIR.resolve(name);
+        if (!Files.exists(remoteFile)) {
+            System.out.println("A remote with that name does not exist.");
+            return null;
+        }
+        Path dir = CWD.resolve(readContentsAsString(remoteFile).trim().replace("/", java.io.File.separator)).normalize();
+        if (!Files.isDirectory(dir.resolve("objects"))) {
+            System.out.println("Remote directory not found.");
+            return null;
+        }
+        return dir;
+    }
+
+    /** Brings down the commits of a branch of a remote, with their files, into the branch {@code REMOTE/BRANCH}.
+     *  <p>
+     *  Only the objects this repository lacks are copied, in one pack; see {@link Transfer}.
+     *  The fetched commits are appended to the commit index and commit graph, so the caller holds
+     *  the index lock ({@link #lockIndex}), as {@code commit} does.
+     *
+     *  @return whether the branch was fetched
+     *
+     *  @implSpec This copies all commits and blobs from the given branch in the remote repository
+     *  (that are not already in the current repository) into a branch named {@code [remote name]/[remote branch name]}
+     *  in the local .gitlet (just as in real Git), changing {@code [remote name]/[remote branch name]} to point to the head commit.
+     *  This branch is created in the local repository if it did not previously exist.
+     *  <p>
+     *  If the remote Gitlet repository does not have the given branch name, print {@code That remote does not have that branch.}
+     *  If the remote .gitlet directory does not exist, print {@code Remote directory not found.}
+     */
+    public boolean fetch(String remote, String branch) {
+        Path dir = remoteDir(remote);
+        if (dir == null) {
+            return false;
+        }
+        Path remoteBranch = dir.resolve("refs").resolve("heads").resolve(branch);
+        if (!Files.isRegularFile(remoteBranch)) {
+            System.out.println("That remote does not have that branch.");
+            return false;
+        }
+        String want = readContentsAsString(remoteBranch).trim();
+        Transfer.Stats stats = new Transfer(dir.resolve("objects"), OBJ_DIR).run(List.of(want), Transfer.tips(GITLET_DIR));
+        Logging.info.printf("Fetched %d object(s), %d of them commits, %d bytes in one pack, from %s in %.1f ms.%n",
+                stats.objects(), stats.commits().size(), stats.bytes(), remote, stats.nanos() / 1e6);
+        Commit head = Commit.getByUid(want, objectCache);
+        commitIndex().addMissing(head, objectCache); // * not only what was sent: see CommitIndex#addMissing
+        commitGraph().add(head, objectCache);
+        Path localBranch = BRC_DIR.resolve(remote).resolve(branch);
+        try {
+            Files.createDirectories(localBranch.getParent());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create " + localBranch.getParent(), e);
+        }
+        updateRef(localBranch, null, want);
+        return true;
+    }
+
+    /** Appends the commits of the current branch to the branch BRANCH of REMOTE, sending what it lacks in one pack.
+     *
+     *  @implSpec This command only works if the remote branch's head is in the history of the current local head,
+     *  which means that the local branch contains some commits in the future of the remote branch.
+     *  In this case, append the future commits to the remote branch. Then, the remote should reset to the front
+     *  of the appended commits (so its head will be the same as the local head).
+     *  If the remote branch does not exist, it is created.
+     *  <p>
+     *  If the remote branch's head is not in the history of the current local head,
+     *  print the error message {@code Please pull down remote changes before pushing.}
+     *  If the remote .gitlet directory does not exist, print {@code Remote directory not found.}
+     */
+    public void push(String remote, String branch) {
+        Path dir = remoteDir(remote);
+        if (dir == null) {
+            return;
+        }
+        Path remoteBranch = dir.resolve("refs").resolve("heads").resolve(branch);
+        String remoteHead = Files.isRegularFile(remoteBranch) ? readContentsAsString(remoteBranch).trim() : "";
+        if (!remoteHead.isEmpty() && !remoteHead.equals(HEAD)) {
+            Commit base = Dumpable.isStored(remoteHead, objectCache) || remoteHead.equals(Commit.INITIAL_COMMIT_UID)
+                    ? Commit.findLCA(getHeadCommit(), Commit.getByUid(remoteHead, objectCache), commitGraph()) : null;
+            if (base == null || !base.getUid().equals(remoteHead)) {
+                System.out.println("Please pull down remote changes before pushing.");
+                return;
+            }
+        }
+        // * under the remote's index lock from before the pack lands until the branch moves: a gc in
+        // * the remote holds it throughout, and a commit there appends to its indexes under it
+        LockFile lock = LockFile.acquire(dir.resolve("index"));
+        try {
+            Transfer.Stats stats = new Transfer(OBJ_DIR, dir.resolve("objects")).run(List.of(HEAD), Transfer.tips(dir));
+            Logging.info.printf("Pushed %d object(s), %d of them commits, %d bytes in one pack, to %s in %.1f ms.%n",
+                    stats.objects(), stats.commits().size(), stats.bytes(), remote, stats.nanos() / 1e6);
+            // * the remote's own indexes learn of the commits, as its commitIndex() and commitGraph() would
+            CommitIndex.open(dir).addMissing(getHeadCommit(), objectCache);
+            CommitGraph.open(dir.resolve("objects")).add(getHeadCommit(), objectCache);
+            Files.createDirectories(remoteBranch.getParent());
+            updateRef(remoteBranch, remoteHead, HEAD);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create " + remoteBranch.getParent(), e);
+        } finally {
+            lock.close();
+        }
+    }
+
+    /** Fetches the branch BRANCH of REMOTE and merges it into the current branch.
+     *  @implSpec Fetches branch {@code [remote name]/[remote branch name]} as for the fetch command,
+     *  and then merges that fetch into the current branch.
+     */
+    public void pull(String remote, String branch) {
+        if (fetch(remote, branch)) {
+            mergeBranch(remote + "/" + branch);
+        }
+    }
+
+    /** Locks the index against other gitlet processes until the returned lock is closed;
+     *  see {@link StagingArea#lock}. */
+    LockFile lockIndex() {
+        return stagingArea.lock(INDX_FILE);
+    }
+
+    /** Packs the object database, pruning unreachable objects older than two weeks. */
+    public void gc() {
+        gc(GarbageCollector.DEFAULT_GRACE_MILLIS);
+    }
+
+    /** Packs the object database, and prunes what nothing refers to.
+     *  <p>
+     *  Moves every object reachable from HEAD, the refs or the index, loose under
+     *  {@code .gitlet/objects/xx/} or in earlier packs, into a single pack with a sorted index
+     *  (see {@link PackFile}), then deletes the loose copies. Lookups keep working transparently
+     *  through {@link Dumpable#getByUid} and {@link Dumpable#resolveUid}.
+     *  Versions of the same file are stored as deltas against each other, which
+     *  {@link #pathHints} tells apart.
+     *  Unreachable objects written within the last GRACEMILLIS stay loose; the others are deleted,
+     *  and pruned commits leave the commit index and the commit graph (see {@link GarbageCollector}).
+     *  Both are rewritten in place, so the caller holds the index lock ({@link #lockIndex}), under
+     *  which {@code commit} appends to them, for the whole collection.
+     */
+    public void gc(long graceMillis) {
+        int loose = Dumpable.listLooseObjects(OBJ_DIR).size();
+        GarbageCollector collector = new GarbageCollector(OBJ_DIR);
+        objectCache.packs().close(); // * the packs it supersedes are deleted, and must not be held open
+        Trace trace = Trace.of(objectCache);
+        long start = trace == null ? 0 : System.nanoTime();
+        GarbageCollector.Stats stats = collector.run(gcRoots(), graceMillis, pathHints());
+        if (trace != null) {
+            trace.walk(start, "gc", false, stats.reachable());
+        }
+        if (stats.pruned() > 0) {
+            int commits = commitIndex().remove(collector::pruned);
+            commitGraph().remove(collector::pruned);
+            objectCache.clear(); // * a daemon's cache must not serve what is gone
+            Logging.info.println("Pruned " + stats.pruned() + " unreachable object(s), " + commits + " of them commits.");
+        }
+        int packed = PackFile.listIndices(OBJ_DIR).stream().mapToInt(idx -> PackFile.open(idx).size()).sum();
+        Logging.info.println("Packed " + loose + " loose object(s); " + packed + " object(s) in "
+                + PackFile.listIndices(OBJ_DIR).size() + " pack(s).");
+    }
+
+    /** Returns what {@code gc} keeps everything reachable from: HEAD, every ref, and the staged blobs. */
+    private List<String> gcRoots() {
+        List<String> roots = new ArrayList<>();
+        roots.add(resolveHead()); // * a detached HEAD is on no branch
+        try (Stream<Path> refs = Files.walk(REF_DIR)) {
+            for (Path ref : refs.filter(f -> Files.isRegularFile(f) && !isTransient(f)).toList()) {
+                roots.add(resolveHead(ref).trim());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list refs: " + e.getMessage(), e);
+        }
+        roots.addAll(stagingArea.getStagedFileBlobs().values());
+        return roots;
+    }
+
+    /** Returns a path for each blob and tree of every commit, newest commits first:
+     *  the blobs a file had over time share its path, which is what {@code gc} pairs deltas by.
+     *  Each tree is read once, however many commits share it. */
+    Map<String, String> pathHints() {
+        Map<String, String> names = new HashMap<>();
+        Set<String> trees = new HashSet<>();
+        commitIndex().forEachNewestFirst(entry -> {
+            Commit commit;
+            try {
+                commit = Commit.getByUid(entry.uid(), objectCache);
+            } catch (GitletException e) {
+                return; // * only hints; a missing commit is for fsck to report
+            }
+            if (commit.getTree() == null) {
+                commit.getFileBlobs().forEach((path, blob) -> names.putIfAbsent(blob, path));
+                return;
+            }
+            Deque<Map.Entry<String, String>> stack = new ArrayDeque<>();
+            stack.push(Map.entry("", commit.getTree()));
+            while (!stack.isEmpty()) {
+                Map.Entry<String, String> dir = stack.pop();
+                if (!trees.add(dir.getValue())) {
+                    continue;
+                }
+                names.putIfAbsent(dir.getValue(), dir.getKey());
+                Tree.getByUid(dir.getValue(), objectCache).entries().forEach((name, child) -> {
+                    if (Tree.isSubtree(name)) {
+                        stack.push(Map.entry(dir.getKey() + name, child));
+                    } else {
+                        names.putIfAbsent(child, dir.getKey() + name);
+                    }
+                });
+            }
+        });
+        return names;
+    }
+
+    /** Prints statistics of the object store, after {@code git count-objects -v}:
+     *  how many objects are loose and packed, the bytes they take on disk, and the
+     *  compression ratio, i.e. the size of the encoded objects over their stored size.
+     */
+    public void countObjects() {
+        long looseCount = 0, looseStored = 0, looseRaw = 0;
+        try {
+            for (Path file : Dumpable.listLooseObjects(OBJ_DIR)) {
+                looseCount++;
+                looseStored += Files.size(file);
+                looseRaw += Compression.encodedLength(Files.newInputStream(file));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read loose objects: " + e.getMessage(), e);
+        }
+        long packedCount = 0, packedStored = 0, packedRaw = 0, packSize = 0;
+        List<Path> indices = PackFile.listIndices(OBJ_DIR);
+        for (Path idx : indices) {
+            PackFile pack = PackFile.open(idx);
+            for (int i = 0; i < pack.size(); i++) {
+                packedCount++;
+                packedStored += pack.entryLength(i); // * a delta takes far less than the object it rebuilds
+                packedRaw += Compression.inflate(pack.read(i)).length;
+            }
+            try {
+                packSize += Files.size(pack.packPath) + Files.size(pack.idxPath);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read pack " + pack.packPath.getFileName() + ": " + e.getMessage(), e);
+            }
+        }
+        long stored = looseStored + packedStored;
+        long raw = looseRaw + packedRaw;
+        System.out.println("count: " + looseCount);
+        System.out.println("size: " + kib(looseStored));
+        System.out.println("in-pack: " + packedCount);
+        System.out.println("packs: " + indices.size());
+        System.out.println("size-pack: " + kib(packSize));
+        System.out.println("size-raw: " + kib(raw));
+        System.out.printf("compression: %.2fx%n", stored == 0 ? 1.0 : (double) raw / stored);
+    }
+
+    private static String kib(long bytes) {
+        return String.format("%.1f KiB", bytes / 1024.0);
     }
 
     public static class GitletUID {
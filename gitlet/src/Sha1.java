@@ -0,0 +1,133 @@
+package gitlet;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static gitlet.Utils.*;
+
+/** A SHA-1 hash fed field by field, for the UIDs of objects that are hashed from their fields.
+ *  <p>
+ *  A hasher encodes each String as it is given into a small buffer of its own, which it hashes
+ *  whenever it fills, so that what a hash allocates does not grow with what it hashes: a commit or
+ *  a tree is hashed field by field, never built into one String first. The bytes hashed are
+ *  exactly those of {@link String#getBytes} in UTF-8, unpaired surrogates included.
+ *  <p>
+ *  {@link #hex} finishes the hash and resets the hasher for the next one. A hasher is for one
+ *  thread at a time; there are no static ones in gitlet, so {@link #of} hands out the one the
+ *  calling thread has in an {@link ObjectCache}, and a new one without a cache.
+ */
+final class Sha1 {
+    private static final int BUFFER = 8192;
+
+    private final MessageDigest md;
+    private final byte[] buf = new byte[BUFFER];
+    private int pending;
+    private long length;
+
+    Sha1() {
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("System does not support SHA-1", e);
+        }
+    }
+
+    /** The hasher of the calling thread in CACHE, or a new one if CACHE is null. */
+    static Sha1 of(ObjectCache cache) {
+        return cache == null ? new Sha1() : cache.hasher();
+    }
+
+    /** Hashes S, encoded as UTF-8. */
+    Sha1 update(String s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            if (pending > BUFFER - 4) {
+                flush();
+            }
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pending++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pending++] = (byte) (0xc0 | c >> 6);
+                buf[pending++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[pending++] = (byte) (0xf0 | cp >> 18);
+                    buf[pending++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                    buf[pending++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                    buf[pending++] = (byte) (0x80 | cp & 0x3f);
+                } else {
+                    buf[pending++] = '?'; // * what the UTF-8 encoder replaces an unpaired surrogate with
+                }
+            } else {
+                buf[pending++] = (byte) (0xe0 | c >> 12);
+                buf[pending++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buf[pending++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return this;
+    }
+
+    /** Hashes C, which must be below 256, as one byte: the separators between fields. */
+    Sha1 update(char c) {
+        if (pending == BUFFER) {
+            flush();
+        }
+        buf[pending++] = (byte) c;
+        return this;
+    }
+
+    /** Hashes each char of BYTES, all of which are below 256, as one byte: byte strings kept in
+     *  String constants, since gitlet has no static arrays. */
+    Sha1 updateRaw(String bytes) {
+        for (int i = 0, n = bytes.length(); i < n; i++) {
+            update(bytes.charAt(i));
+        }
+        return this;
+    }
+
+    /** Hashes VALUE as four bytes, big-endian, as Java serialization writes it. */
+    Sha1 updateInt(int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            update((char) (value >>> shift & 0xff));
+        }
+        return this;
+    }
+
+    /** Hashes VALUE as eight bytes, big-endian. */
+    Sha1 updateLong(long value) {
+        updateInt((int) (value >>> 32));
+        return updateInt((int) value);
+    }
+
+    Sha1 update(byte[] bytes) {
+        return update(bytes, 0, bytes.length);
+    }
+
+    Sha1 update(byte[] bytes, int offset, int count) {
+        flush();
+        md.update(bytes, offset, count);
+        length += count;
+        return this;
+    }
+
+    /** How many bytes have been hashed since the last {@link #hex}. */
+    long length() {
+        return length + pending;
+    }
+
+    /** Finishes the hash, returns it as a UID, and resets this hasher. */
+    String hex() {
+        flush();
+        length = 0;
+        return toHex(md.digest());
+    }
+
+    private void flush() {
+        if (pending > 0) {
+            md.update(buf, 0, pending);
+            length += pending;
+            pending = 0;
+        }
+    }
+}
@@ -1,8 +1,31 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static gitlet.Utils.*;
 
 /** The staging area, which is a map of file paths to their corresponding Blob UIDs.
  *  This is used to track files that are staged for commit.
@@ -10,8 +33,37 @@ import java.util.Map;
  *  Keys are file paths relative to the repository root,
  *  and values are fileInfo objects, containing some metadata and
  *  the SHA-1 hashes of the Blob objects representing the contents of those files.
+ *  <p>
+ *  On disk, {@code .gitlet/index} holds a full serialized snapshot, and {@code .gitlet/index.journal}
+ *  the changes made since, so that staging one file of ten thousand does not rewrite all of them:
+ *  <pre>
+ *  index.journal:  "GIJ1" | generation (8 bytes) | record*
+ *      record:     length (4) | CRC-32 of the payload (4) | payload
+ *      payload:    map (1 byte) | op (1: put, 2: remove) | path (UTF) [| blob UID (UTF) | ctime | mtime | size (8 each)]
+ *  </pre>
+ *  {@link #save} appends a record for each entry that differs from what was last loaded or saved.
+ *  Once the journal outgrows the snapshot, or {@value #COMPACT_MIN} bytes, it is folded into a new
+ *  snapshot, written to a temporary file and renamed over the old one. Each snapshot has a
+ *  generation number, and a journal only applies to the snapshot of its own generation; one left
+ *  behind by an interrupted compaction, or written for a newer snapshot than the one a reader
+ *  read, is ignored, and overwritten by the next save. A torn record at the end is dropped on load.
+ *  <p>
+ *  Writers take {@code index.lock} (see {@link #lock}) and check that the index is still what
+ *  they loaded, so that two processes staging at once cannot lose each other's changes; readers
+ *  take no lock, since snapshots are renamed into place and the journal is replayed only up to
+ *  its last whole record. A reader never deletes anything, and reads again if the index changed
+ *  while it read, including its journal disappearing under a compaction.
  */
 public class StagingArea implements Serializable { // StagingAria is mutable so it should not implement Dumpable
+    /** Pinned, so that indices written before the stat cache existed stay readable. */
+    private static final long serialVersionUID = -2333588063065766525L;
+    /** Files modified this recently (in ms) are not cached; see {@link #cache}. */
+    static final long RACY_WINDOW = 2000;
+    static final String JOURNAL_MAGIC = "GIJ1";
+    /** The journal is never compacted below this many bytes. */
+    static final int COMPACT_MIN = 64 * 1024;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
 
     /** A private class to hold file information.
      *  <p>
@@ -23,6 +75,7 @@ public class StagingArea implements Serializable { // StagingAria is mutable so
      *  - {@code size}: the size of the file in bytes, which is used to track the size of the file.
      */
     protected static class fileInfo implements Serializable {
+        private static final long serialVersionUID = 30321874856473404L;
         private final String filePath;
         private final String blobUid;
         private final long ctime; // creation time
@@ -41,12 +94,64 @@ public class StagingArea implements Serializable { // StagingAria is mutable so
     final Map<String, fileInfo> stagedFiles;
     final Map<String, fileInfo> unstagedFiles;
     final Map<String, fileInfo> removedFiles;
+    /** The stat cache: for each working file hashed so far, its blob UID together with
+     *  the size and mtime it had when hashed. Null in indices written before it existed. */
+    private HashMap<String, fileInfo> statCache;
+    /** Generation of the snapshot this was last written as; see {@link #save}. */
+    private long generation;
+
+    /** The entries as they are on disk, to tell what {@link #save} has to write; null if not on disk. */
+    private transient List<Map<String, fileInfo>> saved;
+    /** Bytes of valid journal on disk, after which records are appended. */
+    private transient long journalLength;
+    /** What the index files looked like when last loaded or saved; see {@link #stamp}. Null if never. */
+    private transient List<Object> stamp;
+    /** The lock this process holds on the index, if any; see {@link #lock}. */
+    private transient LockFile held;
 
     /** Initializes the staging area. */
     public StagingArea() {
         this.stagedFiles = new HashMap<>();
         this.unstagedFiles = new HashMap<>();
         this.removedFiles = new HashMap<>();
+        this.statCache = new HashMap<>();
+    }
+
+    private Map<String, fileInfo> statCache() {
+        if (statCache == null) {
+            statCache = new HashMap<>();
+        }
+        return statCache;
+    }
+
+    /** Returns the blob UID last recorded for the working file FILEPATH,
+     *  or null if it was never recorded or its MTIME or SIZE have changed since. */
+    String cachedUid(String filePath, long mtime, long size) {
+        fileInfo info = statCache().get(filePath);
+        if (info == null || info.mtime != mtime || info.size != size) {
+            return null;
+        }
+        return info.blobUid;
+    }
+
+    /** Records that the working file FILEPATH, with the given CTIME, MTIME and SIZE,
+     *  hashed to BLOBUID at time NOW. Returns whether the cache changed.
+     *  <p>
+     *  Like Git's "racily clean" entries, a file modified within {@link #RACY_WINDOW}
+     *  of being hashed is left out: a second write within the same mtime tick
+     *  would otherwise go unnoticed. It is simply hashed again next time.
+     */
+    boolean cache(String filePath, String blobUid, long ctime, long mtime, long size, long now) {
+        if (mtime <= 0 || mtime > now - RACY_WINDOW) {
+            return statCache().remove(filePath) != null;
+        }
+        fileInfo old = statCache().put(filePath, new fileInfo(filePath, blobUid, ctime, mtime, size));
+        return old == null || old.mtime != mtime || old.size != size || !old.blobUid.equals(blobUid);
+    }
+
+    /** Forgets the cached entries of files outside of KEEP. Returns whether the cache changed. */
+    boolean pruneStatCache(Set<String> keep) {
+        return statCache().keySet().retainAll(keep);
     }
 
     public Map<String, String> getStagedFileBlobs() {
@@ -70,4 +175,250 @@ public class StagingArea implements Serializable { // StagingAria is mutable so
         }
         return removedFileUids;
     }
+
+    /* PERSISTENCE */
+
+    /** The journal of the index file INDEX. */
+    static Path journalPath(Path index) {
+        return index.resolveSibling(index.getFileName() + ".journal");
+    }
+
+    /** The maps that are persisted, in the order their records number them. */
+    private List<Map<String, fileInfo>> maps() {
+        return List.of(stagedFiles, unstagedFiles, removedFiles, statCache());
+    }
+
+    /** Reads the staging area from the index file INDEX and replays its journal. */
+    static StagingArea load(Path index) {
+        while (true) {
+            List<Object> before = stamp(index);
+            StagingArea area = readObject(index, StagingArea.class);
+            Path journal = journalPath(index);
+            if (Files.exists(journal) && !area.replay(journal)) {
+                continue; // * compacted away since: read the new snapshot
+            }
+            area.markSaved();
+            area.stamp = before;
+            if (before.equals(stamp(index))) { // * else another process wrote it meanwhile; read it again
+                return area;
+            }
+        }
+    }
+
+    /** Identifies the current state of the index files: the file key, modification time and size
+     *  of INDEX, and the size of its journal. Every save changes one of them, since snapshots are
+     *  new files renamed over INDEX and journal records are only ever appended. */
+    private static List<Object> stamp(Path index) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(index, BasicFileAttributes.class);
+            Path journal = journalPath(index);
+            return Arrays.asList(attrs.fileKey(), attrs.lastModifiedTime(), attrs.size(),
+                    Files.exists(journal) ? Files.size(journal) : -1L);
+        } catch (NoSuchFileException e) {
+            return Arrays.asList(null, null, -1L, -1L);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to stat index: " + e.getMessage(), e);
+        }
+    }
+
+    /** Locks the index file INDEX for this process until the returned lock is closed, after
+     *  checking that no other process has saved it since this staging area was loaded: its
+     *  changes would be overwritten by those of this one. Saves while the lock is held reuse it. */
+    LockFile lock(Path index) {
+        LockFile lock = LockFile.acquire(index);
+        if (stamp != null && !stamp.equals(stamp(index))) {
+            lock.close();
+            throw error("The index was changed by another gitlet process; run the command again.");
+        }
+        held = lock;
+        return lock;
+    }
+
+    /** Like {@link #save}, but gives up silently, returning false, if another process holds the
+     *  index or has saved it since: for writes that only refresh caches, such as {@code status}'s. */
+    boolean trySave(Path index) {
+        if (isLocked()) {
+            save(index);
+            return true;
+        }
+        try (LockFile lock = LockFile.tryAcquire(index)) {
+            if (lock == null || (stamp != null && !stamp.equals(stamp(index)))) {
+                return false;
+            }
+            write(index);
+            return true;
+        }
+    }
+
+    private boolean isLocked() {
+        return held != null && held.isHeld();
+    }
+
+    /** Applies the records of JOURNAL to this staging area; returns false if there is no JOURNAL any more. */
+    private boolean replay(Path journal) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (!JOURNAL_MAGIC.equals(new String(magic, StandardCharsets.US_ASCII)) || in.readLong() != generation) {
+                // * left by a compaction that did not get to delete it, or of a snapshot newer than
+                // * the one read; not deleted here, without the lock, but overwritten by the next save
+                Logging.dbg.println("Ignoring stale index journal " + journal);
+                journalLength = 0;
+                return true;
+            }
+            long valid = 12;
+            List<Map<String, fileInfo>> maps = maps();
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    int crc = in.readInt();
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if (crc != crc32(payload)) {
+                        break;
+                    }
+                } catch (EOFException | NegativeArraySizeException e) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                Map<String, fileInfo> map = maps.get(record.readByte());
+                byte op = record.readByte();
+                String path = record.readUTF();
+                if (op == OP_PUT) {
+                    map.put(path, new fileInfo(path, record.readUTF(), record.readLong(), record.readLong(), record.readLong()));
+                } else {
+                    map.remove(path);
+                }
+                valid += 8 + payload.length;
+            }
+            journalLength = valid; // * anything after is a torn write, to be overwritten
+        } catch (EOFException e) {
+            journalLength = 0; // * not even a header
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException | IndexOutOfBoundsException e) {
+            throw new RuntimeException("Failed to read index journal: " + e.getMessage(), e);
+        }
+        return true;
+    }
+
+    private void markSaved() {
+        saved = maps().stream().<Map<String, fileInfo>>map(HashMap::new).toList();
+    }
+
+    /** Writes the changes since the last load or save to the index file INDEX,
+     *  appending them to its journal or, when that has grown too long, compacting it.
+     *  Takes the lock for the write unless this process already holds it. */
+    void save(Path index) {
+        if (isLocked()) {
+            write(index);
+            return;
+        }
+        LockFile lock = lock(index);
+        try {
+            write(index);
+        } finally {
+            lock.close();
+        }
+    }
+
+    private void write(Path index) {
+        if (saved == null || !Files.exists(index)) {
+            writeSnapshot(index);
+            return;
+        }
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        List<Map<String, fileInfo>> maps = maps();
+        try {
+            for (int m = 0; m < maps.size(); m++) {
+                Map<String, fileInfo> now = maps.get(m), before = saved.get(m);
+                for (Map.Entry<String, fileInfo> entry : now.entrySet()) {
+                    if (!sameInfo(entry.getValue(), before.get(entry.getKey()))) {
+                        writeRecord(records, m, entry.getKey(), entry.getValue());
+                    }
+                }
+                for (String path : before.keySet()) {
+                    if (!now.containsKey(path)) {
+                        writeRecord(records, m, path, null);
+                    }
+                }
+            }
+            if (records.size() == 0) {
+                return;
+            }
+            Path journal = journalPath(index);
+            if (journalLength + records.size() > Math.max(COMPACT_MIN, Files.size(index))) {
+                writeSnapshot(index);
+                return;
+            }
+            try (FileChannel out = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long at = journalLength;
+                if (at == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(12);
+                    header.put(JOURNAL_MAGIC.getBytes(StandardCharsets.US_ASCII)).putLong(generation).flip();
+                    while (header.hasRemaining()) {
+                        at += out.write(header, at);
+                    }
+                }
+                ByteBuffer buf = ByteBuffer.wrap(records.toByteArray());
+                while (buf.hasRemaining()) {
+                    at += out.write(buf, at);
+                }
+                out.truncate(at);
+                journalLength = at;
+            }
+            markSaved();
+            stamp = stamp(index);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write index journal: " + e.getMessage(), e);
+        }
+    }
+
+    /** Replaces the index file INDEX with a snapshot of this staging area, of a new generation,
+     *  and drops its journal. */
+    private void writeSnapshot(Path index) {
+        generation++;
+        try {
+            Path tmp = Files.createTempFile(index.toAbsolutePath().getParent(), "index-", ".tmp");
+            Files.write(tmp, serialize(this));
+            Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(journalPath(index));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write index: " + e.getMessage(), e);
+        }
+        journalLength = 0;
+        markSaved();
+        stamp = stamp(index);
+    }
+
+    private static void writeRecord(ByteArrayOutputStream records, int map, String path, fileInfo info) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64 + path.length());
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(map);
+        out.writeByte(info == null ? OP_REMOVE : OP_PUT);
+        out.writeUTF(path);
+        if (info != null) {
+            out.writeUTF(info.blobUid);
+            out.writeLong(info.ctime);
+            out.writeLong(info.mtime);
+            out.writeLong(info.size);
+        }
+        byte[] bytes = payload.toByteArray();
+        DataOutputStream header = new DataOutputStream(records);
+        header.writeInt(bytes.length);
+        header.writeInt(crc32(bytes));
+        records.write(bytes);
+    }
+
+    private static int crc32(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static boolean sameInfo(fileInfo a, fileInfo b) {
+        return a == b || (a != null && b != null && a.ctime == b.ctime && a.mtime == b.mtime && a.size == b.size
+                && Objects.equals(a.blobUid, b.blobUid) && Objects.equals(a.filePath, b.filePath));
+    }
 }
@@ -0,0 +1,140 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/** Line-based three-way merge of two versions of a file against their common ancestor, as diff3 does.
+ *  <p>
+ *  Both versions are diffed against the base with {@link Diff}. Walking the base from the top,
+ *  the edits of either side are gathered into chunks: edits that overlap, or touch, an edit of
+ *  the other side go into the same chunk (those of one side never touch each other). A chunk
+ *  changed by one side only takes that side's lines; one both sides changed in the same way
+ *  takes those; anything else is a conflict.
+ *  Lines both sides of a conflict begin or end with are taken out of it, so that the conflict
+ *  only spans the lines that actually disagree. Lines outside of every chunk are the base's.
+ *  <p>
+ *  Conflicts are marked as gitlet always marked a conflicting file, so that a file that conflicts
+ *  as a whole comes out as it did when whole files were merged:
+ *  <pre>
+ *  &lt;&lt;&lt;&lt;&lt;&lt;&lt; HEAD
+ *  (lines of ours)=======
+ *  (lines of theirs)&gt;&gt;&gt;&gt;&gt;&gt;&gt;
+ *  </pre>
+ */
+final class ThreeWayMerge {
+    static final String OURS_MARKER = "<<<<<<< HEAD\n";
+    static final String SEPARATOR = "=======\n";
+    static final String THEIRS_MARKER = ">>>>>>>\n";
+
+    /** The merged text, and how many conflicts it has. */
+    record Result(byte[] text, int conflicts) {
+        boolean isClean() {
+            return conflicts == 0;
+        }
+    }
+
+    private final Diff.Lines base;
+    private final Diff.Lines ours;
+    private final Diff.Lines theirs;
+    private final ByteArrayOutputStream out;
+    private int conflicts;
+
+    private ThreeWayMerge(byte[] base, byte[] ours, byte[] theirs) {
+        Diff.Interner interner = new Diff.Interner();
+        this.base = new Diff.Lines(base, interner);
+        this.ours = new Diff.Lines(ours, interner);
+        this.theirs = new Diff.Lines(theirs, interner);
+        this.out = new ByteArrayOutputStream(Math.max(ours.length, theirs.length) + 64);
+    }
+
+    /** Merges OURS and THEIRS, two descendants of BASE. */
+    static Result merge(byte[] base, byte[] ours, byte[] theirs) {
+        ThreeWayMerge merge = new ThreeWayMerge(base, ours, theirs);
+        merge.run();
+        return new Result(merge.out.toByteArray(), merge.conflicts);
+    }
+
+    /** Returns OURS and THEIRS as one conflict, for files that cannot be merged line by line. */
+    static Result wholeFileConflict(byte[] ours, byte[] theirs) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(ours.length + theirs.length + 32);
+        out.writeBytes(OURS_MARKER.getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(ours);
+        out.writeBytes(SEPARATOR.getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(theirs);
+        out.writeBytes(THEIRS_MARKER.getBytes(StandardCharsets.UTF_8));
+        return new Result(out.toByteArray(), 1);
+    }
+
+    private void run() {
+        List<Diff.Edit> mine = Diff.diff(base.ids, ours.ids);
+        List<Diff.Edit> yours = Diff.diff(base.ids, theirs.ids);
+        int i = 0, j = 0;
+        int done = 0; // * base lines before this have been dealt with
+        int shiftOurs = 0, shiftTheirs = 0; // * lines each side has gained over the base so far
+        while (i < mine.size() || j < yours.size()) {
+            // * the chunk starts with whichever edit comes first, and grows while the other side overlaps it
+            int lo = Math.min(i < mine.size() ? mine.get(i).beginA() : Integer.MAX_VALUE,
+                    j < yours.size() ? yours.get(j).beginA() : Integer.MAX_VALUE);
+            int hi = lo;
+            int firstMine = i, firstYours = j;
+            for (boolean grew = true; grew; ) {
+                grew = false;
+                // * an edit starting where the chunk ends touches it, and conflicts with it
+                while (i < mine.size() && mine.get(i).beginA() <= hi) {
+                    hi = Math.max(hi, mine.get(i++).endA());
+                    grew = true;
+                }
+                while (j < yours.size() && yours.get(j).beginA() <= hi) {
+                    hi = Math.max(hi, yours.get(j++).endA());
+                    grew = true;
+                }
+            }
+            base.copy(done, lo, out);
+            // * where the chunk lies in each side: its base range, moved by what that side's earlier edits added
+            int oursLo = lo + shiftOurs, theirsLo = lo + shiftTheirs;
+            for (int k = firstMine; k < i; k++) {
+                shiftOurs += (mine.get(k).endB() - mine.get(k).beginB()) - (mine.get(k).endA() - mine.get(k).beginA());
+            }
+            for (int k = firstYours; k < j; k++) {
+                shiftTheirs += (yours.get(k).endB() - yours.get(k).beginB()) - (yours.get(k).endA() - yours.get(k).beginA());
+            }
+            int oursHi = hi + shiftOurs, theirsHi = hi + shiftTheirs;
+            if (firstYours == j) {
+                ours.copy(oursLo, oursHi, out); // * only ours changed this
+            } else if (firstMine == i) {
+                theirs.copy(theirsLo, theirsHi, out);
+            } else {
+                resolve(oursLo, oursHi, theirsLo, theirsHi);
+            }
+            done = hi;
+        }
+        base.copy(done, base.size(), out);
+    }
+
+    /** Writes a chunk both sides changed: lines [OURSLO, OURSHI) of ours against [THEIRSLO, THEIRSHI) of theirs. */
+    private void resolve(int oursLo, int oursHi, int theirsLo, int theirsHi) {
+        int prefix = 0;
+        while (oursLo + prefix < oursHi && theirsLo + prefix < theirsHi
+                && ours.ids[oursLo + prefix] == theirs.ids[theirsLo + prefix]) {
+            prefix++;
+        }
+        if (oursLo + prefix == oursHi && theirsLo + prefix == theirsHi) {
+            ours.copy(oursLo, oursHi, out); // * the same change on both sides
+            return;
+        }
+        int suffix = 0;
+        while (oursHi - suffix > oursLo + prefix && theirsHi - suffix > theirsLo + prefix
+                && ours.ids[oursHi - suffix - 1] == theirs.ids[theirsHi - suffix - 1]) {
+            suffix++;
+        }
+        ours.copy(oursLo, oursLo + prefix, out);
+        conflicts++;
+        out.writeBytes(OURS_MARKER.getBytes(StandardCharsets.UTF_8));
+        ours.copy(oursLo + prefix, oursHi - suffix, out);
+        out.writeBytes(SEPARATOR.getBytes(StandardCharsets.UTF_8));
+        theirs.copy(theirsLo + prefix, theirsHi - suffix, out);
+        out.writeBytes(THEIRS_MARKER.getBytes(StandardCharsets.UTF_8));
+        ours.copy(oursHi - suffix, oursHi, out);
+    }
+}
@@ -0,0 +1,213 @@
+package gitlet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import static gitlet.Utils.*;
+
+/** A record of what one command spent its time on, kept when the {@value #ENV} environment
+ *  variable names a file to append it to.
+ *  <p>
+ *  Object reads and writes, SHA-1 hashing of commits and working files, walks of the commit
+ *  graph and writes of the working tree are timed as spans, each with the thread it ran on;
+ *  counters add up the objects and bytes read, written and hashed. The command itself is a span
+ *  around all of them. A trace is written when the command ends, in one append, so that several
+ *  gitlet processes, or a {@link Daemon}'s commands, can share a file:
+ *  <ul>
+ *  <li>by default in the JSON array format of Chrome's trace viewer, which {@code chrome://tracing}
+ *      and Perfetto open as it is (the closing bracket is optional there);</li>
+ *  <li>as JSON lines, one event per line, if the file name ends with {@code .jsonl}.</li>
+ *  </ul>
+ *  Spans are complete events ({@code "ph":"X"}), with times in microseconds since the epoch, and
+ *  the counters a counter event ({@code "ph":"C"}) at the end of the command.
+ *  <p>
+ *  There is no global tracer: like the objects it reads, a command's trace goes through its
+ *  {@link ObjectCache}, which is what instrumented code looks it up in ({@link #of}); with no
+ *  trace, that lookup is all the instrumentation costs.
+ */
+final class Trace implements Closeable {
+    static final String ENV = "GITLET_TRACE";
+
+    private final Path file;
+    private final ObjectCache cache;
+    private final String command;
+    private final long pid = ProcessHandle.current().pid();
+    /** Wall clock and {@link System#nanoTime} at the same moment, to turn the one into the other. */
+    private final long originMicros;
+    private final long originNanos;
+    private final ConcurrentLinkedQueue<String> events = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder objectsRead = new LongAdder();
+    private final LongAdder objectsCached = new LongAdder();
+    private final LongAdder objectsWritten = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesHashed = new LongAdder();
+    private final LongAdder filesRead = new LongAdder();
+    private final LongAdder filesWritten = new LongAdder();
+
+    private Trace(Path file, ObjectCache cache, String command) {
+        this.file = file;
+        this.cache = cache;
+        this.command = command;
+        this.originMicros = ChronoUnit.MICROS.between(Instant.EPOCH, Instant.now());
+        this.originNanos = System.nanoTime();
+    }
+
+    /** Starts tracing COMMAND with ARGS, through CACHE, if {@value #ENV} is set; returns null if not. */
+    static Trace start(ObjectCache cache, String command, String[] args) {
+        String target = System.getenv(ENV);
+        if (target == null || target.isBlank()) {
+            return null;
+        }
+        return to(Path.of(target), cache, String.join(" ", command, String.join(" ", args)).trim());
+    }
+
+    /** Starts tracing what is done through CACHE, as the command named COMMAND, into FILE. */
+    static Trace to(Path file, ObjectCache cache, String command) {
+        Trace trace = new Trace(file, cache, command);
+        cache.trace(trace);
+        return trace;
+    }
+
+    /** The trace of the command reading objects through CACHE, or null if it is not traced. */
+    static Trace of(ObjectCache cache) {
+        return cache == null ? null : cache.trace();
+    }
+
+    /* SPANS; START is the System.nanoTime() the span began at. */
+
+    /** An object decoded from SOURCE ("pack" or "loose"), BYTES as stored. */
+    void objectRead(long start, String uid, String type, String source, long bytes) {
+        objectsRead.increment();
+        bytesRead.add(bytes);
+        span("object.read", "object", start, "uid", uid, "type", type, "source", source, "bytes", bytes);
+    }
+
+    /** An object found in the cache, for which there is only a count. */
+    void objectCached() {
+        objectsCached.increment();
+    }
+
+    void objectWrite(long start, String uid, String type, long bytes) {
+        objectsWritten.increment();
+        bytesWritten.add(bytes);
+        span("object.write", "object", start, "uid", uid, "type", type, "bytes", bytes);
+    }
+
+    /** A SHA-1 over BYTES bytes, naming WHAT. */
+    void hash(long start, String what, long bytes) {
+        bytesHashed.add(bytes);
+        span("sha1", "hash", start, "of", what, "bytes", bytes);
+    }
+
+    /** A working file read and hashed, and stored too if STORED. */
+    void fileRead(long start, Path path, long bytes, boolean stored) {
+        filesRead.increment();
+        bytesRead.add(bytes);
+        bytesHashed.add(bytes);
+        span(stored ? "file.store" : "file.hash", "worktree", start, "path", path.toString(), "bytes", bytes);
+    }
+
+    void fileWrite(long start, Path path, long bytes) {
+        filesWritten.increment();
+        bytesWritten.add(bytes);
+        span("file.write", "worktree", start, "path", path.toString(), "bytes", bytes);
+    }
+
+    /** A walk of the commit graph, of KIND ("merge-base", "ancestry", "log", "gc"), answered from the
+     *  commit graph file if VIAGRAPH, and reaching COMMITS commits (or -1 if not counted). */
+    void walk(long start, String kind, boolean viaGraph, long commits) {
+        span("walk." + kind, "dag", start, "graph", viaGraph, "commits", commits);
+    }
+
+    /** Records a complete event; ARGS alternate names and values, which are Strings, numbers or booleans. */
+    private void span(String name, String category, long start, Object... args) {
+        long end = System.nanoTime();
+        events.add(event(name, category, "X", micros(start), (end - start) / 1000, args));
+    }
+
+    private long micros(long nanos) {
+        return originMicros + (nanos - originNanos) / 1000;
+    }
+
+    private String event(String name, String category, String phase, long ts, long dur, Object... args) {
+        StringBuilder json = new StringBuilder(128).append("{\"name\":");
+        quote(json, name).append(",\"cat\":");
+        quote(json, category).append(",\"ph\":\"").append(phase).append("\",\"ts\":").append(ts);
+        if (phase.equals("X")) {
+            json.append(",\"dur\":").append(dur);
+        }
+        json.append(",\"pid\":").append(pid).append(",\"tid\":").append(Thread.currentThread().threadId()).append(",\"args\":{");
+        for (int i = 0; i < args.length; i += 2) {
+            quote(json.append(i == 0 ? "" : ","), (String) args[i]).append(':');
+            if (args[i + 1] instanceof String value) {
+                quote(json, value);
+            } else {
+                json.append(args[i + 1]);
+            }
+        }
+        return json.append("}}").toString();
+    }
+
+    private static StringBuilder quote(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+        return json.append('"');
+    }
+
+    /** Ends the command's span, records the counters, and appends the whole trace to its file. */
+    @Override
+    public void close() {
+        cache.trace(null);
+        long end = System.nanoTime();
+        events.add(event("gitlet " + command, "command", "X", originMicros, (end - originNanos) / 1000,
+                "objects touched", objectsRead.sum() + objectsCached.sum()));
+        events.add(event("counters", "command", "C", micros(end), 0,
+                "objects read", objectsRead.sum(), "objects cached", objectsCached.sum(),
+                "objects written", objectsWritten.sum(), "files read", filesRead.sum(),
+                "files written", filesWritten.sum(), "bytes read", bytesRead.sum(),
+                "bytes written", bytesWritten.sum(), "bytes hashed", bytesHashed.sum()));
+        boolean jsonLines = file.getFileName().toString().endsWith(".jsonl");
+        StringBuilder out = new StringBuilder();
+        for (String event : events) {
+            out.append(event).append(jsonLines ? "\n" : ",\n");
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            if (!jsonLines && channel.size() == 0) {
+                out.insert(0, "[\n");
+            }
+            ByteBuffer buf = ByteBuffer.wrap(out.toString().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } catch (IOException e) {
+            Logging.warn.println("Failed to write trace " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static gitlet.Utils.*;
+
+/** Copies the objects one repository needs from another, as {@code fetch} and {@code push} do,
+ *  both repositories being on the local file system.
+ *  <p>
+ *  What to send is negotiated as in Git, over the commit graph. The receiving side names the
+ *  commits it <i>wants</i> (the tips of the branches being fetched or pushed) and those it
+ *  <i>has</i> (the tips of its own refs); the sending side keeps the haves it knows, which are the
+ *  commits the two share, and walks back from the wants and from those shared commits together,
+ *  newest first, as a {@link CommitWalk} does. A commit reached from a shared one is shared too,
+ *  and so are its ancestors; the walk ends once every commit still queued is shared, so that it
+ *  only reads the part of history the receiver lacks, plus a little beyond where it forks.
+ *  <p>
+ *  The trees and blobs of the commits to send are then followed from their references (see
+ *  {@link ObjectCodec#references}), skipping any the receiver already stores, along with
+ *  everything below them: a subtree the receiver has is never read. Git marks the trees of the
+ *  shared commits instead, since its sender cannot see the receiver's store; here a lookup in
+ *  the receiver's pack indices or a stat of a loose file answers exactly what it has.
+ *  <p>
+ *  The objects go, commits first, into one new {@link PackFile} written into the receiver's store
+ *  as they are read, in the form they are stored in; the pack becomes visible all at once when its
+ *  index is moved into place, so that an interrupted transfer leaves nothing behind.
+ */
+final class Transfer {
+    /** What a transfer sent: UIDs of the commits, newest first, and the number and size of all objects. */
+    record Stats(List<String> commits, int objects, long bytes, long nanos) {
+    }
+
+    private final Path source;
+    private final Path target;
+    private final List<PackFile> sourcePacks = new ArrayList<>();
+    private final List<PackFile> targetPacks = new ArrayList<>();
+
+    /** A transfer from the object store SOURCE to the object store TARGET. */
+    Transfer(Path source, Path target) {
+        this.source = source;
+        this.target = target;
+        PackFile.listIndices(source).forEach(idx -> sourcePacks.add(PackFile.open(idx)));
+        PackFile.listIndices(target).forEach(idx -> targetPacks.add(PackFile.open(idx)));
+    }
+
+    /** Returns the commits the refs of the repository in GITLETDIR point at, and HEAD if it is detached. */
+    static Set<String> tips(Path gitletDir) {
+        Set<String> tips = new HashSet<>();
+        try (Stream<Path> refs = Files.walk(gitletDir.resolve("refs"))) {
+            refs.filter(Files::isRegularFile).filter(ref -> !isTransient(ref))
+                    .forEach(ref -> tips.add(readContentsAsString(ref).trim()));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list refs of " + gitletDir + ": " + e.getMessage(), e);
+        }
+        Path head = gitletDir.resolve("HEAD");
+        if (Files.exists(head)) {
+            String value = readContentsAsString(head).trim();
+            if (!value.startsWith("ref:")) {
+                tips.add(value);
+            }
+        }
+        return tips;
+    }
+
+    /** Sends the objects the commits WANTS need and the target lacks, given HAVES, the commits the
+     *  target has; see the class comment. */
+    Stats run(Collection<String> wants, Collection<String> haves) {
+        long start = System.nanoTime();
+        List<String> shared = new ArrayList<>();
+        for (String have : haves) {
+            if (stored(sourcePacks, source, have)) { // * "ACK": the commits both sides have
+                shared.add(have);
+            }
+        }
+        List<String> commits = negotiate(wants, shared);
+        int objects = 0;
+        long bytes = 0;
+        try (PackFile.Writer writer = new PackFile.Writer(target)) {
+            Set<String> seen = new HashSet<>();
+            Deque<String> pending = new ArrayDeque<>();
+            for (String uid : commits) {
+                byte[] stored = read(uid);
+                writer.add(uid, stored);
+                Commit commit = ObjectCodec.decode(stored, Commit.class);
+                List<String> parents = commit.parents == null ? List.of() : List.of(commit.parents);
+                for (String child : references(uid, stored)) {
+                    if (!parents.contains(child)) {
+                        pending.push(child);
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                String uid = pending.pop();
+                if (!seen.add(uid) || writer.contains(uid) || stored(targetPacks, target, uid)) {
+                    continue; // * and so is everything below it
+                }
+                byte[] stored = read(uid);
+                writer.add(uid, stored);
+                references(uid, stored).forEach(pending::push);
+            }
+            objects = writer.size();
+            PackFile pack = writer.finish();
+            if (pack != null) {
+                bytes = Files.size(pack.packPath);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read the pack sent to " + target + ": " + e.getMessage(), e);
+        }
+        return new Stats(commits, objects, bytes, System.nanoTime() - start);
+    }
+
+    /** Returns the commits reachable from WANTS but not from SHARED, newest first, leaving out those the target stores. */
+    private List<String> negotiate(Collection<String> wants, Collection<String> shared) {
+        Map<String, Commit> commits = new HashMap<>();
+        // * true for commits the target has, or reaches from one it has
+        Map<String, Boolean> common = new HashMap<>();
+        PriorityQueue<Commit> queue = new PriorityQueue<>(
+                Comparator.<Commit>comparingLong(Commit::getTime).reversed().thenComparing(Comparator.comparing(Commit::getUid)));
+        int[] wanted = {0}; // * queued commits not known to be common; the walk ends when there are none
+        for (String uid : shared) {
+            enqueue(uid, true, commits, common, queue, wanted);
+        }
+        for (String uid : wants) {
+            enqueue(uid, false, commits, common, queue, wanted);
+        }
+        List<String> send = new ArrayList<>();
+        Set<String> done = new HashSet<>();
+        while (wanted[0] > 0) {
+            Commit commit = queue.poll();
+            String uid = commit.getUid();
+            done.add(uid);
+            boolean isCommon = common.get(uid);
+            if (!isCommon) {
+                wanted[0]--;
+                if (stored(targetPacks, target, uid)) {
+                    isCommon = true; // * received before, though no ref of the target points there
+                    common.put(uid, true);
+                } else {
+                    send.add(uid);
+                }
+            }
+            for (String parent : commit.parents == null ? new String[0] : commit.parents) {
+                if (done.contains(parent)) {
+                    continue;
+                }
+                Boolean known = common.get(parent);
+                if (known == null) {
+                    enqueue(parent, isCommon, commits, common, queue, wanted);
+                } else if (isCommon && !known) {
+                    common.put(parent, true); // * queued as wanted, reached from a shared commit after all
+                    wanted[0]--;
+                }
+            }
+        }
+        return send;
+    }
+
+    private void enqueue(String uid, boolean isCommon, Map<String, Commit> commits, Map<String, Boolean> common,
+                         PriorityQueue<Commit> queue, int[] wanted) {
+        if (common.containsKey(uid)) {
+            if (isCommon && !common.get(uid)) {
+                common.put(uid, true);
+                wanted[0]--;
+            }
+            return;
+        }
+        if (uid.equals(Commit.INITIAL_COMMIT_UID)) {
+            return; // * every repository has it, whether or not it is stored
+        }
+        Commit commit = commits.computeIfAbsent(uid, u -> ObjectCodec.decode(read(u), Commit.class));
+        common.put(uid, isCommon);
+        queue.add(commit);
+        if (!isCommon) {
+            wanted[0]++;
+        }
+    }
+
+    /** The stored bytes of UID in the source, as a loose object file or pack entry holds them. */
+    private byte[] read(String uid) {
+        for (PackFile pack : sourcePacks) {
+            byte[] stored = pack.read(uid);
+            if (stored != null) {
+                return stored;
+            }
+        }
+        Path file = loose(source, uid);
+        if (!Files.exists(file)) {
+            throw error("Object %s is missing from %s; the repository is incomplete.", uid, source);
+        }
+        return readContents(file);
+    }
+
+    private static boolean stored(List<PackFile> packs, Path objDir, String uid) {
+        for (PackFile pack : packs) {
+            if (pack.contains(uid)) {
+                return true;
+            }
+        }
+        return Files.exists(loose(objDir, uid));
+    }
+
+    private static Path loose(Path objDir, String uid) {
+        return objDir.resolve(uid.substring(0, 2)).resolve(uid.substring(2));
+    }
+
+    private static List<String> references(String uid, byte[] stored) {
+        try {
+            return ObjectCodec.references(Compression.inflating(new ByteArrayInputStream(stored)));
+        } catch (IOException | IllegalArgumentException e) {
+            throw new RuntimeException("Failed to read object " + uid + ": " + e.getMessage(), e);
+        }
+    }
+}
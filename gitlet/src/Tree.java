@@ -0,0 +1,207 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** A directory snapshot: the files and subdirectories of one directory, by UID.
+ *  <p>
+ *  A commit names one root tree. A tree maps names to blob UIDs, and subdirectory names (with a
+ *  trailing {@code '/'}) to the UIDs of their own trees. Like blobs, trees are named by their
+ *  contents, so a directory nothing changed in is the same object in every commit, and a
+ *  commit only writes new trees along the paths it changes: the cost of a commit is the
+ *  size of the directories it touches, not of the repository.
+ *  <p>
+ *  File paths are relative and {@code '/'}-separated, as elsewhere in gitlet. Entries are kept
+ *  sorted by name, which makes the UID independent of the order in which they were added.
+ */
+public class Tree implements Dumpable {
+    private static final long serialVersionUID = 3408626453405961302L;
+
+    /** Entries by name; names of subtrees end with a {@code '/'}. */
+    private final TreeMap<String, String> entries;
+
+    /** Memoized {@link #getUid(ObjectCache)}; trees are not modified once stored. */
+    private transient String uid;
+
+    Tree(Map<String, String> entries) {
+        this.entries = new TreeMap<>(entries);
+    }
+
+    /** The entries of this tree, by name; subtree names end with a {@code '/'}. */
+    NavigableMap<String, String> entries() {
+        return entries;
+    }
+
+    static boolean isSubtree(String name) {
+        return name.endsWith("/");
+    }
+
+    @Override
+    public String getUid(ObjectCache cache) {
+        if (uid == null) {
+            Sha1 sha = Sha1.of(cache).update(getDumpType()).update('\0');
+            entries.forEach((name, child) -> sha.update(name).update(':').update(child).update('\0'));
+            uid = sha.hex();
+        }
+        return uid;
+    }
+
+    @Override
+    public String getDumpType() {
+        return "tree";
+    }
+
+    @Override
+    public void dump() {
+        entries.forEach((name, child) -> System.out.println(child + " " + name));
+    }
+
+    /** Returns the tree UID, looking in CACHE first; CACHE may be null. */
+    static Tree getByUid(String uid, ObjectCache cache) {
+        return Dumpable.getByUid(uid, Tree.class, cache);
+    }
+
+    /** Stores this tree, unless it is already stored, and returns its UID; CACHE, which may be null,
+     *  holds the packs looked in and the trace that records the write. */
+    String store(ObjectCache cache) {
+        String uid = getUid(cache);
+        if (!Dumpable.isStored(uid, cache)) {
+            persist(cache);
+        }
+        return uid;
+    }
+
+    /* BUILDING */
+
+    /** Returns the UID of the root tree of the files in FILEBLOBS (paths to blob UIDs), storing all its trees.
+     *  Used to carry the flat file list of an older commit over into a tree. */
+    static String build(Map<String, String> fileBlobs, ObjectCache cache) {
+        Map<String, String> changes = new TreeMap<>(fileBlobs);
+        return edit(null, changes, cache);
+    }
+
+    /** Returns the UID of the tree made from the tree BASE by applying CHANGES: each path is set
+     *  to its blob UID, or removed if that is null. Only trees on changed paths are read or written;
+     *  directories left empty disappear. BASE may be null for an empty tree.
+     *  The result is always a stored tree, if perhaps the empty one. */
+    static String edit(String base, Map<String, String> changes, ObjectCache cache) {
+        String uid = editSubtree(base, changes, cache);
+        return uid != null ? uid : new Tree(Map.of()).store(cache);
+    }
+
+    /** Like {@link #edit}, but returns null for an empty result. */
+    private static String editSubtree(String base, Map<String, String> changes, ObjectCache cache) {
+        if (changes.isEmpty()) {
+            return base;
+        }
+        Map<String, String> entries = base == null ? new TreeMap<>() : new TreeMap<>(getByUid(base, cache).entries());
+        Map<String, Map<String, String>> below = new TreeMap<>(); // * changes to apply in each subdirectory
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    entries.remove(path);
+                } else {
+                    entries.put(path, change.getValue());
+                }
+            } else {
+                below.computeIfAbsent(path.substring(0, slash + 1), k -> new LinkedHashMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> dir : below.entrySet()) {
+            String child = editSubtree(entries.get(dir.getKey()), dir.getValue(), cache);
+            if (child == null) {
+                entries.remove(dir.getKey());
+            } else {
+                entries.put(dir.getKey(), child);
+            }
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+        Tree tree = new Tree(entries);
+        return base != null && tree.getUid(cache).equals(base) ? base : tree.store(cache);
+    }
+
+    /* READING */
+
+    /** Returns the blob UID of the file PATH in the tree ROOT, or null if there is no such file.
+     *  Reads only the trees on the way to it. */
+    static String lookup(String root, String path, ObjectCache cache) {
+        String uid = root;
+        int start = 0;
+        for (int slash; (slash = path.indexOf('/', start)) >= 0; start = slash + 1) {
+            uid = getByUid(uid, cache).entries().get(path.substring(start, slash + 1));
+            if (uid == null) {
+                return null;
+            }
+        }
+        return getByUid(uid, cache).entries().get(path.substring(start));
+    }
+
+    /** Returns the files of the tree ROOT, by path, in sorted order. */
+    static Map<String, String> flatten(String root, ObjectCache cache) {
+        Map<String, String> files = new LinkedHashMap<>();
+        // * an explicit stack, in reverse order, so that paths come out sorted; trees can be deep
+        Deque<Map.Entry<String, String>> stack = new ArrayDeque<>();
+        stack.push(Map.entry("", root));
+        while (!stack.isEmpty()) {
+            Map.Entry<String, String> dir = stack.pop();
+            for (Map.Entry<String, String> entry : getByUid(dir.getValue(), cache).entries().descendingMap().entrySet()) {
+                stack.push(Map.entry(dir.getKey() + entry.getKey(), entry.getValue()));
+            }
+            while (!stack.isEmpty() && !isSubtree(stack.peek().getKey())) {
+                Map.Entry<String, String> file = stack.pop();
+                files.put(file.getKey(), file.getValue());
+            }
+        }
+        return files;
+    }
+
+    /** Returns the files that differ between the trees A and B, either of which may be null for
+     *  an empty tree: each path maps to its blob UID in B, or to null if B does not have it.
+     *  Subtrees with the same UID on both sides are the same files, and are not read at all. */
+    static Map<String, String> diff(String a, String b, ObjectCache cache) {
+        Map<String, String> changes = new TreeMap<>();
+        Deque<String[]> stack = new ArrayDeque<>(); // * (directory, tree in A, tree in B)
+        stack.push(new String[]{"", a, b});
+        while (!stack.isEmpty()) {
+            String[] dir = stack.pop();
+            if (Objects.equals(dir[1], dir[2])) {
+                continue;
+            }
+            if (dir[1] == null || dir[2] == null) {
+                Map<String, String> files = flatten(dir[1] == null ? dir[2] : dir[1], cache);
+                files.forEach((path, blob) -> changes.put(dir[0] + path, dir[1] == null ? blob : null));
+                continue;
+            }
+            NavigableMap<String, String> left = getByUid(dir[1], cache).entries();
+            NavigableMap<String, String> right = getByUid(dir[2], cache).entries();
+            Set<String> names = new TreeSet<>(left.keySet());
+            names.addAll(right.keySet());
+            for (String name : names) {
+                String before = left.get(name), after = right.get(name);
+                if (Objects.equals(before, after)) {
+                    continue;
+                }
+                if (isSubtree(name)) {
+                    stack.push(new String[]{dir[0] + name, before, after});
+                } else {
+                    changes.put(dir[0] + name, after);
+                }
+            }
+        }
+        return changes;
+    }
+}
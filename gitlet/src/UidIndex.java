@@ -0,0 +1,277 @@
+package gitlet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** A sorted table of the UIDs of all objects in the store, for resolving abbreviated UIDs.
+ *  <p>
+ *  Packs keep their UIDs sorted; loose objects are only sorted by shard, so their UIDs are kept
+ *  in one sorted file, one slice per shard:
+ *  <pre>
+ *  .gitlet/objects/info/loose-uids:  "LUID" | version (4 bytes) | written at (8, epoch ms)
+ *                                    | (shard mtime (8) | count (4))[256] | uid*
+ *  </pre>
+ *  A slice stays valid while its shard directory has the mtime recorded for it, as adding
+ *  or removing a file changes that; as with the index's stat cache, slices of shards modified
+ *  within {@link StagingArea#RACY_WINDOW} of the file being written are not trusted, since
+ *  another change within the same tick would go unnoticed. A stale slice is reread from its
+ *  directory and sorted, and {@link #close} writes the refreshed table back.
+ *  <p>
+ *  Lookups binary search the slice of the prefix's shard and each pack index, so that
+ *  resolving a prefix costs O(log n), and so does {@link #shortestUniquePrefix}: the shortest
+ *  abbreviation of a UID is one hex digit longer than what it shares with its neighbours.
+ */
+final class UidIndex implements Closeable {
+    static final String MAGIC = "LUID";
+    static final int VERSION = 1;
+    /** Git's default abbreviation length, and the shortest prefix gitlet accepts. */
+    static final int MIN_ABBREV = 7;
+    private static final int RAW = PackFile.RAW_UID_LENGTH;
+    private static final int SHARDS = 256;
+    private static final int HEADER = 16 + SHARDS * 12;
+    private static final long ABSENT = -1;
+
+    private final Path objDir;
+    private final Path file;
+    private final List<PackFile> packs = new ArrayList<>();
+    /** Per shard: the mtime recorded in the file, the number of UIDs, and where they start. */
+    private final long[] stamps = new long[SHARDS];
+    private final int[] counts = new int[SHARDS];
+    private final long[] offsets = new long[SHARDS];
+    private long writtenAt = ABSENT;
+    /** Per shard: its sorted raw UIDs, once read; and whether they were reread from the directory. */
+    private final byte[][] slices = new byte[SHARDS][];
+    private final boolean[] refreshed = new boolean[SHARDS];
+
+    private UidIndex(Path objDir) {
+        this.objDir = objDir;
+        this.file = objDir.resolve("info").resolve("loose-uids");
+        Arrays.fill(stamps, ABSENT);
+    }
+
+    /** Opens the UID table of the object store OBJDIR; shards are read as they are needed. */
+    static UidIndex open(Path objDir) {
+        UidIndex index = new UidIndex(objDir);
+        for (Path idx : PackFile.listIndices(objDir)) {
+            index.packs.add(PackFile.open(idx));
+        }
+        if (!Files.exists(index.file)) {
+            return index;
+        }
+        try (FileChannel in = FileChannel.open(index.file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && in.read(header) >= 0) {
+                // * fill the header
+            }
+            header.flip();
+            if (header.remaining() < HEADER || !MAGIC.equals(new String(header.array(), 0, 4, StandardCharsets.US_ASCII))
+                    || header.getInt(4) != VERSION) {
+                Logging.warn.println("Discarding unreadable UID table " + index.file);
+                return index; // * everything gets reread, and the table rewritten on close
+            }
+            index.writtenAt = header.getLong(8);
+            long offset = HEADER;
+            for (int shard = 0; shard < SHARDS; shard++) {
+                index.stamps[shard] = header.getLong(16 + shard * 12);
+                index.counts[shard] = header.getInt(16 + shard * 12 + 8);
+                index.offsets[shard] = offset;
+                offset += (long) index.counts[shard] * RAW;
+            }
+            if (offset > in.size()) {
+                Logging.warn.println("Discarding truncated UID table " + index.file);
+                index.writtenAt = ABSENT;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read UID table: " + e.getMessage(), e);
+        }
+        return index;
+    }
+
+    /** Returns the sorted raw UIDs of the loose objects in SHARD, rereading the directory if the table is stale. */
+    private byte[] slice(int shard) {
+        if (slices[shard] != null) {
+            return slices[shard];
+        }
+        Path dir = objDir.resolve(String.format("%02x", shard));
+        try {
+            long stamp = Files.isDirectory(dir) ? Files.getLastModifiedTime(dir).toMillis() : ABSENT;
+            if (writtenAt != ABSENT && stamp == stamps[shard]
+                    && (stamp == ABSENT || stamp <= writtenAt - StagingArea.RACY_WINDOW)) {
+                byte[] slice = new byte[counts[shard] * RAW];
+                try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                    ByteBuffer buf = ByteBuffer.wrap(slice);
+                    while (buf.hasRemaining()) {
+                        if (in.read(buf, offsets[shard] + buf.position()) < 0) {
+                            throw new IOException("Truncated UID table");
+                        }
+                    }
+                }
+                return slices[shard] = slice;
+            }
+            // * the stamp is taken before listing, so that a file added meanwhile makes it stale again
+            TreeSet<String> names = new TreeSet<>();
+            if (stamp != ABSENT) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path path : stream) {
+                        String name = path.getFileName().toString();
+                        if (name.length() == UID_LENGTH - 2 && name.matches("[0-9a-f]+")) {
+                            names.add(name);
+                        }
+                    }
+                }
+            }
+            byte[] slice = new byte[names.size() * RAW];
+            int at = 0;
+            for (String name : names) {
+                System.arraycopy(fromHex(String.format("%02x", shard) + name), 0, slice, at, RAW);
+                at += RAW;
+            }
+            stamps[shard] = stamp;
+            counts[shard] = names.size();
+            refreshed[shard] = true;
+            return slices[shard] = slice;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list loose objects: " + e.getMessage(), e);
+        }
+    }
+
+    /** Returns the first position in the sorted raw UIDs SLICE whose first LEN bytes are not below KEY. */
+    private static int lowerBound(byte[] slice, byte[] key, int len) {
+        int lo = 0, hi = slice.length / RAW;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Arrays.compareUnsigned(slice, mid * RAW, mid * RAW + len, key, 0, len) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /* QUERIES */
+
+    /** Returns the distinct full UIDs of stored objects that start with the hex PREFIX, in order. */
+    List<String> matches(String prefix) {
+        String lower = prefix.toLowerCase();
+        TreeSet<String> found = new TreeSet<>();
+        if (lower.length() < 2 || !lower.matches("[0-9a-f]+")) {
+            return new ArrayList<>(found);
+        }
+        byte[] key = fromHex(lower.substring(0, lower.length() / 2 * 2));
+        byte[] slice = slice(key[0] & 0xff);
+        for (int i = lowerBound(slice, key, key.length); i < slice.length / RAW; i++) {
+            String uid = toHex(Arrays.copyOfRange(slice, i * RAW, (i + 1) * RAW));
+            if (!uid.startsWith(lower.substring(0, key.length * 2))) {
+                break;
+            }
+            if (uid.startsWith(lower)) { // * an odd trailing digit is checked on the hex form
+                found.add(uid);
+            }
+        }
+        for (PackFile pack : packs) {
+            found.addAll(pack.findByPrefix(lower));
+        }
+        return new ArrayList<>(found);
+    }
+
+    /** Returns the full UID of the one stored object starting with PREFIX.
+     *  @throws GitletException if there is no such object, or more than one
+     */
+    String resolve(String prefix) {
+        List<String> found = matches(prefix);
+        if (found.isEmpty()) {
+            throw error("Failed to resolve UID: Object does not exist: " + prefix);
+        }
+        if (found.size() > 1) {
+            throw error("Failed to resolve UID: Ambiguous UID prefix: " + prefix);
+        }
+        return found.get(0);
+    }
+
+    /** Returns the shortest prefix of the full UID, at least MINLENGTH digits long, that no other
+     *  stored object starts with. UID need not be stored itself (the initial commit never is). */
+    String shortestUniquePrefix(String uid, int minLength) {
+        byte[] key = fromHex(uid);
+        int shared = 0; // * hex digits shared with the closest other UID
+        byte[] slice = slice(key[0] & 0xff);
+        int pos = lowerBound(slice, key, RAW);
+        for (int i : new int[]{pos - 1, pos, pos + 1}) {
+            if (i >= 0 && i < slice.length / RAW) {
+                shared = Math.max(shared, commonHexDigits(uid, toHex(Arrays.copyOfRange(slice, i * RAW, (i + 1) * RAW))));
+            }
+        }
+        for (PackFile pack : packs) {
+            int at = pack.lowerBound(uid);
+            for (int i : new int[]{at - 1, at, at + 1}) {
+                if (i >= 0 && i < pack.size()) {
+                    shared = Math.max(shared, commonHexDigits(uid, pack.uidAt(i)));
+                }
+            }
+        }
+        return uid.substring(0, Math.min(UID_LENGTH, Math.max(minLength, shared + 1)));
+    }
+
+    /** Number of leading hex digits A and B have in common, or 0 if they are the same UID. */
+    private static int commonHexDigits(String a, String b) {
+        if (a.equals(b)) {
+            return 0; // * an object does not clash with itself
+        }
+        int n = 0;
+        while (n < a.length() && n < b.length() && a.charAt(n) == b.charAt(n)) {
+            n++;
+        }
+        return n;
+    }
+
+    /* PERSISTENCE */
+
+    /** Writes the table back if any shard had to be reread, so that the next lookup need not. */
+    @Override
+    public void close() {
+        boolean dirty = false;
+        for (boolean r : refreshed) {
+            dirty |= r;
+        }
+        for (PackFile pack : packs) {
+            pack.close();
+        }
+        if (!dirty) {
+            return;
+        }
+        try {
+            long total = 0;
+            for (int shard = 0; shard < SHARDS; shard++) {
+                total += (long) slice(shard).length; // * a full table; shards not read yet are read now
+            }
+            ByteBuffer out = ByteBuffer.allocate(Math.toIntExact(HEADER + total));
+            out.put(MAGIC.getBytes(StandardCharsets.US_ASCII)).putInt(VERSION).putLong(System.currentTimeMillis());
+            for (int shard = 0; shard < SHARDS; shard++) {
+                out.putLong(stamps[shard]).putInt(counts[shard]);
+            }
+            for (int shard = 0; shard < SHARDS; shard++) {
+                out.put(slices[shard]);
+            }
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), "loose-uids-", ".tmp");
+            Files.write(tmp, out.array());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Logging.warn.println("Failed to update UID table: " + e.getMessage()); // * only a cache of the shard directories
+        }
+    }
+}
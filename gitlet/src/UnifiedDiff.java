@@ -0,0 +1,360 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/** Writes the differences between versions of files as a unified diff, the format of {@code diff -u}.
+ *  <p>
+ *  A file is written hunk by hunk as its edits are grouped, rather than as one text at the end.
+ *  Versions are {@link Text}s, read a block at a time: the bytes the two begin with are matched
+ *  reading forward, and those they end with reading backward, a block of each at a time, and
+ *  only the lines in between, with the few lines of context around them, are read into memory
+ *  and numbered for {@link Diff}. A small change to a huge file costs reading the file, but not
+ *  holding it; the lines between the first change and the last are held, as {@link Diff} needs.
+ */
+final class UnifiedDiff {
+    /** Unchanged lines shown around each change. */
+    static final int CONTEXT = 3;
+    /** How many bytes at the start of a version are looked at to tell whether it is binary. */
+    private static final int BINARY_CHECK = 8000;
+
+    private final OutputStream out;
+
+    /** A diff writing to OUT, which it never closes. */
+    UnifiedDiff(OutputStream out) {
+        this.out = out;
+    }
+
+    /** Writes the differences of the file PATH from version A to version B, whose blob UIDs are
+     *  UIDA and UIDB (null if unknown). A null version is a file that does not exist. */
+    void file(String path, String uidA, Text a, String uidB, Text b) {
+        print("diff --gitlet a/" + path + " b/" + path + "\n");
+        if (a == null) {
+            print("new file\n");
+        } else if (b == null) {
+            print("deleted file\n");
+        }
+        if (uidA != null || uidB != null) {
+            print("index " + abbreviate(uidA) + ".." + abbreviate(uidB) + "\n");
+        }
+        Text before = a == null ? Text.of(new byte[0]) : a;
+        Text after = b == null ? Text.of(new byte[0]) : b;
+        if (before.isBinary() || after.isBinary()) {
+            print("Binary files " + (a == null ? "/dev/null" : "a/" + path) + " and "
+                    + (b == null ? "/dev/null" : "b/" + path) + " differ\n");
+            return;
+        }
+        print("--- " + (a == null ? "/dev/null" : "a/" + path) + "\n");
+        print("+++ " + (b == null ? "/dev/null" : "b/" + path) + "\n");
+        hunks(before, after);
+    }
+
+    private static String abbreviate(String uid) {
+        return uid == null ? "0000000" : uid.substring(0, Math.min(7, uid.length()));
+    }
+
+    /* HUNKS */
+
+    private void hunks(Text a, Text b) {
+        // * the common prefix, up to the end of its last whole line, which starts the same line in both
+        long lengthA = a.length(), lengthB = b.length();
+        long pos = 0, prefixEnd = 0;
+        int prefixLines = 0;
+        while (pos < lengthA && pos < lengthB && a.at(pos) == b.at(pos)) {
+            if (a.at(pos++) == '\n') {
+                prefixEnd = pos;
+                prefixLines++;
+            }
+        }
+        if (pos == lengthA && pos == lengthB) {
+            return; // * the same bytes
+        }
+        // * the common suffix, from the start of its first whole line, not reaching into the prefix
+        long endA = lengthA, endB = lengthB, suffixA = lengthA, suffixB = lengthB;
+        while (endA > prefixEnd && endB > prefixEnd && a.at(endA - 1) == b.at(endB - 1)) {
+            endA--;
+            endB--;
+            if (isLineStart(a, endA, prefixEnd) && isLineStart(b, endB, prefixEnd)) {
+                suffixA = endA;
+                suffixB = endB;
+            }
+        }
+        // * what is read: the lines between, and up to CONTEXT lines either side of them
+        long from = prefixEnd;
+        int before = 0;
+        while (before < CONTEXT && from > 0) {
+            from = lineStart(a, from - 1);
+            before++;
+        }
+        byte[] windowA = a.slice(from, linesEnd(a, suffixA, CONTEXT));
+        byte[] windowB = b.slice(from, linesEnd(b, suffixB, CONTEXT));
+        int[] startsA = Diff.lineStarts(windowA);
+        int[] startsB = Diff.lineStarts(windowB);
+        int middleA = Diff.lineStarts(Arrays.copyOfRange(windowA, (int) (prefixEnd - from), (int) (suffixA - from))).length - 1;
+        int middleB = Diff.lineStarts(Arrays.copyOfRange(windowB, (int) (prefixEnd - from), (int) (suffixB - from))).length - 1;
+        // * only the lines between are numbered and diffed
+        Diff.Interner interner = new Diff.Interner();
+        int[] idsA = new int[middleA];
+        int[] idsB = new int[middleB];
+        for (int i = 0; i < idsA.length; i++) {
+            idsA[i] = interner.intern(Diff.line(windowA, startsA, before + i));
+        }
+        for (int i = 0; i < idsB.length; i++) {
+            idsB[i] = interner.intern(Diff.line(windowB, startsB, before + i));
+        }
+        List<Diff.Edit> edits = Diff.diff(idsA, idsB);
+        for (int first = 0; first < edits.size(); ) {
+            // * a hunk takes in the edits whose contexts would overlap or touch
+            int last = first;
+            while (last + 1 < edits.size() && edits.get(last + 1).beginA() - edits.get(last).endA() <= 2 * CONTEXT) {
+                last++;
+            }
+            hunk(windowA, startsA, windowB, startsB, edits.subList(first, last + 1), before, prefixLines - before);
+            first = last + 1;
+        }
+    }
+
+    /** Whether POS starts a line of TEXT; FLOOR, which is known to, does. */
+    private static boolean isLineStart(Text text, long pos, long floor) {
+        return pos == floor || text.at(pos - 1) == '\n';
+    }
+
+    /** Where the line of TEXT holding the byte at POS starts. */
+    private static long lineStart(Text text, long pos) {
+        while (pos > 0 && text.at(pos - 1) != '\n') {
+            pos--;
+        }
+        return pos;
+    }
+
+    /** Where the LINES lines of TEXT from the line start FROM end, or the end of TEXT if it has fewer. */
+    private static long linesEnd(Text text, long from, int lines) {
+        long pos = from;
+        for (int line = 0; line < lines && pos < text.length(); line++) {
+            while (pos < text.length() && text.at(pos++) != '\n') {
+                // * to the end of the line
+            }
+        }
+        return pos;
+    }
+
+    /** Writes one hunk of EDITS, whose lines are counted from SHIFT in A and B, the lines read of
+     *  either version, which start at line FIRSTLINE of the file. */
+    private void hunk(byte[] a, int[] startsA, byte[] b, int[] startsB, List<Diff.Edit> edits, int shift, int firstLine) {
+        Diff.Edit first = edits.get(0), last = edits.get(edits.size() - 1);
+        int fromA = Math.max(0, shift + first.beginA() - CONTEXT);
+        int fromB = shift + first.beginB() - (shift + first.beginA() - fromA);
+        int toA = Math.min(startsA.length - 1, shift + last.endA() + CONTEXT);
+        int toB = shift + last.endB() + (toA - shift - last.endA());
+        print("@@ -" + range(firstLine + fromA, toA - fromA) + " +" + range(firstLine + fromB, toB - fromB) + " @@\n");
+        int at = fromA;
+        for (Diff.Edit edit : edits) {
+            lines(' ', a, startsA, at, shift + edit.beginA());
+            lines('-', a, startsA, shift + edit.beginA(), shift + edit.endA());
+            lines('+', b, startsB, shift + edit.beginB(), shift + edit.endB());
+            at = shift + edit.endA();
+        }
+        lines(' ', a, startsA, at, toA);
+    }
+
+    /** A hunk's range of COUNT lines from line FROM (0-based), as diff writes it. */
+    private static String range(int from, int count) {
+        // * an empty range names the line before it
+        return count == 0 ? from + ",0" : count == 1 ? String.valueOf(from + 1) : (from + 1) + "," + count;
+    }
+
+    private void lines(char mark, byte[] text, int[] starts, int from, int to) {
+        try {
+            for (int line = from; line < to; line++) {
+                out.write(mark);
+                out.write(text, starts[line], starts[line + 1] - starts[line]);
+                if (text[starts[line + 1] - 1] != '\n') {
+                    out.write("\n\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write diff", e);
+        }
+    }
+
+    private void print(String s) {
+        try {
+            out.write(s.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write diff", e);
+        }
+    }
+
+    /* VERSIONS */
+
+    /** A version of a file, read a block at a time wherever it is needed, forward or backward,
+     *  so that it need not be held whole: a byte array, a working file, or a stored blob, of
+     *  which a chunked one is read a chunk at a time. Stored blobs are read from the object
+     *  store as they are, and never decoded to a {@link Blob} nor cached. */
+    abstract static class Text implements Closeable {
+        private static final int BLOCK = 64 * 1024;
+
+        private final long length;
+        private byte[] block = new byte[0];
+        private long blockAt;
+
+        Text(long length) {
+            this.length = length;
+        }
+
+        long length() {
+            return length;
+        }
+
+        /** Reads the LEN bytes at POS, all of them there, into BUF at OFF. */
+        abstract void read(long pos, byte[] buf, int off, int len) throws IOException;
+
+        @Override
+        public void close() throws IOException {
+        }
+
+        /** The byte at POS, from the block around it, which ends at POS if reading moved backward. */
+        final byte at(long pos) {
+            if (pos < blockAt || pos >= blockAt + block.length) {
+                long start = pos < blockAt ? Math.max(0, pos - BLOCK + 1) : pos;
+                block = slice(start, Math.min(length, start + BLOCK));
+                blockAt = start;
+            }
+            return block[(int) (pos - blockAt)];
+        }
+
+        /** The bytes from FROM to TO. */
+        final byte[] slice(long from, long to) {
+            if (to - from > Integer.MAX_VALUE - 8) {
+                throw error("The changed part of a file is too large to diff: %d bytes.", to - from);
+            }
+            byte[] bytes = new byte[(int) (to - from)];
+            try {
+                read(from, bytes, 0, bytes.length);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read file to diff: " + e.getMessage(), e);
+            }
+            return bytes;
+        }
+
+        /** Whether this looks binary: a NUL in its first {@value #BINARY_CHECK} bytes, as {@link Diff#isBinary} has it. */
+        boolean isBinary() {
+            return Diff.isBinary(slice(0, Math.min(length, BINARY_CHECK)));
+        }
+
+        static Text of(byte[] bytes) {
+            return of(bytes, 0);
+        }
+
+        /** The bytes of BYTES from OFFSET on. */
+        static Text of(byte[] bytes, int offset) {
+            return new Text(bytes.length - offset) {
+                @Override
+                void read(long pos, byte[] buf, int off, int len) {
+                    System.arraycopy(bytes, offset + (int) pos, buf, off, len);
+                }
+            };
+        }
+
+        /** The working file FILE, read in place. */
+        static Text of(Path file) {
+            try {
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                return new Text(channel.size()) {
+                    @Override
+                    void read(long pos, byte[] buf, int off, int len) throws IOException {
+                        ByteBuffer dst = ByteBuffer.wrap(buf, off, len);
+                        while (dst.hasRemaining()) {
+                            if (channel.read(dst, pos + dst.position() - off) < 0) {
+                                throw new IOException("File changed while diffing: " + file);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        channel.close();
+                    }
+                };
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read file: " + file, e);
+            }
+        }
+
+        /** The contents of the stored blob UID, read through the packs CACHE keeps open; CACHE may be null. */
+        static Text ofBlob(String uid, ObjectCache cache) {
+            byte[] encoded;
+            try (InputStream stored = Dumpable.openStored(uid, cache)) {
+                encoded = stored.readAllBytes(); // * a whole blob, or the list of the chunks of a chunked one
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read object: " + uid, e);
+            }
+            int offset = ObjectCodec.blobContentOffset(encoded);
+            if (offset >= 0) {
+                return of(encoded, offset);
+            }
+            List<ObjectCodec.Chunk> chunks = ObjectCodec.chunks(encoded);
+            if (chunks != null) {
+                return new Chunked(chunks, cache);
+            }
+            ByteArrayOutputStream contents = new ByteArrayOutputStream(); // * written by an older gitlet
+            try {
+                ObjectCodec.copyBlobContents(new ByteArrayInputStream(encoded), contents, cache);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read object: " + uid, e);
+            }
+            return of(contents.toByteArray());
+        }
+    }
+
+    /** A chunked blob, holding the one chunk last read. */
+    private static final class Chunked extends Text {
+        private final List<ObjectCodec.Chunk> chunks;
+        private final long[] starts;
+        private final ObjectCache cache;
+        private int loaded = -1;
+        private byte[] contents;
+
+        private Chunked(List<ObjectCodec.Chunk> chunks, ObjectCache cache) {
+            super(chunks.stream().mapToLong(ObjectCodec.Chunk::length).sum());
+            this.chunks = chunks;
+            this.cache = cache;
+            this.starts = new long[chunks.size()];
+            for (int i = 1; i < starts.length; i++) {
+                starts[i] = starts[i - 1] + chunks.get(i - 1).length();
+            }
+        }
+
+        @Override
+        void read(long pos, byte[] buf, int off, int len) throws IOException {
+            while (len > 0) {
+                int i = Arrays.binarySearch(starts, pos);
+                i = i >= 0 ? i : -i - 2; // * the chunk starting at or before POS
+                if (i != loaded) {
+                    ByteArrayOutputStream chunk = new ByteArrayOutputStream((int) chunks.get(i).length());
+                    ObjectCodec.copyBlobContents(Dumpable.openStored(chunks.get(i).uid(), cache), chunk, cache);
+                    contents = chunk.toByteArray();
+                    loaded = i;
+                }
+                int n = (int) Math.min(len, contents.length - (pos - starts[i]));
+                System.arraycopy(contents, (int) (pos - starts[i]), buf, off, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -12,11 +13,11 @@ import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Formatter;
 import java.util.List;
 
 
@@ -48,11 +49,7 @@ public class Utils {
                     throw new IllegalArgumentException("improper type to sha1");
                 }
             }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
-            }
-            return result.toString();
+            return toHex(md.digest());
         } catch (NoSuchAlgorithmException excp) {
             throw new IllegalArgumentException("System does not support SHA-1");
         }
@@ -64,6 +61,34 @@ public class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Returns the lowercase hexadecimal numeral of the bytes in RAW. */
+    static String toHex(byte[] raw) {
+        char[] hex = new char[raw.length * 2];
+        for (int i = 0; i < raw.length; i++) {
+            hex[2 * i] = Character.forDigit((raw[i] >> 4) & 0xf, 16);
+            hex[2 * i + 1] = Character.forDigit(raw[i] & 0xf, 16);
+        }
+        return new String(hex);
+    }
+
+    /** Returns the bytes denoted by the hexadecimal numeral HEX, which must
+     *  have an even number of digits. */
+    static byte[] fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("odd-length hex string: " + hex);
+        }
+        byte[] raw = new byte[hex.length() / 2];
+        for (int i = 0; i < raw.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("not a hex string: " + hex);
+            }
+            raw[i] = (byte) ((hi << 4) | lo);
+        }
+        return raw;
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -149,6 +174,34 @@ public class Utils {
         writeContents(path.toFile(), contents);
     }
 
+    /** Like {@link #writeContents}, but writes CONTENTS to a temporary file next to
+     *  PATH and renames it over PATH, so that a reader running at the same time sees
+     *  either the old contents or the new ones, never a partial write. */
+    static void writeAtomically(Path path, Object... contents) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(path.toAbsolutePath().getParent(), "." + path.getFileName() + "-", ".tmp");
+            writeContents(tmp, contents);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp);
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp); // * only still there if the move failed
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /** Whether FILE is a lock or a temporary file of {@link #writeAtomically}, rather than
+     *  a file in its own right; listings of refs skip those. */
+    static boolean isTransient(Path file) {
+        String name = file.getFileName().toString();
+        return name.startsWith(".") || name.endsWith(LockFile.SUFFIX);
+    }
+
     /** Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
      *  Throws IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,
@@ -169,6 +222,19 @@ public class Utils {
         return readObject(path.toFile(), expectedClass);
     }
 
+    /** Return an object of type T deserialized from BYTES, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try (ObjectInputStream in =
+                     new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return expectedClass.cast(in.readObject());
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp);
+        }
+    }
+
     /** Write OBJ to FILE. */
     static void writeObject(File file, Serializable obj) {
         writeContents(file, serialize(obj));
@@ -0,0 +1,268 @@
+package gitlet;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+/** The files of the working tree, all the way down, less those {@value #IGNORE_FILE} files ignore.
+ *  <p>
+ *  {@code status}, {@code switch}, {@code reset} and {@code merge} see the working tree through
+ *  a walk, which lists every directory of the tree, one level at a time: the directories of a level
+ *  are listed concurrently by a pool of up to {@value Parallel#MAX_IO_THREADS} threads, which is started
+ *  only once a level has {@value #MIN_PARALLEL} directories or more, and their subdirectories
+ *  make up the next level. {@code .gitlet} directories are never entered, and neither are
+ *  directories that are ignored, so that a large ignored build output costs one check.
+ *  <p>
+ *  A {@value #IGNORE_FILE} file in any directory holds patterns in the syntax of
+ *  {@code .gitignore}, for the paths below that directory:
+ *  <ul>
+ *  <li>blank lines and lines starting with {@code #} are skipped; trailing spaces are dropped;</li>
+ *  <li>{@code *} matches anything but a {@code '/'}, {@code ?} one such character,
+ *      {@code [a-z]} (or {@code [!a-z]}) one of (or none of) a set, and {@code **} whole
+ *      directories: {@code **}{@code /x}, {@code a/**}, {@code a/**}{@code /x};</li>
+ *  <li>a pattern with a {@code '/'} before its end is matched against the path from the directory
+ *      of its file (a leading {@code '/'} only anchors it there); one without, against names at
+ *      any depth;</li>
+ *  <li>a pattern ending with {@code '/'} matches directories only;</li>
+ *  <li>a pattern starting with {@code !} re-includes what an earlier one excluded, except below
+ *      an excluded directory, which is not walked.</li>
+ *  </ul>
+ *  The last pattern that matches a path decides, deeper files after those of their parents.
+ *  Ignoring only hides untracked files: tracked files are compared with the working tree whatever
+ *  the patterns say, and a file named to {@code add} is added even if ignored.
+ */
+final class WorkTree {
+    static final String IGNORE_FILE = ".gitletignore";
+    /** Directories a level needs before a pool lists them. */
+    private static final int MIN_PARALLEL = 8;
+
+    /** One pattern of an ignore file whose directory is BASE (relative, "" or ending with '/'). */
+    private record Rule(String base, Pattern pattern, boolean negated, boolean directoryOnly, boolean anchored) {
+        boolean matches(String path, boolean directory) {
+            if (directoryOnly && !directory || !path.startsWith(base)) {
+                return false;
+            }
+            String relative = path.substring(base.length());
+            return pattern.matcher(anchored ? relative : relative.substring(relative.lastIndexOf('/') + 1)).matches();
+        }
+    }
+
+    /** A directory to list, with the rules of its ignore file and of those above it, in order. */
+    private record Dir(String path, List<Rule> rules) {
+    }
+
+    private final Path root;
+    private final int parallelism;
+
+    /** The working tree at ROOT, walked by up to one thread per core, at most {@value Parallel#MAX_IO_THREADS}. */
+    WorkTree(Path root) {
+        this(root, Parallel.upToCores(Parallel.MAX_IO_THREADS));
+    }
+
+    WorkTree(Path root, int parallelism) {
+        this.root = root.toAbsolutePath().normalize();
+        this.parallelism = Parallel.check(parallelism);
+    }
+
+    /** Returns the paths of the regular files of the working tree that are not ignored,
+     *  relative and {@code '/'}-separated, in sorted order. */
+    List<String> files() {
+        return files("");
+    }
+
+    /** Returns the paths, as {@link #files()} does, of the files below DIR, a relative path of a
+     *  directory of the working tree; none if DIR itself is ignored. */
+    List<String> files(String dir) {
+        String path = normalize(dir);
+        List<Rule> rules = rulesInside(path);
+        return rules == null ? List.of() : walk(new Dir(path.isEmpty() ? "" : path + "/", rules));
+    }
+
+    /** Whether the file, or directory if DIRECTORY, at PATH (relative to the root), or a directory above it, is ignored. */
+    boolean isIgnored(String path, boolean directory) {
+        String normalized = normalize(path);
+        int slash = normalized.lastIndexOf('/');
+        List<Rule> rules = rulesInside(slash < 0 ? "" : normalized.substring(0, slash));
+        return rules == null || isIgnored(rules, normalized, directory);
+    }
+
+    private static String normalize(String path) {
+        String normalized = path.replace('\\', '/');
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized.equals(".") ? "" : normalized;
+    }
+
+    /** The rules that apply inside DIR ("" for the root), read from its ignore file and those of the
+     *  directories above it; null if DIR, or a directory above it, is ignored. */
+    private List<Rule> rulesInside(String dir) {
+        List<Rule> rules = read("", List.of());
+        if (dir.isEmpty()) {
+            return rules;
+        }
+        String prefix = "";
+        for (String name : dir.split("/")) {
+            String path = prefix + name;
+            if (isIgnored(rules, path, true)) {
+                return null;
+            }
+            prefix = path + "/";
+            rules = read(prefix, rules);
+        }
+        return rules;
+    }
+
+    private static boolean isIgnored(List<Rule> rules, String path, boolean directory) {
+        for (int i = rules.size() - 1; i >= 0; i--) {
+            Rule rule = rules.get(i);
+            if (rule.matches(path, directory)) {
+                return !rule.negated();
+            }
+        }
+        return false;
+    }
+
+    /* WALKING */
+
+    private List<String> walk(Dir top) {
+        List<String> files = new ArrayList<>();
+        List<Dir> level = List.of(top);
+        try (Parallel parallel = new Parallel(parallelism, MIN_PARALLEL, "walk " + root)) {
+            while (!level.isEmpty()) {
+                // * each directory's files apart, so that a level adds them in the order it was listed in
+                List<Callable<List<Dir>>> tasks = new ArrayList<>(level.size());
+                List<List<String>> found = new ArrayList<>(level.size());
+                for (Dir dir : level) {
+                    List<String> own = new ArrayList<>();
+                    found.add(own);
+                    tasks.add(() -> list(dir, own));
+                }
+                List<Dir> next = new ArrayList<>();
+                parallel.run(tasks).forEach(next::addAll);
+                found.forEach(files::addAll);
+                level = next;
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /** Adds the files of DIR that are not ignored to FILES; returns its subdirectories that are not, with their rules. */
+    private List<Dir> list(Dir dir, List<String> files) {
+        List<Dir> subdirs = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root.resolve(dir.path()))) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                String path = dir.path() + name;
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!name.equals(".gitlet") && !isIgnored(dir.rules(), path, true)) {
+                        subdirs.add(new Dir(path + "/", read(path + "/", dir.rules())));
+                    }
+                } else if (Files.isRegularFile(entry) && !isIgnored(dir.rules(), path, false)) {
+                    files.add(path);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list directory: " + root.resolve(dir.path()), e);
+        }
+        return subdirs;
+    }
+
+    /* IGNORE FILES */
+
+    /** RULES, followed by those of the ignore file in DIR ("" or ending with '/'), if it has one. */
+    private List<Rule> read(String dir, List<Rule> rules) {
+        Path file = root.resolve(dir + IGNORE_FILE);
+        if (!Files.isRegularFile(file)) {
+            return rules;
+        }
+        List<Rule> all = new ArrayList<>(rules);
+        try {
+            for (String line : Files.readAllLines(file)) {
+                Rule rule = parse(dir, line);
+                if (rule != null) {
+                    all.add(rule);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read " + file, e);
+        }
+        return all;
+    }
+
+    /** The rule LINE of the ignore file in BASE stands for, or null if it is blank or a comment. */
+    private static Rule parse(String base, String line) {
+        String text = line.replaceAll("(?<!\\\\) +$", "");
+        if (text.isEmpty() || text.startsWith("#")) {
+            return null;
+        }
+        boolean negated = text.startsWith("!");
+        if (negated) {
+            text = text.substring(1);
+        } else if (text.startsWith("\\#") || text.startsWith("\\!")) {
+            text = text.substring(1);
+        }
+        boolean directoryOnly = text.endsWith("/");
+        if (directoryOnly) {
+            text = text.substring(0, text.length() - 1);
+        }
+        boolean anchored = text.contains("/");
+        if (text.startsWith("/")) {
+            text = text.substring(1);
+        }
+        if (text.isEmpty()) {
+            return null;
+        }
+        return new Rule(base, Pattern.compile(toRegex(text)), negated, directoryOnly, anchored);
+    }
+
+    /** The regular expression of the glob GLOB, as described in the class comment. */
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*' -> {
+                    boolean wholeName = glob.startsWith("**", i) && (i == 0 || glob.charAt(i - 1) == '/');
+                    if (wholeName && i + 2 == glob.length()) {
+                        regex.append(".*"); // * a/**: everything below a
+                        i++;
+                    } else if (wholeName && glob.charAt(i + 2) == '/') {
+                        regex.append("(?:.*/)?"); // * **/x, a/**/x: any number of directories
+                        i += 2;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                }
+                case '?' -> regex.append("[^/]");
+                case '[' -> {
+                    int end = glob.indexOf(']', i + 2);
+                    if (end < 0) {
+                        regex.append("\\[");
+                    } else {
+                        String set = glob.substring(i + 1, end).replace("\\", "\\\\").replace("[", "\\[").replace("&", "\\&");
+                        boolean none = set.startsWith("!");
+                        set = none ? set.substring(1) : set;
+                        regex.append(none ? "[^" : "[").append(set.startsWith("]") ? "\\" + set : set).append(']');
+                        i = end;
+                    }
+                }
+                case '\\' -> {
+                    if (i + 1 < glob.length()) {
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                    }
+                }
+                default -> regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+}